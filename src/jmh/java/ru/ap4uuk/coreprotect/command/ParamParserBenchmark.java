@@ -0,0 +1,42 @@
+package ru.ap4uuk.coreprotect.command;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import ru.ap4uuk.coreprotect.util.TimeUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор параметров команд: {@link CoParamParser#parse} и {@link TimeUtil#parseDurationSeconds}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParamParserBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Params {
+        @Param({"t:10m", "t:1h30m r:10 u:Builder", "t:2d3h15m r:50 u:Builder w:the_nether #vacuum"})
+        public String input;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Durations {
+        @Param({"90s", "1h30m", "2d3h15m"})
+        public String input;
+    }
+
+    @Benchmark
+    public RollbackParams parse(Params params) {
+        return CoParamParser.parse(params.input);
+    }
+
+    @Benchmark
+    public int parseDuration(Durations durations) {
+        return TimeUtil.parseDurationSeconds(durations.input);
+    }
+}
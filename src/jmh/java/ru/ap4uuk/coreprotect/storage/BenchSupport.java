@@ -0,0 +1,135 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Общее для бенчмарков: запуск ванильных реестров без сервера и засеянные БД.
+ * <p>
+ * Засеянная БД строится один раз через обычный конвейер записи (те же партиции, chunk_key и справочники,
+ * что и на сервере) и кладётся в {@code coreprotect.bench.dir}; следующие прогоны берут готовый файл.
+ * События равномерно раскиданы по квадрату {@link #AREA}×{@link #AREA} и высоте {@link #HEIGHT} вокруг нуля
+ * и идут по времени подряд за последние {@link #HISTORY_DAYS} дней.
+ */
+final class BenchSupport {
+
+    static final ResourceKey<Level> DIM = Level.OVERWORLD;
+    static final int AREA = 1024;
+    static final int HEIGHT = 64;
+    static final int HISTORY_DAYS = 60;
+
+    private static final int PLAYERS = 32;
+
+    private BenchSupport() {}
+
+    static void bootstrap() {
+        HeadlessBootstrap.run();
+    }
+
+    static Path dir() throws IOException {
+        Path dir = Paths.get(System.getProperty("coreprotect.bench.dir", "build/jmh-db"));
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    /**
+     * Состояния для событий: несколько простых блоков и все состояния ступенек (со свойствами).
+     */
+    static List<BlockState> states() {
+        List<BlockState> states = new ArrayList<>();
+        Stream.of(Blocks.STONE, Blocks.DIRT, Blocks.GRASS_BLOCK, Blocks.OAK_PLANKS, Blocks.OAK_LOG,
+                        Blocks.COBBLESTONE, Blocks.GLASS, Blocks.SAND, Blocks.TORCH)
+                .forEach(block -> states.add(block.defaultBlockState()));
+        states.addAll(Blocks.OAK_STAIRS.getStateDefinition().getPossibleStates());
+        return states;
+    }
+
+    static UUID player(int i) {
+        return new UUID(0x5EED_0000L, i);
+    }
+
+    static BlockPos randomPos(SplittableRandom random) {
+        return new BlockPos(random.nextInt(AREA) - AREA / 2, random.nextInt(HEIGHT), random.nextInt(AREA) - AREA / 2);
+    }
+
+    /**
+     * БД с {@code rows} событиями; строится при первом обращении.
+     */
+    static Path seeded(long rows) throws IOException {
+        Path db = dir().resolve("seed-" + rows + ".db");
+        Path done = db.resolveSibling(db.getFileName() + ".done");
+        if (Files.exists(done)) return db;
+
+        // недостроенная с прошлого раза — заново
+        deleteDatabase(db);
+        // запись не должна терять события: ждём место в очереди, батчи большие, кэш инспекта не нужен
+        StorageSettings settings = new StorageSettings(512, 8192, 250, 1000, OverflowPolicy.BLOCK,
+                TimeUnit.MINUTES.toMillis(1), 0, 7, 0, 0, 1, 0, 1000);
+        DatabaseManager manager = DatabaseManager.open(db, settings);
+        if (manager == null) {
+            throw new IOException("не удалось открыть " + db);
+        }
+        try {
+            List<BlockState> states = states();
+            BlockAction.Type[] types = BlockAction.Type.values();
+            SplittableRandom random = new SplittableRandom(rows);
+            long spanMillis = TimeUnit.DAYS.toMillis(HISTORY_DAYS);
+            long start = System.currentTimeMillis() - spanMillis;
+            for (long i = 0; i < rows; i++) {
+                int player = random.nextInt(PLAYERS);
+                manager.logBlockAction(new BlockAction(
+                        types[random.nextInt(types.length)],
+                        player(player),
+                        "bench" + player,
+                        DIM,
+                        randomPos(random),
+                        states.get(random.nextInt(states.size())),
+                        states.get(random.nextInt(states.size())),
+                        Instant.ofEpochMilli(start + spanMillis * i / rows)));
+            }
+            awaitWritten(manager, rows);
+        } finally {
+            manager.close();
+        }
+        Files.createFile(done);
+        return db;
+    }
+
+    /**
+     * Ждёт, пока writer закоммитит {@code rows} событий с момента старта.
+     */
+    static void awaitWritten(DatabaseManager manager, long rows) {
+        PipelineMetrics metrics = manager.metrics();
+        while (metrics.getEventsWritten() < rows) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    static void deleteDatabase(Path db) throws IOException {
+        String name = db.getFileName().toString();
+        try (Stream<Path> files = Files.list(db.getParent())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith(name)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
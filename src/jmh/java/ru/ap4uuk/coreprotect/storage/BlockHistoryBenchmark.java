@@ -0,0 +1,55 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbBlockAction;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * История позиции для инспекта ({@link DatabaseManager#getBlockHistory}) по засеянной БД. Кэш инспекта выключен —
+ * меряется сама выборка по всем партициям.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlockHistoryBenchmark {
+
+    private static final int LIMIT = 10;
+
+    @Param({"1000000", "10000000", "50000000"})
+    public long rows;
+
+    private DatabaseManager db;
+    private final SplittableRandom random = new SplittableRandom(11);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchSupport.bootstrap();
+        StorageSettings d = StorageSettings.defaults();
+        // без сжатия холодных партиций: засеянная база общая для прогонов и не должна меняться под замером
+        db = DatabaseManager.open(BenchSupport.seeded(rows), new StorageSettings(d.minBatchSize, d.maxBatchSize,
+                d.maxBatchLatencyMs, d.targetCommitMs, d.overflowPolicy, d.overflowBlockTimeoutMs, d.coalesceWindowMs,
+                d.partitionDays, d.retentionDays, 0, d.readConnections, 0, d.rollbackFetchSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+    }
+
+    @Benchmark
+    public List<DbBlockAction> blockHistory() {
+        return db.getBlockHistory(BenchSupport.DIM, BenchSupport.randomPos(random), LIMIT);
+    }
+}
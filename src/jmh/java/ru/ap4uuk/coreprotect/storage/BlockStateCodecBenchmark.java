@@ -0,0 +1,83 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сериализация BlockState в строку и обратно: сырой {@code BlockStateParser} и путь через палитру
+ * ({@code deserializeBlockState}) — для строк, уже известных справочнику, и для новых, которые каждый раз разбираются.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BlockStateCodecBenchmark {
+
+    private Path file;
+    private DatabaseManager db;
+    private BlockState[] states;
+    private String[] known;
+    private String[] unknown;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchSupport.bootstrap();
+        file = Files.createTempFile(BenchSupport.dir(), "codec-", ".db");
+        Files.delete(file);
+        db = DatabaseManager.open(file, StorageSettings.defaults());
+
+        List<BlockState> all = BenchSupport.states();
+        // первая половина попадает в справочник через обычную запись, вторая остаётся ему неизвестной
+        int half = all.size() / 2;
+        states = all.toArray(new BlockState[0]);
+        known = new String[half];
+        unknown = new String[all.size() - half];
+        for (int i = 0; i < all.size(); i++) {
+            String serialized = BlockStatePalette.serialize(all.get(i));
+            if (i < half) {
+                known[i] = serialized;
+                db.logBlockChange(BlockAction.Type.PLACE, BenchSupport.player(0), "bench",
+                        BenchSupport.DIM, BlockPos.ZERO, null, all.get(i));
+            } else {
+                unknown[i - half] = serialized;
+            }
+        }
+        BenchSupport.awaitWritten(db, half);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        BenchSupport.deleteDatabase(file);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return BlockStatePalette.serialize(states[(next++ & Integer.MAX_VALUE) % states.length]);
+    }
+
+    @Benchmark
+    public BlockState deserializeKnown() {
+        return db.deserializeBlockState(known[(next++ & Integer.MAX_VALUE) % known.length]);
+    }
+
+    @Benchmark
+    public BlockState deserializeUnknown() {
+        return db.deserializeBlockState(unknown[(next++ & Integer.MAX_VALUE) % unknown.length]);
+    }
+}
@@ -0,0 +1,100 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Приём события на потоке сервера: {@link EventCapture#capture} (id справочников и слот кольца) и отдельно
+ * {@link EventRing#offer}. Writer-потока нет — кольцо разбирает сам бенчмарк, когда оно заполнено, так что
+ * в замер не попадают ни аллокации writer-а, ни переполнение. С {@code -prof gc}
+ * ({@code ./gradlew jmh -PjmhIncludes=EventCapture -PjmhProfilers=gc}) {@code gc.alloc.rate.norm}
+ * показывает байты на событие; для установившегося режима ожидается 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventCaptureBenchmark {
+
+    private static final int RING_CAPACITY = 65_536;
+    private static final int POSITIONS = 4096;
+    private static final int PLAYERS = 32;
+
+    private EventRing ring;
+    private EventCapture capture;
+    private final EventRing.SlotReader discard = (pos, time, player, world, action, oldState, newState) -> {};
+
+    private BlockPos[] positions;
+    private BlockState[] states;
+    private UUID[] players;
+    private String[] names;
+    private BlockAction.Type[] types;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchSupport.bootstrap();
+        StorageSettings settings = StorageSettings.defaults();
+        ring = new EventRing(RING_CAPACITY);
+        Dictionary actionTypes = Dictionary.simple("action_types");
+        EventCodec codec = new EventCodec(new Dictionary("players", "uuid", "name"), Dictionary.simple("worlds"),
+                actionTypes, new BlockStatePalette(Dictionary.simple("materials")));
+        capture = new EventCapture(ring, codec, null, new PipelineMetrics(ring, settings.overflowPolicy), settings);
+
+        SplittableRandom random = new SplittableRandom(42);
+        positions = new BlockPos[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            positions[i] = BenchSupport.randomPos(random);
+        }
+        List<BlockState> all = BenchSupport.states();
+        states = all.toArray(new BlockState[0]);
+        // ник — один объект на игрока, как у ServerPlayer
+        players = new UUID[PLAYERS];
+        names = new String[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = BenchSupport.player(i);
+            names[i] = "bench" + i;
+        }
+        types = BlockAction.Type.values();
+
+        // id справочников выдаются при первой встрече — прогреваем, замеряется установившийся режим
+        for (int i = 0; i < states.length * PLAYERS; i++) {
+            capture();
+        }
+        ring.drain(discard, RING_CAPACITY);
+    }
+
+    @Benchmark
+    public void capture() {
+        if (ring.size() >= RING_CAPACITY - 1) {
+            ring.drain(discard, RING_CAPACITY);
+        }
+        int i = next++ & Integer.MAX_VALUE;
+        int player = i % PLAYERS;
+        capture.capture(types[i % types.length], players[player], names[player], BenchSupport.DIM,
+                positions[i % POSITIONS], states[i % states.length], states[(i + 1) % states.length],
+                System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean ringOffer() {
+        if (ring.size() >= RING_CAPACITY - 1) {
+            ring.drain(discard, RING_CAPACITY);
+        }
+        int i = next++ & Integer.MAX_VALUE;
+        return ring.offer(positions[i % POSITIONS].asLong(), i, i % PLAYERS, 1, 1, i % 64, (i + 1) % 64);
+    }
+}
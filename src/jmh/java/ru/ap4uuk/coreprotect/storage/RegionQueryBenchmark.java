@@ -0,0 +1,65 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbRollbackAction;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выборка области для rollback ({@link DatabaseManager#getActionsForRollback}) по засеянной БД:
+ * случайный центр внутри засеянного квадрата, радиус и глубина истории — параметры.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RegionQueryBenchmark {
+
+    @Param({"1000000", "10000000", "50000000"})
+    public long rows;
+
+    @Param({"8", "32"})
+    public int radius;
+
+    // t: у rollback-а — последние сутки или вся история
+    @Param({"1", "60"})
+    public int days;
+
+    private DatabaseManager db;
+    private long since;
+    private final SplittableRandom random = new SplittableRandom(7);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchSupport.bootstrap();
+        StorageSettings d = StorageSettings.defaults();
+        // без сжатия холодных партиций: засеянная база общая для прогонов и не должна меняться под замером
+        db = DatabaseManager.open(BenchSupport.seeded(rows), new StorageSettings(d.minBatchSize, d.maxBatchSize,
+                d.maxBatchLatencyMs, d.targetCommitMs, d.overflowPolicy, d.overflowBlockTimeoutMs, d.coalesceWindowMs,
+                d.partitionDays, d.retentionDays, 0, d.readConnections, d.inspectCacheEntries, d.rollbackFetchSize));
+        since = Instant.now().getEpochSecond() - TimeUnit.DAYS.toSeconds(days);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+    }
+
+    @Benchmark
+    public List<DbRollbackAction> rollbackRegion() {
+        BlockPos center = BenchSupport.randomPos(random);
+        return db.getActionsForRollback(BenchSupport.DIM, center, radius, since, null);
+    }
+}
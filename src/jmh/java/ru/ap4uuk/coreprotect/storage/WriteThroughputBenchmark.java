@@ -0,0 +1,74 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность записи: событий в секунду от захвата на потоке сервера до коммита, при фиксированном
+ * размере батча. Одна операция — одно событие; замер кончается, когда writer закоммитил всё отправленное.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriteThroughputBenchmark {
+
+    private static final int EVENTS = 50_000;
+
+    @Param({"64", "512", "4096"})
+    public int batchSize;
+
+    private Path file;
+    private DatabaseManager db;
+    private BlockState[] states;
+    private final UUID player = BenchSupport.player(0);
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+    private final SplittableRandom random = new SplittableRandom(42);
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchSupport.bootstrap();
+        file = Files.createTempFile(BenchSupport.dir(), "write-" + batchSize + "-", ".db");
+        Files.delete(file);
+        // батч фиксирован (min == max), так что цель коммита ни на что не влияет; при переполнении ждём, а не теряем события
+        db = DatabaseManager.open(file, new StorageSettings(batchSize, batchSize, 10, 1000,
+                OverflowPolicy.BLOCK, TimeUnit.MINUTES.toMillis(1), 0, 7, 0, 0, 1, 0, 1000));
+        states = BenchSupport.states().toArray(new BlockState[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        BenchSupport.deleteDatabase(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void logAndCommit() {
+        for (int i = 0; i < EVENTS; i++) {
+            pos.set(random.nextInt(BenchSupport.AREA), random.nextInt(BenchSupport.HEIGHT), random.nextInt(BenchSupport.AREA));
+            db.logBlockChange(BlockAction.Type.PLACE, player, "bench", BenchSupport.DIM, pos,
+                    states[i % states.length], states[(i + 1) % states.length]);
+        }
+        sent += EVENTS;
+        BenchSupport.awaitWritten(db, sent);
+    }
+}
@@ -0,0 +1,57 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.BlockStateProperties;
+
+/**
+ * Ванильные реестры без сервера и без FML — для loadgen, проверки контракта хранилища и бенчмарков.
+ * <p>
+ * Forge-патченный {@link Bootstrap} вне FML может подняться не полностью: тогда блоки не регистрируются
+ * или реестр блоков пуст, а ошибка вылезает потом, посреди прогона, как NPE или записи воздуха вместо блоков.
+ * Поэтому сразу после запуска проверяем то, на что опирается хранилище: ключи блоков в реестре и разбор
+ * строки состояния со свойствами через {@link BlockStatePalette}. Не прошло — {@link IllegalStateException}
+ * с понятной причиной, прогон не начинается.
+ */
+final class HeadlessBootstrap {
+
+    private static boolean done;
+
+    private HeadlessBootstrap() {}
+
+    static synchronized void run() {
+        if (done) return;
+        try {
+            SharedConstants.tryDetectVersion();
+            Bootstrap.bootStrap();
+        } catch (RuntimeException | LinkageError e) {
+            throw new IllegalStateException("Bootstrap.bootStrap() вне FML завершился ошибкой; классы Minecraft на classpath"
+                    + " должны быть из userdev (runtimeClasspath источника loadgen/jmh)", e);
+        }
+        check();
+        done = true;
+    }
+
+    private static void check() {
+        if (Blocks.STONE == null || BuiltInRegistries.BLOCK.size() < 2) {
+            throw new IllegalStateException("Реестр блоков не заполнен после Bootstrap.bootStrap()");
+        }
+        ResourceLocation key = BuiltInRegistries.BLOCK.getKey(Blocks.STONE);
+        if (!new ResourceLocation("minecraft", "stone").equals(key)) {
+            throw new IllegalStateException("Реестр блоков не знает minecraft:stone (ключ: " + key + ")");
+        }
+        BlockState stairs = Blocks.OAK_STAIRS.defaultBlockState()
+                .setValue(BlockStateProperties.HORIZONTAL_FACING, Direction.EAST);
+        BlockStatePalette palette = new BlockStatePalette(Dictionary.simple("materials"));
+        BlockState parsed = palette.stateOf(BlockStatePalette.serialize(stairs));
+        if (parsed != stairs) {
+            throw new IllegalStateException("Состояние " + BlockStatePalette.serialize(stairs)
+                    + " не разбирается обратно (получено " + parsed + ")");
+        }
+    }
+}
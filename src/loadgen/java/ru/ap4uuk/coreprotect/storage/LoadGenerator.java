@@ -0,0 +1,295 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Нагрузочный прогон конвейера записи без сервера и без мира: поднимаются только ванильные реестры
+ * ({@link HeadlessBootstrap}), события идут в настоящее хранилище ({@code --backend}) с потока, который тикает
+ * по 50 мс, как поток сервера. Раз в секунду печатается скорость приёма и записи, очередь, время коммитов
+ * и размер БД, в конце — итог.
+ * <p>
+ * Источник — синтетические игроки ({@code --scenario}) или трасса ({@code --replay}); синтетический прогон
+ * можно записать ({@code --record}) и потом проиграть ещё раз на другой версии. Запуск: {@code ./gradlew loadgen
+ * -PloadgenArgs="--scenario tnt --rate 5000 --duration 120"}.
+ */
+public final class LoadGenerator {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int TICKS_PER_REPORT = 20;
+
+    private static final Set<String> FLAGS = Set.of("keep");
+    private static final Set<String> OPTIONS = Set.of(
+            "backend", "db", "scenario", "rate", "duration", "players", "seed", "record", "replay", "speed",
+            "policy", "coalesce-ms", "batch-max");
+
+    private static final String USAGE = """
+            Параметры:
+              --backend TYPE       тип хранилища: SQLITE | SEGMENTS (по умолчанию SQLITE)
+              --db PATH            файл БД или каталог сегментов (по умолчанию build/loadgen/load.db или
+                                   build/loadgen/segments; старые удаляются, если нет --keep). Сегменты
+                                   выделяются заранее, так что их размер растёт скачками по 64 МиБ
+              --keep               писать поверх существующей БД
+              --scenario NAME      mixed | mining | building | tnt | farm (по умолчанию mixed)
+              --rate N             событий в секунду (по умолчанию 2000)
+              --duration SEC       длительность синтетического прогона (по умолчанию 60)
+              --players N          игроков (по умолчанию 20)
+              --seed N             зерно генератора (по умолчанию 1)
+              --record PATH        записать сгенерированные события в трассу
+              --replay PATH        проиграть трассу или spill-журнал вместо генерации
+              --speed X            ускорение проигрывания; 0 — без пауз (по умолчанию 1)
+              --policy NAME        spill | block | drop — политика переполнения очереди
+              --coalesce-ms N      окно слияния событий одной позиции
+              --batch-max N        максимальный размер батча
+            """;
+
+    private LoadGenerator() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        String backend = options.getOrDefault("backend", "SQLITE");
+        String defaultPath = backend.equalsIgnoreCase("SEGMENTS") ? "build/loadgen/segments" : "build/loadgen/load.db";
+        Path db = Paths.get(options.getOrDefault("db", defaultPath)).toAbsolutePath();
+        Files.createDirectories(db.getParent());
+        if (!options.containsKey("keep")) {
+            deleteDatabase(db);
+        }
+
+        try {
+            HeadlessBootstrap.run();
+        } catch (IllegalStateException e) {
+            System.err.println("[loadgen] " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        StorageBackend manager;
+        try {
+            manager = StorageBackends.open(backend, db, settings(options));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "; доступны: " + String.join(", ", StorageBackends.types()));
+            System.exit(2);
+            return;
+        }
+        if (manager == null) {
+            System.err.println("[loadgen] Не удалось открыть хранилище " + db);
+            System.exit(1);
+            return;
+        }
+
+        SpillJournal recorder = null;
+        if (options.containsKey("record")) {
+            Path trace = Paths.get(options.get("record"));
+            Files.deleteIfExists(trace);
+            recorder = SpillJournal.trace(trace, BlockStatePalette::serialize, manager::deserializeBlockState);
+        }
+
+        long dbBefore = databaseSize(db);
+        LoadSource source = source(options, manager);
+        Run run = new Run(manager, recorder);
+        try (source) {
+            run.loop(source, db);
+        } finally {
+            if (recorder != null) {
+                recorder.close();
+            }
+        }
+
+        // остановка дописывает очередь и spill-журнал — это тоже часть прогона
+        long stopStarted = System.nanoTime();
+        PipelineMetrics metrics = manager.metrics();
+        manager.close();
+        long totalNanos = System.nanoTime() - run.startedNanos;
+        long stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStarted);
+        long dbAfter = databaseSize(db);
+
+        double seconds = totalNanos / 1e9;
+        long written = metrics.getEventsWritten();
+        System.out.printf(Locale.ROOT, "[loadgen] Итог: отправлено %d событий, записано строк %d за %.1f с (%.0f/с), " +
+                        "дописывание при остановке %d мс%n",
+                run.sent, written, seconds, written / seconds, stopMillis);
+        System.out.printf(Locale.ROOT, "[loadgen] Очередь: максимум %d из %d, отказов %d; в spill-журнал %d, выброшено %d%n",
+                metrics.getQueueHighWaterMark(), metrics.getQueueCapacity(), metrics.getQueueOfferFailures(),
+                metrics.getSpilledEvents(), metrics.getDroppedEvents());
+        System.out.printf(Locale.ROOT, "[loadgen] Батчи: %d, размер p50 %d / p99 %d; коммит p50 %.1f / p99 %.1f / макс %.1f мс%n",
+                metrics.getBatchesCommitted(), metrics.getBatchSizeP50(), metrics.getBatchSizeP99(),
+                metrics.getCommitP50Millis(), metrics.getCommitP99Millis(), metrics.getCommitMaxMillis());
+        System.out.printf(Locale.ROOT, "[loadgen] БД: %.1f МБ -> %.1f МБ, %.1f байт на строку%n",
+                dbBefore / 1e6, dbAfter / 1e6, written == 0 ? 0.0 : (double) (dbAfter - dbBefore) / written);
+    }
+
+    /**
+     * Тикающий «поток сервера»: события тика, потом сон до следующего. Если тик не уложился в 50 мс,
+     * следующий начинается сразу — как отстающий сервер.
+     */
+    private static final class Run {
+        private final StorageBackend manager;
+        private final SpillJournal recorder;
+        private long startedNanos;
+        private long sent;
+
+        Run(StorageBackend manager, SpillJournal recorder) {
+            this.manager = manager;
+            this.recorder = recorder;
+        }
+
+        void loop(LoadSource source, Path db) throws IOException {
+            PipelineMetrics metrics = manager.metrics();
+            startedNanos = System.nanoTime();
+            long sentAtReport = 0;
+            long writtenAtReport = 0;
+            for (long tick = 0; ; tick++) {
+                long due = startedNanos + tick * TICK_NANOS;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                if (!source.tick(TimeUnit.NANOSECONDS.toMillis(tick * TICK_NANOS), this::log)) break;
+
+                if (tick > 0 && tick % TICKS_PER_REPORT == 0) {
+                    long written = metrics.getEventsWritten();
+                    System.out.printf(Locale.ROOT, "[loadgen] %4d с: отправлено %d (+%d), записано %d (+%d), очередь %d " +
+                                    "(макс %d), коммит p50 %.1f / p99 %.1f мс, spill %d, выброшено %d, БД %.1f МБ%n",
+                            tick / TICKS_PER_REPORT, sent, sent - sentAtReport, written, written - writtenAtReport,
+                            metrics.getQueueSize(), metrics.getQueueHighWaterMark(),
+                            metrics.getCommitP50Millis(), metrics.getCommitP99Millis(),
+                            metrics.getSpilledEvents(), metrics.getDroppedEvents(), databaseSize(db) / 1e6);
+                    sentAtReport = sent;
+                    writtenAtReport = written;
+                }
+            }
+        }
+
+        private void log(BlockAction action) {
+            manager.logBlockAction(action);
+            sent++;
+            if (recorder != null) {
+                try {
+                    recorder.append(action);
+                } catch (IOException e) {
+                    throw new IllegalStateException("не удалось записать трассу", e);
+                }
+            }
+        }
+    }
+
+    private static LoadSource source(Map<String, String> options, StorageBackend manager) throws IOException {
+        if (options.containsKey("replay")) {
+            // журнал нужен только как декодер записей
+            SpillJournal decoder = SpillJournal.trace(Paths.get(options.get("replay")),
+                    BlockStatePalette::serialize, manager::deserializeBlockState);
+            return new TraceReplay(decoder, Paths.get(options.get("replay")),
+                    Double.parseDouble(options.getOrDefault("speed", "1")));
+        }
+        return new SyntheticLoad(
+                SyntheticLoad.Scenario.parse(options.getOrDefault("scenario", "mixed")),
+                Integer.parseInt(options.getOrDefault("players", "20")),
+                Double.parseDouble(options.getOrDefault("rate", "2000")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "60"))),
+                Long.parseLong(options.getOrDefault("seed", "1")));
+    }
+
+    private static StorageSettings settings(Map<String, String> options) {
+        StorageSettings d = StorageSettings.defaults();
+        return new StorageSettings(
+                d.minBatchSize,
+                Integer.parseInt(options.getOrDefault("batch-max", String.valueOf(d.maxBatchSize))),
+                d.maxBatchLatencyMs,
+                d.targetCommitMs,
+                options.containsKey("policy")
+                        ? OverflowPolicy.valueOf(options.get("policy").toUpperCase(Locale.ROOT))
+                        : d.overflowPolicy,
+                d.overflowBlockTimeoutMs,
+                Long.parseLong(options.getOrDefault("coalesce-ms", String.valueOf(d.coalesceWindowMs))),
+                d.partitionDays,
+                d.retentionDays,
+                d.coldAfterDays,
+                d.readConnections,
+                d.inspectCacheEntries,
+                d.rollbackFetchSize);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Неожиданный аргумент: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            if (FLAGS.contains(key)) {
+                options.put(key, "true");
+            } else if (OPTIONS.contains(key) && i + 1 < args.length) {
+                options.put(key, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Неизвестный параметр или нет значения: " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Файл БД со всеми спутниками: WAL, shm, spill-журнал.
+     */
+    private static long databaseSize(Path db) {
+        long total = 0;
+        try (Stream<Path> files = Files.list(db.getParent())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith(db.getFileName().toString())) {
+                    total += Files.isDirectory(file) ? directorySize(file) : Files.size(file);
+                }
+            }
+        } catch (IOException ignored) {
+            // файл мог исчезнуть между list и size (WAL при чекпоинте)
+        }
+        return total;
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                total += Files.size(file);
+            }
+        }
+        return total;
+    }
+
+    private static void deleteDatabase(Path db) throws IOException {
+        try (Stream<Path> files = Files.list(db.getParent())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith(db.getFileName().toString())) {
+                    if (Files.isDirectory(file)) {
+                        try (Stream<Path> inner = Files.list(file)) {
+                            for (Path child : (Iterable<Path>) inner::iterator) {
+                                Files.deleteIfExists(child);
+                            }
+                        }
+                    }
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
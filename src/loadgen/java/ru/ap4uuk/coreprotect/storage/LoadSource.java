@@ -0,0 +1,22 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Источник событий нагрузочного прогона. Опрашивается раз в тик сервера (50 мс) с потока, играющего роль
+ * потока сервера, и отдаёт события этого тика.
+ */
+interface LoadSource extends Closeable {
+
+    /**
+     * События тика, наступившего через {@code elapsedMillis} от начала прогона. false — источник исчерпан.
+     */
+    boolean tick(long elapsedMillis, Consumer<BlockAction> out) throws IOException;
+
+    @Override
+    default void close() throws IOException {}
+}
@@ -0,0 +1,526 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbBlockAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbForwardAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbRollbackAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.RollbackSessionEntry;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Проверка реализации {@link StorageBackend} на соответствие контракту: то, на что полагаются команды и инспект.
+ * Хранилище открывается фабрикой из {@link StorageBackends} во временном каталоге, каждая проверка пишет в своё
+ * измерение и видит только свои события. Последняя проверка закрывает хранилище и открывает заново.
+ * <p>
+ * Запуск: {@code ./gradlew storageConformance -PstorageBackend=SQLITE}. Код возврата 1 — есть проваленные проверки.
+ */
+public final class StorageConformance {
+
+    private static final long AWAIT_SECONDS = 60;
+    private static final UUID ALICE = new UUID(0xC0DE_0000L, 1);
+    private static final UUID BOB = new UUID(0xC0DE_0000L, 2);
+    private static final UUID CAROL = new UUID(0xC0DE_0000L, 3);
+
+    @FunctionalInterface
+    private interface Check {
+        void run(StorageConformance suite) throws Exception;
+    }
+
+    private record Case(String name, Check check) {}
+
+    private final String type;
+    private final Path location;
+    private StorageBackend backend;
+    // события проверки history_newest_first — по ним проверяется переоткрытие
+    private ResourceKey<Level> persistedDimension;
+    private BlockPos persistedPos;
+    private int persistedCount;
+    // сессия проверки session_round_trip, число её записей и последний выданный id
+    private int persistedSession = -1;
+    private int persistedSessionEntries;
+    private int lastSessionId;
+    // позиция проверки player_rename — по ней проверяется, что прежний ник переживает переоткрытие
+    private ResourceKey<Level> renamedDimension;
+    private BlockPos renamedPos;
+
+    private StorageConformance(String type, Path location) {
+        this.type = type;
+        this.location = location;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String type = "SQLITE";
+        Path dir = Paths.get("build/conformance");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--backend" -> type = args[i + 1];
+                case "--dir" -> dir = Paths.get(args[i + 1]);
+                default -> {
+                    System.err.println("Параметры: [--backend TYPE] [--dir PATH]; типы: " + StorageBackends.types());
+                    System.exit(2);
+                }
+            }
+        }
+
+        try {
+            HeadlessBootstrap.run();
+        } catch (IllegalStateException e) {
+            System.err.println("" + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        deleteRecursively(dir);
+        Files.createDirectories(dir);
+        StorageConformance suite = new StorageConformance(type, dir.resolve("store").toAbsolutePath());
+        int failed = suite.runAll();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private int runAll() {
+        List<Case> cases = List.of(
+                new Case("history_newest_first", StorageConformance::historyNewestFirst),
+                new Case("history_includes_pending", StorageConformance::historyIncludesPending),
+                new Case("history_dimension_isolated", StorageConformance::historyDimensionIsolated),
+                new Case("rollback_earliest_state", StorageConformance::rollbackEarliestState),
+                new Case("restore_latest_state", StorageConformance::restoreLatestState),
+                new Case("region_bounds_and_since", StorageConformance::regionBoundsAndSince),
+                new Case("region_player_filter", StorageConformance::regionPlayerFilter),
+                new Case("player_rename", StorageConformance::playerRename),
+                new Case("session_round_trip", StorageConformance::sessionRoundTrip),
+                new Case("purge_older_only", StorageConformance::purgeOlderOnly),
+                new Case("reopen_keeps_history", StorageConformance::reopenKeepsHistory));
+
+        backend = StorageBackends.open(type, location, settings());
+        if (backend == null) {
+            System.out.println("[conformance] Не удалось открыть хранилище " + type + " в " + location);
+            return cases.size();
+        }
+
+        int failed = 0;
+        try {
+            for (Case c : cases) {
+                long started = System.nanoTime();
+                try {
+                    c.check().run(this);
+                    System.out.printf("[conformance] OK   %s (%d мс)%n", c.name(),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                } catch (Throwable t) {
+                    failed++;
+                    System.out.println("[conformance] FAIL " + c.name() + ": " + t);
+                }
+            }
+        } finally {
+            if (backend != null) {
+                backend.close();
+            }
+        }
+        System.out.println("[conformance] " + type + ": пройдено " + (cases.size() - failed) + " из " + cases.size());
+        return failed;
+    }
+
+    /**
+     * Без потерь и без слияния: каждое событие должно дойти до хранилища как есть.
+     */
+    private static StorageSettings settings() {
+        StorageSettings d = StorageSettings.defaults();
+        return new StorageSettings(d.minBatchSize, d.maxBatchSize, d.maxBatchLatencyMs, d.targetCommitMs,
+                OverflowPolicy.BLOCK, TimeUnit.MINUTES.toMillis(1), 0, d.partitionDays, 0, d.coldAfterDays,
+                d.readConnections, d.inspectCacheEntries, d.rollbackFetchSize);
+    }
+
+    // ---------- Проверки ----------
+
+    private void historyNewestFirst() throws Exception {
+        ResourceKey<Level> dim = dimension("history");
+        BlockPos pos = new BlockPos(10, 64, 10);
+        Instant base = Instant.now().minusSeconds(600);
+        BlockState[] states = {stone(), dirt(), planks(), glass(), stone()};
+        for (int i = 0; i < states.length; i++) {
+            BlockState before = i == 0 ? air() : states[i - 1];
+            log(BlockAction.Type.PLACE, ALICE, "alice", dim, pos, before, states[i], base.plusSeconds(i * 10L));
+        }
+        await(backend.flush());
+
+        List<DbBlockAction> history = backend.getBlockHistory(dim, pos, 3);
+        expect(history.size() == 3, "ожидалось 3 события (limit), получено " + history.size());
+        for (int i = 0; i < 3; i++) {
+            DbBlockAction row = history.get(i);
+            int source = states.length - 1 - i;
+            expect(row.timeEpoch == base.plusSeconds(source * 10L).getEpochSecond(),
+                    "событие " + i + ": время " + row.timeEpoch + ", ожидалось событие #" + source);
+            expectState(row.newBlock, states[source], "новое состояние события " + i);
+            expectState(row.oldBlock, states[source - 1], "старое состояние события " + i);
+            expect("alice".equals(row.playerName), "игрок " + row.playerName);
+            expect("PLACE".equals(row.actionType), "тип действия " + row.actionType);
+        }
+        expect(backend.getBlockHistory(dim, pos, 100).size() == states.length, "без limit нужны все события позиции");
+        expect(backend.getBlockHistory(dim, pos.above(), 10).isEmpty(), "у соседней позиции истории нет");
+
+        persistedDimension = dim;
+        persistedPos = pos;
+        persistedCount = states.length;
+    }
+
+    private void historyIncludesPending() throws Exception {
+        ResourceKey<Level> dim = dimension("pending");
+        BlockPos pos = new BlockPos(-5, 70, 3);
+        log(BlockAction.Type.BREAK, BOB, "bob", dim, pos, stone(), air(), Instant.now());
+        // без flush: событие может быть ещё в очереди, но инспект обязан его видеть
+        List<DbBlockAction> history = backend.getBlockHistory(dim, pos, 10);
+        expect(history.size() == 1, "событие до записи не видно в истории: " + history.size());
+        expect("BREAK".equals(history.get(0).actionType), "тип действия " + history.get(0).actionType);
+
+        List<DbBlockAction> async = backend.getBlockHistoryAsync(dim, pos, 10).get(AWAIT_SECONDS, TimeUnit.SECONDS);
+        expect(async.size() == 1, "асинхронная история: " + async.size());
+        await(backend.flush());
+        expect(backend.getBlockHistory(dim, pos, 10).size() == 1, "после flush событие не должно задвоиться");
+    }
+
+    private void historyDimensionIsolated() throws Exception {
+        ResourceKey<Level> first = dimension("iso_a");
+        ResourceKey<Level> second = dimension("iso_b");
+        BlockPos pos = new BlockPos(0, 64, 0);
+        Instant now = Instant.now();
+        log(BlockAction.Type.PLACE, ALICE, "alice", first, pos, air(), stone(), now);
+        log(BlockAction.Type.PLACE, ALICE, "alice", second, pos, air(), dirt(), now);
+        log(BlockAction.Type.PLACE, ALICE, "alice", second, pos, dirt(), glass(), now);
+        await(backend.flush());
+
+        List<DbBlockAction> a = backend.getBlockHistory(first, pos, 10);
+        expect(a.size() == 1, "в первом измерении ожидалось 1 событие, получено " + a.size());
+        expectState(a.get(0).newBlock, stone(), "состояние в первом измерении");
+        expect(backend.getBlockHistory(second, pos, 10).size() == 2, "во втором измерении ожидалось 2 события");
+        expect(drain(backend.streamActionsForRollback(first, pos, 2, 0, null)).size() == 1,
+                "выборка области захватила чужое измерение");
+    }
+
+    private void rollbackEarliestState() throws Exception {
+        ResourceKey<Level> dim = dimension("rollback");
+        BlockPos center = new BlockPos(100, 64, -100);
+        Instant base = Instant.now().minusSeconds(300);
+        // одна позиция меняется трижды: откатить надо к состоянию до первого изменения
+        log(BlockAction.Type.BREAK, ALICE, "alice", dim, center, stone(), air(), base);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, center, air(), planks(), base.plusSeconds(10));
+        log(BlockAction.Type.PLACE, BOB, "bob", dim, center, planks(), glass(), base.plusSeconds(20));
+        BlockPos other = center.east();
+        log(BlockAction.Type.PLACE, BOB, "bob", dim, other, air(), dirt(), base.plusSeconds(5));
+        await(backend.flush());
+
+        Map<BlockPos, DbRollbackAction> plan = new HashMap<>();
+        for (DbRollbackAction a : drain(backend.streamActionsForRollback(dim, center, 5, base.getEpochSecond(), null))) {
+            expect(plan.put(new BlockPos(a.x, a.y, a.z), a) == null, "позиция " + a.x + "," + a.y + "," + a.z + " дважды в плане");
+        }
+        expect(plan.size() == 2, "ожидалось 2 позиции в плане, получено " + plan.size());
+        expectState(plan.get(center).oldState, stone(), "откат позиции с тремя изменениями");
+        expectState(plan.get(center).oldBlock, stone(), "строка состояния для отката");
+        expect(plan.get(center).timeEpoch == base.getEpochSecond(), "в плане должно быть самое раннее событие");
+        expectState(plan.get(other).oldState, air(), "откат позиции, где был воздух");
+    }
+
+    private void restoreLatestState() throws Exception {
+        ResourceKey<Level> dim = dimension("restore");
+        BlockPos pos = new BlockPos(7, 40, 7);
+        Instant base = Instant.now().minusSeconds(300);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, pos, air(), stone(), base);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, pos, stone(), planks(), base.plusSeconds(10));
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, pos, planks(), glass(), base.plusSeconds(20));
+        await(backend.flush());
+
+        List<DbForwardAction> plan = drain(backend.streamActionsForRestore(dim, pos, 1, base.getEpochSecond(), null));
+        expect(plan.size() == 1, "ожидалась 1 позиция, получено " + plan.size());
+        expectState(plan.get(0).newState, glass(), "restore позиции");
+        expectState(plan.get(0).newBlock, glass(), "строка состояния для restore");
+        expect(plan.get(0).timeEpoch == base.plusSeconds(20).getEpochSecond(), "в плане должно быть самое позднее событие");
+    }
+
+    private void regionBoundsAndSince() throws Exception {
+        ResourceKey<Level> dim = dimension("bounds");
+        BlockPos center = new BlockPos(-33, 64, 47);
+        int radius = 4;
+        Instant recent = Instant.now().minusSeconds(60);
+        Instant old = Instant.now().minusSeconds(3600);
+        List<BlockPos> inside = List.of(center, center.offset(radius, radius, radius), center.offset(-radius, -radius, -radius),
+                center.offset(radius, 0, -radius));
+        List<BlockPos> outside = List.of(center.offset(radius + 1, 0, 0), center.offset(0, -radius - 1, 0),
+                center.offset(0, 0, radius + 1), center.offset(-radius - 1, radius, radius));
+        for (BlockPos p : inside) {
+            log(BlockAction.Type.PLACE, ALICE, "alice", dim, p, air(), stone(), recent);
+        }
+        for (BlockPos p : outside) {
+            log(BlockAction.Type.PLACE, ALICE, "alice", dim, p, air(), stone(), recent);
+        }
+        // старое событие внутри куба: не попадает в окно
+        BlockPos stale = center.offset(1, 1, 1);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, stale, air(), dirt(), old);
+        await(backend.flush());
+
+        long since = recent.getEpochSecond() - 10;
+        List<BlockPos> got = new ArrayList<>();
+        for (DbRollbackAction a : drain(backend.streamActionsForRollback(dim, center, radius, since, null))) {
+            got.add(new BlockPos(a.x, a.y, a.z));
+        }
+        got.sort(Comparator.comparingLong(BlockPos::asLong));
+        List<BlockPos> expected = new ArrayList<>(inside);
+        expected.sort(Comparator.comparingLong(BlockPos::asLong));
+        expect(got.equals(expected), "позиции в плане " + got + ", ожидались " + expected);
+
+        expect(drain(backend.streamActionsForRestore(dim, center, radius, old.getEpochSecond() - 10, null)).size()
+                == inside.size() + 1, "с более ранним since в план должно попасть и старое событие");
+    }
+
+    private void regionPlayerFilter() throws Exception {
+        ResourceKey<Level> dim = dimension("players");
+        BlockPos a = new BlockPos(1, 64, 1);
+        BlockPos b = new BlockPos(2, 64, 1);
+        Instant base = Instant.now().minusSeconds(120);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, a, air(), stone(), base);
+        log(BlockAction.Type.PLACE, BOB, "bob", dim, a, stone(), dirt(), base.plusSeconds(10));
+        log(BlockAction.Type.PLACE, BOB, "bob", dim, b, air(), glass(), base.plusSeconds(20));
+        await(backend.flush());
+
+        long since = base.getEpochSecond() - 1;
+        List<DbRollbackAction> bob = drain(backend.streamActionsForRollback(dim, a, 3, since, "bob"));
+        expect(bob.size() == 2, "у bob ожидалось 2 позиции, получено " + bob.size());
+        for (DbRollbackAction r : bob) {
+            if (r.x == a.getX()) {
+                // у позиции a раньше был alice: откат только изменений bob возвращает его блок
+                expectState(r.oldState, stone(), "откат изменений bob в позиции, которую до него менял alice");
+            }
+        }
+        List<DbRollbackAction> alice = drain(backend.streamActionsForRollback(dim, a, 3, since, "alice"));
+        expect(alice.size() == 1, "у alice ожидалась 1 позиция, получено " + alice.size());
+        expect(drain(backend.streamActionsForRollback(dim, a, 3, since, "nobody")).isEmpty(),
+                "неизвестный игрок должен давать пустой план");
+    }
+
+    private void playerRename() throws Exception {
+        ResourceKey<Level> dim = dimension("rename");
+        BlockPos pos = new BlockPos(5, 64, 5);
+        Instant base = Instant.now().minusSeconds(120);
+        log(BlockAction.Type.PLACE, CAROL, "carol", dim, pos, air(), stone(), base);
+        log(BlockAction.Type.PLACE, CAROL, "carol_new", dim, pos, stone(), dirt(), base.plusSeconds(10));
+        await(backend.flush());
+
+        List<DbBlockAction> history = backend.getBlockHistory(dim, pos, 10);
+        expect(history.size() == 2, "событий " + history.size() + ", ожидалось 2");
+        expect("carol_new".equals(history.get(0).playerName), "новое событие под ником " + history.get(0).playerName);
+        expect("carol".equals(history.get(1).playerName), "старое событие под ником " + history.get(1).playerName);
+
+        long since = base.getEpochSecond() - 1;
+        expect(drain(backend.streamActionsForRollback(dim, pos, 1, since, "carol")).size() == 1,
+                "фильтр по прежнему нику должен находить игрока");
+        expect(drain(backend.streamActionsForRollback(dim, pos, 1, since, "carol_new")).size() == 1,
+                "фильтр по новому нику должен находить игрока");
+        renamedDimension = dim;
+        renamedPos = pos;
+    }
+
+    private void sessionRoundTrip() throws Exception {
+        ResourceKey<Level> dim = dimension("session");
+        int id = backend.createRollbackSession("conformance", "r=3,t=60");
+        int second = backend.createRollbackSession("conformance", "r=1,t=10");
+        expect(id > 0 && second > 0, "id сессий должны быть положительными: " + id + ", " + second);
+        expect(id != second, "id сессий совпали: " + id);
+        // строка сессии ещё может быть в очереди записи, но искать её сразу после выдачи id можно
+        StorageBackend.RollbackSessionStatus fresh = await(backend.getRollbackSessionStatusAsync(second));
+        expect(fresh != null && !fresh.finished, "только что созданная сессия не найдена");
+
+        RollbackSessionRecorder recorder = backend.openSessionRecorder(id, dim);
+        expect(recorder.sessionId() == id, "recorder не той сессии: " + recorder.sessionId());
+        Map<BlockPos, BlockState> before = new HashMap<>();
+        // позиции из разных чанков вперемешку
+        before.put(new BlockPos(0, 64, 0), stone());
+        before.put(new BlockPos(40, 64, -40), dirt());
+        before.put(new BlockPos(1, 65, 0), planks());
+        before.put(new BlockPos(-17, 10, 33), glass());
+        for (Map.Entry<BlockPos, BlockState> e : before.entrySet()) {
+            recorder.record(e.getKey(), e.getValue(), air());
+        }
+        recorder.finish();
+        await(backend.flush());
+
+        List<RollbackSessionEntry> entries = drain(backend.streamRollbackEntries(id));
+        expect(entries.size() == before.size(), "записей сессии " + entries.size() + ", ожидалось " + before.size());
+        for (RollbackSessionEntry e : entries) {
+            BlockPos pos = new BlockPos(e.x, e.y, e.z);
+            expect(before.containsKey(pos), "лишняя позиция в сессии: " + pos);
+            expect(e.sessionId == id, "запись чужой сессии: " + e.sessionId);
+            expectState(e.beforeBlock, before.get(pos), "состояние до rollback в " + pos);
+            expectState(e.afterBlock, air(), "состояние после rollback в " + pos);
+            expectState(backend.deserializeBlockState(e.beforeBlock), before.get(pos), "deserializeBlockState");
+        }
+        persistedSession = id;
+        lastSessionId = Math.max(id, second);
+        persistedSessionEntries = entries.size();
+        expect(drain(backend.streamRollbackEntries(second)).isEmpty(), "у пустой сессии не должно быть записей");
+        expect(drain(backend.streamRollbackEntries(second + 1000)).isEmpty(), "у несуществующей сессии не должно быть записей");
+
+        StorageBackend.RollbackSessionStatus status = await(backend.getRollbackSessionStatusAsync(id));
+        expect(status != null && status.finished, "дописанная сессия должна быть finished");
+        expect(status.entryCount == before.size(), "entryCount " + status.entryCount + ", ожидалось " + before.size());
+        StorageBackend.RollbackSessionStatus open = await(backend.getRollbackSessionStatusAsync(second));
+        expect(open != null && !open.finished, "сессия без finish() должна быть не дописана");
+        expect(await(backend.getRollbackSessionStatusAsync(second + 1000)) == null, "несуществующая сессия должна давать null");
+        backend.markSessionRestored(id);
+        await(backend.flush());
+    }
+
+    private void purgeOlderOnly() throws Exception {
+        ResourceKey<Level> dim = dimension("purge");
+        ResourceKey<Level> untouched = dimension("purge_other");
+        BlockPos pos = new BlockPos(3, 64, 3);
+        Instant old = Instant.now().minusSeconds(TimeUnit.DAYS.toSeconds(20));
+        Instant recent = Instant.now().minusSeconds(60);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, pos, air(), stone(), old);
+        log(BlockAction.Type.PLACE, ALICE, "alice", dim, pos, stone(), dirt(), recent);
+        log(BlockAction.Type.PLACE, ALICE, "alice", untouched, pos, air(), glass(), old);
+        await(backend.flush());
+
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        boolean started = backend.startPurge(Instant.now().minusSeconds(TimeUnit.DAYS.toSeconds(10)).getEpochSecond(),
+                dim.location().toString(), false, new PurgeListener() {
+                    @Override
+                    public void onProgress(long deletedRows, int droppedPartitions, int partitionsDone, int partitionsTotal) {}
+
+                    @Override
+                    public void onFinished(long deletedRows, int droppedPartitions, long freedPages, long elapsedMs) {
+                        finished.complete(null);
+                    }
+
+                    @Override
+                    public void onFailed(Exception e) {
+                        finished.completeExceptionally(e);
+                    }
+                });
+        expect(started, "очистка не запустилась");
+        await(finished);
+
+        List<DbBlockAction> history = backend.getBlockHistory(dim, pos, 10);
+        expect(history.size() == 1, "после очистки должно остаться 1 свежее событие, осталось " + history.size());
+        expectState(history.get(0).newBlock, dirt(), "уцелевшее событие");
+        expect(backend.getBlockHistory(untouched, pos, 10).size() == 1, "очистка одного мира задела другой");
+
+        boolean unknown = false;
+        try {
+            backend.startPurge(0, dimension("never_written").location().toString(), false, null);
+        } catch (IllegalArgumentException e) {
+            unknown = true;
+        }
+        expect(unknown, "очистка неизвестного мира должна давать IllegalArgumentException");
+    }
+
+    private void reopenKeepsHistory() throws Exception {
+        expect(persistedDimension != null, "нет данных: history_newest_first не прошла");
+        backend.close();
+        backend.close();
+        backend = StorageBackends.open(type, location, settings());
+        expect(backend != null, "хранилище не открылось повторно");
+        int count = backend.getBlockHistory(persistedDimension, persistedPos, 100).size();
+        expect(count == persistedCount, "после переоткрытия событий " + count + ", ожидалось " + persistedCount);
+
+        expect(renamedDimension != null, "нет данных: player_rename не прошла");
+        List<DbBlockAction> renamed = backend.getBlockHistory(renamedDimension, renamedPos, 10);
+        expect(renamed.size() == 2 && "carol".equals(renamed.get(1).playerName),
+                "после переоткрытия старое событие не под прежним ником");
+        expect(drain(backend.streamActionsForRollback(renamedDimension, renamedPos, 1, 0, "carol")).size() == 1,
+                "после переоткрытия фильтр по прежнему нику не находит игрока");
+
+        // id сессий выдаются без ожидания записи, поэтому после переоткрытия они не должны повторять прежние
+        expect(persistedSession > 0, "нет данных: session_round_trip не прошла");
+        int entries = drain(backend.streamRollbackEntries(persistedSession)).size();
+        expect(entries == persistedSessionEntries,
+                "после переоткрытия записей сессии " + entries + ", ожидалось " + persistedSessionEntries);
+        int next = backend.createRollbackSession("conformance", "reopen");
+        expect(next > lastSessionId, "после переоткрытия выдан id сессии " + next + ", последний был " + lastSessionId);
+    }
+
+    // ---------- Вспомогательное ----------
+
+    private void log(BlockAction.Type type, UUID uuid, String name, ResourceKey<Level> dim, BlockPos pos,
+                     BlockState before, BlockState after, Instant time) {
+        backend.logBlockAction(new BlockAction(type, uuid, name, dim, pos, before, after, time));
+    }
+
+    private static ResourceKey<Level> dimension(String name) {
+        return ResourceKey.create(Registries.DIMENSION, new ResourceLocation("coreprotect_conformance:" + name));
+    }
+
+    private static <T> List<T> drain(ActionStream<T> stream) throws InterruptedException {
+        List<T> rows = new ArrayList<>();
+        try (stream) {
+            T row;
+            while ((row = stream.take()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(AWAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    private static void expectState(BlockState actual, BlockState expected, String what) {
+        expectState(BlockStatePalette.serialize(actual), expected, what);
+    }
+
+    private static void expectState(String actual, BlockState expected, String what) {
+        String want = BlockStatePalette.serialize(expected);
+        expect(want.equals(actual), what + ": " + actual + ", ожидалось " + want);
+    }
+
+    private static BlockState air() {
+        return Blocks.AIR.defaultBlockState();
+    }
+
+    private static BlockState stone() {
+        return Blocks.STONE.defaultBlockState();
+    }
+
+    private static BlockState dirt() {
+        return Blocks.DIRT.defaultBlockState();
+    }
+
+    private static BlockState planks() {
+        return Blocks.OAK_PLANKS.defaultBlockState();
+    }
+
+    private static BlockState glass() {
+        return Blocks.GLASS.defaultBlockState();
+    }
+
+    private static void deleteRecursively(Path dir) throws java.io.IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
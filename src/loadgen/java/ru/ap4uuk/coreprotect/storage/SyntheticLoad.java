@@ -0,0 +1,284 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Синтетические игроки, каждый со своим занятием: копает туннель, строит дома, взрывает TNT или собирает урожай.
+ * Темп задаётся общий, в событиях в секунду; на тик он делится поровну, игроки ходят по кругу. Взрыв TNT отдаёт
+ * весь кратер за один тик, как на сервере, — перебор бюджета отрабатывается следующими тиками.
+ */
+final class SyntheticLoad implements LoadSource {
+
+    enum Scenario {
+        MINING, BUILDING, TNT, FARM, MIXED;
+
+        static Scenario parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int TICKS_PER_SECOND = 20;
+    // доли занятий в MIXED: копают и строят чаще, чем взрывают
+    private static final Scenario[] MIXED_WEIGHTS = {
+            Scenario.MINING, Scenario.MINING, Scenario.MINING, Scenario.MINING,
+            Scenario.BUILDING, Scenario.BUILDING, Scenario.BUILDING,
+            Scenario.FARM, Scenario.FARM,
+            Scenario.TNT
+    };
+
+    private final double eventsPerTick;
+    private final long durationMillis;
+    private final List<Actor> actors = new ArrayList<>();
+    private double budget;
+    private int nextActor;
+
+    SyntheticLoad(Scenario scenario, int players, double eventsPerSecond, long durationMillis, long seed) {
+        this.eventsPerTick = eventsPerSecond / TICKS_PER_SECOND;
+        this.durationMillis = durationMillis;
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < players; i++) {
+            Scenario s = scenario == Scenario.MIXED ? MIXED_WEIGHTS[random.nextInt(MIXED_WEIGHTS.length)] : scenario;
+            SplittableRandom own = random.split();
+            actors.add(switch (s) {
+                case MINING -> new Miner(i, own);
+                case BUILDING -> new Builder(i, own);
+                case TNT -> new Demolisher(i, own);
+                case FARM -> new Farmer(i, own);
+                case MIXED -> throw new IllegalStateException("MIXED разворачивается выше");
+            });
+        }
+    }
+
+    @Override
+    public boolean tick(long elapsedMillis, Consumer<BlockAction> out) {
+        if (elapsedMillis >= durationMillis) return false;
+        budget += eventsPerTick;
+        Instant now = Instant.now();
+        while (budget >= 1) {
+            Actor actor = actors.get(nextActor);
+            nextActor = (nextActor + 1) % actors.size();
+            budget -= actor.step(now, out);
+        }
+        return true;
+    }
+
+    private abstract static class Actor {
+        final UUID uuid;
+        final String name;
+        final SplittableRandom random;
+        int baseX;
+        int baseZ;
+
+        Actor(int index, SplittableRandom random) {
+            this.uuid = new UUID(0x10AD_0000L, index);
+            this.name = "load" + index;
+            this.random = random;
+            this.baseX = random.nextInt(-4096, 4096);
+            this.baseZ = random.nextInt(-4096, 4096);
+        }
+
+        /**
+         * Одно действие игрока; возвращает, сколько событий отдано.
+         */
+        abstract int step(Instant now, Consumer<BlockAction> out);
+
+        final void emit(Consumer<BlockAction> out, BlockAction.Type type, int x, int y, int z,
+                        BlockState oldState, BlockState newState, Instant now) {
+            out.accept(new BlockAction(type, uuid, name, Level.OVERWORLD, new BlockPos(x, y, z), oldState, newState, now));
+        }
+    }
+
+    /**
+     * Туннель 1×2 на глубине, изредка поворачивает; руда попадается, каждые 8 блоков — факел.
+     */
+    private static final class Miner extends Actor {
+        private int x, z, dx = 1, dz;
+        private final int y;
+        private int dug;
+
+        Miner(int index, SplittableRandom random) {
+            super(index, random);
+            this.x = baseX;
+            this.z = baseZ;
+            this.y = random.nextInt(-40, 40);
+        }
+
+        @Override
+        int step(Instant now, Consumer<BlockAction> out) {
+            BlockState air = Blocks.AIR.defaultBlockState();
+            emit(out, BlockAction.Type.BREAK, x, y, z, ore(), air, now);
+            emit(out, BlockAction.Type.BREAK, x, y + 1, z, ore(), air, now);
+            int events = 2;
+            if (++dug % 8 == 0) {
+                emit(out, BlockAction.Type.PLACE, x, y + 1, z, air, Blocks.TORCH.defaultBlockState(), now);
+                events++;
+            }
+            if (dug % 32 == 0 && random.nextInt(3) == 0) {
+                // поворот на 90°
+                int t = dx;
+                dx = -dz;
+                dz = t;
+            }
+            x += dx;
+            z += dz;
+            return events;
+        }
+
+        private BlockState ore() {
+            int roll = random.nextInt(100);
+            if (roll < 1) return Blocks.IRON_ORE.defaultBlockState();
+            if (roll < 6) return Blocks.COAL_ORE.defaultBlockState();
+            return Blocks.STONE.defaultBlockState();
+        }
+    }
+
+    /**
+     * Дома: стены по периметру квадрата слой за слоем (низ — булыжник, дальше доски и окна), потом новый участок.
+     * Иногда ставит не туда, ломает и ставит заново — как живой игрок.
+     */
+    private static final class Builder extends Actor {
+        private static final int WALL_HEIGHT = 5;
+        private int side;
+        private int layer;
+        private int cursor;
+
+        Builder(int index, SplittableRandom random) {
+            super(index, random);
+            startHouse();
+        }
+
+        private void startHouse() {
+            side = 8 + random.nextInt(8);
+            layer = 0;
+            cursor = 0;
+        }
+
+        @Override
+        int step(Instant now, Consumer<BlockAction> out) {
+            int perimeter = 4 * side;
+            int i = cursor;
+            // обход периметра: четыре стороны по side блоков
+            int edge = i / side;
+            int along = i % side;
+            int x = baseX + switch (edge) {
+                case 0 -> along;
+                case 1 -> side;
+                case 2 -> side - along;
+                default -> 0;
+            };
+            int z = baseZ + switch (edge) {
+                case 0 -> 0;
+                case 1 -> along;
+                case 2 -> side;
+                default -> side - along;
+            };
+            int y = 64 + layer;
+
+            BlockState air = Blocks.AIR.defaultBlockState();
+            BlockState block = layer == 0 ? Blocks.COBBLESTONE.defaultBlockState()
+                    : (layer == 2 && i % 3 == 1) ? Blocks.GLASS.defaultBlockState()
+                    : Blocks.OAK_PLANKS.defaultBlockState();
+            emit(out, BlockAction.Type.PLACE, x, y, z, air, block, now);
+            int events = 1;
+            if (random.nextInt(20) == 0) {
+                emit(out, BlockAction.Type.BREAK, x, y, z, block, air, now);
+                emit(out, BlockAction.Type.PLACE, x, y, z, air, block, now);
+                events += 2;
+            }
+
+            if (++cursor == perimeter) {
+                cursor = 0;
+                if (++layer == WALL_HEIGHT) {
+                    baseX += side + 4;
+                    startHouse();
+                }
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Ставит несколько TNT и подрывает: кратер-шар радиусом 3..5 уходит одной пачкой.
+     */
+    private static final class Demolisher extends Actor {
+        private int placed;
+        private int charges;
+
+        Demolisher(int index, SplittableRandom random) {
+            super(index, random);
+            charges = 1 + random.nextInt(4);
+        }
+
+        @Override
+        int step(Instant now, Consumer<BlockAction> out) {
+            BlockState air = Blocks.AIR.defaultBlockState();
+            if (placed < charges) {
+                emit(out, BlockAction.Type.PLACE, baseX + placed, 64, baseZ, air, Blocks.TNT.defaultBlockState(), now);
+                placed++;
+                return 1;
+            }
+
+            int radius = 3 + random.nextInt(3);
+            int events = 0;
+            for (int dy = -radius; dy <= radius; dy++) {
+                for (int dx = -radius; dx <= radius; dx++) {
+                    for (int dz = -radius; dz <= radius; dz++) {
+                        if (dx * dx + dy * dy + dz * dz > radius * radius) continue;
+                        int y = 64 + dy;
+                        BlockState old = dy > 0 ? air
+                                : dy == 0 ? Blocks.GRASS_BLOCK.defaultBlockState()
+                                : dy > -3 ? Blocks.DIRT.defaultBlockState()
+                                : Blocks.STONE.defaultBlockState();
+                        if (dy == 0 && dz == 0 && dx >= 0 && dx < charges) {
+                            old = Blocks.TNT.defaultBlockState();
+                        }
+                        if (old == air) continue;
+                        emit(out, BlockAction.Type.BREAK, baseX + dx, y, baseZ + dz, old, air, now);
+                        events++;
+                    }
+                }
+            }
+            placed = 0;
+            charges = 1 + random.nextInt(4);
+            baseX += radius * 2 + 2;
+            return Math.max(events, 1);
+        }
+    }
+
+    /**
+     * Поле пшеницы 9×9: по кругу собирает спелую и сразу сажает заново — одни и те же позиции снова и снова.
+     */
+    private static final class Farmer extends Actor {
+        private static final int FIELD = 9;
+        private int cursor;
+
+        Farmer(int index, SplittableRandom random) {
+            super(index, random);
+        }
+
+        @Override
+        int step(Instant now, Consumer<BlockAction> out) {
+            int x = baseX + cursor % FIELD;
+            int z = baseZ + cursor / FIELD;
+            cursor = (cursor + 1) % (FIELD * FIELD);
+            List<BlockState> ages = Blocks.WHEAT.getStateDefinition().getPossibleStates();
+            BlockState ripe = ages.get(ages.size() - 1);
+            BlockState air = Blocks.AIR.defaultBlockState();
+            emit(out, BlockAction.Type.BREAK, x, 65, z, ripe, air, now);
+            emit(out, BlockAction.Type.PLACE, x, 65, z, air, Blocks.WHEAT.defaultBlockState(), now);
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Проигрывает трассу событий в формате {@link SpillJournal}: записанную {@code --record} или spill-журнал с сервера.
+ * Интервалы между событиями сохраняются (с ускорением {@code speed}); время событий переносится на «сейчас»,
+ * чтобы партиции и retention вели себя как на живом сервере.
+ */
+final class TraceReplay implements LoadSource {
+
+    private static final int READ_CHUNK = 4096;
+    // speed <= 0: без пауз, но не больше стольких событий за тик
+    private static final int UNPACED_PER_TICK = 50_000;
+
+    private final SpillJournal.Cursor cursor;
+    private final double speed;
+    private final List<BlockAction> buffer = new ArrayList<>(READ_CHUNK);
+    private int index;
+    private long firstMillis = -1;
+
+    TraceReplay(SpillJournal journal, Path trace, double speed) throws IOException {
+        this.cursor = journal.openForReplay(trace);
+        this.speed = speed;
+    }
+
+    @Override
+    public boolean tick(long elapsedMillis, Consumer<BlockAction> out) throws IOException {
+        Instant now = Instant.now();
+        long emitted = 0;
+        while (true) {
+            if (index == buffer.size()) {
+                buffer.clear();
+                index = 0;
+                if (cursor.read(buffer, READ_CHUNK) == 0) return false;
+            }
+            BlockAction action = buffer.get(index);
+            long recorded = action.time.toEpochMilli();
+            if (firstMillis < 0) firstMillis = recorded;
+            if (speed > 0 ? (recorded - firstMillis) / speed > elapsedMillis : emitted >= UNPACED_PER_TICK) {
+                return true;
+            }
+            index++;
+            emitted++;
+            out.accept(new BlockAction(action.type, action.playerUuid, action.playerName, action.dimension,
+                    action.pos, action.oldState, action.newState, now));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cursor.close();
+    }
+}
@@ -9,11 +9,9 @@ import net.minecraftforge.fml.config.ModConfig;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
 import org.slf4j.Logger;
 import ru.ap4uuk.coreprotect.config.CoreprotectConfig;
-import ru.ap4uuk.coreprotect.storage.DatabaseManager;
+import ru.ap4uuk.coreprotect.storage.StorageBackends;
+import ru.ap4uuk.coreprotect.storage.StorageSettings;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Locale;
 
 @Mod(Coreprotect.MODID)
 public class Coreprotect {
@@ -33,17 +31,7 @@ public class Coreprotect {
     public static void onServerStarting(ServerStartingEvent event) {
         Coreprotect.LOGGER.info("[Coreprotect] onServerStarting вызван.");
 
-        String storageTypeRaw = CoreprotectConfig.COMMON.storageType.get();
-        String storageType = storageTypeRaw == null ? "SQLITE" : storageTypeRaw.toUpperCase(Locale.ROOT);
-
-        if ("SQLITE".equals(storageType)) {
-            String pathStr = CoreprotectConfig.COMMON.sqlitePath.get();
-            Path dbPath = Paths.get(pathStr);
-            DatabaseManager.initSQLite(dbPath);
-            Coreprotect.LOGGER.info("[Coreprotect] База данных (SQLite) инициализирована: {}", dbPath.toAbsolutePath());
-        } else {
-            Coreprotect.LOGGER.error("[Coreprotect] Тип хранилища '{}' не поддерживается. Используйте SQLITE.", storageTypeRaw);
-        }
+        StorageBackends.openConfigured(CoreprotectConfig.COMMON.storageType.get(), StorageSettings.fromConfig());
     }
 
 }
@@ -11,12 +11,22 @@ import net.minecraftforge.fml.common.Mod;
 import ru.ap4uuk.coreprotect.command.CoParamParser;
 import ru.ap4uuk.coreprotect.inspect.InspectManager;
 import net.minecraft.core.BlockPos;
-import net.minecraft.world.level.Level;
-import ru.ap4uuk.coreprotect.storage.DatabaseManager;
-import ru.ap4uuk.coreprotect.storage.DatabaseManager.DbRollbackAction;
-import ru.ap4uuk.coreprotect.util.ActionContext;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.storage.StorageBackend;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbRollbackAction;
+import ru.ap4uuk.coreprotect.rollback.BlockChange;
+import ru.ap4uuk.coreprotect.rollback.ChangeSource;
+import ru.ap4uuk.coreprotect.rollback.RollbackJob;
+import ru.ap4uuk.coreprotect.rollback.RollbackScheduler;
 import com.mojang.brigadier.arguments.StringArgumentType;
-import ru.ap4uuk.coreprotect.storage.DatabaseManager.DbForwardAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbForwardAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackends;
+import ru.ap4uuk.coreprotect.storage.PipelineMetrics;
+import ru.ap4uuk.coreprotect.storage.PurgeListener;
+import ru.ap4uuk.coreprotect.storage.QueryStats;
+import ru.ap4uuk.coreprotect.storage.RollbackSessionRecorder;
+import net.minecraft.server.MinecraftServer;
 import com.mojang.brigadier.suggestion.SuggestionProvider;
 import com.mojang.brigadier.suggestion.Suggestions;
 import net.minecraft.commands.SharedSuggestionProvider;
@@ -110,6 +120,26 @@ public class ModCommands {
         return SharedSuggestionProvider.suggest(filtered, builder);
     };
 
+    private static final SuggestionProvider<CommandSourceStack> PURGE_PARAM_SUGGESTIONS = (ctx, builder) -> {
+        String remaining = builder.getRemaining();
+        int lastSpace = remaining.lastIndexOf(' ');
+        String token = (lastSpace == -1 ? remaining : remaining.substring(lastSpace + 1)).toLowerCase();
+
+        List<String> suggestions = new java.util.ArrayList<>(List.of("t:30d", "t:90d", "#vacuum"));
+        try {
+            for (var level : ctx.getSource().getServer().getAllLevels()) {
+                suggestions.add("w:" + level.dimension().location());
+            }
+        } catch (Exception ignored) {
+        }
+
+        return SharedSuggestionProvider.suggest(
+                suggestions.stream().filter(s -> s.toLowerCase().startsWith(token)).toList(), builder);
+    };
+
+    // Меньше суток purge не трогает — чтобы опечатка в t: не стёрла свежую историю
+    private static final int PURGE_MIN_SECONDS = 24 * 60 * 60;
+
     @SubscribeEvent
     public static void onRegisterCommands(RegisterCommandsEvent event) {
         CommandDispatcher<CommandSourceStack> dispatcher = event.getDispatcher();
@@ -152,6 +182,33 @@ public class ModCommands {
                                         })
                                 )
                         )
+                        // /co cancel — отменить свои rollback/restore
+                        .then(Commands.literal("cancel")
+                                .executes(ctx -> {
+                                    ServerPlayer player = ctx.getSource().getPlayerOrException();
+                                    int cancelled = RollbackScheduler.cancel(player.getUUID());
+                                    player.sendSystemMessage(Component.literal(cancelled > 0
+                                            ? "[Coreprotect] Отменено задач: " + cancelled
+                                            : "[Coreprotect] Нет запущенных rollback/restore."));
+                                    return cancelled;
+                                })
+                        )
+                        // /co purge t:30d [w:мир] [#vacuum]
+                        .then(Commands.literal("purge")
+                                .requires(source -> source.hasPermission(4))
+                                .then(Commands.argument("params", StringArgumentType.greedyString())
+                                        .suggests(PURGE_PARAM_SUGGESTIONS)
+                                        .executes(ctx -> executePurge(
+                                                ctx.getSource(),
+                                                StringArgumentType.getString(ctx, "params")
+                                        ))
+                                )
+                        )
+                        // /co status — очередь записи, батчи, коммиты, выборки
+                        .then(Commands.literal("status")
+                                .requires(source -> source.hasPermission(2))
+                                .executes(ctx -> executeStatus(ctx.getSource()))
+                        )
         );
         dispatcher.register(
                 Commands.literal("co")
@@ -203,8 +260,123 @@ public class ModCommands {
         }
     }
 
+    private static int executeStatus(CommandSourceStack source) {
+        StorageBackend db = StorageBackends.get();
+        if (db == null) {
+            source.sendFailure(Component.literal("[Coreprotect] БД недоступна."));
+            return 0;
+        }
+
+        PipelineMetrics m = db.metrics();
+        List<String> lines = new java.util.ArrayList<>();
+        lines.add("[Coreprotect] Состояние записи (с момента старта):");
+        lines.add(" Очередь: " + m.getQueueSize() + "/" + m.getQueueCapacity() +
+                ", максимум " + m.getQueueHighWaterMark() + ", отказов " + m.getQueueOfferFailures());
+        lines.add(String.format(" Событий/с: принято %.1f, записано %.1f (всего записано %d)",
+                m.getCapturedPerSecond(), m.getWrittenPerSecond(), m.getEventsWritten()));
+        lines.add(" Батчи: " + m.getBatchesCommitted() + ", размер p50 " + m.getBatchSizeP50() +
+                " / p99 " + m.getBatchSizeP99() + " / макс " + m.getBatchSizeMax());
+        lines.add(String.format(" Коммит: p50 %.1f мс / p99 %.1f мс / макс %.1f мс",
+                m.getCommitP50Millis(), m.getCommitP99Millis(), m.getCommitMaxMillis()));
+        lines.add(String.format(" Переполнение (%s): в spill-журнал %d, выброшено %d, ожиданий места %d, p99 %.1f мс / макс %.1f мс",
+                m.getOverflowPolicy(), m.getSpilledEvents(), m.getDroppedEvents(),
+                m.getBlockedOffers(), m.getBlockWaitP99Millis(), m.getBlockWaitMaxMillis()));
+        for (QueryStats q : m.queries()) {
+            if (q.getCount() == 0) continue;
+            lines.add(String.format(" Выборки %s: %d, p50 %.1f мс / p99 %.1f мс / макс %.1f мс",
+                    q.type().label, q.getCount(), q.getP50Millis(), q.getP99Millis(), q.getMaxMillis()));
+        }
+
+        for (String line : lines) {
+            source.sendSuccess(() -> Component.literal(line), false);
+        }
+        if (m.isFallingBehind()) {
+            source.sendSuccess(() -> Component.literal("[Coreprotect] Запись не успевает за событиями: очередь растёт.")
+                    .withStyle(ChatFormatting.YELLOW), false);
+        }
+        return 1;
+    }
+
+    private static int executePurge(CommandSourceStack source, String paramsStr) {
+        StorageBackend db = StorageBackends.get();
+        if (db == null) {
+            source.sendFailure(Component.literal("[Coreprotect] БД недоступна."));
+            return 0;
+        }
+
+        RollbackParams params;
+        try {
+            params = CoParamParser.parse(paramsStr);
+        } catch (IllegalArgumentException e) {
+            source.sendFailure(Component.literal("[Coreprotect] Ошибка параметров: " + e.getMessage()));
+            return 0;
+        }
+
+        if (params.seconds == null) {
+            source.sendFailure(Component.literal("[Coreprotect] Укажи, старше какого срока удалять историю, например t:30d."));
+            return 0;
+        }
+        if (params.seconds < PURGE_MIN_SECONDS) {
+            source.sendFailure(Component.literal("[Coreprotect] Purge удаляет историю не моложе суток (t:1d и больше)."));
+            return 0;
+        }
+
+        long cutoff = Instant.now().getEpochSecond() - params.seconds;
+        MinecraftServer server = source.getServer();
+
+        // колбэки приходят из writer-потока — сообщения отправляем с серверного потока
+        PurgeListener listener = new PurgeListener() {
+            @Override
+            public void onProgress(long deletedRows, int droppedPartitions, int partitionsDone, int partitionsTotal) {
+                notify("[Coreprotect] Purge: обработано партиций " + partitionsDone + "/" + partitionsTotal +
+                        ", удалено строк: " + deletedRows + ", партиций целиком: " + droppedPartitions);
+            }
+
+            @Override
+            public void onFinished(long deletedRows, int droppedPartitions, long freedPages, long elapsedMs) {
+                notify("[Coreprotect] Purge завершён за " + elapsedMs + " мс. Удалено строк: " + deletedRows +
+                        ", партиций целиком: " + droppedPartitions +
+                        (params.vacuum
+                                ? (freedPages >= 0
+                                    ? ", освобождено страниц: " + freedPages
+                                    : ". Vacuum недоступен: БД создана без auto_vacuum=INCREMENTAL")
+                                : ""));
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                Coreprotect.LOGGER.error("[Coreprotect] Purge прерван", e);
+                server.execute(() -> source.sendFailure(Component.literal("[Coreprotect] Purge прерван: " + e.getMessage())));
+            }
+
+            private void notify(String message) {
+                server.execute(() -> source.sendSuccess(() -> Component.literal(message), true));
+            }
+        };
+
+        boolean started;
+        try {
+            started = db.startPurge(cutoff, params.world, params.vacuum, listener);
+        } catch (IllegalArgumentException e) {
+            source.sendFailure(Component.literal("[Coreprotect] " + e.getMessage()));
+            return 0;
+        }
+        if (!started) {
+            source.sendFailure(Component.literal("[Coreprotect] Purge уже выполняется."));
+            return 0;
+        }
+
+        source.sendSuccess(() -> Component.literal(
+                "[Coreprotect] Purge запущен: история старше " + params.seconds / 86_400 + " дн." +
+                        (params.world != null ? (", мир " + params.world) : "") +
+                        (params.vacuum ? ", с vacuum" : "") +
+                        ". Запись событий не останавливается."
+        ), true);
+        return 1;
+    }
+
     private static int executeRollback(ServerPlayer player, String paramsStr) {
-        DatabaseManager db = DatabaseManager.get();
+        StorageBackend db = StorageBackends.get();
         if (db == null) {
             player.sendSystemMessage(Component.literal("[Coreprotect] БД недоступна."));
             return 0;
@@ -223,7 +395,7 @@ public class ModCommands {
         int seconds = params.seconds != null ? params.seconds : 300;
         String playerFilter = params.playerName;
 
-        Level level = player.serverLevel();
+        ServerLevel level = player.serverLevel();
         BlockPos center = player.blockPosition();
 
         long now = Instant.now().getEpochSecond();
@@ -248,52 +420,54 @@ public class ModCommands {
                         " ..."
         ));
 
-        List<DbRollbackAction> actions = db.getActionsForRollback(
-                level.dimension(), center, radius, since, playerFilter
-        );
-
-        if (actions.isEmpty()) {
-            player.sendSystemMessage(Component.literal("[Coreprotect] Нечего откатывать в заданной зоне/интервале."));
-            return 1;
-        }
-
-        int applied = 0;
-
-        ActionContext.setRollbackInProgress(true);
-        try {
-            for (DbRollbackAction a : actions) {
-                BlockPos pos = new BlockPos(a.x, a.y, a.z);
-
-                // состояние ДО rollback
-                var before = level.getBlockState(pos);
-                // целевое состояние (то, что было "old_block")
-                var targetState = db.deserializeBlockState(a.oldBlock);
+        // целевое состояние — "old_block" самого раннего события окна, по одному на позицию;
+        // план читается из БД потоком, пока блоки ставятся
+        ChangeSource changes = ChangeSource.of(
+                db.streamActionsForRollback(level.dimension(), center, radius, since, playerFilter),
+                (DbRollbackAction a) -> new BlockChange(new BlockPos(a.x, a.y, a.z), a.oldState));
+
+        RollbackSessionRecorder recorder = db.openSessionRecorder(sessionId, level.dimension());
+        RollbackJob job = new RollbackJob("Rollback (сессия #" + sessionId + ")", player, level,
+                changes, new RollbackJob.Listener() {
+            @Override
+            public void onApplied(BlockPos pos, BlockState before, BlockState after) {
+                // записываем в сессию: before -> after
+                recorder.record(pos, before, after);
+            }
 
-                if (before == targetState) {
-                    continue; // можно пропускать, если уже в нужном состоянии
+            @Override
+            public void onFinished(int applied, boolean cancelled) {
+                // и при отмене сессия закрывается: в ней ровно то, что успело примениться
+                recorder.finish();
+                if (applied == 0 && !cancelled) {
+                    player.sendSystemMessage(Component.literal("[Coreprotect] Нечего откатывать в заданной зоне/интервале."));
+                    return;
                 }
-
-                level.setBlock(pos, targetState, 3);
-                applied++;
-
-                // записываем в сессию: before -> after
-                db.insertRollbackEntry(sessionId, level.dimension(), pos, before, targetState);
+                player.sendSystemMessage(Component.literal(cancelled
+                        ? "[Coreprotect] Rollback отменён. Сессия #" + sessionId + ", успело примениться изменений: " + applied +
+                                " (их можно вернуть через /co restore id:" + sessionId + ")"
+                        : "[Coreprotect] Rollback завершён. Сессия #" + sessionId + ", применено изменений: " + applied
+                ));
             }
-        } finally {
-            ActionContext.setRollbackInProgress(false);
-        }
+        });
+        announceJob(player, job);
+
+        return 1;
+    }
 
+    private static void announceJob(ServerPlayer player, RollbackJob job) {
+        int ahead = RollbackScheduler.submit(job);
         player.sendSystemMessage(Component.literal(
-                "[Coreprotect] Rollback завершён. Сессия #" + sessionId +
-                        ", применено изменений: " + applied
+                "[Coreprotect] " + job.title() + ": " +
+                        (job.total() >= 0 ? job.total() + " изменений поставлено в очередь" : "поставлен в очередь") +
+                        (ahead > 0 ? " (перед ней задач: " + ahead + ")" : "") +
+                        ". Отмена — /co cancel"
         ));
-
-        return applied;
     }
 
 
     private static int executeRestore(ServerPlayer player, String paramsStr) {
-        DatabaseManager db = DatabaseManager.get();
+        StorageBackend db = StorageBackends.get();
         if (db == null) {
             player.sendSystemMessage(Component.literal("[Coreprotect] БД недоступна."));
             return 0;
@@ -317,7 +491,7 @@ public class ModCommands {
         int seconds = params.seconds != null ? params.seconds : 300;
         String playerFilter = params.playerName;
 
-        Level level = player.serverLevel();
+        ServerLevel level = player.serverLevel();
         BlockPos center = player.blockPosition();
 
         long now = Instant.now().getEpochSecond();
@@ -330,77 +504,89 @@ public class ModCommands {
                         " ..."
         ));
 
-        List<DbForwardAction> actions = db.getActionsForRestore(
-                level.dimension(), center, radius, since, playerFilter
-        );
-
-        if (actions.isEmpty()) {
-            player.sendSystemMessage(Component.literal("[Coreprotect] Нечего восстанавливать в заданной зоне/интервале."));
-            return 1;
-        }
+        ChangeSource changes = ChangeSource.of(
+                db.streamActionsForRestore(level.dimension(), center, radius, since, playerFilter),
+                (DbForwardAction a) -> new BlockChange(new BlockPos(a.x, a.y, a.z), a.newState));
 
-        int applied = 0;
+        RollbackJob job = new RollbackJob("Restore", player, level, changes,
+                (applied, cancelled) -> player.sendSystemMessage(Component.literal(applied == 0 && !cancelled
+                        ? "[Coreprotect] Нечего восстанавливать в заданной зоне/интервале."
+                        : "[Coreprotect] Restore " + (cancelled ? "отменён" : "завершён") + ". Применено изменений: " + applied
+                )));
+        announceJob(player, job);
 
-        ActionContext.setRollbackInProgress(true);
-        try {
-            for (DbForwardAction a : actions) {
-                BlockPos pos = new BlockPos(a.x, a.y, a.z);
-                var targetState = db.deserializeBlockState(a.newBlock);
-                level.setBlock(pos, targetState, 3);
-                applied++;
-            }
-        } finally {
-            ActionContext.setRollbackInProgress(false);
-        }
-
-        player.sendSystemMessage(Component.literal(
-                "[Coreprotect] Restore завершён. Применено изменений: " + applied
-        ));
-
-        return applied;
+        return 1;
     }
     private static int executeRestoreSession(ServerPlayer player, int sessionId) {
-        DatabaseManager db = DatabaseManager.get();
+        StorageBackend db = StorageBackends.get();
         if (db == null) {
             player.sendSystemMessage(Component.literal("[Coreprotect] БД недоступна."));
             return 0;
         }
+        MinecraftServer server = player.getServer();
+
+        // состояние сессии читается на потоке выборок, restore запускается уже на потоке сервера
+        db.getRollbackSessionStatusAsync(sessionId)
+                .thenAcceptAsync(status -> startSessionRestore(player, db, sessionId, status), server)
+                .exceptionally(e -> {
+                    Coreprotect.LOGGER.error("[Coreprotect] Ошибка чтения rollback-сессии {}", sessionId, e);
+                    server.execute(() -> player.sendSystemMessage(
+                            Component.literal("[Coreprotect] Ошибка чтения сессии #" + sessionId + ".")));
+                    return null;
+                });
+        return 1;
+    }
 
-        List<DatabaseManager.RollbackSessionEntry> entries = db.getRollbackEntries(sessionId);
-        if (entries.isEmpty()) {
-            player.sendSystemMessage(Component.literal("[Coreprotect] Сессия #" + sessionId + " не найдена или пуста."));
-            return 0;
+    private static void startSessionRestore(ServerPlayer player, StorageBackend db, int sessionId,
+                                            StorageBackend.RollbackSessionStatus status) {
+        // игрок мог выйти, пока шёл запрос
+        if (player.hasDisconnected()) {
+            return;
         }
-
-        player.sendSystemMessage(Component.literal(
-                "[Coreprotect] Restore сессии #" + sessionId + "..."
-        ));
-
-        int applied = 0;
-
-        ActionContext.setRollbackInProgress(true);
-        try {
-            for (DatabaseManager.RollbackSessionEntry e : entries) {
-                // Пока предполагаем, что сессия в том же измерении, где и выполняем команду
-                Level level = player.serverLevel();
-                BlockPos pos = new BlockPos(e.x, e.y, e.z);
-
-                // Для restore нам нужно вернуть блок к состоянию ДО rollback’а
-                var beforeState = db.deserializeBlockState(e.beforeBlock);
-                level.setBlock(pos, beforeState, 3);
-                applied++;
-            }
-        } finally {
-            ActionContext.setRollbackInProgress(false);
+        if (status == null) {
+            player.sendSystemMessage(Component.literal("[Coreprotect] Сессия #" + sessionId + " не найдена."));
+            return;
         }
-
-        db.markSessionRestored(sessionId);
-
-        player.sendSystemMessage(Component.literal(
-                "[Coreprotect] Restore сессии #" + sessionId + " завершён. Изменений: " + applied
-        ));
-
-        return applied;
+        if (!status.finished) {
+            // снимок пишется порциями по ходу rollback-а; сервер остановился раньше, чем он был дописан
+            player.sendSystemMessage(Component.literal(
+                    "[Coreprotect] Сессия #" + sessionId + " не дописана (rollback прервался): "
+                            + "восстановятся только сохранённые позиции."
+            ).withStyle(ChatFormatting.YELLOW));
+        }
+        String total = status.entryCount >= 0 ? " из " + status.entryCount : "";
+
+        // Пока предполагаем, что сессия в том же измерении, где и выполняем команду
+        ServerLevel level = player.serverLevel();
+
+        // записи читаются из БД потоком, по одной на позицию, с состоянием ДО rollback’а
+        ChangeSource changes = ChangeSource.of(db.streamRollbackEntries(sessionId),
+                (StorageBackend.RollbackSessionEntry e) ->
+                        new BlockChange(new BlockPos(e.x, e.y, e.z), db.deserializeBlockState(e.beforeBlock)));
+
+        RollbackJob job = new RollbackJob("Restore сессии #" + sessionId, player, level,
+                changes, (applied, cancelled) -> {
+            if (cancelled) {
+                // сессия вернулась не целиком — restored не ставим, её можно запустить ещё раз
+                player.sendSystemMessage(Component.literal(
+                        "[Coreprotect] Restore сессии #" + sessionId + " отменён. Успело примениться изменений: "
+                                + applied + total
+                ));
+                return;
+            }
+            if (applied == 0) {
+                player.sendSystemMessage(Component.literal(
+                        "[Coreprotect] Сессия #" + sessionId + " пуста или уже восстановлена."
+                ));
+                return;
+            }
+            db.markSessionRestored(sessionId);
+            player.sendSystemMessage(Component.literal(
+                    "[Coreprotect] Restore сессии #" + sessionId + " завершён. Изменений: " + applied + total
+                            + (status.finished ? "" : " (сессия была не дописана)")
+            ));
+        });
+        announceJob(player, job);
     }
 
 }
@@ -2,8 +2,11 @@ package ru.ap4uuk.coreprotect;
 
 import net.minecraft.core.BlockPos;
 import net.minecraft.network.chat.Component;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.level.Level;
+import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.event.entity.player.PlayerInteractEvent;
 import net.minecraftforge.event.level.BlockEvent;
 import net.minecraftforge.event.server.ServerStartingEvent;
@@ -13,8 +16,10 @@ import net.minecraftforge.fml.common.Mod;
 import ru.ap4uuk.coreprotect.config.CoreprotectConfig;
 import ru.ap4uuk.coreprotect.inspect.InspectManager;
 import ru.ap4uuk.coreprotect.model.BlockAction;
-import ru.ap4uuk.coreprotect.storage.DatabaseManager;
-import ru.ap4uuk.coreprotect.storage.DatabaseManager.DbBlockAction;
+import ru.ap4uuk.coreprotect.rollback.RollbackScheduler;
+import ru.ap4uuk.coreprotect.storage.StorageSettings;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbBlockAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackends;
 import ru.ap4uuk.coreprotect.util.ActionContext;
 import net.minecraft.world.InteractionHand;
 import net.minecraft.world.InteractionHand;
@@ -28,13 +33,10 @@ import net.minecraft.world.entity.LivingEntity;
 import ru.ap4uuk.coreprotect.inspect.InspectTool;
 
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
-import java.util.Locale;
 
 import static ru.ap4uuk.coreprotect.Coreprotect.LOGGER;
 import static ru.ap4uuk.coreprotect.Coreprotect.MODID;
@@ -50,25 +52,27 @@ public class ModEvents {
 
     @SubscribeEvent
     public static void onServerStarting(ServerStartingEvent event) {
-        String storageType = CoreprotectConfig.COMMON.storageType.get().toUpperCase(Locale.ROOT);
-
-        if ("SQLITE".equals(storageType)) {
-            String pathStr = CoreprotectConfig.COMMON.sqlitePath.get();
-            Path dbPath = Paths.get(pathStr);
-            DatabaseManager.initSQLite(dbPath);
-            LOGGER.info("[Coreprotect] База данных (SQLite) инициализирована: {}", dbPath.toAbsolutePath());
-        } else {
-            LOGGER.error("[Coreprotect] Тип хранилища '{}' не поддерживается. Используйте SQLITE.", storageType);
-        }
+        String storageType = CoreprotectConfig.COMMON.storageType.get();
+        StorageBackends.openConfigured(storageType, StorageSettings.fromConfig());
     }
 
     @SubscribeEvent
     public static void onServerStopping(ServerStoppingEvent event) {
         InspectManager.clear();
-        DatabaseManager.shutdown();
+        RollbackScheduler.clear();
+        StorageBackends.shutdown();
         LOGGER.info("[Coreprotect] База данных остановлена.");
     }
 
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        // rollback/restore идут порциями с бюджетом на тик
+        RollbackScheduler.tick();
+    }
+
     // ---------- События блоков ----------
 
     @SubscribeEvent
@@ -85,26 +89,26 @@ public class ModEvents {
 
         var state = event.getState();
 
-        LOGGER.debug("[Coreprotect] BREAK: player={}, dim={}, pos=({}, {}, {})",
-                player.getGameProfile().getName(),
-                level.dimension().location(),
-                pos.getX(), pos.getY(), pos.getZ()
-        );
-
-        var action = new BlockAction(
-                BlockAction.Type.BREAK,
-                player.getUUID(),
-                player.getGameProfile().getName(),
-                level.dimension(),
-                pos,
-                state,      // oldState — блок, который был
-                null,       // newState — после break нет блока
-                Instant.now()
-        );
-
-        var db = DatabaseManager.get();
+        // без проверки debug-вызов с пятью аргументами создаёт массив и boxing на каждый блок
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[Coreprotect] BREAK: player={}, dim={}, pos=({}, {}, {})",
+                    player.getGameProfile().getName(),
+                    level.dimension().location(),
+                    pos.getX(), pos.getY(), pos.getZ()
+            );
+        }
+
+        var db = StorageBackends.get();
         if (db != null) {
-            db.logBlockAction(action);
+            db.logBlockChange(
+                    BlockAction.Type.BREAK,
+                    player.getUUID(),
+                    player.getGameProfile().getName(),
+                    level.dimension(),
+                    pos,
+                    state,      // oldState — блок, который был
+                    null        // newState — после break нет блока
+            );
         }
     }
 
@@ -123,26 +127,25 @@ public class ModEvents {
         var placedState = event.getPlacedBlock();
         var oldState = event.getBlockSnapshot().getReplacedBlock();
 
-        LOGGER.debug("[Coreprotect] PLACE: player={}, dim={}, pos=({}, {}, {})",
-                player.getGameProfile().getName(),
-                level.dimension().location(),
-                pos.getX(), pos.getY(), pos.getZ()
-        );
-
-        var action = new BlockAction(
-                BlockAction.Type.PLACE,
-                player.getUUID(),
-                player.getGameProfile().getName(),
-                level.dimension(),
-                pos,
-                oldState,       // что было до
-                placedState,    // что поставили
-                Instant.now()
-        );
-
-        var db = DatabaseManager.get();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[Coreprotect] PLACE: player={}, dim={}, pos=({}, {}, {})",
+                    player.getGameProfile().getName(),
+                    level.dimension().location(),
+                    pos.getX(), pos.getY(), pos.getZ()
+            );
+        }
+
+        var db = StorageBackends.get();
         if (db != null) {
-            db.logBlockAction(action);
+            db.logBlockChange(
+                    BlockAction.Type.PLACE,
+                    player.getUUID(),
+                    player.getGameProfile().getName(),
+                    level.dimension(),
+                    pos,
+                    oldState,       // что было до
+                    placedState     // что поставили
+            );
         }
     }
 
@@ -208,18 +211,40 @@ public class ModEvents {
 
 
     private static void inspectPos(ServerPlayer player, Level level, BlockPos pos) {
-        var db = DatabaseManager.get();
+        var db = StorageBackends.get();
         if (db == null) {
             player.sendSystemMessage(Component.literal("[Coreprotect] БД недоступна."));
             return;
         }
 
         int limit = CoreprotectConfig.COMMON.inspectHistoryLimit.get();
-        List<DbBlockAction> history = db.getBlockHistory(level.dimension(), pos, limit);
+        ResourceKey<Level> dimension = level.dimension();
+        BlockPos target = pos.immutable();
+        MinecraftServer server = player.getServer();
+
+        // Выборка идёт на потоке запросов БД, сообщения отправляются уже на потоке сервера
+        db.getBlockHistoryAsync(dimension, target, limit)
+                .thenAcceptAsync(history -> sendHistory(player, dimension, target, history), server)
+                .exceptionally(e -> {
+                    LOGGER.error("[Coreprotect] Ошибка инспекта блока {}", target, e);
+                    server.execute(() -> player.sendSystemMessage(
+                            Component.literal("[Coreprotect] Ошибка чтения истории блока.")));
+                    return null;
+                });
+    }
+
+    private static void sendHistory(ServerPlayer player,
+                                    ResourceKey<Level> dimension,
+                                    BlockPos pos,
+                                    List<DbBlockAction> history) {
+        // игрок мог выйти, пока шёл запрос
+        if (player.hasDisconnected()) {
+            return;
+        }
 
         player.sendSystemMessage(Component.literal(
                 "[Coreprotect] История блока " +
-                        level.dimension().location() + " " +
+                        dimension.location() + " " +
                         pos.getX() + "," + pos.getY() + "," + pos.getZ()
         ));
 
@@ -9,6 +9,7 @@ public final class CoParamParser {
     /**
      * Парсит строку вида:
      * "t:1h30m r:10 u:Nick"
+     * Флаги без значения пишутся через решётку: "#vacuum".
      */
     public static RollbackParams parse(String input) throws IllegalArgumentException {
         RollbackParams params = new RollbackParams();
@@ -19,6 +20,14 @@ public final class CoParamParser {
         }
 
         for (String token : tokens) {
+            if (token.startsWith("#")) {
+                switch (token.substring(1).toLowerCase()) {
+                    case "vacuum" -> params.vacuum = true;
+                    default -> throw new IllegalArgumentException("Неизвестный флаг: " + token);
+                }
+                continue;
+            }
+
             int idx = token.indexOf(':');
             if (idx <= 0 || idx == token.length() - 1) {
                 throw new IllegalArgumentException("Неверный параметр: " + token);
@@ -38,6 +47,10 @@ public final class CoParamParser {
                 case "u", "user" -> {
                     params.playerName = value;
                 }
+                case "w", "world" -> {
+                    // "the_nether" -> "minecraft:the_nether"
+                    params.world = value.indexOf(':') < 0 ? "minecraft:" + value : value;
+                }
                 case "id" -> {
                     try {
                         params.sessionId = Integer.parseInt(value);
@@ -9,6 +9,10 @@ public class RollbackParams {
     // НОВОЕ:
     public Integer sessionId;
 
+    // для purge: мир (w:) и флаг #vacuum
+    public String world;
+    public boolean vacuum;
+
     @Override
     public String toString() {
         return "RollbackParams{" +
@@ -16,6 +20,8 @@ public class RollbackParams {
                 ", seconds=" + seconds +
                 ", playerName='" + playerName + '\'' +
                 ", sessionId=" + sessionId +
+                ", world='" + world + '\'' +
+                ", vacuum=" + vacuum +
                 '}';
     }
 }
@@ -2,6 +2,7 @@ package ru.ap4uuk.coreprotect.config;
 
 import net.minecraftforge.common.ForgeConfigSpec;
 import org.apache.commons.lang3.tuple.Pair;
+import ru.ap4uuk.coreprotect.storage.OverflowPolicy;
 
 public final class CoreprotectConfig {
 
@@ -15,26 +16,115 @@ public final class CoreprotectConfig {
     }
 
     public static class Common {
-        // Тип хранилища: пока поддерживаем только SQLITE
+        // Тип хранилища (см. StorageBackends)
         public final ForgeConfigSpec.ConfigValue<String> storageType;
 
         // Путь к SQLite-файлу
         public final ForgeConfigSpec.ConfigValue<String> sqlitePath;
 
+        // Каталог сегментов для storageType = SEGMENTS
+        public final ForgeConfigSpec.ConfigValue<String> segmentPath;
+
+        // Партиционирование журнала блоков и срок хранения
+        public final ForgeConfigSpec.IntValue partitionDays;
+        public final ForgeConfigSpec.IntValue retentionDays;
+        // Через сколько дней партиция переписывается в сжатые колоночные блоки
+        public final ForgeConfigSpec.IntValue coldAfterDays;
+
+        // Сколько read-only соединений держать для выборок (инспект, rollback)
+        public final ForgeConfigSpec.IntValue readConnections;
+
         // Сколько записей показывать при инспекции блока
         public final ForgeConfigSpec.IntValue inspectHistoryLimit;
+        // Сколько позиций держать в кэше истории инспекта
+        public final ForgeConfigSpec.IntValue inspectCacheEntries;
+
+        // Rollback/restore: сколько мс за тик тратить на установку блоков и как часто сообщать о прогрессе
+        public final ForgeConfigSpec.IntValue rollbackTickBudgetMs;
+        public final ForgeConfigSpec.IntValue rollbackProgressIntervalSeconds;
+        public final ForgeConfigSpec.BooleanValue rollbackChunkOrderedApply;
+        public final ForgeConfigSpec.IntValue rollbackFetchSize;
+
+        // Параметры батчевой записи в writer-потоке
+        public final ForgeConfigSpec.IntValue writerMinBatchSize;
+        public final ForgeConfigSpec.IntValue writerMaxBatchSize;
+        public final ForgeConfigSpec.IntValue writerMaxBatchLatencyMs;
+        public final ForgeConfigSpec.IntValue writerTargetCommitMs;
+
+        // Что делать при переполнении очереди writer-потока
+        public final ForgeConfigSpec.EnumValue<OverflowPolicy> writerOverflowPolicy;
+        public final ForgeConfigSpec.IntValue writerOverflowBlockTimeoutMs;
+
+        // Окно слияния событий одной позиции одним игроком
+        public final ForgeConfigSpec.IntValue writerCoalesceWindowMs;
 
         public Common(ForgeConfigSpec.Builder builder) {
             builder.push("storage");
 
             storageType = builder
-                    .comment("Тип хранилища: SQLITE (другие типы пока не реализованы)")
+                    .comment("Тип хранилища: SQLITE или SEGMENTS (журнал в файлах, отображённых в память, — для очень высокой нагрузки)")
                     .define("storageType", "SQLITE");
 
             sqlitePath = builder
                     .comment("Путь к SQLite файлу относительно корня сервера")
                     .define("sqlitePath", "coreprotect/coreprotect.sqlite");
 
+            segmentPath = builder
+                    .comment("Каталог сегментов журнала относительно корня сервера (storageType = SEGMENTS)")
+                    .define("segmentPath", "coreprotect/segments");
+
+            partitionDays = builder
+                    .comment("Сколько дней истории хранится в одной партиции (отдельной таблице) журнала блоков")
+                    .defineInRange("partitionDays", 7, 1, 365);
+
+            retentionDays = builder
+                    .comment("Сколько дней хранить историю; более старые партиции удаляются целиком. 0 — хранить всё")
+                    .defineInRange("retentionDays", 0, 0, 36_500);
+
+            coldAfterDays = builder
+                    .comment("Партиции, целиком старше стольких дней, фоном сжимаются в колоночные блоки (SQLite):",
+                            "места меньше, история и rollback читают их как обычно; исходная партиция после сжатия удаляется.",
+                            "0 — не сжимать. Разумное значение — 14")
+                    .defineInRange("coldAfterDays", 0, 0, 36_500);
+
+            readConnections = builder
+                    .comment("Сколько read-only соединений к SQLite держать для выборок; запись идёт отдельным соединением")
+                    .defineInRange("readConnections", 2, 1, 16);
+
+            builder.pop();
+
+            builder.push("writer");
+
+            writerMinBatchSize = builder
+                    .comment("Минимальный размер батча, до которого writer может ужаться при медленных коммитах")
+                    .defineInRange("minBatchSize", 64, 1, 100_000);
+
+            writerMaxBatchSize = builder
+                    .comment("Максимальный размер батча (одна транзакция)")
+                    .defineInRange("maxBatchSize", 4096, 1, 100_000);
+
+            writerMaxBatchLatencyMs = builder
+                    .comment("Сколько мс батч может копиться, прежде чем будет записан, даже если он не заполнен")
+                    .defineInRange("maxBatchLatencyMs", 250, 1, 60_000);
+
+            writerTargetCommitMs = builder
+                    .comment("Целевое время одного коммита в мс; по нему подстраивается размер батча")
+                    .defineInRange("targetCommitMs", 50, 1, 10_000);
+
+            writerOverflowPolicy = builder
+                    .comment("Поведение при переполнении очереди: SPILL — в журнал на диске, BLOCK — подождать место в очереди, DROP — выбросить")
+                    .defineEnum("overflowPolicy", OverflowPolicy.SPILL);
+
+            writerOverflowBlockTimeoutMs = builder
+                    .comment("Для BLOCK: сколько мс поток сервера может ждать места в очереди, прежде чем событие будет выброшено")
+                    .defineInRange("overflowBlockTimeoutMs", 5, 0, 1000);
+
+            writerCoalesceWindowMs = builder
+                    .comment("Окно в мс, в котором подряд идущие изменения одной позиции одним игроком сливаются в одну запись",
+                            "(старое состояние и время — от первого, новое — от последнего). Промежуточные состояния в истории не сохраняются.",
+                            "0 — не сливать. Разумное значение для стройки — 2000-5000")
+                    .defineInRange("coalesceWindowMs", 0, 0, 60_000);
+
             builder.pop();
 
             builder.push("inspect");
@@ -43,6 +133,32 @@ public final class CoreprotectConfig {
                     .comment("Сколько последних записей выводить при /co inspect клике по блоку")
                     .defineInRange("inspectHistoryLimit", 5, 1, 50);
 
+            inspectCacheEntries = builder
+                    .comment("Сколько позиций держать в кэше истории для инспекта. 0 — не кэшировать, каждый клик идёт в БД")
+                    .defineInRange("inspectCacheEntries", 4096, 0, 1_000_000);
+
+            builder.pop();
+
+            builder.push("rollback");
+
+            rollbackTickBudgetMs = builder
+                    .comment("Сколько мс за тик сервера rollback/restore может тратить на установку блоков; остальное — в следующих тиках")
+                    .defineInRange("tickBudgetMs", 10, 1, 45);
+
+            rollbackProgressIntervalSeconds = builder
+                    .comment("Как часто (в секундах) сообщать запустившему о прогрессе rollback/restore")
+                    .defineInRange("progressIntervalSeconds", 5, 1, 300);
+
+            rollbackChunkOrderedApply = builder
+                    .comment("Ставить блоки по чанкам, без обновлений соседей на каждый блок, с одним проходом по соседям в конце.",
+                            "false — старый способ: setBlock с флагом 3 на каждый блок в порядке времени")
+                    .define("chunkOrderedApply", true);
+
+            rollbackFetchSize = builder
+                    .comment("Сколько строк плана rollback/restore читать из БД наперёд. План не грузится в память целиком:",
+                            "строки идут потоком, пока блоки ставятся")
+                    .defineInRange("fetchSize", 1000, 16, 100_000);
+
             builder.pop();
         }
     }
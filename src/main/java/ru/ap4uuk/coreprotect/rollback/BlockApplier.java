@@ -0,0 +1,181 @@
+package ru.ap4uuk.coreprotect.rollback;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Установка блоков для rollback/restore.
+ * <p>
+ * Обычный {@code setBlock(pos, state, 3)} на каждый блок шлёт соседям обновления (и по цепочке — их соседям),
+ * пересчитывает формы соседних блоков и для каждого блока перебирает мобов с путями. При откате почти всё это
+ * лишнее: внутри изменённой области восстанавливаются записанные состояния целиком, вместе со свойствами.
+ * На границе области так нельзя: соседи снаружи с момента записи могли измениться (забор, стекло, провод
+ * рядом сломали или поставили), и записанная форма устарела — как у самого блока, так и у соседей.
+ * <p>
+ * Поэтому здесь:
+ * <ul>
+ *     <li>изменения упорядочены по чанкам и секциям — каждый чанк загружается и трогается один раз;</li>
+ *     <li>блок ставится без обновления соседей и клиентов ({@link #FAST_FLAGS});</li>
+ *     <li>клиентам позиция отдаётся через {@code blockChanged}: сервер сам собирает изменения секции
+ *         в один пакет за тик, свет — через тот же механизм после пересчёта движком освещения;</li>
+ *     <li>после чанка одним проходом идут обновления для блоков на границе изменённой в нём области:
+ *         форма самого блока пересчитывается по соседям, затем формы соседей (прямых и косвенных,
+ *         как у {@code setBlock} без {@code UPDATE_KNOWN_SHAPE}) и обычные обновления соседей.
+ *         Внутри области соседи и так поставлены в записанное состояние.</li>
+ * </ul>
+ * Изменённые позиции помнятся только для текущего чанка, так что память не растёт с размером плана.
+ */
+final class BlockApplier {
+
+    // Без UPDATE_NEIGHBORS и UPDATE_CLIENTS; формы соседей пересчитываются потом, только на границе; дропов нет
+    static final int FAST_FLAGS = Block.UPDATE_KNOWN_SHAPE | Block.UPDATE_SUPPRESS_DROPS;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /**
+     * Чанк, затем секция по высоте. Сортировка устойчивая, так что для одной позиции порядок изменений сохраняется.
+     */
+    private static final Comparator<BlockChange> CHUNK_ORDER = Comparator
+            .comparingInt((BlockChange c) -> c.pos().getX() >> 4)
+            .thenComparingInt(c -> c.pos().getZ() >> 4)
+            .thenComparingInt(c -> c.pos().getY() >> 4);
+
+    private final ServerLevel level;
+    private final boolean chunkOrdered;
+    // позиции текущего чанка, которые реально изменились; для прохода по соседям
+    private LongOpenHashSet changed = new LongOpenHashSet();
+    private long chunk = Long.MIN_VALUE;
+    // прошлый чанк, соседи которого ещё обновляются
+    private LongOpenHashSet flushing;
+    private LongIterator neighbourCursor;
+    // время проходов по границе, для сравнения способов установки
+    private long neighbourNanos;
+
+    BlockApplier(ServerLevel level, boolean chunkOrdered) {
+        this.level = level;
+        this.chunkOrdered = chunkOrdered;
+    }
+
+    boolean isChunkOrdered() {
+        return chunkOrdered;
+    }
+
+    /**
+     * Сколько времени ушло на проходы по границе (формы и соседи), нс.
+     */
+    long neighbourNanos() {
+        return neighbourNanos;
+    }
+
+    /**
+     * Упорядочивает план под установку (на месте).
+     */
+    void sort(List<BlockChange> changes) {
+        if (chunkOrdered) {
+            changes.sort(CHUNK_ORDER);
+        }
+    }
+
+    /**
+     * Ставит состояние. Возвращает прежнее, если блок изменился, иначе null.
+     * Перед каждым вызовом проход по соседям ({@link #updateNeighbours}) должен быть закончен.
+     */
+    BlockState apply(BlockChange change) {
+        BlockPos pos = change.pos();
+        BlockState before = level.getBlockState(pos);
+        if (before == change.target()) {
+            return null;
+        }
+
+        if (!chunkOrdered) {
+            level.setBlock(pos, change.target(), Block.UPDATE_ALL);
+            return before;
+        }
+
+        long chunkKey = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+        if (chunkKey != chunk) {
+            closeChunk();
+            chunk = chunkKey;
+        }
+        level.setBlock(pos, change.target(), FAST_FLAGS);
+        level.getChunkSource().blockChanged(pos);
+        changed.add(pos.asLong());
+        return before;
+    }
+
+    /**
+     * План кончился: соседей последнего чанка тоже надо обновить.
+     */
+    void closeChunk() {
+        if (changed.isEmpty()) return;
+        flushing = changed;
+        neighbourCursor = flushing.iterator();
+        changed = new LongOpenHashSet();
+    }
+
+    /**
+     * Отложенные обновления соседей для границы изменённой области закрытого чанка, до {@code deadlineNanos}.
+     * Возвращает true, когда проход закончен (или его нет).
+     */
+    boolean updateNeighbours(long deadlineNanos) {
+        if (neighbourCursor == null) {
+            return true;
+        }
+        long started = System.nanoTime();
+        try {
+            while (neighbourCursor.hasNext()) {
+                long packed = neighbourCursor.nextLong();
+                if (isOnBoundary(packed)) {
+                    updateBoundary(BlockPos.of(packed));
+                }
+                if (System.nanoTime() - deadlineNanos >= 0 && neighbourCursor.hasNext()) {
+                    return false;
+                }
+            }
+            neighbourCursor = null;
+            flushing = null;
+            return true;
+        } finally {
+            neighbourNanos += System.nanoTime() - started;
+        }
+    }
+
+    /**
+     * То, что {@code setBlock(pos, state, 3)} сделал бы для блока на границе: форма по соседям снаружи,
+     * формы соседей и обновления соседей.
+     */
+    private void updateBoundary(BlockPos pos) {
+        BlockState state = level.getBlockState(pos);
+        BlockState shaped = Block.updateFromNeighbourShapes(state, level, pos);
+        if (shaped != state) {
+            // без UPDATE_KNOWN_SHAPE setBlock сам пересчитает формы соседей
+            level.setBlock(pos, shaped, Block.UPDATE_CLIENTS | Block.UPDATE_SUPPRESS_DROPS);
+            state = shaped;
+        } else {
+            state.updateNeighbourShapes(level, pos, Block.UPDATE_CLIENTS);
+            state.updateIndirectNeighbourShapes(level, pos, Block.UPDATE_CLIENTS);
+        }
+        level.updateNeighborsAt(pos, state.getBlock());
+    }
+
+    /**
+     * На границе чанка соседи из другого чанка считаются неизменёнными: лишнее обновление безвредно.
+     */
+    private boolean isOnBoundary(long packed) {
+        for (Direction direction : DIRECTIONS) {
+            if (!flushing.contains(BlockPos.offset(packed, direction))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
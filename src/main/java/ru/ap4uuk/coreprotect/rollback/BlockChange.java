@@ -0,0 +1,10 @@
+package ru.ap4uuk.coreprotect.rollback;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * Одно запланированное изменение мира: поставить {@code target} в {@code pos}.
+ */
+public record BlockChange(BlockPos pos, BlockState target) {
+}
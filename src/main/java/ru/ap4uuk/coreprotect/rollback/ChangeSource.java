@@ -0,0 +1,92 @@
+package ru.ap4uuk.coreprotect.rollback;
+
+import ru.ap4uuk.coreprotect.storage.ActionStream;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * План rollback/restore, из которого {@link RollbackJob} берёт изменения по одному. Читается на потоке сервера,
+ * поэтому не ждёт: если следующее изменение ещё не готово, {@link #poll} возвращает null, и задача
+ * продолжит в следующем тике.
+ */
+public interface ChangeSource extends AutoCloseable {
+
+    /**
+     * Следующее изменение или null, если его пока нет (или больше не будет — см. {@link #isExhausted}).
+     */
+    BlockChange poll();
+
+    boolean isExhausted();
+
+    /**
+     * Сколько всего изменений, или -1, если заранее неизвестно.
+     */
+    int size();
+
+    /**
+     * Список нужен целиком, чтобы его упорядочить (см. {@link BlockApplier#sort}); иначе null.
+     */
+    default List<BlockChange> sortable() {
+        return null;
+    }
+
+    @Override
+    default void close() {}
+
+    static ChangeSource of(List<BlockChange> changes) {
+        return new ChangeSource() {
+            private Iterator<BlockChange> it;
+
+            @Override
+            public BlockChange poll() {
+                if (it == null) it = changes.iterator();
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return it != null && !it.hasNext();
+            }
+
+            @Override
+            public int size() {
+                return changes.size();
+            }
+
+            @Override
+            public List<BlockChange> sortable() {
+                return it == null ? changes : null;
+            }
+        };
+    }
+
+    /**
+     * Изменения из потоковой выборки БД; строки уже идут по чанкам.
+     */
+    static <T> ChangeSource of(ActionStream<T> stream, Function<T, BlockChange> mapper) {
+        return new ChangeSource() {
+            @Override
+            public BlockChange poll() {
+                T row = stream.poll();
+                return row == null ? null : mapper.apply(row);
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return stream.isExhausted();
+            }
+
+            @Override
+            public int size() {
+                return -1;
+            }
+
+            @Override
+            public void close() {
+                stream.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,230 @@
+package ru.ap4uuk.coreprotect.rollback;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.Coreprotect;
+import ru.ap4uuk.coreprotect.config.CoreprotectConfig;
+import ru.ap4uuk.coreprotect.util.ActionContext;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Rollback/restore, применяемый порциями: {@link RollbackScheduler} каждый тик даёт ему немного времени,
+ * и он ставит блоки, пока время не выйдет. Блоки ставит {@link BlockApplier}; после каждого чанка —
+ * отложенные обновления соседей, тоже порциями.
+ * <p>
+ * План берётся из {@link ChangeSource}: готовым списком или потоком из БД. Если поток не успел подготовить
+ * следующее изменение, задача отдаёт тик ({@link Slice#WAITING}) и продолжает в следующем.
+ */
+public final class RollbackJob {
+
+    /**
+     * Колбэки задачи. Вызываются на потоке сервера.
+     */
+    public interface Listener {
+        /** Блок в {@code pos} заменён: {@code before -> after}. */
+        default void onApplied(BlockPos pos, BlockState before, BlockState after) {}
+
+        /** Задача закончилась сама или была отменена; уже применённые изменения остаются в мире. */
+        void onFinished(int applied, boolean cancelled);
+    }
+
+    private enum Phase { APPLY, NEIGHBOURS, DONE }
+
+    /**
+     * Чем закончилась порция работы.
+     */
+    enum Slice {
+        /** Задача закончена (или отменена и дочищена). */
+        DONE,
+        /** Кончилось время тика. */
+        BUDGET,
+        /** План ещё читается из БД и ставить нечего: крутиться до конца бюджета незачем. */
+        WAITING
+    }
+
+    private final String title;
+    private final ServerPlayer owner;
+    private final ServerLevel level;
+    private final ChangeSource changes;
+    private final int total;
+    private final Listener listener;
+    private final BlockApplier applier;
+
+    private Phase phase = Phase.APPLY;
+    // чистое время на потоке сервера, для сравнения способов установки
+    private long busyNanos;
+    private int id;
+    private int processed;
+    private int applied;
+    private boolean cancelled;
+    private long lastProgressNanos;
+
+    /**
+     * @param title    как задача называется в сообщениях, например «Rollback (сессия #12)»
+     * @param changes  план; порядок для одной позиции важен (последнее изменение — итоговое состояние),
+     *                 между разными позициями — нет, поэтому список может быть пересортирован по чанкам
+     */
+    public RollbackJob(String title,
+                       ServerPlayer owner,
+                       ServerLevel level,
+                       List<BlockChange> changes,
+                       Listener listener) {
+        this(title, owner, level, ChangeSource.of(changes), listener);
+    }
+
+    /**
+     * @param changes  план; одна позиция — не больше одного изменения. Задача закрывает его, когда заканчивается
+     */
+    public RollbackJob(String title,
+                       ServerPlayer owner,
+                       ServerLevel level,
+                       ChangeSource changes,
+                       Listener listener) {
+        this.title = title;
+        this.owner = owner;
+        this.level = level;
+        this.applier = new BlockApplier(level, CoreprotectConfig.COMMON.rollbackChunkOrderedApply.get());
+        List<BlockChange> sortable = changes.sortable();
+        if (sortable != null) {
+            this.applier.sort(sortable);
+        }
+        this.changes = changes;
+        this.total = changes.size();
+        this.listener = listener;
+    }
+
+    /**
+     * Работает до {@code deadlineNanos} или пока план не кончится либо не опустеет в ожидании данных.
+     */
+    Slice runSlice(long deadlineNanos) {
+        long started = System.nanoTime();
+        ActionContext.setRollbackInProgress(true);
+        try {
+            if (phase == Phase.APPLY) {
+                // после отмены новые блоки не ставим, но соседей уже поставленных обновляем
+                Slice applying = cancelled ? Slice.DONE : applyChanges(deadlineNanos);
+                if (applying != Slice.DONE) {
+                    return applying;
+                }
+                applier.closeChunk();
+                phase = Phase.NEIGHBOURS;
+            }
+            if (phase == Phase.NEIGHBOURS && System.nanoTime() - deadlineNanos < 0) {
+                if (applier.updateNeighbours(deadlineNanos)) {
+                    phase = Phase.DONE;
+                }
+            }
+            return phase == Phase.DONE ? Slice.DONE : Slice.BUDGET;
+        } finally {
+            ActionContext.setRollbackInProgress(false);
+            busyNanos += System.nanoTime() - started;
+        }
+    }
+
+    private Slice applyChanges(long deadlineNanos) {
+        while (System.nanoTime() - deadlineNanos < 0) {
+            // соседи прошлого чанка — до того, как начнётся следующий
+            if (!applier.updateNeighbours(deadlineNanos)) {
+                return Slice.BUDGET;
+            }
+
+            BlockChange change = changes.poll();
+            if (change == null) {
+                // план ещё читается из БД — продолжим в следующем тике
+                return changes.isExhausted() ? Slice.DONE : Slice.WAITING;
+            }
+            processed++;
+
+            BlockState before = applier.apply(change);
+            if (before != null) {
+                applied++;
+                listener.onApplied(change.pos(), before, change.target());
+            }
+        }
+        return Slice.BUDGET;
+    }
+
+    void finish() {
+        changes.close();
+        // для сравнения способов: тот же откат с rollbackChunkOrderedApply = true и false
+        long busyMs = busyNanos / 1_000_000L;
+        Coreprotect.LOGGER.info("[Coreprotect] {}: изменено {} из {} блоков за {} мс на потоке сервера, {} блоков/с ({}){}",
+                title, applied, processed, busyMs, busyNanos > 0 ? applied * 1_000_000_000L / busyNanos : 0,
+                applier.isChunkOrdered()
+                        ? "по чанкам, граница после каждого чанка: " + applier.neighbourNanos() / 1_000_000L + " мс"
+                        : "setBlock с флагом 3",
+                cancelled ? ", отменён" : "");
+        listener.onFinished(applied, cancelled);
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Задача ещё не поставила ни одного блока — её можно снять из очереди сразу.
+     */
+    boolean isStarted() {
+        return processed > 0;
+    }
+
+    boolean isOwnedBy(UUID player) {
+        return owner.getUUID().equals(player);
+    }
+
+    void assignId(int id) {
+        this.id = id;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String title() {
+        return title;
+    }
+
+    /**
+     * Сообщает владельцу, сколько сделано, если с прошлого раза прошло не меньше {@code intervalNanos}.
+     */
+    void reportProgress(long now, long intervalNanos) {
+        if (lastProgressNanos == 0) {
+            lastProgressNanos = now;
+            return;
+        }
+        if (now - lastProgressNanos < intervalNanos) return;
+        lastProgressNanos = now;
+
+        if (total < 0) {
+            message("[Coreprotect] " + title + ": обработано " + processed + ", изменено блоков: " + applied);
+            return;
+        }
+        int percent = total > 0 ? (int) (processed * 100L / total) : 0;
+        message("[Coreprotect] " + title + ": " + processed + "/" + total + " (" + percent + "%), изменено блоков: " + applied);
+    }
+
+    /**
+     * Размер плана или -1, если план читается потоком.
+     */
+    public int total() {
+        return total;
+    }
+
+    /**
+     * Сообщение владельцу задачи, если он ещё на сервере.
+     */
+    public void message(String text) {
+        if (!owner.hasDisconnected()) {
+            owner.sendSystemMessage(Component.literal(text));
+        }
+    }
+}
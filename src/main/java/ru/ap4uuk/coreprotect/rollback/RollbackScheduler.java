@@ -0,0 +1,99 @@
+package ru.ap4uuk.coreprotect.rollback;
+
+import ru.ap4uuk.coreprotect.Coreprotect;
+import ru.ap4uuk.coreprotect.config.CoreprotectConfig;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Очередь rollback/restore-задач. Каждый тик сервера задачи получают не больше
+ * {@code rollback.tickBudgetMs} миллисекунд, так что большой откат растягивается на несколько секунд,
+ * но не замораживает сервер. Задачи выполняются по очереди, в порядке запуска. Если первая задача ждёт
+ * план из БД, тик на этом заканчивается: следующие задачи её не обгоняют, а поток сервера не крутится впустую.
+ * <p>
+ * Все методы — только с потока сервера (команды и тик).
+ */
+public final class RollbackScheduler {
+
+    private static final Deque<RollbackJob> JOBS = new ArrayDeque<>();
+    private static int nextId = 1;
+
+    private RollbackScheduler() {}
+
+    /**
+     * Ставит задачу в очередь. Возвращает, сколько задач перед ней.
+     */
+    public static int submit(RollbackJob job) {
+        job.assignId(nextId++);
+        int ahead = JOBS.size();
+        JOBS.addLast(job);
+        return ahead;
+    }
+
+    /**
+     * Отменяет все задачи игрока. Ждущие снимаются сразу; начатая перестаёт ставить блоки,
+     * дообновляет соседей уже поставленных и завершается в следующих тиках. Возвращает, сколько отменено.
+     */
+    public static int cancel(UUID owner) {
+        int cancelled = 0;
+        for (Iterator<RollbackJob> it = JOBS.iterator(); it.hasNext(); ) {
+            RollbackJob job = it.next();
+            if (job.isOwnedBy(owner) && !job.isCancelled()) {
+                job.cancel();
+                if (!job.isStarted()) {
+                    it.remove();
+                    job.finish();
+                }
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    public static void tick() {
+        if (JOBS.isEmpty()) return;
+
+        long now = System.nanoTime();
+        long deadline = now + CoreprotectConfig.COMMON.rollbackTickBudgetMs.get() * 1_000_000L;
+        long progressInterval = CoreprotectConfig.COMMON.rollbackProgressIntervalSeconds.get() * 1_000_000_000L;
+
+        while (!JOBS.isEmpty() && System.nanoTime() - deadline < 0) {
+            RollbackJob job = JOBS.peekFirst();
+            RollbackJob.Slice slice;
+            try {
+                slice = job.runSlice(deadline);
+            } catch (Exception e) {
+                // битая задача не должна крутиться каждый тик
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка выполнения задачи {} #{}", job.title(), job.id(), e);
+                job.message("[Coreprotect] " + job.title() + " прерван из-за ошибки: " + e.getMessage());
+                job.cancel();
+                slice = RollbackJob.Slice.DONE;
+            }
+
+            if (slice == RollbackJob.Slice.DONE) {
+                JOBS.pollFirst();
+                job.finish();
+                continue;
+            }
+            job.reportProgress(System.nanoTime(), progressInterval);
+            if (slice == RollbackJob.Slice.WAITING) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Остановка сервера: недоделанные задачи отменяются, применённая часть остаётся в мире.
+     */
+    public static void clear() {
+        RollbackJob job;
+        while ((job = JOBS.pollFirst()) != null) {
+            Coreprotect.LOGGER.warn("[Coreprotect] {} не завершён до остановки сервера и отменён", job.title());
+            job.cancel();
+            job.finish();
+        }
+    }
+}
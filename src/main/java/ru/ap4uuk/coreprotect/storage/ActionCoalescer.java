@@ -0,0 +1,136 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Схлопывание событий одной позиции перед записью: строительные леса, пересадка фермы, «поставил-сломал»
+ * дают десятки строк на блок за пару секунд.
+ * <p>
+ * Событие задерживается на {@code windowMs}; если за это время тот же игрок снова меняет ту же позицию,
+ * события сливаются в одно: old_state и время — от первого, new_state и тип — от последнего. Rollback по такой
+ * строке возвращает позицию ровно туда же, куда и по исходной цепочке. Действие другого игрока на позиции
+ * закрывает цепочку — чужие изменения не смешиваются.
+ * <p>
+ * Время от первого события — потому что old_state от него: строка попадает в окно {@code t:} rollback-а или
+ * restore, только если в окно попадает начало цепочки, и тогда old_state — действительно состояние позиции
+ * на начало окна. Окно, которое начинается внутри цепочки (не дальше {@code windowMs} от её начала), её
+ * не захватывает: хвост цепочки такой rollback не откатит. Со временем последнего события было бы наоборот —
+ * rollback вернул бы позицию в состояние раньше начала окна.
+ * <p>
+ * Исходные события, вошедшие в слитое, отдаются как «поглощённые»: их нужно снять из ожидающих в кэше
+ * инспекта вместе с коммитом слитого. Только writer-поток.
+ */
+final class ActionCoalescer {
+
+    // Сколько позиций можно держать одновременно; дальше самые старые уходят в запись раньше срока
+    private static final int MAX_HELD = 65_536;
+
+    private record Key(ResourceKey<Level> dimension, long pos) {}
+
+    private static final class Held {
+        final long deadlineNanos;
+        BlockAction merged;
+        // исходные события цепочки; null, пока merged — само первое событие
+        List<BlockAction> absorbed;
+
+        Held(long deadlineNanos, BlockAction first) {
+            this.deadlineNanos = deadlineNanos;
+            this.merged = first;
+        }
+    }
+
+    private final long windowNanos;
+    // в порядке первого события: сроки идут по возрастанию
+    private final LinkedHashMap<Key, Held> held = new LinkedHashMap<>();
+    private long mergedTotal;
+
+    ActionCoalescer(long windowMs) {
+        this.windowNanos = windowMs * 1_000_000L;
+    }
+
+    boolean isEnabled() {
+        return windowNanos > 0;
+    }
+
+    boolean isEmpty() {
+        return held.isEmpty();
+    }
+
+    /**
+     * Сколько событий слито с момента старта.
+     */
+    long mergedTotal() {
+        return mergedTotal;
+    }
+
+    /**
+     * Пропускает батч через окно: на выходе в {@code batch} — события, которые пора писать (в том числе
+     * слитые с прошлых раз), в {@code absorbed} добавляются исходные события, поглощённые ими.
+     */
+    void process(List<BlockAction> batch, List<BlockAction> absorbed, long nowNanos) {
+        List<BlockAction> out = new ArrayList<>(batch.size());
+        for (BlockAction action : batch) {
+            Key key = new Key(action.dimension, BlockPos.asLong(action.pos.getX(), action.pos.getY(), action.pos.getZ()));
+            Held h = held.get(key);
+            if (h != null && Objects.equals(h.merged.playerUuid, action.playerUuid)) {
+                merge(h, action);
+                continue;
+            }
+            if (h != null) {
+                // другой игрок: прошлую цепочку — в запись до нового события
+                held.remove(key);
+                emit(h, out, absorbed);
+            }
+            held.put(key, new Held(nowNanos + windowNanos, action));
+        }
+
+        for (Iterator<Held> it = held.values().iterator(); it.hasNext(); ) {
+            Held h = it.next();
+            if (h.deadlineNanos - nowNanos > 0 && held.size() <= MAX_HELD) break;
+            it.remove();
+            emit(h, out, absorbed);
+        }
+
+        batch.clear();
+        batch.addAll(out);
+    }
+
+    /**
+     * Остановка: всё удерживаемое — в запись.
+     */
+    void drainAll(List<BlockAction> batch, List<BlockAction> absorbed) {
+        for (Held h : held.values()) {
+            emit(h, batch, absorbed);
+        }
+        held.clear();
+    }
+
+    private void merge(Held h, BlockAction next) {
+        BlockAction first = h.merged;
+        if (h.absorbed == null) {
+            // first ещё исходное событие; дальше в merged лежат только слитые
+            h.absorbed = new ArrayList<>(4);
+            h.absorbed.add(first);
+        }
+        h.absorbed.add(next);
+        h.merged = new BlockAction(next.type, next.playerUuid, next.playerName, next.dimension, next.pos,
+                first.oldState, next.newState, first.time);
+        mergedTotal++;
+    }
+
+    private static void emit(Held h, List<BlockAction> out, List<BlockAction> absorbed) {
+        out.add(h.merged);
+        if (h.absorbed != null) {
+            absorbed.addAll(h.absorbed);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поток строк выборки с ограниченной памятью: выборку на потоке запросов выполняет {@link Producer},
+ * строки копятся в очереди не длиннее {@code capacity}; когда она полна, producer ждёт потребителя.
+ * <p>
+ * Выборка стартует при первом обращении, а не при создании, — rollback, ждущий своей очереди,
+ * не держит ни соединение, ни строки. Потребитель забирает строки без ожидания ({@link #poll}),
+ * так что поток сервера не блокируется на БД: нет строки — продолжит в следующем тике.
+ */
+public final class ActionStream<T> implements AutoCloseable {
+
+    /**
+     * Выборка. Отдаёт строки в {@link Sink} по порядку; если sink вернул false — потребитель закрыл поток,
+     * выборку надо прекратить. Исключение выборки потребитель получит из {@link #poll} после уже отданных строк.
+     */
+    @FunctionalInterface
+    public interface Producer<T> {
+        void run(Sink<T> sink) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Sink<T> {
+        boolean accept(T row);
+    }
+
+    private static final long OFFER_WAIT_MS = 50;
+
+    private final BlockingQueue<T> queue;
+    private final Producer<T> producer;
+    private final Executor executor;
+
+    private boolean started;
+    private volatile boolean closed;
+    private volatile boolean done;
+    private volatile Exception failure;
+
+    public ActionStream(int capacity, Executor executor, Producer<T> producer) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.executor = executor;
+        this.producer = producer;
+    }
+
+    /**
+     * Следующая строка, если она уже готова, иначе null. Что строк больше не будет — смотри {@link #isExhausted}.
+     *
+     * @throws IllegalStateException если выборка упала; строки до ошибки к этому моменту уже отданы
+     */
+    public T poll() {
+        start();
+        T row = queue.poll();
+        if (row == null && done) {
+            // строка могла прийти между poll и чтением done
+            row = queue.poll();
+            if (row == null) throwIfFailed();
+        }
+        return row;
+    }
+
+    /**
+     * Следующая строка; ждёт её, если нужно. null — строк больше нет. Не для потока сервера.
+     */
+    public T take() throws InterruptedException {
+        while (true) {
+            T row = poll();
+            if (row != null || isExhausted()) return row;
+            row = queue.poll(OFFER_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (row != null) return row;
+        }
+    }
+
+    /**
+     * Выборка закончена и все строки забраны.
+     *
+     * @throws IllegalStateException если выборка закончилась ошибкой
+     */
+    public boolean isExhausted() {
+        if (done && queue.isEmpty()) {
+            throwIfFailed();
+            return true;
+        }
+        return false;
+    }
+
+    private void throwIfFailed() {
+        Exception e = failure;
+        if (e != null) {
+            throw new IllegalStateException("ошибка выборки из БД: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private synchronized void start() {
+        if (started) return;
+        started = true;
+        executor.execute(() -> {
+            try {
+                producer.run(this::offer);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                done = true;
+            }
+        });
+    }
+
+    private boolean offer(T row) {
+        try {
+            while (!closed) {
+                if (queue.offer(row, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,39 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * Подстраивает размер батча writer-потока под измеренное время коммита (AIMD):
+ * коммит дольше цели — батч режем вдвое, заметно быстрее цели и батч был полным — растим на четверть.
+ * Используется только из writer-потока, поэтому без синхронизации.
+ */
+final class AdaptiveBatchSizer {
+
+    private final int min;
+    private final int max;
+    private final long targetNanos;
+
+    private int current;
+
+    AdaptiveBatchSizer(int min, int max, long targetCommitMs) {
+        this.min = min;
+        this.max = max;
+        this.targetNanos = targetCommitMs * 1_000_000L;
+        this.current = min;
+    }
+
+    int current() {
+        return current;
+    }
+
+    /**
+     * @param rows        сколько строк ушло в этот коммит
+     * @param commitNanos сколько занял executeBatch + commit
+     */
+    void onCommit(int rows, long commitNanos) {
+        if (commitNanos > targetNanos) {
+            current = Math.max(min, current / 2);
+        } else if (commitNanos < targetNanos / 2 && rows >= current) {
+            // растём только если очередь реально давала полный батч
+            current = Math.min(max, current + Math.max(1, current / 4));
+        }
+    }
+}
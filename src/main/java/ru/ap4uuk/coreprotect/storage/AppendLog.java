@@ -0,0 +1,178 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Файл из записей, которые только дописываются: {@code [длина][crc32][данные]}.
+ * <p>
+ * Пишет один поток: {@link #append} копит записи в памяти, {@link #commit} дописывает их в файл одним write
+ * и публикует новую длину. Читатели ({@link #read}) открывают файл заново и читают только до опубликованной длины,
+ * так что недописанную запись не видят. Хвост, оборванный падением процесса, при открытии отрезается.
+ */
+final class AppendLog implements Closeable {
+
+    /**
+     * Получатель записи при чтении; {@code offset} — смещение записи в файле. false — дальше не читать.
+     */
+    @FunctionalInterface
+    interface RecordReader {
+        boolean accept(long offset, DataInputStream payload) throws IOException;
+    }
+
+    private static final int FRAME_HEADER = 8;
+    // Запись длиннее — признак мусора в хвосте, а не настоящая запись
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    // только пишущий поток
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private final CRC32 crc = new CRC32();
+    private long end;
+    private volatile long committed;
+
+    private AppendLog(Path file, FileChannel channel, long end) {
+        this.file = file;
+        this.channel = channel;
+        this.end = end;
+        this.committed = end;
+    }
+
+    /**
+     * Открывает (или создаёт) лог и отрезает оборванный хвост.
+     */
+    static AppendLog open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long valid = scanValidLength(file);
+            if (valid < channel.size()) {
+                Coreprotect.LOGGER.warn("[Coreprotect] {}: отрезан оборванный хвост ({} байт)",
+                        file.getFileName(), channel.size() - valid);
+                channel.truncate(valid);
+            }
+            return new AppendLog(file, channel, valid);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long scanValidLength(Path file) throws IOException {
+        long offset = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                if (length < 0 || length > MAX_RECORD) return offset;
+                byte[] payload = new byte[length];
+                try {
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return offset;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) return offset;
+                offset += FRAME_HEADER + length;
+            }
+        }
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Копит запись до {@link #commit}. Только пишущий поток.
+     */
+    void append(byte[] payload) {
+        crc.reset();
+        crc.update(payload);
+        byte[] header = new byte[FRAME_HEADER];
+        ByteBuffer.wrap(header).putInt(payload.length).putInt((int) crc.getValue());
+        pending.write(header, 0, FRAME_HEADER);
+        pending.write(payload, 0, payload.length);
+    }
+
+    boolean hasPending() {
+        return pending.size() > 0;
+    }
+
+    /**
+     * Дописывает накопленные записи и публикует их читателям. Без fsync — для него {@link #force}.
+     */
+    void commit() throws IOException {
+        if (pending.size() == 0) return;
+        ByteBuffer buf = ByteBuffer.wrap(pending.toByteArray());
+        long position = end;
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        end = position;
+        pending.reset();
+        committed = end;
+    }
+
+    /**
+     * Отбрасывает накопленное и не записанное (запись не удалась).
+     */
+    void discardPending() {
+        pending.reset();
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    long committedLength() {
+        return committed;
+    }
+
+    /**
+     * Читает записи с начала до опубликованной длины. Можно из любого потока.
+     */
+    void read(RecordReader reader) throws IOException {
+        long limit = committed;
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 64 * 1024))) {
+            long offset = 0;
+            while (offset + FRAME_HEADER <= limit) {
+                int length = in.readInt();
+                in.readInt(); // crc проверен при открытии, записи после — наши
+                if (offset + FRAME_HEADER + length > limit) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (!reader.accept(offset, new DataInputStream(new ByteArrayInputStream(payload)))) return;
+                offset += FRAME_HEADER + length;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
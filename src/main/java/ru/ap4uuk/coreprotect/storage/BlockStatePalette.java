@@ -0,0 +1,140 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.arguments.blocks.BlockStateParser;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Палитра состояний блоков поверх справочника materials: {@code BlockState <-> id}.
+ * <p>
+ * В materials хранится полная строка состояния со свойствами ({@code minecraft:oak_stairs[facing=east,half=top,...]}),
+ * как её пишет {@link BlockStateParser#serialize}. Строки без свойств (старые записи, где хранилось только имя блока) разбираются как состояние
+ * по умолчанию, так что старые данные читаются как раньше.
+ * <p>
+ * Сериализация и разбор строки выполняются один раз на состояние: дальше запись — это хэш-лукап
+ * по экземпляру BlockState (они канонические), а чтение при откате — доступ к массиву по id.
+ */
+final class BlockStatePalette {
+
+    private final Dictionary materials;
+
+    private final ConcurrentHashMap<BlockState, Integer> idsByState = new ConcurrentHashMap<>();
+    // id -> разобранное состояние; ссылка volatile, как в Dictionary
+    private volatile BlockState[] statesById = new BlockState[256];
+    // строки, о которых уже предупредили в лог
+    private final Set<String> warned = ConcurrentHashMap.newKeySet();
+
+    BlockStatePalette(Dictionary materials) {
+        this.materials = materials;
+    }
+
+    /**
+     * Id состояния, при необходимости выдаёт новый (см. {@link Dictionary#getOrAssign}).
+     */
+    int idOf(BlockState state) {
+        Integer id = idsByState.get(state);
+        if (id != null) return id;
+
+        int assigned = materials.getOrAssign(serialize(state));
+        idsByState.putIfAbsent(state, assigned);
+        remember(assigned, state);
+        return assigned;
+    }
+
+    /**
+     * Состояние по id из БД. Неизвестный id — воздух.
+     * <p>
+     * Запоминается только то, что разобралось: id -> состояние для чтения, а обратно состояние -> id — только
+     * если строка в точности каноническая для него. Иначе (строка старого формата, блок без свойства, блок
+     * удалён) состояние -> id указывало бы на чужую строку, и новые записи воздуха или состояния по умолчанию
+     * ложились бы под ней.
+     */
+    BlockState stateOf(int id) {
+        BlockState[] states = statesById;
+        if (id > 0 && id < states.length) {
+            BlockState cached = states[id];
+            if (cached != null) return cached;
+        }
+
+        String serialized = materials.nameOf(id);
+        if (serialized == null) {
+            return Blocks.AIR.defaultBlockState();
+        }
+        BlockState state = parseExact(serialized);
+        if (state == null) {
+            return fallback(serialized);
+        }
+        if (serialized.equals(serialize(state))) {
+            idsByState.putIfAbsent(state, id);
+        }
+        remember(id, state);
+        return state;
+    }
+
+    /**
+     * Состояние по строке (записи сессий, spill-журнал). Известные строки разрешаются через id, новый id не выдаётся.
+     */
+    BlockState stateOf(String serialized) {
+        if (serialized == null) {
+            return Blocks.AIR.defaultBlockState();
+        }
+        int id = materials.idOf(serialized);
+        if (id > 0) return stateOf(id);
+        BlockState state = parseExact(serialized);
+        return state != null ? state : fallback(serialized);
+    }
+
+    static String serialize(BlockState state) {
+        return state == null ? null : BlockStateParser.serialize(state);
+    }
+
+    /**
+     * Разбор строки как есть; null — не разбирается.
+     */
+    private static BlockState parseExact(String serialized) {
+        try {
+            return BlockStateParser.parseForBlock(BuiltInRegistries.BLOCK.asLookup(), serialized, false).blockState();
+        } catch (CommandSyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Замена для строки, которая не разбирается. Не кэшируется, поэтому предупреждение — один раз на строку.
+     */
+    private BlockState fallback(String serialized) {
+        boolean first = warned.add(serialized);
+        // блок мог потерять свойство после обновления мода — пробуем хотя бы сам блок
+        int bracket = serialized.indexOf('[');
+        if (bracket > 0) {
+            ResourceLocation rl = ResourceLocation.tryParse(serialized.substring(0, bracket));
+            if (rl != null && BuiltInRegistries.BLOCK.containsKey(rl)) {
+                if (first) {
+                    Coreprotect.LOGGER.warn("[Coreprotect] Не удалось разобрать свойства '{}', берём состояние по умолчанию", serialized);
+                }
+                return BuiltInRegistries.BLOCK.get(rl).defaultBlockState();
+            }
+        }
+        if (first) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Не удалось десериализовать BlockState из '{}', берём воздух", serialized);
+        }
+        return Blocks.AIR.defaultBlockState();
+    }
+
+    private synchronized void remember(int id, BlockState state) {
+        BlockState[] states = statesById;
+        if (id >= states.length) {
+            states = Arrays.copyOf(states, Math.max(id + 1, states.length * 2));
+        }
+        states[id] = state;
+        statesById = states;
+    }
+}
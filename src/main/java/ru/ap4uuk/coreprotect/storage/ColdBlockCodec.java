@@ -0,0 +1,260 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Колоночная упаковка строк журнала одного чанка одного мира в blob для {@code cold_blocks}.
+ * <p>
+ * Строки идут по времени (при равном — в порядке записи). Формат (после deflate):
+ * {@code [byte VERSION][varint count][varlong время первой][zigzag varint minY]}, дальше колонки целиком:
+ * <ul>
+ *     <li>время — varlong дельты от предыдущей строки (почти всегда один байт);</li>
+ *     <li>позиция — varint {@code (y - minY) << 8 | lz << 4 | lx}, координаты чанка — в каталоге блоков;</li>
+ *     <li>игрок — палитра id игроков блока, затем varint индексы в ней;</li>
+ *     <li>тип действия — varint id как есть;</li>
+ *     <li>состояния — одна палитра на «до» и «после» ({@code id + 1}, 0 — NULL), затем индексы «до», затем «после».</li>
+ * </ul>
+ * Однотипные значения лежат подряд, так что deflate сжимает их заметно лучше, чем те же строки в таблице.
+ */
+final class ColdBlockCodec {
+
+    private static final int VERSION = 1;
+
+    /** Состояние NULL (колонка old_block_id / new_block_id пуста). */
+    static final int NULL_STATE = -1;
+
+    /**
+     * Строки блока в колонках; значимы первые {@link #count} элементов массивов.
+     */
+    static final class Rows {
+        int count;
+        long[] time;
+        int[] x, y, z;
+        int[] player;
+        int[] action;
+        int[] oldState, newState;
+
+        Rows(int capacity) {
+            time = new long[capacity];
+            x = new int[capacity];
+            y = new int[capacity];
+            z = new int[capacity];
+            player = new int[capacity];
+            action = new int[capacity];
+            oldState = new int[capacity];
+            newState = new int[capacity];
+        }
+
+        void add(long timeEpoch, int px, int py, int pz, int playerId, int actionId, int oldStateId, int newStateId) {
+            int i = count++;
+            time[i] = timeEpoch;
+            x[i] = px;
+            y[i] = py;
+            z[i] = pz;
+            player[i] = playerId;
+            action[i] = actionId;
+            oldState[i] = oldStateId;
+            newState[i] = newStateId;
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        int minY() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < count; i++) min = Math.min(min, y[i]);
+            return min;
+        }
+
+        int maxY() {
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) max = Math.max(max, y[i]);
+            return max;
+        }
+    }
+
+    private ColdBlockCodec() {}
+
+    /**
+     * Упаковывает строки одного чанка; время строк должно не убывать.
+     */
+    static byte[] encode(Rows rows) {
+        int count = rows.count;
+        int minY = count > 0 ? rows.minY() : 0;
+
+        Palette players = new Palette();
+        int[] playerIdx = new int[count];
+        Palette states = new Palette();
+        int[] oldIdx = new int[count];
+        int[] newIdx = new int[count];
+        for (int i = 0; i < count; i++) {
+            playerIdx[i] = players.indexOf(rows.player[i]);
+            oldIdx[i] = states.indexOf(rows.oldState[i] + 1);
+            newIdx[i] = states.indexOf(rows.newState[i] + 1);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 4 + 64);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater()))) {
+            out.writeByte(VERSION);
+            writeVarInt(out, count);
+            long previous = count > 0 ? rows.time[0] : 0;
+            writeVarLong(out, previous);
+            writeVarLong(out, zigzag(minY));
+
+            for (int i = 1; i < count; i++) {
+                writeVarLong(out, rows.time[i] - previous);
+                previous = rows.time[i];
+            }
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, ((rows.y[i] - minY) << 8) | ((rows.z[i] & 15) << 4) | (rows.x[i] & 15));
+            }
+            players.write(out);
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, playerIdx[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, rows.action[i]);
+            }
+            states.write(out);
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, oldIdx[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, newIdx[i]);
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream не бросает
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Распаковывает blob чанка {@code chunkKey} (см. {@link SpatialKey}).
+     */
+    static Rows decode(byte[] data, long chunkKey) throws IOException {
+        int baseX = SpatialKey.chunkX(chunkKey) << 4;
+        int baseZ = SpatialKey.chunkZ(chunkKey) << 4;
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("неизвестная версия холодного блока: " + version);
+            }
+            int count = readVarInt(in);
+            Rows rows = new Rows(count);
+            rows.count = count;
+
+            long time = readVarLong(in);
+            int minY = (int) unzigzag(readVarLong(in));
+            for (int i = 0; i < count; i++) {
+                if (i > 0) time += readVarLong(in);
+                rows.time[i] = time;
+            }
+            for (int i = 0; i < count; i++) {
+                int key = readVarInt(in);
+                rows.x[i] = baseX | (key & 15);
+                rows.z[i] = baseZ | ((key >> 4) & 15);
+                rows.y[i] = minY + (key >>> 8);
+            }
+            int[] players = readPalette(in);
+            for (int i = 0; i < count; i++) {
+                rows.player[i] = players[readVarInt(in)];
+            }
+            for (int i = 0; i < count; i++) {
+                rows.action[i] = readVarInt(in);
+            }
+            int[] states = readPalette(in);
+            for (int i = 0; i < count; i++) {
+                rows.oldState[i] = states[readVarInt(in)] - 1;
+            }
+            for (int i = 0; i < count; i++) {
+                rows.newState[i] = states[readVarInt(in)] - 1;
+            }
+            return rows;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("битый холодный блок", e);
+        }
+    }
+
+    /**
+     * Значения в порядке первого появления.
+     */
+    private static final class Palette {
+        private final Int2IntOpenHashMap index = new Int2IntOpenHashMap();
+        private final IntArrayList values = new IntArrayList();
+
+        Palette() {
+            index.defaultReturnValue(-1);
+        }
+
+        int indexOf(int value) {
+            int i = index.get(value);
+            if (i < 0) {
+                i = values.size();
+                values.add(value);
+                index.put(value, i);
+            }
+            return i;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            writeVarInt(out, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                writeVarInt(out, values.getInt(i));
+            }
+        }
+    }
+
+    private static int[] readPalette(DataInputStream in) throws IOException {
+        int[] palette = new int[readVarInt(in)];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = readVarInt(in);
+        }
+        return palette;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("битый varint в холодном блоке");
+    }
+}
@@ -0,0 +1,219 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Сжатие холодной партиции в колоночные блоки ({@link ColdStore}), по шагу за раз на writer-потоке.
+ * <p>
+ * Партиция обходится по {@code (world_id, chunk_key)} через idx_*_chunk; строки каждого чанка по времени
+ * уходят в блоки не длиннее {@link #MAX_BLOCK_ROWS}. Шаг длится не дольше {@link #STEP_NANOS} и коммитится сам;
+ * пока сжатие не закончено, его блоки читателям не видны, а партиция читается как обычно.
+ * <p>
+ * Сжимаются строки с id не больше запомненного в начале. Если между шагами в партицию что-то дописали (поздние
+ * события из spill-журнала), в конце проходим ещё раз по новым id. Последний шаг одной транзакцией помечает
+ * сжатие готовым и удаляет партицию. Если партицию удалили раньше (purge, срок хранения) — сжатие отменяется.
+ */
+final class ColdCompactionTask implements MaintenanceTask {
+
+    static final int MAX_BLOCK_ROWS = 16_384;
+    private static final int KEYS_PER_QUERY = 256;
+    private static final long STEP_NANOS = 25_000_000L;
+
+    private final DatabaseManager db;
+    private final PartitionCatalog.Partition partition;
+    private final ColdBlockCodec.Rows rows = new ColdBlockCodec.Rows(MAX_BLOCK_ROWS);
+    private final long startedNanos = System.nanoTime();
+
+    private long compactionId = -1;
+    // сжимаем строки с fromId < id <= toId
+    private long fromId;
+    private long toId;
+    // чанки текущего прохода: очередная порция ключей и позиция в ней
+    private final int[] keyWorlds = new int[KEYS_PER_QUERY];
+    private final long[] keyChunks = new long[KEYS_PER_QUERY];
+    private int keyCount;
+    private int keyIndex;
+    private boolean keysExhausted;
+    // курсор внутри чанка, который не влез в один блок
+    private long lastTime = Long.MIN_VALUE;
+    private long lastRowId;
+    private long compactedRows;
+    private int blocks;
+
+    ColdCompactionTask(DatabaseManager db, PartitionCatalog.Partition partition) {
+        this.db = db;
+        this.partition = partition;
+    }
+
+    PartitionCatalog.Partition partition() {
+        return partition;
+    }
+
+    @Override
+    public boolean step(Connection connection) throws SQLException {
+        try {
+            return doStep(connection);
+        } catch (SQLException e) {
+            if (!ReadConnectionPool.isMissingTable(e)) throw e;
+            // партицию удалили, пока мы её сжимали: сжимать нечего
+            connection.rollback();
+            if (compactionId >= 0) {
+                ColdStore.abort(connection, compactionId);
+                connection.commit();
+            }
+            Coreprotect.LOGGER.info("[Coreprotect] Сжатие партиции {} отменено: партиция удалена", partition.table());
+            return true;
+        }
+    }
+
+    private boolean doStep(Connection connection) throws SQLException {
+        long deadline = System.nanoTime() + STEP_NANOS;
+        if (compactionId < 0) {
+            // блоки сжатия, прерванного ошибкой или остановкой сервера, никому не видны — убираем
+            ColdStore.discardUnfinished(connection);
+            toId = maxId(connection);
+            compactionId = ColdStore.beginCompaction(connection, partition);
+            Coreprotect.LOGGER.info("[Coreprotect] Сжатие холодной партиции {} начато", partition.table());
+        }
+
+        while (System.nanoTime() < deadline) {
+            if (keyIndex >= keyCount) {
+                if (keysExhausted || !loadKeys(connection)) {
+                    long latest = maxId(connection);
+                    if (latest > toId) {
+                        // между шагами дописали строк — ещё один проход по ним
+                        fromId = toId;
+                        toId = latest;
+                        resetKeys();
+                        continue;
+                    }
+                    finish(connection);
+                    return true;
+                }
+            }
+            if (compactChunk(connection, keyWorlds[keyIndex], keyChunks[keyIndex]) < MAX_BLOCK_ROWS) {
+                keyIndex++;
+                lastTime = Long.MIN_VALUE;
+                lastRowId = 0;
+            }
+        }
+        connection.commit();
+        return false;
+    }
+
+    @Override
+    public void failed(Exception e) {
+        db.deferColdCompaction();
+        Coreprotect.LOGGER.error("[Coreprotect] Ошибка сжатия партиции {}; её блоки удалятся при следующем сжатии",
+                partition.table(), e);
+    }
+
+    private long maxId(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM " + partition.table() + ";");
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private void resetKeys() {
+        keyCount = 0;
+        keyIndex = 0;
+        keysExhausted = false;
+        lastTime = Long.MIN_VALUE;
+        lastRowId = 0;
+    }
+
+    /**
+     * Следующая порция ключей чанков после последнего обработанного. false — чанков больше нет.
+     */
+    private boolean loadKeys(Connection connection) throws SQLException {
+        boolean first = keyCount == 0;
+        int afterWorld = first ? Integer.MIN_VALUE : keyWorlds[keyCount - 1];
+        long afterChunk = first ? Long.MIN_VALUE : keyChunks[keyCount - 1];
+
+        String sql = """
+            SELECT DISTINCT world_id, chunk_key FROM %s
+            WHERE (world_id, chunk_key) > (?, ?) AND id > ? AND id <= ?
+            ORDER BY world_id, chunk_key
+            LIMIT ?;
+            """.formatted(partition.table());
+        int loaded = 0;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setInt(1, afterWorld);
+            ps.setLong(2, afterChunk);
+            ps.setLong(3, fromId);
+            ps.setLong(4, toId);
+            ps.setInt(5, KEYS_PER_QUERY);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    keyWorlds[loaded] = rs.getInt(1);
+                    keyChunks[loaded] = rs.getLong(2);
+                    loaded++;
+                }
+            }
+        }
+        keysExhausted = loaded < KEYS_PER_QUERY;
+        if (loaded == 0) return false;
+        keyCount = loaded;
+        keyIndex = 0;
+        return true;
+    }
+
+    /**
+     * Переносит в блок следующую порцию строк чанка. Возвращает число строк (меньше MAX_BLOCK_ROWS — чанк дочитан).
+     */
+    private int compactChunk(Connection connection, int worldId, long chunkKey) throws SQLException {
+        String sql = """
+            SELECT id, time_epoch, player_id, x, y, z, action_id, old_block_id, new_block_id
+            FROM %s
+            WHERE world_id = ? AND chunk_key = ? AND (time_epoch, id) > (?, ?) AND id > ? AND id <= ?
+            ORDER BY time_epoch, id
+            LIMIT ?;
+            """.formatted(partition.table());
+        rows.clear();
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setInt(1, worldId);
+            ps.setLong(2, chunkKey);
+            ps.setLong(3, lastTime);
+            ps.setLong(4, lastRowId);
+            ps.setLong(5, fromId);
+            ps.setLong(6, toId);
+            ps.setInt(7, MAX_BLOCK_ROWS);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    lastRowId = rs.getLong(1);
+                    lastTime = rs.getLong(2);
+                    rows.add(lastTime, rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getInt(3), rs.getInt(7),
+                            stateId(rs, 8), stateId(rs, 9));
+                }
+            }
+        }
+        if (rows.count > 0) {
+            ColdStore.insertBlock(connection, compactionId, worldId, chunkKey, rows);
+            compactedRows += rows.count;
+            blocks++;
+        }
+        return rows.count;
+    }
+
+    private static int stateId(ResultSet rs, int column) throws SQLException {
+        int id = rs.getInt(column);
+        return rs.wasNull() ? ColdBlockCodec.NULL_STATE : id;
+    }
+
+    /**
+     * Блоки видимы, партиция удалена — одной транзакцией (drop коммитит и UPDATE тоже).
+     */
+    private void finish(Connection connection) throws SQLException {
+        ColdStore.markDone(connection, compactionId, compactedRows);
+        db.dropPartitions(List.of(partition));
+        Coreprotect.LOGGER.info("[Coreprotect] Партиция {} сжата: {} строк в {} блоков за {} мс",
+                partition.table(), compactedRows, blocks, (System.nanoTime() - startedNanos) / 1_000_000L);
+    }
+}
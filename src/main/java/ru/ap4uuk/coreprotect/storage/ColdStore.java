@@ -0,0 +1,367 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Холодная история: партиции журнала, переписанные {@link ColdCompactionTask} в колоночные блоки
+ * ({@link ColdBlockCodec}), по блоку на чанк мира.
+ * <p>
+ * {@code cold_blocks} — каталог блоков: мир, chunk_key, диапазоны времени и y и число строк рядом с самим blob-ом,
+ * так что выборки отбирают блоки по индексу и распаковывают только нужные. Блоки одного сжатия видны читателям,
+ * только когда {@code cold_compactions.done = 1} — это ставится одной транзакцией с удалением исходной партиции,
+ * поэтому строка никогда не видна дважды (и в партиции, и в блоке) и не пропадает.
+ */
+final class ColdStore {
+
+    /** Строка холодной истории для инспекта. */
+    record Row(long time, int playerId, int actionId, int oldStateId, int newStateId) {}
+
+    private ColdStore() {}
+
+    /**
+     * Убирает блоки сжатий, прерванных остановкой сервера: исходные партиции у них целы.
+     */
+    static void discardUnfinished(Connection connection) throws SQLException {
+        int blocks;
+        try (Statement st = connection.createStatement()) {
+            blocks = st.executeUpdate(
+                    "DELETE FROM cold_blocks WHERE compaction_id IN (SELECT id FROM cold_compactions WHERE done = 0);");
+            st.executeUpdate("DELETE FROM cold_compactions WHERE done = 0;");
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+        if (blocks > 0) {
+            Coreprotect.LOGGER.info("[Coreprotect] Удалено {} блоков незавершённого сжатия холодной истории", blocks);
+        }
+    }
+
+    static long beginCompaction(Connection connection, PartitionCatalog.Partition partition) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("""
+                INSERT INTO cold_compactions (partition_name, start_epoch, end_epoch, started_epoch, done)
+                VALUES (?, ?, ?, ?, 0);
+                """, Statement.RETURN_GENERATED_KEYS)) {
+            ps.setString(1, partition.table());
+            ps.setLong(2, partition.startEpoch());
+            ps.setLong(3, partition.endEpoch());
+            ps.setLong(4, System.currentTimeMillis() / 1000L);
+            ps.executeUpdate();
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (!rs.next()) throw new SQLException("не получили id сжатия");
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    static void insertBlock(Connection connection, long compactionId, int worldId, long chunkKey,
+                            ColdBlockCodec.Rows rows) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("""
+                INSERT INTO cold_blocks (compaction_id, world_id, chunk_key, min_time, max_time, min_y, max_y, row_count, data)
+                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);
+                """)) {
+            ps.setLong(1, compactionId);
+            ps.setInt(2, worldId);
+            ps.setLong(3, chunkKey);
+            bindBlock(ps, 4, rows);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * min_time, max_time, min_y, max_y, row_count, data начиная с {@code idx}; время строк не убывает.
+     */
+    static void bindBlock(PreparedStatement ps, int idx, ColdBlockCodec.Rows rows) throws SQLException {
+        ps.setLong(idx, rows.time[0]);
+        ps.setLong(idx + 1, rows.time[rows.count - 1]);
+        ps.setInt(idx + 2, rows.minY());
+        ps.setInt(idx + 3, rows.maxY());
+        ps.setInt(idx + 4, rows.count);
+        ps.setBytes(idx + 5, ColdBlockCodec.encode(rows));
+    }
+
+    /**
+     * Делает блоки сжатия видимыми. Не коммитит: фиксируется вместе с удалением партиции.
+     */
+    static void markDone(Connection connection, long compactionId, long rowCount) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "UPDATE cold_compactions SET done = 1, row_count = ? WHERE id = ?;")) {
+            ps.setLong(1, rowCount);
+            ps.setLong(2, compactionId);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Отменяет сжатие: его блоки и запись о нём. Не коммитит.
+     */
+    static void abort(Connection connection, long compactionId) throws SQLException {
+        try (PreparedStatement blocks = connection.prepareStatement("DELETE FROM cold_blocks WHERE compaction_id = ?;");
+             PreparedStatement compaction = connection.prepareStatement("DELETE FROM cold_compactions WHERE id = ?;")) {
+            blocks.setLong(1, compactionId);
+            blocks.executeUpdate();
+            compaction.setLong(1, compactionId);
+            compaction.executeUpdate();
+        }
+    }
+
+    /**
+     * Срок хранения: блоки, целиком лежащие раньше {@code cutoffEpochSeconds}. Не коммитит. Возвращает число строк в них.
+     */
+    static long dropOlderThan(Connection connection, long cutoffEpochSeconds) throws SQLException {
+        long rows = 0;
+        try (PreparedStatement count = connection.prepareStatement(
+                "SELECT COALESCE(SUM(row_count), 0) FROM cold_blocks WHERE max_time < ?;");
+             PreparedStatement delete = connection.prepareStatement("DELETE FROM cold_blocks WHERE max_time < ?;")) {
+            count.setLong(1, cutoffEpochSeconds);
+            try (ResultSet rs = count.executeQuery()) {
+                if (rs.next()) rows = rs.getLong(1);
+            }
+            if (rows == 0) return 0;
+            delete.setLong(1, cutoffEpochSeconds);
+            delete.executeUpdate();
+        }
+        return rows;
+    }
+
+    /**
+     * Последние {@code limit} холодных событий позиции, от новых к старым.
+     * <p>
+     * Блоки чанка идут по убыванию max_time; как только набрано {@code limit} строк и следующий блок целиком старше
+     * последней из них, дальше не читаем.
+     */
+    static List<Row> history(Connection connection, int worldId, int x, int y, int z, int limit) throws SQLException {
+        List<Row> result = new ArrayList<>();
+        if (limit <= 0) return result;
+
+        String sql = """
+            SELECT b.id, b.chunk_key, b.max_time, b.data
+            FROM cold_blocks b
+            JOIN cold_compactions c ON c.id = b.compaction_id
+            WHERE b.world_id = ? AND b.chunk_key = ? AND b.min_y <= ? AND b.max_y >= ? AND c.done = 1
+            ORDER BY b.max_time DESC, b.id DESC;
+            """;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setInt(1, worldId);
+            ps.setLong(2, SpatialKey.chunkKey(x, z));
+            ps.setInt(3, y);
+            ps.setInt(4, y);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (result.size() >= limit && rs.getLong("max_time") < result.get(limit - 1).time()) break;
+
+                    ColdBlockCodec.Rows rows = decode(rs.getLong("id"), rs.getBytes("data"), rs.getLong("chunk_key"));
+                    // внутри блока строки по возрастанию — берём с конца
+                    for (int i = rows.count - 1; i >= 0; i--) {
+                        if (rows.x[i] == x && rows.y[i] == y && rows.z[i] == z) {
+                            result.add(new Row(rows.time[i], rows.player[i], rows.action[i],
+                                    rows.oldState[i], rows.newState[i]));
+                        }
+                    }
+                    // блоки разных сжатий одного чанка могут пересекаться по времени
+                    result.sort(Comparator.comparingLong(Row::time).reversed());
+                }
+            }
+        }
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    static ColdBlockCodec.Rows decode(long blockId, byte[] data, long chunkKey) throws SQLException {
+        try {
+            return ColdBlockCodec.decode(data, chunkKey);
+        } catch (IOException e) {
+            throw new SQLException("не удалось распаковать холодный блок " + blockId, e);
+        }
+    }
+
+    /**
+     * Итоговые состояния области из холодных блоков — как {@code finalStateQuery} по партиции: по строке на позицию
+     * (самое раннее событие окна при {@code earliest}, иначе самое позднее), по возрастанию {@code chunk_key, y, x, z}.
+     * Блоки читаются по чанку за раз, в памяти — итог одного чанка.
+     */
+    static RegionCursor region(Connection connection, long[] ranges, int worldId, long sinceEpochSeconds,
+                               int minX, int maxX, int minY, int maxY, int minZ, int maxZ,
+                               int[] playerIds, boolean earliest, int fetchSize) throws SQLException {
+        StringBuilder sql = new StringBuilder("WITH ranges(lo, hi) AS (VALUES ");
+        for (int i = 0; i < ranges.length / 2; i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        sql.append(")\n");
+        sql.append("""
+            SELECT b.id, b.chunk_key, b.data
+            FROM ranges
+            CROSS JOIN cold_blocks b INDEXED BY idx_cold_blocks_chunk
+              ON b.world_id = ? AND b.chunk_key BETWEEN ranges.lo AND ranges.hi
+            JOIN cold_compactions c ON c.id = b.compaction_id
+            WHERE c.done = 1 AND b.max_time >= ? AND b.min_y <= ? AND b.max_y >= ?
+            ORDER BY b.chunk_key, b.id;
+            """);
+
+        PreparedStatement ps = connection.prepareStatement(sql.toString());
+        try {
+            int idx = 1;
+            for (long key : ranges) {
+                ps.setLong(idx++, key);
+            }
+            ps.setInt(idx++, worldId);
+            ps.setLong(idx++, sinceEpochSeconds);
+            ps.setInt(idx++, maxY);
+            ps.setInt(idx, minY);
+            ps.setFetchSize(fetchSize);
+            ResultSet rs = ps.executeQuery();
+            IntOpenHashSet players = playerIds != null ? new IntOpenHashSet(playerIds) : null;
+            return new ColdRegionCursor(ps, rs, sinceEpochSeconds, minX, maxX, minY, maxY, minZ, maxZ, players, earliest);
+        } catch (SQLException e) {
+            ps.close();
+            throw e;
+        }
+    }
+
+    /** Итог позиции внутри чанка. */
+    private static final class Candidate {
+        long time;
+        int x, y, z;
+        int actionId;
+        int stateId;
+    }
+
+    private static final Comparator<Candidate> REGION_ORDER = Comparator
+            .comparingInt((Candidate c) -> c.y)
+            .thenComparingInt(c -> c.x)
+            .thenComparingInt(c -> c.z);
+
+    private static final class ColdRegionCursor implements RegionCursor {
+        private final PreparedStatement statement;
+        private final ResultSet rs;
+        private final long since;
+        private final int minX, maxX, minY, maxY, minZ, maxZ;
+        private final IntOpenHashSet players; // null — все
+        private final boolean earliest;
+        private final Long2ObjectOpenHashMap<Candidate> byPosition = new Long2ObjectOpenHashMap<>();
+
+        private boolean hasBlock;
+        private long chunk;
+        private List<Candidate> pending = List.of();
+        private int pendingIndex;
+        private Candidate current;
+
+        ColdRegionCursor(PreparedStatement statement, ResultSet rs, long since,
+                         int minX, int maxX, int minY, int maxY, int minZ, int maxZ,
+                         IntOpenHashSet players, boolean earliest) throws SQLException {
+            this.statement = statement;
+            this.rs = rs;
+            this.since = since;
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.minZ = minZ;
+            this.maxZ = maxZ;
+            this.players = players;
+            this.earliest = earliest;
+            this.hasBlock = rs.next();
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            while (pendingIndex >= pending.size()) {
+                if (!loadChunk()) return false;
+            }
+            current = pending.get(pendingIndex++);
+            return true;
+        }
+
+        /**
+         * Сводит все блоки очередного чанка в итог по позициям.
+         */
+        private boolean loadChunk() throws SQLException {
+            if (!hasBlock) return false;
+            chunk = rs.getLong("chunk_key");
+            byPosition.clear();
+            do {
+                ColdBlockCodec.Rows rows = decode(rs.getLong("id"), rs.getBytes("data"), chunk);
+                // блоки — по id, строки в блоке — по времени: при равном времени позже идущая строка записана позже
+                for (int i = 0; i < rows.count; i++) {
+                    if (rows.time[i] < since) continue;
+                    int x = rows.x[i], y = rows.y[i], z = rows.z[i];
+                    if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) continue;
+                    if (players != null && !players.contains(rows.player[i])) continue;
+
+                    long key = ((long) y << 8) | ((z & 15) << 4) | (x & 15);
+                    Candidate c = byPosition.get(key);
+                    if (c == null) {
+                        c = new Candidate();
+                        c.x = x;
+                        c.y = y;
+                        c.z = z;
+                        byPosition.put(key, c);
+                    } else if (earliest ? rows.time[i] >= c.time : rows.time[i] < c.time) {
+                        continue;
+                    }
+                    c.time = rows.time[i];
+                    c.actionId = rows.action[i];
+                    c.stateId = earliest ? rows.oldState[i] : rows.newState[i];
+                }
+                hasBlock = rs.next();
+            } while (hasBlock && rs.getLong("chunk_key") == chunk);
+
+            List<Candidate> sorted = new ArrayList<>(byPosition.values());
+            sorted.sort(REGION_ORDER);
+            pending = sorted;
+            pendingIndex = 0;
+            return true;
+        }
+
+        @Override
+        public long chunk() {
+            return chunk;
+        }
+
+        @Override
+        public int y() {
+            return current.y;
+        }
+
+        @Override
+        public int x() {
+            return current.x;
+        }
+
+        @Override
+        public int z() {
+            return current.z;
+        }
+
+        @Override
+        public long time() {
+            return current.time;
+        }
+
+        @Override
+        public int actionId() {
+            return current.actionId;
+        }
+
+        @Override
+        public int stateId() {
+            return current.stateId;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            statement.close();
+        }
+    }
+}
@@ -1,56 +1,143 @@
 package ru.ap4uuk.coreprotect.storage;
 
-import net.minecraft.core.registries.BuiltInRegistries;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.world.level.block.state.BlockState;
 import ru.ap4uuk.coreprotect.Coreprotect;
 import ru.ap4uuk.coreprotect.model.BlockAction;
 import net.minecraft.core.BlockPos;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.Level;
-import net.minecraft.resources.ResourceLocation;
-import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.Blocks;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
+import java.time.Instant;
 import java.time.ZoneOffset;
 
-public final class DatabaseManager {
-
-    private static DatabaseManager INSTANCE;
-
-    private final Connection connection;
-    private final PreparedStatement insertBlockStmt;
-    private final BlockingQueue<BlockAction> queue = new LinkedBlockingQueue<>(5000);
+/**
+ * Хранилище на SQLite ({@code storageType = SQLITE}): журнал блоков по партициям, один writer-поток с батчами,
+ * выборки через пул read-соединений.
+ */
+public final class DatabaseManager implements StorageBackend {
+
+    // Сколько строк вставляем одним многострочным INSERT ... VALUES (...),(...)
+    private static final int MULTI_ROW_CHUNK = 32;
+    private static final int INSERT_COLUMNS = 10;
+
+    // Ёмкость кольца событий к writer-потоку (округляется до степени двойки)
+    private static final int QUEUE_CAPACITY = 8192;
+    // Как долго writer ждёт событий, прежде чем заглянуть в spill-журнал
+    private static final long IDLE_POLL_MS = 500;
+    // Как часто writer проверяет, не пора ли удалить устаревшие партиции
+    private static final long RETENTION_CHECK_INTERVAL_NANOS = 3_600_000_000_000L;
+    // Сколько остановка ждёт потоки выборок
+    private static final long QUERY_SHUTDOWN_TIMEOUT_MS = 5000;
+
+    // Пишет только writer-поток; все выборки идут через readPool
+    private final Connection writeConnection;
+    private final ReadConnectionPool readPool;
+    // Потоки для выборок, которые нельзя делать на потоке сервера (инспект); по одному на read-соединение
+    private final ExecutorService queryExecutor;
+    // Отдельные потоки для потоковых выборок rollback/restore/сессий: такой поток занят, пока rollback читает план,
+    // и в общем пуле инспект ждал бы его до конца
+    private final ExecutorService streamExecutor;
+    private final StorageSettings settings;
+    // События блоков к writer-потоку: слоты из примитивов, без аллокаций на потоке сервера
+    private final EventRing ring = new EventRing(QUEUE_CAPACITY);
+    private final PipelineMetrics metrics;
+    private final EventCodec codec;
+    private final SpillJournal spillJournal;
+    private final EventCapture capture;
+    // История для инспекта: LRU по позициям + события, ещё не записанные в БД
+    private final InspectCache inspectCache;
+    // Только writer-поток
+    private final ActionCoalescer coalescer;
+
+    // Справочники: строки хранятся в БД один раз, в block_actions — только id
+    private final Dictionary players = new Dictionary("players", "uuid", "name", "player_names", "player_id");
+    private final Dictionary worlds = Dictionary.simple("worlds");
+    private final Dictionary materials = Dictionary.simple("materials");
+    private final Dictionary actionTypes = Dictionary.simple("action_types");
+    // materials хранит полные состояния блоков, палитра кэширует BlockState <-> id
+    private final BlockStatePalette palette = new BlockStatePalette(materials);
+
+    // Партиции журнала блоков по времени
+    private final PartitionCatalog partitionCatalog = new PartitionCatalog();
+    // Подготовленные INSERT по таблицам партиций и последняя партиция, куда писали; только writer-поток
+    private final Map<String, InsertStatements> insertStatements = new HashMap<>();
+    private PartitionCatalog.Partition lastPartition;
+    private long nextRetentionCheckNanos = System.nanoTime();
+    private long nextCompactionCheckNanos = System.nanoTime();
+    // Фоновые задачи и записи вне журнала блоков; выполняет writer-поток между батчами
+    private final Queue<MaintenanceTask> maintenanceTasks = new ConcurrentLinkedQueue<>();
     private Thread writerThread;
     private volatile boolean running = true;
-
-
-    private DatabaseManager(Connection connection) throws SQLException {
-        this.connection = connection;
-        this.connection.setAutoCommit(false);
-        createTables();
-        this.insertBlockStmt = prepareInsertStatement();
+    private boolean closed;
+    // Сколько вызовов flush ждут: пока они есть, coalescer отдаёт удержанные события сразу
+    private final AtomicInteger pendingFlushes = new AtomicInteger();
+    // Id следующей rollback-сессии: выдаётся без ожидания writer-а
+    private final AtomicInteger nextSessionId = new AtomicInteger(1);
+    // сессии, выданные, но ещё не записанные: запрос их состояния ждёт записи
+    private final ConcurrentHashMap<Integer, CompletableFuture<?>> creatingSessions = new ConcurrentHashMap<>();
+
+
+    private DatabaseManager(Connection writeConnection, String url, Path dbFile, StorageSettings settings) throws SQLException {
+        this.writeConnection = writeConnection;
+        this.settings = settings;
+        this.metrics = new PipelineMetrics(ring, settings.overflowPolicy);
+        this.inspectCache = new InspectCache(settings.inspectCacheEntries, this::collectInflight);
+        this.coalescer = new ActionCoalescer(settings.coalesceWindowMs);
+        // WAL: читатели не блокируют writer и наоборот; journal_mode нельзя менять внутри транзакции
+        try (Statement st = writeConnection.createStatement()) {
+            st.execute("PRAGMA journal_mode = WAL;");
+            st.execute("PRAGMA synchronous = NORMAL;");
+        }
+        this.writeConnection.setAutoCommit(false);
+        SchemaMigrations.migrate(writeConnection);
+        loadDictionaries();
+        loadSessionIds();
+        this.codec = new EventCodec(players, worlds, actionTypes, palette);
+        partitionCatalog.load(writeConnection);
+        this.readPool = new ReadConnectionPool(url, settings.readConnections);
+        this.queryExecutor = newQueryExecutor("Coreprotect-DB-Query-", settings.readConnections);
+        this.streamExecutor = newQueryExecutor("Coreprotect-DB-Stream-", settings.readConnections);
+        this.spillJournal = new SpillJournal(dbFile, this::serializeBlockState, this::deserializeBlockState);
+        this.capture = new EventCapture(ring, codec, spillJournal, metrics, settings);
+        metrics.registerMBeans();
         startWriterThread();
     }
 
-    public static synchronized void initSQLite(Path dbFile) {
-        if (INSTANCE != null) {
-            Coreprotect.LOGGER.warn("[Coreprotect] DatabaseManager уже инициализирован.");
-            return;
-        }
+    public static DatabaseManager open(Path dbFile) {
+        return open(dbFile, StorageSettings.defaults());
+    }
 
+    /**
+     * Открывает (и при необходимости создаёт) БД и запускает writer. null — не удалось, причина в логе.
+     */
+    public static DatabaseManager open(Path dbFile, StorageSettings settings) {
         try {
             try {
                 Class.forName("org.sqlite.JDBC");
                 Coreprotect.LOGGER.info("[Coreprotect] Драйвер SQLite найден: org.sqlite.JDBC");
             } catch (ClassNotFoundException e) {
                 Coreprotect.LOGGER.error("[Coreprotect] Драйвер SQLite не найден в classpath! Проверь shadow/shade.", e);
-                return;
+                return null;
             }
 
             if (dbFile.getParent() != null) {
@@ -63,527 +150,1206 @@ public final class DatabaseManager {
             Connection conn = DriverManager.getConnection(url);
             if (conn == null) {
                 Coreprotect.LOGGER.error("[Coreprotect] DriverManager вернул null при подключении к SQLite.");
-                return;
+                return null;
             }
 
-            INSTANCE = new DatabaseManager(conn);
+            DatabaseManager manager = new DatabaseManager(conn, url, dbFile, settings);
             Coreprotect.LOGGER.info("[Coreprotect] SQLite инициализирован: {}", dbFile.toAbsolutePath());
+            return manager;
         } catch (Exception e) {
             Coreprotect.LOGGER.error("[Coreprotect] Ошибка инициализации SQLite", e);
-            INSTANCE = null;
+            return null;
         }
     }
 
-    public static DatabaseManager get() {
-        return INSTANCE;
-    }
-
-    public static synchronized void shutdown() {
-        if (INSTANCE == null) return;
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
         try {
-            INSTANCE.stopWriterThread();
-            INSTANCE.close();
+            stopWriterThread();
+            closeConnections();
         } catch (Exception e) {
             Coreprotect.LOGGER.error("[Coreprotect] Ошибка при закрытии БД", e);
-        } finally {
-            INSTANCE = null;
+        }
+    }
+
+    private static ExecutorService newQueryExecutor(String namePrefix, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void shutdownQueryExecutor(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(QUERY_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
     private void startWriterThread() {
-        writerThread = new Thread(() -> {
-            Coreprotect.LOGGER.info("[Coreprotect] Writer thread запущен.");
-            final int batchSize = 100;
-            while (running) {
+        writerThread = new Thread(this::writerLoop, "Coreprotect-DB-Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void writerLoop() {
+        Coreprotect.LOGGER.info("[Coreprotect] Writer thread запущен.");
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(
+                settings.minBatchSize, settings.maxBatchSize, settings.targetCommitMs);
+        List<BlockAction> batch = new ArrayList<>(settings.maxBatchSize);
+        // исходные события, слитые coalescer-ом в события текущего батча
+        List<BlockAction> absorbed = new ArrayList<>();
+        SpillJournal.Cursor spillCursor = null;
+
+        while (running) {
+            try {
+                collectBatch(batch, sizer.current());
+                metrics.sampleCaptured();
+                if (coalescer.isEnabled()) {
+                    coalescer.process(batch, absorbed, System.nanoTime());
+                    if (pendingFlushes.get() > 0) {
+                        coalescer.drainAll(batch, absorbed);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    long started = System.nanoTime();
+                    flushBatch(batch, absorbed);
+                    sizer.onCommit(batch.size(), System.nanoTime() - started);
+                    batch.clear();
+                    absorbed.clear();
+                }
+                spillJournal.flushBuffered();
+                // журнал дочитываем, только когда очередь разгрузилась хотя бы наполовину
+                if (ring.size() < ring.capacity() / 2) {
+                    spillCursor = drainSpillJournal(spillCursor, batch, sizer.current());
+                }
+                applyRetentionIfDue();
+                scheduleColdCompactionIfDue();
+                runMaintenanceSteps();
+            } catch (InterruptedException e) {
+                // выходим, если остановка; недописанный батч добьёт финальный дрен
+                if (!running) break;
+            } catch (SQLException | RuntimeException e) {
+                // RuntimeException тоже ловим: иначе writer-поток умрёт, и события будут копиться до остановки
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка batch-записи событий в БД ({} шт.)", batch.size(), e);
                 try {
-                    BlockAction first = queue.take(); // блокируемся, пока не придет хотя бы одно событие
-                    // как только получили — собираем батч
-                    int count = 0;
-                    do {
-                        writeBlockActionInternal(first);
-                        count++;
-                        if (count >= batchSize) {
-                            break;
-                        }
-                        BlockAction next = queue.poll();
-                        if (next == null) break;
-                        first = next;
-                    } while (true);
-
-                    connection.commit();
-                } catch (InterruptedException e) {
-                    // выходим, если остановка
-                    if (!running) break;
-                } catch (SQLException e) {
-                    Coreprotect.LOGGER.error("[Coreprotect] Ошибка batch-записи событий в БД", e);
-                    try {
-                        connection.rollback();
-                    } catch (SQLException ex) {
-                        Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback в writer thread", ex);
+                    for (InsertStatements statements : insertStatements.values()) {
+                        statements.clearBatch();
                     }
+                    writeConnection.rollback();
+                } catch (SQLException ex) {
+                    Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback в writer thread", ex);
                 }
+                // батч потерян — инспект не должен показывать его как ожидающий записи
+                inspectCache.untrackAll(batch);
+                inspectCache.untrackAll(absorbed);
+                batch.clear();
+                absorbed.clear();
+                spillCursor = reopenQuietly(spillCursor);
+            } catch (IOException e) {
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка чтения spill-журнала", e);
+                batch.clear();
+                spillCursor = reopenQuietly(spillCursor);
+            }
+        }
+
+        // финальный дрен очереди и журнала
+        try {
+            drainRing(batch, Integer.MAX_VALUE);
+            if (coalescer.isEnabled()) {
+                coalescer.process(batch, absorbed, System.nanoTime());
+                coalescer.drainAll(batch, absorbed);
             }
+            flushBatch(batch, absorbed);
+            batch.clear();
+            do {
+                spillCursor = drainSpillJournal(spillCursor, batch, settings.maxBatchSize);
+            } while (spillCursor != null);
+        } catch (Exception e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка финальной записи очереди", e);
+        }
+        closeQuietly(spillCursor);
 
-            // финальный дрен очереди
+        // записи сессий и пометки, поставленные до остановки, дописываем (id сессии уже выдан);
+        // барьеры, очистка и сжатие не продолжаются — после рестарта их просто перезапускают
+        MaintenanceTask task;
+        while ((task = maintenanceTasks.poll()) != null) {
+            boolean done;
             try {
-                while (!queue.isEmpty()) {
-                    BlockAction action = queue.poll();
-                    if (action == null) break;
-                    writeBlockActionInternal(action);
+                done = task.step(writeConnection);
+            } catch (SQLException | RuntimeException e) {
+                try {
+                    writeConnection.rollback();
+                } catch (SQLException ex) {
+                    Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback фоновой задачи", ex);
                 }
-                connection.commit();
-            } catch (Exception e) {
-                Coreprotect.LOGGER.error("[Coreprotect] Ошибка финальной записи очереди", e);
+                task.failed(e);
+                continue;
             }
+            if (!done) task.failed(new IllegalStateException("сервер останавливается"));
+        }
 
-            Coreprotect.LOGGER.info("[Coreprotect] Writer thread остановлен.");
-        }, "Coreprotect-DB-Writer");
+        if (coalescer.isEnabled()) {
+            Coreprotect.LOGGER.info("[Coreprotect] Слито событий одной позиции за время работы: {}", coalescer.mergedTotal());
+        }
+        Coreprotect.LOGGER.info("[Coreprotect] Очередь событий: максимум {} из {}, отказов при переполнении: {}.",
+                ring.highWaterMark(), ring.capacity(), ring.offerFailures());
+        Coreprotect.LOGGER.info("[Coreprotect] Writer thread остановлен.");
+    }
 
-        writerThread.setDaemon(true);
-        writerThread.start();
+    /**
+     * Переносит очередную порцию событий из spill-журнала в БД.
+     * Возвращает курсор для следующей порции или null, если журнал дочитан.
+     */
+    private SpillJournal.Cursor drainSpillJournal(SpillJournal.Cursor cursor,
+                                                  List<BlockAction> batch,
+                                                  int maxEvents) throws IOException, SQLException {
+        if (cursor == null) {
+            if (!spillJournal.hasPending()) {
+                return null;
+            }
+            cursor = spillJournal.openForDrain();
+            if (cursor == null) {
+                return null;
+            }
+        }
+
+        cursor.read(batch, maxEvents);
+        flushBatch(batch);
+        batch.clear();
+        cursor.commit();
+
+        if (cursor.isExhausted()) {
+            cursor.finish();
+            Coreprotect.LOGGER.info("[Coreprotect] Spill-журнал дочитан.");
+            return null;
+        }
+        return cursor;
     }
 
-    private void stopWriterThread() {
-        running = false;
-        if (writerThread != null) {
-            writerThread.interrupt();
-            try {
-                writerThread.join(5000);
-            } catch (InterruptedException ignored) {}
+    private static SpillJournal.Cursor reopenQuietly(SpillJournal.Cursor cursor) {
+        if (cursor == null) return null;
+        try {
+            return cursor.reopen();
+        } catch (IOException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Не удалось переоткрыть spill-журнал", e);
+            return null;
         }
     }
 
-    private void writeBlockActionInternal(BlockAction action) throws SQLException {
-        insertBlockStmt.clearParameters();
+    private static void closeQuietly(SpillJournal.Cursor cursor) {
+        if (cursor == null) return;
+        try {
+            cursor.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Собирает батч: ждёт первое событие (не дольше IDLE_POLL_MS, а при фоновой задаче не ждёт), дальше добирает кольцо,
+     * пока батч не заполнится или не истечёт maxBatchLatencyMs с момента первого события.
+     */
+    private void collectBatch(List<BlockAction> batch, int targetSize) throws InterruptedException {
+        if (batch.isEmpty()) {
+            // есть фоновая задача — не простаиваем, а возвращаемся к ней
+            long idleNanos = maintenanceTasks.isEmpty() ? IDLE_POLL_MS * 1_000_000L : 0;
+            if (!ring.await(idleNanos)) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                return;
+            }
+        }
+        long deadline = System.nanoTime() + settings.maxBatchLatencyMs * 1_000_000L;
 
-        long epochSeconds = action.time.toEpochMilli() / 1000L;
+        while (batch.size() < targetSize) {
+            drainRing(batch, targetSize - batch.size());
+            if (batch.size() >= targetSize) break;
 
-        insertBlockStmt.setLong(1, epochSeconds);
-        insertBlockStmt.setString(2, action.playerUuid.toString());
-        insertBlockStmt.setString(3, action.playerName);
-        insertBlockStmt.setString(4, action.dimension.location().toString());
-        insertBlockStmt.setInt(5, action.pos.getX());
-        insertBlockStmt.setInt(6, action.pos.getY());
-        insertBlockStmt.setInt(7, action.pos.getZ());
-        insertBlockStmt.setString(8, action.type.name());
-        insertBlockStmt.setString(9, serializeBlockState(action.oldState));
-        insertBlockStmt.setString(10, serializeBlockState(action.newState));
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
 
-        insertBlockStmt.executeUpdate();
+            if (!ring.await(remaining)) break;
+        }
+        if (Thread.interrupted()) throw new InterruptedException();
     }
 
+    /**
+     * Забирает события из кольца в батч, раскодируя их в {@link BlockAction}. Под замком кэша инспекта:
+     * событие для него всё время видно — либо в кольце, либо среди ожидающих записи.
+     */
+    private void drainRing(List<BlockAction> batch, int max) {
+        inspectCache.admit(batch, () -> ring.drain(
+                (pos, time, player, world, action, oldState, newState) ->
+                        batch.add(codec.decode(pos, time, player, world, action, oldState, newState)),
+                max));
+    }
 
-    public static final class DbBlockAction {
-        public final long timeEpoch;
-        public final String playerName;
-        public final String actionType;
-        public final String oldBlock;
-        public final String newBlock;
-
-        public DbBlockAction(long timeEpoch,
-                             String playerName,
-                             String actionType,
-                             String oldBlock,
-                             String newBlock) {
-            this.timeEpoch = timeEpoch;
-            this.playerName = playerName;
-            this.actionType = actionType;
-            this.oldBlock = oldBlock;
-            this.newBlock = newBlock;
-        }
+    /**
+     * Ещё не забранные writer-ом события позиции, от старых к новым. Для кэша инспекта, под его замком.
+     */
+    private void collectInflight(ResourceKey<Level> dimension, BlockPos pos, List<BlockAction> out) {
+        int worldId = codec.knownWorldId(dimension);
+        if (worldId < 0) return;
+        ring.scan(worldId, pos.asLong(), (p, time, player, world, action, oldState, newState) ->
+                out.add(codec.decode(p, time, player, world, action, oldState, newState)));
     }
 
-    public synchronized List<DbBlockAction> getBlockHistory(ResourceKey<Level> dimension,
-                                                            BlockPos pos,
-                                                            int limit) {
-        List<DbBlockAction> result = new ArrayList<>();
-        if (connection == null) return result;
+    /**
+     * Пишет батч одной транзакцией. События раскладываются по партициям подряд идущими отрезками
+     * (батч почти всегда целиком попадает в одну), каждый отрезок пишется через {@link #insertRows}.
+     */
+    private void flushBatch(List<BlockAction> batch) throws SQLException {
+        flushBatch(batch, List.of());
+    }
 
-        String sql = """
-            SELECT time_epoch, player_name, action_type, old_block, new_block
-            FROM block_actions
-            WHERE dimension = ? AND x = ? AND y = ? AND z = ?
-            ORDER BY time_epoch DESC
-            LIMIT ?;
-            """;
+    /**
+     * @param absorbed исходные события, вошедшие в слитые события батча (см. {@link ActionCoalescer});
+     *                 сами не пишутся, но снимаются из ожидающих в кэше инспекта тем же коммитом
+     */
+    private void flushBatch(List<BlockAction> batch, List<BlockAction> absorbed) throws SQLException {
+        if (batch.isEmpty()) return;
+        long started = System.nanoTime();
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, dimension.location().toString());
-            ps.setInt(2, pos.getX());
-            ps.setInt(3, pos.getY());
-            ps.setInt(4, pos.getZ());
-            ps.setInt(5, limit);
+        // недостающие партиции создаём до первой строки: их DDL коммитится отдельно
+        for (BlockAction action : batch) {
+            partitionFor(epochSeconds(action));
+        }
 
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    long timeEpoch = rs.getLong("time_epoch");
-                    String playerName = rs.getString("player_name");
-                    String actionType = rs.getString("action_type");
-                    String oldBlock = rs.getString("old_block");
-                    String newBlock = rs.getString("new_block");
+        int start = 0;
+        while (start < batch.size()) {
+            PartitionCatalog.Partition partition = partitionFor(epochSeconds(batch.get(start)));
+            int end = start + 1;
+            while (end < batch.size() && partition.contains(epochSeconds(batch.get(end)))) {
+                end++;
+            }
+            insertRows(statementsFor(partition), batch, start, end);
+            start = end;
+        }
+
+        int[] dictionaryRows = writePendingDictionaries();
+        // коммит вместе с переносом батча из «ожидающих» в кэш инспекта
+        inspectCache.commit(writeConnection, batch, absorbed);
+        markDictionariesPersisted(dictionaryRows);
+        metrics.onBatchCommitted(batch.size(), System.nanoTime() - started);
+    }
 
-                    result.add(new DbBlockAction(timeEpoch, playerName, actionType, oldBlock, newBlock));
+    /**
+     * Полные куски по MULTI_ROW_CHUNK строк — многострочным INSERT, хвост — однострочным,
+     * всё через addBatch/executeBatch.
+     */
+    private void insertRows(InsertStatements statements, List<BlockAction> batch, int from, int to) throws SQLException {
+        int i = from;
+        int fullChunksEnd = to - (to - from) % MULTI_ROW_CHUNK;
+        if (fullChunksEnd > from) {
+            for (; i < fullChunksEnd; i += MULTI_ROW_CHUNK) {
+                for (int row = 0; row < MULTI_ROW_CHUNK; row++) {
+                    bindBlockAction(statements.multi(), row * INSERT_COLUMNS, batch.get(i + row));
                 }
+                statements.multi().addBatch();
             }
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка чтения истории блока из БД", e);
+            statements.multi().executeBatch();
         }
+        if (i < to) {
+            for (; i < to; i++) {
+                bindBlockAction(statements.single(), 0, batch.get(i));
+                statements.single().addBatch();
+            }
+            statements.single().executeBatch();
+        }
+    }
 
-        return result;
+    private static long epochSeconds(BlockAction action) {
+        return action.time.toEpochMilli() / 1000L;
+    }
+
+    /**
+     * Партиция под момент времени; если её нет — создаётся. Только writer-поток.
+     */
+    private PartitionCatalog.Partition partitionFor(long epochSeconds) throws SQLException {
+        PartitionCatalog.Partition partition = lastPartition;
+        if (partition == null || !partition.contains(epochSeconds)) {
+            partition = partitionCatalog.find(epochSeconds);
+            if (partition == null) {
+                partition = partitionCatalog.create(writeConnection, epochSeconds, settings.partitionDays * 86_400L);
+                Coreprotect.LOGGER.info("[Coreprotect] Создана партиция {}", partition.table());
+            }
+            lastPartition = partition;
+        }
+        return partition;
+    }
+
+    private InsertStatements statementsFor(PartitionCatalog.Partition partition) throws SQLException {
+        InsertStatements statements = insertStatements.get(partition.table());
+        if (statements == null) {
+            statements = new InsertStatements(
+                    prepareInsertStatement(partition.table(), 1),
+                    prepareInsertStatement(partition.table(), MULTI_ROW_CHUNK));
+            insertStatements.put(partition.table(), statements);
+        }
+        return statements;
     }
 
-    private void close() throws SQLException {
+    /**
+     * Срок хранения: партиции, целиком вышедшие за retentionDays, удаляются через DROP TABLE,
+     * холодные блоки — так же, целиком.
+     */
+    private void applyRetentionIfDue() {
+        if (settings.retentionDays <= 0 || System.nanoTime() < nextRetentionCheckNanos) return;
+        nextRetentionCheckNanos = System.nanoTime() + RETENTION_CHECK_INTERVAL_NANOS;
+
+        long cutoff = Instant.now().getEpochSecond() - settings.retentionDays * 86_400L;
         try {
-            if (insertBlockStmt != null) {
-                insertBlockStmt.close();
+            dropPartitions(partitionCatalog.olderThan(cutoff));
+            long coldRows = ColdStore.dropOlderThan(writeConnection, cutoff);
+            writeConnection.commit();
+            if (coldRows > 0) {
+                onHistoryDeleted();
+                Coreprotect.LOGGER.info("[Coreprotect] Удалено {} строк холодной истории старше срока хранения", coldRows);
             }
-        } finally {
-            if (connection != null && !connection.isClosed()) {
-                connection.commit();
-                connection.close();
+        } catch (SQLException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка удаления устаревших партиций", e);
+            try {
+                writeConnection.rollback();
+            } catch (SQLException ex) {
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback в writer thread", ex);
             }
         }
-        Coreprotect.LOGGER.info("[Coreprotect] Подключение к БД закрыто.");
     }
 
-    private void createTables() throws SQLException {
-        try (Statement st = connection.createStatement()) {
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS block_actions (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    time_epoch INTEGER NOT NULL,
-                    player_uuid TEXT NOT NULL,
-                    player_name TEXT NOT NULL,
-                    dimension TEXT NOT NULL,
-                    x INTEGER NOT NULL,
-                    y INTEGER NOT NULL,
-                    z INTEGER NOT NULL,
-                    action_type TEXT NOT NULL,
-                    old_block TEXT,
-                    new_block TEXT
-                );
-                """);
-
-            st.execute("""
-                CREATE INDEX IF NOT EXISTS idx_block_actions_pos 
-                ON block_actions (dimension, x, y, z);
-                """);
-
-            st.execute("""
-                CREATE INDEX IF NOT EXISTS idx_block_actions_player_time 
-                ON block_actions (player_uuid, time_epoch);
-                """);
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS rollback_sessions (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    time_epoch INTEGER NOT NULL,
-                    executor TEXT NOT NULL,
-                    params TEXT NOT NULL,
-                    restored INTEGER NOT NULL DEFAULT 0
-                );
-                """);
-
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS rollback_session_entries (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    session_id INTEGER NOT NULL,
-                    dimension TEXT NOT NULL,
-                    x INTEGER NOT NULL,
-                    y INTEGER NOT NULL,
-                    z INTEGER NOT NULL,
-                    before_block TEXT NOT NULL,
-                    after_block TEXT NOT NULL,
-                    FOREIGN KEY (session_id) REFERENCES rollback_sessions(id)
-                );
-                """);
-        }
-        connection.commit();
-    }
-
-    private PreparedStatement prepareInsertStatement() throws SQLException {
-        return connection.prepareStatement("""
-            INSERT INTO block_actions (
-                time_epoch, player_uuid, player_name, dimension,
-                x, y, z, action_type, old_block, new_block
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);
-            """);
-    }
-
-    /**
-     * Логирование одного действия блока.
-     * Сейчас синхронно, позже можно завернуть в очередь/отдельный поток.
+    /**
+     * Холодная история: самая старая партиция, целиком старше coldAfterDays, ставится на сжатие
+     * ({@link ColdCompactionTask}). Одновременно сжимается одна партиция и не во время purge;
+     * пока есть что сжимать, следующая ставится сразу за предыдущей, иначе проверка раз в час.
+     */
+    private void scheduleColdCompactionIfDue() {
+        if (settings.coldAfterDays <= 0 || System.nanoTime() < nextCompactionCheckNanos) return;
+
+        synchronized (maintenanceTasks) {
+            for (MaintenanceTask task : maintenanceTasks) {
+                if (task instanceof ColdCompactionTask || task instanceof PurgeTask) return;
+            }
+            List<PartitionCatalog.Partition> cold = partitionCatalog.olderThan(
+                    Instant.now().getEpochSecond() - settings.coldAfterDays * 86_400L);
+            // в партицию, куда только что писали (поздние события из spill-журнала), ещё может прийти — не трогаем
+            cold.remove(lastPartition);
+            if (cold.isEmpty()) {
+                nextCompactionCheckNanos = System.nanoTime() + RETENTION_CHECK_INTERVAL_NANOS;
+                return;
+            }
+            maintenanceTasks.add(new ColdCompactionTask(this, cold.get(0)));
+        }
+    }
+
+    /**
+     * Сжатие не удалось — следующая попытка не раньше, чем через час, а не на следующем проходе writer-а.
      */
-    public void logBlockAction(BlockAction action) {
-        if (connection == null) return;
-        if (!running) return;
+    void deferColdCompaction() {
+        nextCompactionCheckNanos = System.nanoTime() + RETENTION_CHECK_INTERVAL_NANOS;
+    }
+
+    /**
+     * Удаляет партиции целиком вместе с их подготовленными INSERT. Только writer-поток.
+     * Читатель, успевший взять старый снимок каталога, просто пропустит исчезнувшую таблицу.
+     */
+    void dropPartitions(List<PartitionCatalog.Partition> dropped) throws SQLException {
+        if (dropped.isEmpty()) return;
+        partitionCatalog.drop(writeConnection, dropped);
+        for (PartitionCatalog.Partition partition : dropped) {
+            InsertStatements statements = insertStatements.remove(partition.table());
+            if (statements != null) {
+                try {
+                    statements.close();
+                } catch (SQLException ignored) {}
+            }
+            if (partition.equals(lastPartition)) {
+                lastPartition = null;
+            }
+            Coreprotect.LOGGER.info("[Coreprotect] Партиция {} удалена", partition.table());
+        }
+        inspectCache.clear();
+    }
+
+    /**
+     * Из журнала удалены строки (purge по миру или внутри партиции) — кэш инспекта больше не верен.
+     */
+    void onHistoryDeleted() {
+        inspectCache.clear();
+    }
 
-        boolean offered = queue.offer(action);
-        if (!offered) {
-            // очередь переполнена — можно либо дропнуть, либо писать синхронно
-            Coreprotect.LOGGER.warn("[Coreprotect] Очередь БД переполнена, событие будет записано синхронно.");
-            synchronized (this) {
+    /**
+     * По одному шагу каждой фоновой задачи (purge, записи сессий и т.п.) между батчами событий.
+     * Шаги короткие, так что очередь событий продолжает разгребаться, а короткие задачи
+     * не ждут, пока закончится длинная.
+     */
+    private void runMaintenanceSteps() {
+        for (Iterator<MaintenanceTask> it = maintenanceTasks.iterator(); it.hasNext(); ) {
+            MaintenanceTask task = it.next();
+            boolean done;
+            try {
+                done = task.step(writeConnection);
+            } catch (SQLException | RuntimeException e) {
+                // задачу с ошибкой снимаем, иначе writer повторял бы её каждый проход
                 try {
-                    writeBlockActionInternal(action);
-                    connection.commit();
-                } catch (SQLException e) {
-                    Coreprotect.LOGGER.error("[Coreprotect] Ошибка синхронной записи при переполнении очереди", e);
-                    try {
-                        connection.rollback();
-                    } catch (SQLException ex) {
-                        Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback при переполнении очереди", ex);
-                    }
+                    writeConnection.rollback();
+                } catch (SQLException ex) {
+                    Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback фоновой задачи", ex);
                 }
+                task.failed(e);
+                done = true;
+            }
+            if (done) {
+                it.remove();
             }
         }
     }
 
+    /**
+     * Ставит запись в очередь writer-потока. Будущее завершается после коммита
+     * (или с ошибкой — она же логируется). Записи выполняются в порядке постановки.
+     */
+    <T> CompletableFuture<T> submitWrite(String what, SqlWork<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("writer остановлен"));
+            return future;
+        }
+        maintenanceTasks.add(new MaintenanceTask() {
+            @Override
+            public boolean step(Connection connection) throws SQLException {
+                T result = work.run(connection);
+                connection.commit();
+                future.complete(result);
+                return true;
+            }
+
+            @Override
+            public void failed(Exception e) {
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка записи в БД: {}", what, e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
 
-    public BlockState deserializeBlockState(String id) {
-        if (id == null) {
-            return Blocks.AIR.defaultBlockState();
+    /**
+     * Барьер на writer-потоке: задача ждёт, пока writer заберёт из кольца всё, что было в нём на момент вызова
+     * (забранное пишется в том же проходе, до фоновых задач), coalescer отдаст удержанные события
+     * и spill-журнал будет дочитан.
+     */
+    @Override
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("writer остановлен"));
+            return future;
         }
-        try {
-            ResourceLocation rl = new ResourceLocation(id);
-            Block block = BuiltInRegistries.BLOCK.get(rl);
-            if (block == null) {
-                return Blocks.AIR.defaultBlockState();
+        long target = ring.offered();
+        pendingFlushes.incrementAndGet();
+        maintenanceTasks.add(new MaintenanceTask() {
+            @Override
+            public boolean step(Connection connection) {
+                if (ring.drained() < target || !coalescer.isEmpty() || spillJournal.hasPending()) {
+                    return false;
+                }
+                pendingFlushes.decrementAndGet();
+                future.complete(null);
+                return true;
             }
-            return block.defaultBlockState(); // пока без пропертей
-        } catch (Exception e) {
-            Coreprotect.LOGGER.warn("[Coreprotect] Не удалось десериализовать BlockState из '{}'", id, e);
-            return Blocks.AIR.defaultBlockState();
+
+            @Override
+            public void failed(Exception e) {
+                pendingFlushes.decrementAndGet();
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Запускает очистку истории старше {@code cutoffEpochSeconds} (опционально только в одном мире)
+     * на writer-потоке, маленькими порциями. Возвращает false, если очистка уже идёт.
+     *
+     * @throws IllegalArgumentException если мир не найден в БД
+     */
+    @Override
+    public boolean startPurge(long cutoffEpochSeconds, String dimension, boolean vacuum, PurgeListener listener) {
+        Integer worldId = null;
+        if (dimension != null) {
+            int id = worlds.idOf(dimension);
+            if (id < 0) {
+                throw new IllegalArgumentException("В БД нет мира " + dimension);
+            }
+            worldId = id;
         }
+
+        synchronized (maintenanceTasks) {
+            for (MaintenanceTask task : maintenanceTasks) {
+                if (task instanceof PurgeTask) return false;
+            }
+            maintenanceTasks.add(new PurgeTask(this, partitionCatalog, cutoffEpochSeconds, worldId, vacuum, listener));
+        }
+        Coreprotect.LOGGER.info("[Coreprotect] Запущена очистка истории старше {} ({})",
+                cutoffEpochSeconds, dimension != null ? dimension : "все миры");
+        return true;
     }
 
-    private String serializeBlockState(BlockState state) {
+    private void stopWriterThread() {
+        running = false;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join(5000);
+            } catch (InterruptedException ignored) {}
+        }
+    }
+
+    private void bindBlockAction(PreparedStatement ps, int offset, BlockAction action) throws SQLException {
+        ps.setLong(offset + 1, epochSeconds(action));
+        ps.setInt(offset + 2, players.getOrAssign(action.playerUuid.toString(), action.playerName, epochSeconds(action)));
+        ps.setInt(offset + 3, worlds.getOrAssign(action.dimension.location().toString()));
+        ps.setInt(offset + 4, action.pos.getX());
+        ps.setInt(offset + 5, action.pos.getY());
+        ps.setInt(offset + 6, action.pos.getZ());
+        ps.setLong(offset + 7, SpatialKey.chunkKey(action.pos.getX(), action.pos.getZ()));
+        ps.setInt(offset + 8, actionTypes.getOrAssign(action.type.name()));
+        bindMaterial(ps, offset + 9, action.oldState);
+        bindMaterial(ps, offset + 10, action.newState);
+    }
+
+    private void bindMaterial(PreparedStatement ps, int index, BlockState state) throws SQLException {
         if (state == null) {
-            return null;
+            ps.setNull(index, Types.INTEGER);
+        } else {
+            ps.setInt(index, palette.idOf(state));
         }
-        var key = BuiltInRegistries.BLOCK.getKey(state.getBlock());
-        if (key == null) {
-            return state.toString();
+    }
+
+    /**
+     * id материала из БД (колонка может быть NULL) -> строка.
+     */
+    private String materialName(ResultSet rs, String column) throws SQLException {
+        int id = rs.getInt(column);
+        return rs.wasNull() ? null : materials.nameOf(id);
+    }
+
+    private String materialName(int id) {
+        return id == ColdBlockCodec.NULL_STATE ? null : materials.nameOf(id);
+    }
+
+    /**
+     * id материала -> BlockState из палитры. NULL ({@link ColdBlockCodec#NULL_STATE}) — воздух.
+     */
+    private BlockState materialState(int id) {
+        return id == ColdBlockCodec.NULL_STATE ? Blocks.AIR.defaultBlockState() : palette.stateOf(id);
+    }
+
+
+    /**
+     * Фильтр u:Ник превращается в список id игроков с таким ником. null — фильтра нет.
+     */
+    private int[] resolvePlayerFilter(String playerNameFilter) {
+        if (playerNameFilter == null || playerNameFilter.isBlank()) {
+            return null;
         }
-        // Пока только registry name, позже можно добавить свойства (meta/NBT)
-        return key.toString();
+        return players.idsByName(playerNameFilter);
     }
 
-    public static final class DbRollbackAction {
-        public final long timeEpoch;
-        public final int x, y, z;
-        public final String actionType;
-        public final String oldBlock;
+    /**
+     * Выборка по области: прямоугольник раскладывается в диапазоны chunk_key (по одному на строку чанков),
+     * каждый диапазон — отдельный seek по idx_block_actions_chunk. Точные границы добивает фильтр по x/y/z.
+     * Запрос на одну партицию. Параметры: ranges..., world_id, since, minX, maxX, minY, maxY, minZ, maxZ — см. {@link #bindRegion}.
+     */
+    private static StringBuilder regionQuery(String columns, String table, int rangeCount) {
+        StringBuilder sql = new StringBuilder("WITH ranges(lo, hi) AS (VALUES ");
+        for (int i = 0; i < rangeCount; i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        sql.append(")\n");
+        sql.append("""
+            SELECT %s
+            FROM ranges
+            CROSS JOIN %s b INDEXED BY idx_%s_chunk
+              ON b.world_id = ? AND b.chunk_key BETWEEN ranges.lo AND ranges.hi
+            WHERE b.time_epoch >= ?
+              AND b.x BETWEEN ? AND ?
+              AND b.y BETWEEN ? AND ?
+              AND b.z BETWEEN ? AND ?
+            """.formatted(columns, table, table));
+        return sql;
+    }
 
-        public DbRollbackAction(long timeEpoch, int x, int y, int z,
-                                String actionType, String oldBlock) {
-            this.timeEpoch = timeEpoch;
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.actionType = actionType;
-            this.oldBlock = oldBlock;
+    /**
+     * Итоговое состояние по каждой позиции области в одной партиции: одна строка на позицию —
+     * самое раннее событие окна ({@code earliest}, для rollback) или самое позднее (для restore).
+     * При равном времени решает порядок записи (id). Параметры — как у {@link #regionQuery}, затем id игроков.
+     * <p>
+     * Строки идут в порядке {@code chunk_key, y, x, z} (см. {@link #compareRegionKeys}): по чанкам, как их ставит rollback,
+     * и одинаково во всех партициях, чтобы их можно было сливать потоком.
+     */
+    private static String finalStateQuery(String columns, String table, int rangeCount, int[] playerIds, boolean earliest) {
+        String order = earliest ? "ASC" : "DESC";
+        StringBuilder inner = regionQuery(columns +
+                ", ROW_NUMBER() OVER (PARTITION BY b.chunk_key, b.y, b.x, b.z ORDER BY b.time_epoch " + order + ", b.id " + order + ") AS rn",
+                table, rangeCount);
+        if (playerIds != null) {
+            appendIdFilter(inner, "b.player_id", playerIds);
         }
+        return "SELECT * FROM (\n" + inner + ") WHERE rn = 1 ORDER BY chunk_key, y, x, z;";
     }
 
-    public synchronized List<DbRollbackAction> getActionsForRollback(ResourceKey<Level> dimension,
-                                                                     BlockPos center,
-                                                                     int radius,
-                                                                     long sinceEpochSeconds) {
-        List<DbRollbackAction> result = new ArrayList<>();
-        if (connection == null) return result;
+    private static int compareRegionKeys(long chunkA, int yA, int xA, int zA, long chunkB, int yB, int xB, int zB) {
+        int c = Long.compare(chunkA, chunkB);
+        if (c != 0) return c;
+        c = Integer.compare(yA, yB);
+        if (c != 0) return c;
+        c = Integer.compare(xA, xB);
+        return c != 0 ? c : Integer.compare(zA, zB);
+    }
 
-        int minX = center.getX() - radius;
-        int maxX = center.getX() + radius;
-        int minY = center.getY() - radius;
-        int maxY = center.getY() + radius;
-        int minZ = center.getZ() - radius;
-        int maxZ = center.getZ() + radius;
+    private static int bindRegion(PreparedStatement ps, long[] ranges, int worldId, long sinceEpochSeconds,
+                                  int minX, int maxX, int minY, int maxY, int minZ, int maxZ) throws SQLException {
+        int idx = 1;
+        for (long key : ranges) {
+            ps.setLong(idx++, key);
+        }
+        ps.setInt(idx++, worldId);
+        ps.setLong(idx++, sinceEpochSeconds);
+        ps.setInt(idx++, minX);
+        ps.setInt(idx++, maxX);
+        ps.setInt(idx++, minY);
+        ps.setInt(idx++, maxY);
+        ps.setInt(idx++, minZ);
+        ps.setInt(idx++, maxZ);
+        return idx;
+    }
 
-        String sql = """
-            SELECT time_epoch, x, y, z, action_type, old_block
-            FROM block_actions
-            WHERE dimension = ?
-              AND time_epoch >= ?
-              AND x BETWEEN ? AND ?
-              AND y BETWEEN ? AND ?
-              AND z BETWEEN ? AND ?
-            ORDER BY time_epoch DESC;
-            """;
+    private static void appendIdFilter(StringBuilder sql, String column, int[] ids) {
+        sql.append(" AND ").append(column).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") ");
+    }
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, dimension.location().toString());
-            ps.setLong(2, sinceEpochSeconds);
-            ps.setInt(3, minX);
-            ps.setInt(4, maxX);
-            ps.setInt(5, minY);
-            ps.setInt(6, maxY);
-            ps.setInt(7, minZ);
-            ps.setInt(8, maxZ);
 
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    long timeEpoch = rs.getLong("time_epoch");
-                    int x = rs.getInt("x");
-                    int y = rs.getInt("y");
-                    int z = rs.getInt("z");
-                    String actionType = rs.getString("action_type");
-                    String oldBlock = rs.getString("old_block");
+    /**
+     * Последние {@code limit} событий по позиции, от новых к старым, включая события, которые ещё ждут записи
+     * в очереди writer-потока. Повторные запросы по той же позиции обслуживаются из кэша.
+     */
+    @Override
+    public List<DbBlockAction> getBlockHistory(ResourceKey<Level> dimension,
+                                               BlockPos pos,
+                                               int limit) {
+        try {
+            return inspectCache.history(dimension, pos, limit, readPool, connection -> {
+                long started = System.nanoTime();
+                List<DbBlockAction> rows = queryBlockHistory(connection, dimension, pos, limit);
+                metrics.query(QueryStats.Type.INSPECT).record(System.nanoTime() - started);
+                return rows;
+            });
+        } catch (SQLException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка чтения истории блока из БД", e);
+            return new ArrayList<>();
+        }
+    }
+
+    private List<DbBlockAction> queryBlockHistory(Connection connection,
+                                                  ResourceKey<Level> dimension,
+                                                  BlockPos pos,
+                                                  int limit) throws SQLException {
+        List<DbBlockAction> result = new ArrayList<>();
 
-                    result.add(new DbRollbackAction(timeEpoch, x, y, z, actionType, oldBlock));
+        int worldId = worlds.idOf(dimension.location().toString());
+        if (worldId < 0) return result;
+
+        // от новых партиций к старым, пока не наберём limit
+        List<PartitionCatalog.Partition> partitions = partitionCatalog.all();
+        for (int p = partitions.size() - 1; p >= 0 && result.size() < limit; p--) {
+            String sql = """
+                SELECT time_epoch, player_id, action_id, old_block_id, new_block_id
+                FROM %s
+                WHERE world_id = ? AND x = ? AND y = ? AND z = ?
+                ORDER BY time_epoch DESC
+                LIMIT ?;
+                """.formatted(partitions.get(p).table());
+
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setInt(1, worldId);
+                ps.setInt(2, pos.getX());
+                ps.setInt(3, pos.getY());
+                ps.setInt(4, pos.getZ());
+                ps.setInt(5, limit - result.size());
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        long timeEpoch = rs.getLong("time_epoch");
+                        String playerName = players.nameAt(rs.getInt("player_id"), timeEpoch);
+                        String actionType = actionTypes.nameOf(rs.getInt("action_id"));
+                        String oldBlock = materialName(rs, "old_block_id");
+                        String newBlock = materialName(rs, "new_block_id");
+
+                        result.add(new DbBlockAction(timeEpoch, playerName, actionType, oldBlock, newBlock));
+                    }
                 }
+            } catch (SQLException e) {
+                // партицию только что удалили или создали — строк для нас в ней нет
+                if (!ReadConnectionPool.isMissingTable(e)) throw e;
             }
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка выборки действий для rollback", e);
         }
 
+        // холодные блоки старше всех партиций
+        if (result.size() < limit) {
+            for (ColdStore.Row row : ColdStore.history(connection, worldId, pos.getX(), pos.getY(), pos.getZ(),
+                    limit - result.size())) {
+                result.add(new DbBlockAction(row.time(), players.nameAt(row.playerId(), row.time()), actionTypes.nameOf(row.actionId()),
+                        materialName(row.oldStateId()), materialName(row.newStateId())));
+            }
+        }
         return result;
     }
 
-    public static final class DbForwardAction {
-        public final long timeEpoch;
-        public final int x, y, z;
-        public final String actionType;
-        public final String newBlock;
+    /**
+     * {@link #getBlockHistory} на потоке выборок. Поток, поставивший запрос, не ждёт БД;
+     * результат нужно доставлять туда, где с ним работают (для сообщений игроку — на поток сервера).
+     */
+    @Override
+    public CompletableFuture<List<DbBlockAction>> getBlockHistoryAsync(ResourceKey<Level> dimension,
+                                                                      BlockPos pos,
+                                                                      int limit) {
+        return CompletableFuture.supplyAsync(() -> getBlockHistory(dimension, pos, limit), queryExecutor);
+    }
 
-        public DbForwardAction(long timeEpoch, int x, int y, int z,
-                               String actionType, String newBlock) {
-            this.timeEpoch = timeEpoch;
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.actionType = actionType;
-            this.newBlock = newBlock;
-        }
-    }
-    public synchronized List<DbRollbackAction> getActionsForRollback(ResourceKey<Level> dimension,
-                                                                     BlockPos center,
-                                                                     int radius,
-                                                                     long sinceEpochSeconds,
-                                                                     String playerNameFilter) {
-        List<DbRollbackAction> result = new ArrayList<>();
-        if (connection == null) return result;
-
-        int minX = center.getX() - radius;
-        int maxX = center.getX() + radius;
-        int minY = center.getY() - radius;
-        int maxY = center.getY() + radius;
-        int minZ = center.getZ() - radius;
-        int maxZ = center.getZ() + radius;
+    private void closeConnections() throws SQLException {
+        metrics.unregisterMBeans();
+        shutdownQueryExecutor(streamExecutor);
+        shutdownQueryExecutor(queryExecutor);
+        readPool.close();
+        try {
+            spillJournal.close();
+        } catch (IOException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка закрытия spill-журнала", e);
+        }
+        try {
+            for (InsertStatements statements : insertStatements.values()) {
+                statements.close();
+            }
+            insertStatements.clear();
+        } finally {
+            if (writeConnection != null && !writeConnection.isClosed()) {
+                writeConnection.commit();
+                writeConnection.close();
+            }
+        }
+        Coreprotect.LOGGER.info("[Coreprotect] Подключение к БД закрыто.");
+    }
 
-        StringBuilder sql = new StringBuilder("""
-            SELECT time_epoch, x, y, z, action_type, old_block
-            FROM block_actions
-            WHERE dimension = ?
-              AND time_epoch >= ?
-              AND x BETWEEN ? AND ?
-              AND y BETWEEN ? AND ?
-              AND z BETWEEN ? AND ?
-            """);
+    private void loadDictionaries() throws SQLException {
+        players.load(writeConnection);
+        worlds.load(writeConnection);
+        materials.load(writeConnection);
+        actionTypes.load(writeConnection);
+    }
+
+    /**
+     * Дописывает новые записи справочников в текущую транзакцию. Возвращает, сколько записей ушло по каждому.
+     */
+    private int[] writePendingDictionaries() throws SQLException {
+        return new int[] {
+                players.writePending(writeConnection),
+                worlds.writePending(writeConnection),
+                materials.writePending(writeConnection),
+                actionTypes.writePending(writeConnection)
+        };
+    }
+
+    private void markDictionariesPersisted(int[] written) {
+        players.markPersisted(written[0]);
+        worlds.markPersisted(written[1]);
+        materials.markPersisted(written[2]);
+        actionTypes.markPersisted(written[3]);
+    }
 
-        if (playerNameFilter != null && !playerNameFilter.isBlank()) {
-            sql.append(" AND player_name = ? ");
+    /**
+     * Однострочный и многострочный INSERT в таблицу одной партиции.
+     */
+    private record InsertStatements(PreparedStatement single, PreparedStatement multi) {
+        void clearBatch() throws SQLException {
+            single.clearBatch();
+            multi.clearBatch();
         }
 
-        sql.append(" ORDER BY time_epoch DESC;");
+        void close() throws SQLException {
+            single.close();
+            multi.close();
+        }
+    }
 
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
-            int idx = 1;
-            ps.setString(idx++, dimension.location().toString());
-            ps.setLong(idx++, sinceEpochSeconds);
-            ps.setInt(idx++, minX);
-            ps.setInt(idx++, maxX);
-            ps.setInt(idx++, minY);
-            ps.setInt(idx++, maxY);
-            ps.setInt(idx++, minZ);
-            ps.setInt(idx++, maxZ);
+    private PreparedStatement prepareInsertStatement(String table, int rows) throws SQLException {
+        StringBuilder sql = new StringBuilder("""
+            INSERT INTO %s (
+                time_epoch, player_id, world_id,
+                x, y, z, chunk_key, action_id, old_block_id, new_block_id
+            ) VALUES
+            """.formatted(table));
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ",").append("(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+        sql.append(';');
+        return writeConnection.prepareStatement(sql.toString());
+    }
 
-            if (playerNameFilter != null && !playerNameFilter.isBlank()) {
-                ps.setString(idx++, playerNameFilter);
-            }
+    /**
+     * Логирование одного действия блока. Только кладёт событие в кольцо writer-потока, без аллокаций;
+     * при переполнении действует по {@link OverflowPolicy}, но никогда не пишет в БД из вызывающего потока.
+     *
+     * @param oldState состояние до, null — не нужно
+     * @param newState состояние после, null — не нужно
+     */
+    @Override
+    public void logBlockChange(BlockAction.Type type,
+                               UUID playerUuid,
+                               String playerName,
+                               ResourceKey<Level> dimension,
+                               BlockPos pos,
+                               BlockState oldState,
+                               BlockState newState) {
+        capture(type, playerUuid, playerName, dimension, pos, oldState, newState, System.currentTimeMillis());
+    }
 
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    long timeEpoch = rs.getLong("time_epoch");
-                    int x = rs.getInt("x");
-                    int y = rs.getInt("y");
-                    int z = rs.getInt("z");
-                    String actionType = rs.getString("action_type");
-                    String oldBlock = rs.getString("old_block");
+    /**
+     * То же, что {@link #logBlockChange}, для уже собранного события (время берётся из него).
+     */
+    @Override
+    public void logBlockAction(BlockAction action) {
+        capture(action.type, action.playerUuid, action.playerName, action.dimension, action.pos,
+                action.oldState, action.newState, action.time.toEpochMilli());
+    }
 
-                    result.add(new DbRollbackAction(timeEpoch, x, y, z, actionType, oldBlock));
-                }
-            }
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка выборки действий для rollback", e);
-        }
+    private void capture(BlockAction.Type type,
+                         UUID playerUuid,
+                         String playerName,
+                         ResourceKey<Level> dimension,
+                         BlockPos pos,
+                         BlockState oldState,
+                         BlockState newState,
+                         long timeMillis) {
+        if (writeConnection == null) return;
+        if (!running) return;
+        capture.capture(type, playerUuid, playerName, dimension, pos, oldState, newState, timeMillis);
+    }
 
-        return result;
+    /** Сколько событий ушло в spill-журнал из-за переполнения очереди. */
+    public long getSpilledEventCount() {
+        return metrics.getSpilledEvents();
     }
 
-    public synchronized List<DbForwardAction> getActionsForRestore(ResourceKey<Level> dimension,
+    /** Сколько событий выброшено из-за переполнения очереди. */
+    public long getDroppedEventCount() {
+        return metrics.getDroppedEvents();
+    }
+
+    /** Метрики записи и выборок: для {@code /co status}, они же зарегистрированы в JMX. */
+    @Override
+    public PipelineMetrics metrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Строка вида {@code minecraft:oak_stairs[facing=east,half=top]} -> BlockState.
+     * Строка без свойств даёт состояние по умолчанию, null и нераспознанное — воздух.
+     */
+    @Override
+    public BlockState deserializeBlockState(String id) {
+        return palette.stateOf(id);
+    }
+
+    private String serializeBlockState(BlockState state) {
+        return BlockStatePalette.serialize(state);
+    }
+
+    public List<DbRollbackAction> getActionsForRollback(ResourceKey<Level> dimension,
+                                                        BlockPos center,
+                                                        int radius,
+                                                        long sinceEpochSeconds) {
+        return getActionsForRollback(dimension, center, radius, sinceEpochSeconds, null);
+    }
+
+    /**
+     * План rollback: по одной строке на позицию — самое раннее событие окна, его old_block и есть
+     * состояние, в которое позицию надо вернуть. Весь план в памяти; для больших областей — {@link #streamActionsForRollback}.
+     */
+    public List<DbRollbackAction> getActionsForRollback(ResourceKey<Level> dimension,
+                                                        BlockPos center,
+                                                        int radius,
+                                                        long sinceEpochSeconds,
+                                                        String playerNameFilter) {
+        return drain(streamActionsForRollback(dimension, center, radius, sinceEpochSeconds, playerNameFilter), "rollback");
+    }
+
+    /**
+     * План restore: по одной строке на позицию — самое позднее событие окна с его new_block.
+     * Весь план в памяти; для больших областей — {@link #streamActionsForRestore}.
+     */
+    public List<DbForwardAction> getActionsForRestore(ResourceKey<Level> dimension,
+                                                      BlockPos center,
+                                                      int radius,
+                                                      long sinceEpochSeconds,
+                                                      String playerNameFilter) {
+        return drain(streamActionsForRestore(dimension, center, radius, sinceEpochSeconds, playerNameFilter), "restore");
+    }
+
+    /**
+     * То же, что {@link #getActionsForRollback}, но потоком: строки идут по чанкам, в памяти не больше
+     * {@code rollback.fetchSize} строк. Выборка начинается при первом {@code poll} на потоке запросов
+     * и держит своё соединение, пока поток не дочитан или не закрыт.
+     */
+    @Override
+    public ActionStream<DbRollbackAction> streamActionsForRollback(ResourceKey<Level> dimension,
                                                                    BlockPos center,
                                                                    int radius,
                                                                    long sinceEpochSeconds,
                                                                    String playerNameFilter) {
-        List<DbForwardAction> result = new ArrayList<>();
-        if (connection == null) return result;
+        return streamFinalStates(dimension, center, radius, sinceEpochSeconds, playerNameFilter, true,
+                "old_block_id",
+                row -> new DbRollbackAction(row.time(), row.x(), row.y(), row.z(), actionTypes.nameOf(row.actionId()),
+                        materialName(row.stateId()), materialState(row.stateId())));
+    }
 
-        int minX = center.getX() - radius;
-        int maxX = center.getX() + radius;
-        int minY = center.getY() - radius;
-        int maxY = center.getY() + radius;
-        int minZ = center.getZ() - radius;
-        int maxZ = center.getZ() + radius;
+    /**
+     * То же, что {@link #getActionsForRestore}, но потоком (см. {@link #streamActionsForRollback}).
+     */
+    @Override
+    public ActionStream<DbForwardAction> streamActionsForRestore(ResourceKey<Level> dimension,
+                                                                 BlockPos center,
+                                                                 int radius,
+                                                                 long sinceEpochSeconds,
+                                                                 String playerNameFilter) {
+        return streamFinalStates(dimension, center, radius, sinceEpochSeconds, playerNameFilter, false,
+                "new_block_id",
+                row -> new DbForwardAction(row.time(), row.x(), row.y(), row.z(), actionTypes.nameOf(row.actionId()),
+                        materialName(row.stateId()), materialState(row.stateId())));
+    }
 
-        StringBuilder sql = new StringBuilder("""
-            SELECT time_epoch, x, y, z, action_type, new_block
-            FROM block_actions
-            WHERE dimension = ?
-              AND time_epoch >= ?
-              AND x BETWEEN ? AND ?
-              AND y BETWEEN ? AND ?
-              AND z BETWEEN ? AND ?
-            """);
+    @FunctionalInterface
+    private interface RowMapper<T> {
+        T map(RegionCursor row);
+    }
+
+    /**
+     * Итоговые состояния по позициям области, слиянием партиций на лету.
+     * <p>
+     * Каждая партиция отдаёт одну строку на позицию, отсортированно по {@code chunk_key, y, x, z}. Открыты курсоры
+     * всех партиций сразу; на каждом шаге берётся наименьшая позиция среди их текущих строк. Если позиция есть
+     * в нескольких партициях, выигрывает самая старая (rollback: самое раннее событие окна) или самая новая (restore),
+     * остальные курсоры просто сдвигаются. В памяти — по строке на партицию, сортировку делает SQLite.
+     * Холодные блоки ({@link ColdStore}) — ещё один курсор, старше всех партиций.
+     * Все курсоры читают один снимок (одна транзакция на отдельном соединении).
+     */
+    private <T> ActionStream<T> streamFinalStates(ResourceKey<Level> dimension,
+                                                  BlockPos center,
+                                                  int radius,
+                                                  long sinceEpochSeconds,
+                                                  String playerNameFilter,
+                                                  boolean earliest,
+                                                  String stateColumn,
+                                                  RowMapper<T> mapper) {
+        int fetchSize = settings.rollbackFetchSize;
+        QueryStats.Type type = earliest ? QueryStats.Type.ROLLBACK : QueryStats.Type.RESTORE;
+        return new ActionStream<>(fetchSize, streamExecutor, metrics.timed(type, sink -> {
+            int worldId = worlds.idOf(dimension.location().toString());
+            int[] playerIds = resolvePlayerFilter(playerNameFilter);
+            if (worldId < 0 || (playerIds != null && playerIds.length == 0)) return;
+
+            int minX = center.getX() - radius;
+            int maxX = center.getX() + radius;
+            int minY = center.getY() - radius;
+            int maxY = center.getY() + radius;
+            int minZ = center.getZ() - radius;
+            int maxZ = center.getZ() + radius;
+            long[] ranges = SpatialKey.rangesForBox(minX, minZ, maxX, maxZ);
+
+            try (Connection connection = readPool.openDedicated()) {
+                connection.setAutoCommit(false);
+                // холодные блоки, затем партиции по возрастанию времени; приоритет при совпадении позиции — по earliest
+                List<PartitionCatalog.Partition> partitions = partitionCatalog.since(sinceEpochSeconds);
+                int k = partitions.size() + 1;
+                RegionCursor[] cursors = new RegionCursor[k];
+                try {
+                    cursors[0] = ColdStore.region(connection, ranges, worldId, sinceEpochSeconds,
+                            minX, maxX, minY, maxY, minZ, maxZ, playerIds, earliest, fetchSize);
+                    advance(cursors, 0);
+                    for (int i = 1; i < k; i++) {
+                        String sql = finalStateQuery("b.time_epoch, b.chunk_key, b.x, b.y, b.z, b.action_id, b." + stateColumn,
+                                partitions.get(i - 1).table(), ranges.length / 2, playerIds, earliest);
+                        PreparedStatement ps;
+                        try {
+                            ps = connection.prepareStatement(sql);
+                        } catch (SQLException e) {
+                            // партицию только что удалили или создали — строк для нас в ней нет
+                            if (!ReadConnectionPool.isMissingTable(e)) throw e;
+                            continue;
+                        }
+                        SqlRegionCursor cursor = new SqlRegionCursor(ps, stateColumn);
+                        cursors[i] = cursor;
+                        int idx = bindRegion(ps, ranges, worldId, sinceEpochSeconds, minX, maxX, minY, maxY, minZ, maxZ);
+                        if (playerIds != null) {
+                            for (int id : playerIds) {
+                                ps.setInt(idx++, id);
+                            }
+                        }
+                        ps.setFetchSize(fetchSize);
+                        cursor.execute();
+                        advance(cursors, i);
+                    }
+
+                    while (true) {
+                        int best = -1;
+                        for (int n = 0; n < k; n++) {
+                            int i = earliest ? n : k - 1 - n;
+                            if (cursors[i] == null) continue;
+                            // строго меньше: при равной позиции остаётся источник с большим приоритетом
+                            if (best < 0 || compareRegionKeys(cursors[i].chunk(), cursors[i].y(), cursors[i].x(), cursors[i].z(),
+                                    cursors[best].chunk(), cursors[best].y(), cursors[best].x(), cursors[best].z()) < 0) {
+                                best = i;
+                            }
+                        }
+                        if (best < 0) break;
+
+                        T row = mapper.map(cursors[best]);
+                        long c = cursors[best].chunk();
+                        int y = cursors[best].y(), x = cursors[best].x(), z = cursors[best].z();
+                        for (int i = 0; i < k; i++) {
+                            RegionCursor cursor = cursors[i];
+                            if (cursor != null && cursor.chunk() == c && cursor.y() == y && cursor.x() == x && cursor.z() == z) {
+                                advance(cursors, i);
+                            }
+                        }
+                        if (!sink.accept(row)) break;
+                    }
+                } finally {
+                    for (RegionCursor cursor : cursors) {
+                        if (cursor != null) {
+                            try {
+                                cursor.close();
+                            } catch (SQLException ignored) {}
+                        }
+                    }
+                    connection.rollback();
+                }
+            }
+        }));
+    }
 
-        if (playerNameFilter != null && !playerNameFilter.isBlank()) {
-            sql.append(" AND player_name = ? ");
+    /**
+     * Сдвигает курсор источника; дочитанный курсор закрывается и обнуляется.
+     */
+    private static void advance(RegionCursor[] cursors, int i) throws SQLException {
+        if (!cursors[i].next()) {
+            cursors[i].close();
+            cursors[i] = null;
         }
+    }
 
-        // Для restore логичнее идти от старых к новым
-        sql.append(" ORDER BY time_epoch ASC;");
+    /**
+     * Курсор по результату {@link #finalStateQuery} одной партиции.
+     */
+    private static final class SqlRegionCursor implements RegionCursor {
+        private final PreparedStatement statement;
+        private final String stateColumn;
+        private ResultSet rs;
+        private long chunk;
+        private int y, x, z;
+        private long time;
+        private int actionId;
+        private int stateId;
+
+        SqlRegionCursor(PreparedStatement statement, String stateColumn) {
+            this.statement = statement;
+            this.stateColumn = stateColumn;
+        }
 
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
-            int idx = 1;
-            ps.setString(idx++, dimension.location().toString());
-            ps.setLong(idx++, sinceEpochSeconds);
-            ps.setInt(idx++, minX);
-            ps.setInt(idx++, maxX);
-            ps.setInt(idx++, minY);
-            ps.setInt(idx++, maxY);
-            ps.setInt(idx++, minZ);
-            ps.setInt(idx++, maxZ);
+        void execute() throws SQLException {
+            rs = statement.executeQuery();
+        }
 
-            if (playerNameFilter != null && !playerNameFilter.isBlank()) {
-                ps.setString(idx++, playerNameFilter);
-            }
+        @Override
+        public boolean next() throws SQLException {
+            if (!rs.next()) return false;
+            chunk = rs.getLong("chunk_key");
+            y = rs.getInt("y");
+            x = rs.getInt("x");
+            z = rs.getInt("z");
+            time = rs.getLong("time_epoch");
+            actionId = rs.getInt("action_id");
+            int id = rs.getInt(stateColumn);
+            stateId = rs.wasNull() ? ColdBlockCodec.NULL_STATE : id;
+            return true;
+        }
 
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    long timeEpoch = rs.getLong("time_epoch");
-                    int x = rs.getInt("x");
-                    int y = rs.getInt("y");
-                    int z = rs.getInt("z");
-                    String actionType = rs.getString("action_type");
-                    String newBlock = rs.getString("new_block");
+        @Override
+        public long chunk() {
+            return chunk;
+        }
 
-                    result.add(new DbForwardAction(timeEpoch, x, y, z, actionType, newBlock));
-                }
-            }
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка выборки действий для restore", e);
+        @Override
+        public int y() {
+            return y;
+        }
+
+        @Override
+        public int x() {
+            return x;
+        }
+
+        @Override
+        public int z() {
+            return z;
         }
 
+        @Override
+        public long time() {
+            return time;
+        }
+
+        @Override
+        public int actionId() {
+            return actionId;
+        }
+
+        @Override
+        public int stateId() {
+            return stateId;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            statement.close();
+        }
+    }
+
+    private static <T> List<T> drain(ActionStream<T> stream, String what) {
+        List<T> result = new ArrayList<>();
+        try (stream) {
+            T row;
+            while ((row = stream.take()) != null) {
+                result.add(row);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка выборки действий для " + what, e.getCause());
+        }
         return result;
     }
+
     public static final class RollbackSessionInfo {
         public final int id;
         public final long timeEpoch;
@@ -600,132 +1366,193 @@ public final class DatabaseManager {
         }
     }
 
-    public static final class RollbackSessionEntry {
-        public final int id;
-        public final int sessionId;
-        public final String dimension;
-        public final int x, y, z;
-        public final String beforeBlock;
-        public final String afterBlock;
-
-        public RollbackSessionEntry(int id, int sessionId, String dimension,
-                                    int x, int y, int z,
-                                    String beforeBlock, String afterBlock) {
-            this.id = id;
-            this.sessionId = sessionId;
-            this.dimension = dimension;
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.beforeBlock = beforeBlock;
-            this.afterBlock = afterBlock;
-        }
-    }
-    public synchronized int createRollbackSession(String executor, String params) {
+    @Override
+    public int createRollbackSession(String executor, String params) {
+        if (!running) return -1;
         String sql = """
-            INSERT INTO rollback_sessions (time_epoch, executor, params, restored)
-            VALUES (?, ?, ?, 0);
+            INSERT INTO rollback_sessions (id, time_epoch, executor, params, restored, finished)
+            VALUES (?, ?, ?, ?, 0, 0);
             """;
-        try (PreparedStatement ps = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            long now = System.currentTimeMillis() / 1000L;
-            ps.setLong(1, now);
-            ps.setString(2, executor);
-            ps.setString(3, params);
-            ps.executeUpdate();
-
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) {
-                    int id = rs.getInt(1);
-                    connection.commit();
-                    return id;
-                }
-            }
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка создания rollback-сессии", e);
-            try {
-                connection.rollback();
-            } catch (SQLException ex) {
-                Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback при создании сессии", ex);
+        int id = nextSessionId.getAndIncrement();
+        long now = System.currentTimeMillis() / 1000L;
+
+        // записи сессии ставятся в ту же очередь позже, так что строка сессии появится раньше них
+        CompletableFuture<Void> created = submitWrite("создание rollback-сессии " + id, connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setInt(1, id);
+                ps.setLong(2, now);
+                ps.setString(3, executor);
+                ps.setString(4, params);
+                ps.executeUpdate();
             }
-        }
-        return -1;
+            return null;
+        });
+        creatingSessions.put(id, created);
+        created.whenComplete((ignored, e) -> creatingSessions.remove(id));
+        return id;
     }
 
-    public synchronized void insertRollbackEntry(int sessionId,
-                                                 ResourceKey<Level> dimension,
-                                                 BlockPos pos,
-                                                 BlockState before,
-                                                 BlockState after) {
+    /**
+     * Следующий id сессии — после самого большого из выданных (AUTOINCREMENT помнит и удалённые).
+     */
+    private void loadSessionIds() throws SQLException {
         String sql = """
-            INSERT INTO rollback_session_entries (
-                session_id, dimension, x, y, z, before_block, after_block
-            ) VALUES (?, ?, ?, ?, ?, ?, ?);
+            SELECT MAX(COALESCE((SELECT MAX(id) FROM rollback_sessions), 0),
+                       COALESCE((SELECT seq FROM sqlite_sequence WHERE name = 'rollback_sessions'), 0));
             """;
-
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setInt(1, sessionId);
-            ps.setString(2, dimension.location().toString());
-            ps.setInt(3, pos.getX());
-            ps.setInt(4, pos.getY());
-            ps.setInt(5, pos.getZ());
-            ps.setString(6, serializeBlockState(before));
-            ps.setString(7, serializeBlockState(after));
-
-            ps.executeUpdate();
-            connection.commit();
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка записи rollback-entry", e);
-            try {
-                connection.rollback();
-            } catch (SQLException ex) {
-                Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback при insertRollbackEntry", ex);
+        try (Statement st = writeConnection.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            if (rs.next()) {
+                nextSessionId.set(rs.getInt(1) + 1);
             }
         }
     }
-    public synchronized List<RollbackSessionEntry> getRollbackEntries(int sessionId) {
-        List<RollbackSessionEntry> result = new ArrayList<>();
+
+    /**
+     * Буфер записей для сессии, созданной {@link #createRollbackSession}. Записи пишутся порциями на writer-потоке,
+     * сессия помечается завершённой вместе с последней порцией в {@link RollbackSessionRecorder#finish}.
+     */
+    @Override
+    public RollbackSessionRecorder openSessionRecorder(int sessionId, ResourceKey<Level> dimension) {
+        return new SqliteSessionRecorder(this, sessionId, dimension.location().toString());
+    }
+
+    /**
+     * Записи сессии списком; для больших сессий — {@link #streamRollbackEntries}.
+     */
+    public List<RollbackSessionEntry> getRollbackEntries(int sessionId) {
+        return drain(streamRollbackEntries(sessionId), "rollback-сессии " + sessionId);
+    }
+
+    /**
+     * Записи сессии потоком, по одной на позицию, с состоянием до rollback-а. Сначала старые построчные
+     * записи (из них берётся первая по позиции), затем упакованные чанки — они распаковываются по одному.
+     */
+    @Override
+    public ActionStream<RollbackSessionEntry> streamRollbackEntries(int sessionId) {
+        return new ActionStream<>(settings.rollbackFetchSize, streamExecutor, metrics.timed(QueryStats.Type.SESSION, sink -> {
+            try (Connection connection = readPool.openDedicated()) {
+                connection.setAutoCommit(false);
+                try {
+                    if (!streamLegacySessionEntries(connection, sessionId, sink)) return;
+                    streamSessionChunks(connection, sessionId, sink);
+                } finally {
+                    connection.rollback();
+                }
+            }
+        }));
+    }
+
+    private static boolean streamLegacySessionEntries(Connection connection,
+                                                      int sessionId,
+                                                      ActionStream.Sink<RollbackSessionEntry> sink) throws SQLException {
         String sql = """
             SELECT id, session_id, dimension, x, y, z, before_block, after_block
             FROM rollback_session_entries
             WHERE session_id = ?
             ORDER BY id ASC;
             """;
+        // в старых сессиях позиция могла меняться несколько раз; состояние ДО rollback'а — в первой её записи
+        LongOpenHashSet seen = new LongOpenHashSet();
         try (PreparedStatement ps = connection.prepareStatement(sql)) {
             ps.setInt(1, sessionId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    result.add(new RollbackSessionEntry(
+                    int x = rs.getInt("x");
+                    int y = rs.getInt("y");
+                    int z = rs.getInt("z");
+                    if (!seen.add(BlockPos.asLong(x, y, z))) continue;
+                    boolean more = sink.accept(new RollbackSessionEntry(
                             rs.getInt("id"),
                             rs.getInt("session_id"),
                             rs.getString("dimension"),
-                            rs.getInt("x"),
-                            rs.getInt("y"),
-                            rs.getInt("z"),
+                            x, y, z,
                             rs.getString("before_block"),
                             rs.getString("after_block")
                     ));
+                    if (!more) return false;
                 }
             }
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка чтения rollback-сессии " + sessionId, e);
         }
-        return result;
+        return true;
     }
 
-    public synchronized void markSessionRestored(int sessionId) {
-        String sql = "UPDATE rollback_sessions SET restored = 1 WHERE id = ?;";
+    private static void streamSessionChunks(Connection connection,
+                                            int sessionId,
+                                            ActionStream.Sink<RollbackSessionEntry> sink) throws SQLException {
+        String sql = """
+            SELECT id, dimension, chunk_x, chunk_z, data
+            FROM rollback_session_chunks
+            WHERE session_id = ?
+            ORDER BY id ASC;
+            """;
         try (PreparedStatement ps = connection.prepareStatement(sql)) {
             ps.setInt(1, sessionId);
-            ps.executeUpdate();
-            connection.commit();
-        } catch (SQLException e) {
-            Coreprotect.LOGGER.error("[Coreprotect] Ошибка пометки сессии restored", e);
-            try {
-                connection.rollback();
-            } catch (SQLException ex) {
-                Coreprotect.LOGGER.error("[Coreprotect] Ошибка rollback при markSessionRestored", ex);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt("id");
+                    String dimension = rs.getString("dimension");
+                    List<SessionSnapshotCodec.Entry> entries;
+                    try {
+                        entries = SessionSnapshotCodec.decode(rs.getBytes("data"), rs.getInt("chunk_x"), rs.getInt("chunk_z"));
+                    } catch (IOException e) {
+                        throw new SQLException("битый снимок чанка " + id + " сессии " + sessionId, e);
+                    }
+                    for (SessionSnapshotCodec.Entry e : entries) {
+                        if (!sink.accept(new RollbackSessionEntry(id, sessionId, dimension,
+                                e.x(), e.y(), e.z(), e.before(), e.after()))) {
+                            return;
+                        }
+                    }
+                }
             }
         }
     }
 
+    /**
+     * finished и entry_count из rollback_sessions. Сессии до миграции v5 считаются дописанными, число записей у них
+     * неизвестно.
+     */
+    @Override
+    public CompletableFuture<RollbackSessionStatus> getRollbackSessionStatusAsync(int sessionId) {
+        String sql = "SELECT finished, entry_count FROM rollback_sessions WHERE id = ?;";
+        return sessionCreated(sessionId).thenApplyAsync(ignored -> {
+            try {
+                return readPool.withConnection(connection -> {
+                    try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                        ps.setInt(1, sessionId);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            if (!rs.next()) return null;
+                            boolean finished = rs.getInt(1) != 0;
+                            int entryCount = rs.getInt(2);
+                            return new RollbackSessionStatus(sessionId, finished,
+                                    finished && !rs.wasNull() ? entryCount : -1);
+                        }
+                    }
+                });
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, queryExecutor);
+    }
+
+    /**
+     * Завершается, когда сессия записана (или её запись не удалась); для уже записанной — сразу.
+     */
+    private CompletableFuture<?> sessionCreated(int sessionId) {
+        CompletableFuture<?> created = creatingSessions.get(sessionId);
+        return created == null ? CompletableFuture.completedFuture(null) : created.exceptionally(e -> null);
+    }
+
+    @Override
+    public void markSessionRestored(int sessionId) {
+        String sql = "UPDATE rollback_sessions SET restored = 1 WHERE id = ?;";
+        submitWrite("пометка сессии " + sessionId + " restored", connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setInt(1, sessionId);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
 }
@@ -0,0 +1,343 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Таблица-справочник (players, worlds, materials, action_types) с двунаправленным кэшем в памяти.
+ * <p>
+ * Id выдаются сразу в памяти, без обращения к БД, поэтому {@link #getOrAssign} можно звать из любого потока.
+ * Новые записи дописываются в таблицу writer-потоком в той же транзакции, что и строки, которые на них ссылаются
+ * ({@link #writePending} перед коммитом, {@link #markPersisted} после). Если транзакция откатилась,
+ * записи остаются в очереди и уйдут со следующим батчем.
+ * <p>
+ * У справочника может быть «подпись» — например, для players ключ это UUID, а подпись последний известный ник.
+ * Прежние подписи не теряются: каждая хранится с моментом, когда её впервые увидели (для SQL — в отдельной
+ * таблице истории), так что {@link #idsByName} находит игрока и по старому нику, а {@link #nameAt} показывает
+ * ник, под которым была сделана запись.
+ * <p>
+ * Хранилища без SQL сохраняют записи сами: {@link #restore} при старте и {@link #writePending(PendingWriter)}.
+ */
+final class Dictionary {
+
+    /**
+     * Получатель отложенных записей для хранилища без SQL. {@code label} — null, если подписи нет;
+     * {@code since} — с какого момента (epoch-секунды) действует подпись.
+     */
+    @FunctionalInterface
+    interface PendingWriter {
+        void write(int id, String key, String label, long since) throws IOException;
+    }
+
+    private record Entry(String key, String label, long since) {}
+
+    // подпись и момент (epoch-секунды), с которого она действует
+    private record Alias(String label, long since) {}
+
+    // выданный id или новая подпись, ещё не сохранённые
+    private record Pending(int id, String label, long since) {}
+
+    private final String table;
+    private final String keyColumn;
+    private final String labelColumn; // null, если подписи нет
+    private final String historyTable; // null, если история подписей не хранится в SQL
+    private final String historyIdColumn;
+
+    private final ConcurrentHashMap<String, Integer> idsByKey = new ConcurrentHashMap<>();
+    // id -> Entry; ссылка на массив volatile, элементы публикуются повторной записью ссылки
+    private volatile Entry[] byId = new Entry[64];
+    // id -> все подписи по возрастанию since; массивы не меняются, только заменяются
+    private final ConcurrentHashMap<Integer, Alias[]> aliases = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private int nextId = 1;
+    private final List<Pending> pending = new ArrayList<>();
+
+    Dictionary(String table, String keyColumn, String labelColumn) {
+        this(table, keyColumn, labelColumn, null, null);
+    }
+
+    /**
+     * @param historyTable таблица истории подписей {@code (historyIdColumn, labelColumn, first_seen)}
+     */
+    Dictionary(String table, String keyColumn, String labelColumn, String historyTable, String historyIdColumn) {
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.labelColumn = labelColumn;
+        this.historyTable = historyTable;
+        this.historyIdColumn = historyIdColumn;
+    }
+
+    static Dictionary simple(String table) {
+        return new Dictionary(table, "name", null);
+    }
+
+    /**
+     * Загружает справочник целиком. Вызывается один раз при старте, до запуска writer-потока.
+     */
+    synchronized void load(Connection connection) throws SQLException {
+        String sql = "SELECT id, " + keyColumn + (labelColumn != null ? ", " + labelColumn : "") + " FROM " + table + ";";
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                String key = rs.getString(2);
+                String label = labelColumn != null ? rs.getString(3) : null;
+                put(id, new Entry(key, label, 0));
+                idsByKey.put(key, id);
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+        if (labelColumn == null) return;
+
+        if (historyTable != null) {
+            String history = "SELECT " + historyIdColumn + ", " + labelColumn + ", first_seen FROM " + historyTable + ";";
+            try (Statement st = connection.createStatement();
+                 ResultSet rs = st.executeQuery(history)) {
+                while (rs.next()) {
+                    addAlias(rs.getInt(1), rs.getString(2), rs.getLong(3));
+                }
+            }
+        }
+        // записи без истории: текущая подпись — с самого начала
+        Entry[] entries = byId;
+        for (int id = 1; id < entries.length; id++) {
+            if (entries[id] != null && !aliases.containsKey(id)) {
+                addAlias(id, entries[id].label(), 0);
+            }
+        }
+    }
+
+    /**
+     * Восстанавливает запись, сохранённую хранилищем без SQL. Текущей становится подпись с самым поздним
+     * since, остальные остаются в истории. Вызывается при старте, до запуска writer-потока.
+     */
+    synchronized void restore(int id, String key, String label, long since) {
+        Entry[] entries = byId;
+        Entry current = id < entries.length ? entries[id] : null;
+        if (current == null || since >= current.since()) {
+            put(id, new Entry(key, labelColumn != null ? label : null, since));
+        }
+        idsByKey.put(key, id);
+        addAlias(id, label, since);
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    /**
+     * Id по ключу, -1 если такого ключа ещё не было. Только для чтения, новый id не выдаёт.
+     */
+    int idOf(String key) {
+        if (key == null) return -1;
+        Integer id = idsByKey.get(key);
+        return id == null ? -1 : id;
+    }
+
+    int getOrAssign(String key) {
+        return getOrAssign(key, null);
+    }
+
+    /**
+     * Id по ключу; если ключа нет — выдаёт новый. Если подпись изменилась (игрок сменил ник) — обновляет её.
+     */
+    int getOrAssign(String key, String label) {
+        return getOrAssign(key, label, System.currentTimeMillis() / 1000L);
+    }
+
+    /**
+     * То же; {@code seenEpochSeconds} — время записи, с которой пришла подпись (с него новая подпись действует).
+     */
+    int getOrAssign(String key, String label, long seenEpochSeconds) {
+        Integer id = idsByKey.get(key);
+        if (id != null && (labelColumn == null || label == null || Objects.equals(byId[id].label(), label))) {
+            return id;
+        }
+        synchronized (this) {
+            id = idsByKey.get(key);
+            if (id == null) {
+                id = nextId++;
+                put(id, new Entry(key, label, seenEpochSeconds));
+                idsByKey.put(key, id);
+                addAlias(id, label, seenEpochSeconds);
+                pending.add(new Pending(id, label, seenEpochSeconds));
+            } else if (labelColumn != null && label != null && !Objects.equals(byId[id].label(), label)) {
+                // запоздавшая запись (spill-журнал) со старым ником текущий ник не меняет, только историю
+                if (seenEpochSeconds >= byId[id].since()) {
+                    put(id, new Entry(key, label, seenEpochSeconds));
+                }
+                addAlias(id, label, seenEpochSeconds);
+                pending.add(new Pending(id, label, seenEpochSeconds));
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Ключ по id (или подпись, если она есть), null для неизвестного id.
+     */
+    String nameOf(int id) {
+        Entry[] entries = byId;
+        if (id <= 0 || id >= entries.length) return null;
+        Entry e = entries[id];
+        if (e == null) return null;
+        return labelColumn != null && e.label() != null ? e.label() : e.key();
+    }
+
+    /**
+     * Подпись, действовавшая в {@code epochSeconds}; для записей до первой известной подписи — первая.
+     * Без подписи — как {@link #nameOf}.
+     */
+    String nameAt(int id, long epochSeconds) {
+        Alias[] history = aliases.get(id);
+        if (history == null) return nameOf(id);
+        String name = history[0].label();
+        for (Alias alias : history) {
+            if (alias.since() > epochSeconds) break;
+            name = alias.label();
+        }
+        return name;
+    }
+
+    /**
+     * Все id, у которых подпись — текущая или любая прежняя — (или ключ, если подписи нет) совпадает с заданной.
+     * Используется для фильтров u:Ник.
+     */
+    int[] idsByName(String name) {
+        int[] result = new int[4];
+        int n = 0;
+        if (labelColumn != null) {
+            for (Map.Entry<Integer, Alias[]> e : aliases.entrySet()) {
+                for (Alias alias : e.getValue()) {
+                    if (name.equals(alias.label())) {
+                        if (n == result.length) result = Arrays.copyOf(result, n * 2);
+                        result[n++] = e.getKey();
+                        break;
+                    }
+                }
+            }
+            result = Arrays.copyOf(result, n);
+            Arrays.sort(result);
+            return result;
+        }
+        Entry[] entries = byId;
+        for (int id = 1; id < entries.length; id++) {
+            Entry e = entries[id];
+            if (e != null && name.equals(e.key())) {
+                if (n == result.length) result = Arrays.copyOf(result, n * 2);
+                result[n++] = id;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Дописывает в таблицу записи, выданные после последнего коммита. Только writer-поток, внутри транзакции.
+     * Возвращает, сколько записей отправлено — это число потом передаётся в {@link #markPersisted}.
+     */
+    int writePending(Connection connection) throws SQLException {
+        List<Pending> snapshot;
+        Entry[] entries;
+        synchronized (this) {
+            if (pending.isEmpty()) return 0;
+            snapshot = new ArrayList<>(pending);
+            entries = byId;
+        }
+
+        String sql = labelColumn == null
+                ? "INSERT OR IGNORE INTO " + table + " (id, " + keyColumn + ") VALUES (?, ?);"
+                : "INSERT INTO " + table + " (id, " + keyColumn + ", " + labelColumn + ") VALUES (?, ?, ?) "
+                + "ON CONFLICT(id) DO UPDATE SET " + labelColumn + " = excluded." + labelColumn + ";";
+        // в основную таблицу — текущая подпись; повтор id в батче просто перезапишет её тем же значением
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            for (Pending p : snapshot) {
+                int id = p.id();
+                Entry e = entries[id];
+                ps.setInt(1, id);
+                ps.setString(2, e.key());
+                if (labelColumn != null) {
+                    ps.setString(3, e.label() != null ? e.label() : e.key());
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        if (historyTable != null) {
+            String history = "INSERT OR IGNORE INTO " + historyTable + " (" + historyIdColumn + ", " + labelColumn
+                    + ", first_seen) VALUES (?, ?, ?);";
+            try (PreparedStatement ps = connection.prepareStatement(history)) {
+                for (Pending p : snapshot) {
+                    if (p.label() == null) continue;
+                    ps.setInt(1, p.id());
+                    ps.setString(2, p.label());
+                    ps.setLong(3, p.since());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        }
+        return snapshot.size();
+    }
+
+    /**
+     * То же, что {@link #writePending(Connection)}, для хранилища без SQL: отдаёт отложенные записи по порядку.
+     * Только writer-поток; после того как записи сохранены, — {@link #markPersisted}.
+     */
+    int writePending(PendingWriter writer) throws IOException {
+        List<Pending> snapshot;
+        Entry[] entries;
+        synchronized (this) {
+            if (pending.isEmpty()) return 0;
+            snapshot = new ArrayList<>(pending);
+            entries = byId;
+        }
+        for (Pending p : snapshot) {
+            writer.write(p.id(), entries[p.id()].key(), p.label(), p.since());
+        }
+        return snapshot.size();
+    }
+
+    /**
+     * Транзакция с первыми {@code count} отложенными записями закоммичена.
+     */
+    synchronized void markPersisted(int count) {
+        if (count <= 0) return;
+        pending.subList(0, Math.min(count, pending.size())).clear();
+    }
+
+    /**
+     * Добавляет подпись в историю id, сохраняя порядок по since. Та же подпись подряд не повторяется.
+     */
+    private void addAlias(int id, String label, long since) {
+        if (labelColumn == null || label == null) return;
+        aliases.compute(id, (k, history) -> {
+            if (history == null) return new Alias[] {new Alias(label, since)};
+            int at = history.length;
+            while (at > 0 && history[at - 1].since() > since) at--;
+            if (at > 0 && history[at - 1].label().equals(label)) return history;
+            Alias[] next = new Alias[history.length + 1];
+            System.arraycopy(history, 0, next, 0, at);
+            next[at] = new Alias(label, since);
+            System.arraycopy(history, at, next, at + 1, history.length - at);
+            return next;
+        });
+    }
+
+    // guarded by this
+    private void put(int id, Entry entry) {
+        Entry[] entries = byId;
+        if (id >= entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(id + 1, entries.length * 2));
+        }
+        entries[id] = entry;
+        byId = entries; // volatile-запись публикует и новый элемент
+    }
+}
@@ -0,0 +1,100 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.Coreprotect;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Приём события на потоке сервера: перевод в id справочников и публикация в {@link EventRing},
+ * при переполнении — по {@link OverflowPolicy}. Общий для всех хранилищ, у которых один writer разбирает кольцо.
+ */
+final class EventCapture {
+
+    // Шаг ожидания места в кольце для политики BLOCK
+    private static final long BLOCK_RETRY_NANOS = 50_000;
+    // Не чаще одного предупреждения о переполнении за этот интервал
+    private static final long OVERFLOW_WARN_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final EventRing ring;
+    private final EventCodec codec;
+    private final SpillJournal spillJournal;
+    private final PipelineMetrics metrics;
+    private final StorageSettings settings;
+    private final AtomicLong lastOverflowWarnNanos = new AtomicLong(System.nanoTime() - OVERFLOW_WARN_INTERVAL_NANOS);
+
+    EventCapture(EventRing ring, EventCodec codec, SpillJournal spillJournal, PipelineMetrics metrics, StorageSettings settings) {
+        this.ring = ring;
+        this.codec = codec;
+        this.spillJournal = spillJournal;
+        this.metrics = metrics;
+        this.settings = settings;
+    }
+
+    /**
+     * Кладёт событие в кольцо writer-потока, без аллокаций; никогда не пишет на диск из вызывающего потока,
+     * кроме spill-журнала при переполнении.
+     */
+    void capture(BlockAction.Type type,
+                 UUID playerUuid,
+                 String playerName,
+                 ResourceKey<Level> dimension,
+                 BlockPos pos,
+                 BlockState oldState,
+                 BlockState newState,
+                 long timeMillis) {
+        long packedPos = pos.asLong();
+        int playerId = codec.playerId(playerUuid, playerName, timeMillis);
+        int worldId = codec.worldId(dimension);
+        int actionId = codec.actionId(type);
+        int oldStateId = codec.stateId(oldState);
+        int newStateId = codec.stateId(newState);
+        if (ring.offer(packedPos, timeMillis, playerId, worldId, actionId, oldStateId, newStateId)) {
+            return;
+        }
+        // в кольцо не попало: в журнале или выброшено — инспект такие события не видит до записи
+
+        switch (settings.overflowPolicy) {
+            case SPILL -> {
+                try {
+                    spillJournal.append(new BlockAction(type, playerUuid, playerName, dimension, pos.immutable(),
+                            oldState, newState, Instant.ofEpochMilli(timeMillis)));
+                    warnOverflow("события пишутся в spill-журнал", metrics.onSpilled());
+                } catch (IOException e) {
+                    Coreprotect.LOGGER.error("[Coreprotect] Не удалось записать событие в spill-журнал", e);
+                    warnOverflow("события выбрасываются", metrics.onDropped());
+                }
+            }
+            case BLOCK -> {
+                long started = System.nanoTime();
+                long deadline = started + settings.overflowBlockTimeoutMs * 1_000_000L;
+                while (System.nanoTime() - deadline < 0) {
+                    LockSupport.parkNanos(BLOCK_RETRY_NANOS);
+                    if (ring.offer(packedPos, timeMillis, playerId, worldId, actionId, oldStateId, newStateId)) {
+                        metrics.onBlockedOffer(System.nanoTime() - started);
+                        return;
+                    }
+                }
+                metrics.onBlockedOffer(System.nanoTime() - started);
+                warnOverflow("события выбрасываются после ожидания", metrics.onDropped());
+            }
+            case DROP -> warnOverflow("события выбрасываются", metrics.onDropped());
+        }
+    }
+
+    private void warnOverflow(String what, long total) {
+        long now = System.nanoTime();
+        long last = lastOverflowWarnNanos.get();
+        if (now - last >= OVERFLOW_WARN_INTERVAL_NANOS && lastOverflowWarnNanos.compareAndSet(last, now)) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Очередь записи переполнена, {} (всего: {}).", what, total);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Перевод события блока в id справочников для {@link EventRing} и обратно.
+ * <p>
+ * Со стороны захвата (поток сервера) — только лукапы в готовых картах: UUID игрока, ResourceKey мира
+ * и BlockState — канонические объекты, строки из них строятся один раз, при первой встрече.
+ * Обратный перевод делает writer (и инспект), ему аллокации не мешают.
+ */
+final class EventCodec {
+
+    private record PlayerRef(int id, String name) {}
+
+    private static final BlockAction.Type[] TYPES = BlockAction.Type.values();
+
+    private final Dictionary players;
+    private final Dictionary worlds;
+    private final BlockStatePalette palette;
+
+    private final ConcurrentHashMap<UUID, PlayerRef> playerIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, UUID> playerUuids = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ResourceKey<Level>, Integer> worldIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ResourceKey<Level>> worldKeys = new ConcurrentHashMap<>();
+    // id типа действия по ordinal и обратно
+    private final int[] actionIds = new int[TYPES.length];
+
+    /**
+     * Справочники должны быть уже загружены.
+     */
+    EventCodec(Dictionary players, Dictionary worlds, Dictionary actionTypes, BlockStatePalette palette) {
+        this.players = players;
+        this.worlds = worlds;
+        this.palette = palette;
+        for (BlockAction.Type type : TYPES) {
+            actionIds[type.ordinal()] = actionTypes.getOrAssign(type.name());
+        }
+    }
+
+    /**
+     * @param timeMillis время события: с него действует новый ник, если игрок сменил его
+     */
+    int playerId(UUID uuid, String name, long timeMillis) {
+        PlayerRef ref = playerIds.get(uuid);
+        // ник у игрока — один объект на сессию, так что обычно хватает сравнения ссылок
+        if (ref != null && (ref.name() == name || ref.name().equals(name))) {
+            return ref.id();
+        }
+        int id = players.getOrAssign(uuid.toString(), name, timeMillis / 1000L);
+        playerIds.put(uuid, new PlayerRef(id, name));
+        playerUuids.putIfAbsent(id, uuid);
+        return id;
+    }
+
+    int worldId(ResourceKey<Level> dimension) {
+        Integer id = worldIds.get(dimension);
+        if (id != null) return id;
+        int assigned = worlds.getOrAssign(dimension.location().toString());
+        worldIds.putIfAbsent(dimension, assigned);
+        worldKeys.putIfAbsent(assigned, dimension);
+        return assigned;
+    }
+
+    /**
+     * Id мира для поиска по кольцу; -1, если событий этого мира ещё не было.
+     */
+    int knownWorldId(ResourceKey<Level> dimension) {
+        Integer id = worldIds.get(dimension);
+        return id == null ? -1 : id;
+    }
+
+    int actionId(BlockAction.Type type) {
+        return actionIds[type.ordinal()];
+    }
+
+    /**
+     * 0 — состояния нет (null).
+     */
+    int stateId(BlockState state) {
+        return state == null ? 0 : palette.idOf(state);
+    }
+
+    BlockAction decode(long pos, long timeMillis, int playerId, int worldId, int actionId, int oldStateId, int newStateId) {
+        return new BlockAction(
+                typeOf(actionId),
+                playerUuids.get(playerId),
+                players.nameAt(playerId, timeMillis / 1000L),
+                worldKeys.get(worldId),
+                BlockPos.of(pos),
+                oldStateId == 0 ? null : palette.stateOf(oldStateId),
+                newStateId == 0 ? null : palette.stateOf(newStateId),
+                Instant.ofEpochMilli(timeMillis));
+    }
+
+    private BlockAction.Type typeOf(int actionId) {
+        for (BlockAction.Type type : TYPES) {
+            if (actionIds[type.ordinal()] == actionId) return type;
+        }
+        throw new IllegalStateException("неизвестный id действия в кольце событий: " + actionId);
+    }
+}
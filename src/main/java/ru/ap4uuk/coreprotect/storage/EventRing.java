@@ -0,0 +1,222 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Очередь событий блоков к writer-потоку без аллокаций и без замков: кольцо заранее выделенных слотов
+ * из примитивов (упакованная позиция, время в мс, id игрока, мира, типа действия и состояний до/после).
+ * <p>
+ * Производителей много (поток сервера, потоки модов), потребитель один — writer. У каждого слота есть
+ * номер последовательности: {@code seq == n} — слот свободен для n-го события, {@code seq == n + 1} —
+ * n-е событие записано и опубликовано. Производитель занимает номер CAS-ом по {@code head}, пишет слот
+ * и публикует его записью seq; потребитель читает опубликованные слоты подряд от {@code tail} и отдаёт
+ * их обратно, ставя {@code seq = n + capacity}. Опубликованный, но не забранный слот не меняется, пока
+ * потребитель стоит, — поэтому их можно читать и со стороны (см. {@link #scan}).
+ * <p>
+ * Потребитель, которому нечего делать, паркуется; производитель будит его, только если он действительно спит.
+ * Для наблюдения — максимальная глубина очереди и число отказов из-за переполнения.
+ */
+final class EventRing {
+
+    /**
+     * Получатель слота при чтении. Значения — как их передали в {@link #offer}.
+     */
+    @FunctionalInterface
+    interface SlotReader {
+        void accept(long pos, long timeMillis, int playerId, int worldId, int actionId, int oldStateId, int newStateId);
+    }
+
+    private static final int SPINS = 100;
+
+    private final int capacity;
+    private final int mask;
+
+    private final long[] pos;
+    private final long[] time;
+    private final int[] player;
+    private final int[] world;
+    private final int[] action;
+    private final int[] oldState;
+    private final int[] newState;
+
+    // номера последовательности слотов, см. описание класса
+    private final AtomicLongArray sequence;
+    // следующий номер для производителя
+    private final AtomicLong head = new AtomicLong();
+    // следующий номер для потребителя; двигает только он
+    private final AtomicLong tail = new AtomicLong();
+    // потребитель, уснувший в ожидании событий; будит его первый производитель, забравший ссылку
+    private final AtomicReference<Thread> waiter = new AtomicReference<>();
+
+    // Телеметрия: максимальная глубина с момента старта и отказы из-за переполнения
+    private final AtomicLong highWaterMark = new AtomicLong();
+    private final AtomicLong offerFailures = new AtomicLong();
+    private final AtomicLong wakeups = new AtomicLong();
+
+    /**
+     * @param capacity округляется вверх до степени двойки
+     */
+    EventRing(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.pos = new long[this.capacity];
+        this.time = new long[this.capacity];
+        this.player = new int[this.capacity];
+        this.world = new int[this.capacity];
+        this.action = new int[this.capacity];
+        this.oldState = new int[this.capacity];
+        this.newState = new int[this.capacity];
+        this.sequence = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Сколько событий в очереди (включая занятые, но ещё не дописанные слоты).
+     */
+    int size() {
+        // tail публикуется после всего прочитанного куска, поэтому разница может ненадолго выйти за границы
+        return (int) Math.max(0, Math.min(capacity, head.get() - tail.get()));
+    }
+
+    /**
+     * Сколько событий принято с момента старта.
+     */
+    long offered() {
+        return head.get();
+    }
+
+    /**
+     * Сколько событий забрано потребителем с момента старта. Точно — только на потоке потребителя.
+     */
+    long drained() {
+        return tail.get();
+    }
+
+    long highWaterMark() {
+        return highWaterMark.get();
+    }
+
+    long offerFailures() {
+        return offerFailures.get();
+    }
+
+    /**
+     * Сколько раз производитель будил уснувшего потребителя.
+     */
+    long wakeups() {
+        return wakeups.get();
+    }
+
+    /**
+     * Кладёт событие. false — кольцо заполнено (отказ учитывается в {@link #offerFailures}).
+     */
+    boolean offer(long packedPos, long timeMillis, int playerId, int worldId, int actionId, int oldStateId, int newStateId) {
+        long h = head.get();
+        int i;
+        while (true) {
+            i = (int) h & mask;
+            long diff = sequence.getAcquire(i) - h;
+            if (diff == 0) {
+                if (head.compareAndSet(h, h + 1)) break;
+                h = head.get();
+            } else if (diff < 0) {
+                // слот ещё не забран потребителем с прошлого круга
+                offerFailures.incrementAndGet();
+                return false;
+            } else {
+                // номер уже занял другой производитель
+                h = head.get();
+            }
+        }
+
+        pos[i] = packedPos;
+        time[i] = timeMillis;
+        player[i] = playerId;
+        world[i] = worldId;
+        action[i] = actionId;
+        oldState[i] = oldStateId;
+        newState[i] = newStateId;
+        sequence.setRelease(i, h + 1);
+
+        long depth = Math.min(capacity, h + 1 - tail.get());
+        if (depth > highWaterMark.get()) {
+            highWaterMark.accumulateAndGet(depth, Math::max);
+        }
+        if (waiter.get() != null) {
+            Thread w = waiter.getAndSet(null);
+            if (w != null) {
+                wakeups.incrementAndGet();
+                LockSupport.unpark(w);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Забирает до {@code max} событий по порядку. Только потребитель. Возвращает, сколько забрано.
+     */
+    int drain(SlotReader reader, int max) {
+        long t = tail.get();
+        int n = 0;
+        while (n < max) {
+            int i = (int) t & mask;
+            // слот занят, но ещё не дописан — остальное заберём в следующий раз, порядок важнее
+            if (sequence.getAcquire(i) != t + 1) break;
+            reader.accept(pos[i], time[i], player[i], world[i], action[i], oldState[i], newState[i]);
+            // слот прочитан — отдаём его производителю следующего круга
+            sequence.setRelease(i, t + capacity);
+            t++;
+            n++;
+        }
+        tail.lazySet(t);
+        return n;
+    }
+
+    /**
+     * Отдаёт ещё не забранные события мира {@code worldId} в позиции {@code packedPos}, от старых к новым.
+     * Потребитель в это время не должен забирать события (вызывающий держит общий с ним замок).
+     */
+    void scan(int worldId, long packedPos, SlotReader reader) {
+        long t = tail.get();
+        long h = head.get();
+        for (long s = t; s - h < 0; s++) {
+            int i = (int) s & mask;
+            // недописанный слот пропускаем: событие происходит одновременно с чтением
+            if (sequence.getAcquire(i) != s + 1) continue;
+            if (pos[i] == packedPos && world[i] == worldId) {
+                reader.accept(pos[i], time[i], player[i], world[i], action[i], oldState[i], newState[i]);
+            }
+        }
+    }
+
+    /**
+     * Ждёт событие не дольше {@code nanos}. Только потребитель. Возвращает true, если события есть.
+     */
+    boolean await(long nanos) {
+        if (size() > 0) return true;
+        // сначала коротко крутимся: под нагрузкой событие обычно приходит за микросекунды, и парковка не нужна
+        for (int spin = 0; spin < SPINS; spin++) {
+            Thread.onSpinWait();
+            if (size() > 0) return true;
+        }
+        if (nanos <= 0) return false;
+        waiter.set(Thread.currentThread());
+        try {
+            // производитель мог успеть до того, как мы записались в waiter
+            if (size() > 0) return true;
+            LockSupport.parkNanos(this, nanos);
+        } finally {
+            waiter.set(null);
+        }
+        return size() > 0;
+    }
+}
@@ -0,0 +1,276 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+import ru.ap4uuk.coreprotect.storage.StorageBackend.DbBlockAction;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * История блоков для инспекта: LRU-кэш закоммиченной истории по позициям плюс события, которые ещё
+ * не дошли до БД (лежат в кольце событий или в батче writer-потока).
+ * <p>
+ * Writer забирает события из кольца и кладёт их в {@code pending} в одном критическом участке ({@link #admit}),
+ * а убирает из pending в том же участке, где коммитит батч; там же строки дописываются в закэшированные позиции.
+ * Читатель под тем же замком фиксирует снимок WAL, копирует pending и просматривает кольцо ({@link Inflight}),
+ * поэтому «БД + pending + кольцо» — это ровно все события, без пропусков и дублей.
+ * <p>
+ * События, ушедшие в spill-журнал или выброшенные при переполнении, в pending не держатся —
+ * иначе он рос бы вместе с журналом.
+ */
+final class InspectCache {
+
+    /**
+     * События позиции, которые ещё лежат в кольце (writer их не забрал), от старых к новым.
+     * Вызывается под замком кэша — writer в это время кольцо не трогает.
+     */
+    @FunctionalInterface
+    interface Inflight {
+        void collect(ResourceKey<Level> dimension, BlockPos pos, List<BlockAction> out);
+    }
+
+    private record Key(ResourceKey<Level> dimension, long pos) {
+        static Key of(ResourceKey<Level> dimension, BlockPos pos) {
+            return new Key(dimension, BlockPos.asLong(pos.getX(), pos.getY(), pos.getZ()));
+        }
+    }
+
+    private static final class Entry {
+        final int limit;
+        // от новых к старым, не длиннее limit
+        List<DbBlockAction> rows = List.of();
+        // пока идёт загрузка из БД: закоммиченные после снимка строки, от старых к новым
+        List<DbBlockAction> committedWhileLoading = new ArrayList<>();
+
+        Entry(int limit) {
+            this.limit = limit;
+        }
+
+        boolean loading() {
+            return committedWhileLoading != null;
+        }
+    }
+
+    private static final Comparator<DbBlockAction> NEWEST_FIRST =
+            Comparator.comparingLong((DbBlockAction a) -> a.timeEpoch).reversed();
+
+    private final int capacity;
+    private final Inflight inflight;
+    // Замок связывает коммит writer-а, снимок читателя и содержимое кэша
+    private final Object lock = new Object();
+    private final LinkedHashMap<Key, Entry> entries;
+    // Забранные из кольца, но ещё не закоммиченные события по позициям, в порядке поступления
+    private final ConcurrentHashMap<Key, List<BlockAction>> pending = new ConcurrentHashMap<>();
+
+    InspectCache(int capacity, Inflight inflight) {
+        this.capacity = capacity;
+        this.inflight = inflight;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > InspectCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Writer забирает события из кольца: {@code drain} добавляет их в конец {@code batch}.
+     * Под замком, и забранные сразу попадают в pending — читатель не застанет событие ни там, ни там.
+     */
+    void admit(List<BlockAction> batch, Runnable drain) {
+        synchronized (lock) {
+            int from = batch.size();
+            drain.run();
+            for (int i = from; i < batch.size(); i++) {
+                track(batch.get(i));
+            }
+        }
+    }
+
+    private void track(BlockAction action) {
+        pending.compute(Key.of(action.dimension, action.pos), (k, list) -> {
+            if (list == null) list = new ArrayList<>(2);
+            list.add(action);
+            return list;
+        });
+    }
+
+    /**
+     * Событие потеряно при ошибке записи.
+     */
+    void untrack(BlockAction action) {
+        pending.computeIfPresent(Key.of(action.dimension, action.pos), (k, list) -> {
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (list.get(i) == action) {
+                    list.remove(i);
+                    break;
+                }
+            }
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    void untrackAll(List<BlockAction> batch) {
+        for (BlockAction action : batch) {
+            untrack(action);
+        }
+    }
+
+    /**
+     * Коммит батча writer-потоком: под замком, вместе с переносом событий из pending в кэш.
+     * {@code absorbed} — события, слитые в события батча: из pending уходят, в кэш не попадают.
+     */
+    void commit(Connection connection, List<BlockAction> batch, List<BlockAction> absorbed) throws SQLException {
+        synchronized (lock) {
+            connection.commit();
+            untrackAll(absorbed);
+            for (BlockAction action : batch) {
+                Key key = Key.of(action.dimension, action.pos);
+                untrack(action);
+                Entry entry = entries.get(key);
+                if (entry == null) continue;
+
+                DbBlockAction row = toRow(action);
+                if (entry.loading()) {
+                    entry.committedWhileLoading.add(row);
+                } else {
+                    List<DbBlockAction> rows = new ArrayList<>(entry.rows.size() + 1);
+                    rows.add(row);
+                    rows.addAll(entry.rows);
+                    entry.rows = newestFirst(rows, entry.limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * История была удалена (purge, retention) — закэшированные позиции больше не верны.
+     * Загрузки, начатые до этого, свой результат в кэш не положат.
+     */
+    void clear() {
+        synchronized (lock) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Последние {@code limit} событий по позиции, от новых к старым. {@code query} выбирает закоммиченную
+     * историю на переданном соединении — внутри уже открытой транзакции со снимком.
+     */
+    List<DbBlockAction> history(ResourceKey<Level> dimension,
+                                BlockPos pos,
+                                int limit,
+                                ReadConnectionPool readPool,
+                                SqlWork<List<DbBlockAction>> query) throws SQLException {
+        Key key = Key.of(dimension, pos);
+
+        synchronized (lock) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.loading() && entry.limit >= limit) {
+                return merge(uncommitted(key, dimension, pos), entry.rows, limit);
+            }
+        }
+
+        return readPool.withConnection(connection -> {
+            connection.setAutoCommit(false);
+            try {
+                List<BlockAction> uncommitted;
+                Entry loading = null;
+                synchronized (lock) {
+                    // первая выборка в транзакции фиксирует снимок WAL: всё, что закоммичено позже, ещё в pending
+                    try (Statement st = connection.createStatement();
+                         ResultSet rs = st.executeQuery("SELECT 1 FROM partitions LIMIT 1;")) {
+                        rs.next();
+                    }
+                    uncommitted = uncommitted(key, dimension, pos);
+
+                    Entry existing = entries.get(key);
+                    if (capacity > 0 && (existing == null || !existing.loading())) {
+                        loading = new Entry(limit);
+                        entries.put(key, loading);
+                    }
+                }
+
+                List<DbBlockAction> committed;
+                try {
+                    committed = query.run(connection);
+                } catch (SQLException e) {
+                    if (loading != null) {
+                        synchronized (lock) {
+                            entries.remove(key, loading);
+                        }
+                    }
+                    throw e;
+                }
+
+                if (loading != null) {
+                    synchronized (lock) {
+                        if (entries.get(key) == loading) {
+                            List<DbBlockAction> rows = new ArrayList<>(loading.committedWhileLoading);
+                            Collections.reverse(rows);
+                            rows.addAll(committed);
+                            loading.rows = newestFirst(rows, loading.limit);
+                            loading.committedWhileLoading = null;
+                        }
+                    }
+                }
+                return merge(uncommitted, committed, limit);
+            } finally {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Все незакоммиченные события позиции, от старых к новым: сначала забранные writer-ом, потом ещё лежащие в кольце.
+     * Только под замком.
+     */
+    private List<BlockAction> uncommitted(Key key, ResourceKey<Level> dimension, BlockPos pos) {
+        List<BlockAction> copy = new ArrayList<>();
+        pending.computeIfPresent(key, (k, list) -> {
+            copy.addAll(list);
+            return list;
+        });
+        inflight.collect(dimension, pos, copy);
+        return copy;
+    }
+
+    private static List<DbBlockAction> merge(List<BlockAction> uncommitted, List<DbBlockAction> committed, int limit) {
+        List<DbBlockAction> rows = new ArrayList<>(uncommitted.size() + committed.size());
+        for (int i = uncommitted.size() - 1; i >= 0; i--) {
+            rows.add(toRow(uncommitted.get(i)));
+        }
+        rows.addAll(committed);
+        return newestFirst(rows, limit);
+    }
+
+    /**
+     * Сортировка устойчивая: в пределах одной секунды более позднее событие остаётся выше.
+     */
+    private static List<DbBlockAction> newestFirst(List<DbBlockAction> rows, int limit) {
+        rows.sort(NEWEST_FIRST);
+        return rows.size() > limit ? List.copyOf(rows.subList(0, limit)) : List.copyOf(rows);
+    }
+
+    private static DbBlockAction toRow(BlockAction action) {
+        return new DbBlockAction(
+                action.time.toEpochMilli() / 1000L,
+                action.playerName,
+                action.type.name(),
+                BlockStatePalette.serialize(action.oldState),
+                BlockStatePalette.serialize(action.newState));
+    }
+}
@@ -0,0 +1,370 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Сегмент журнала блоков для {@link SegmentStorage}: файл фиксированного размера, отображённый в память,
+ * куда записи событий только дописываются.
+ * <p>
+ * Файл — заголовок на 64 байта и до {@code capacity} записей по 32 байта: время в мс, упакованная позиция,
+ * id игрока, состояний до/после, мира и типа действия — те же id справочников, что в {@link EventRing}, так что
+ * writer копирует слот кольца в сегмент без раскодирования. Время пишется последним и служит признаком записи:
+ * после падения процесса число записей восстанавливается по первому нулевому времени (или первой записи
+ * с id, которого нет в справочниках), а всё, что лежит дальше, затирается.
+ * <p>
+ * Пишет только writer ({@link #append}); читатели видят записи до {@link #count()} — счётчик публикуется
+ * volatile-записью после самих записей ({@link #publish}). Заполненный или устаревший сегмент запечатывается:
+ * сводка ({@link SegmentIndex}) уходит в {@code .idx} рядом, и больше сегмент не меняется.
+ */
+final class LogSegment {
+
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    private static final int MAGIC = 0x43505347; // "CPSG"
+    private static final int VERSION = 1;
+
+    // смещения полей записи
+    private static final int TIME = 0;
+    private static final int POS = 8;
+    private static final int PLAYER = 16;
+    private static final int OLD_STATE = 20;
+    private static final int NEW_STATE = 24;
+    private static final int WORLD = 28;
+    private static final int ACTION = 30;
+
+    /**
+     * Проверка id записи по справочникам при восстановлении незапечатанного сегмента.
+     */
+    @FunctionalInterface
+    interface RecordCheck {
+        boolean isKnown(int playerId, int worldId, int actionId, int oldStateId, int newStateId);
+    }
+
+    private final long id;
+    private final Path file;
+    private final int capacity;
+    private final long createdMillis;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    // у активного сегмента сводку ведёт writer, у запечатанного она не меняется
+    private final SegmentIndex index;
+
+    // только writer: записано, но, может быть, ещё не опубликовано
+    private int written;
+    private int forced;
+    private volatile int count;
+    private volatile boolean sealed;
+
+    private LogSegment(long id, Path file, int capacity, long createdMillis, FileChannel channel,
+                       MappedByteBuffer map, SegmentIndex index, int count, boolean sealed) {
+        this.id = id;
+        this.file = file;
+        this.capacity = capacity;
+        this.createdMillis = createdMillis;
+        this.channel = channel;
+        this.map = map;
+        this.index = index;
+        this.written = count;
+        this.forced = count;
+        this.count = count;
+        this.sealed = sealed;
+    }
+
+    static Path fileFor(Path dir, long id) {
+        return dir.resolve(String.format("seg-%016x.log", id));
+    }
+
+    /**
+     * Id сегмента по имени файла; -1, если это не файл сегмента.
+     */
+    static long idOf(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("seg-") || !name.endsWith(".log")) return -1;
+        try {
+            return Long.parseLong(name.substring(4, name.length() - 4), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Новый пустой сегмент. Файл сразу нужного размера (разреженный — место на диске занимают только записи).
+     */
+    static LogSegment create(Path dir, long id, int capacity) throws IOException {
+        Path file = fileFor(dir, id);
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            long now = System.currentTimeMillis();
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, RECORD_SIZE);
+            map.putInt(12, capacity);
+            map.putLong(16, id);
+            map.putLong(24, now);
+            map.force(0, HEADER_SIZE);
+            return new LogSegment(id, file, capacity, now, channel, map, new SegmentIndex(), 0, false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Открывает сегмент с прошлого запуска. Запечатанный ({@code .idx} есть) — только для чтения;
+     * иначе число записей и сводка восстанавливаются чтением сегмента, и его можно дописывать.
+     * Восстановление останавливается на первой записи, которую не пропустил {@code known}: её справочники
+     * не успели попасть на диск, а записи после неё моложе.
+     */
+    static LogSegment open(Path file, RecordCheck known) throws IOException {
+        long id = idOf(file);
+        Path indexFile = indexFileOf(file);
+        SegmentIndex index = null;
+        if (Files.exists(indexFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                index = SegmentIndex.read(in);
+            } catch (IOException e) {
+                Coreprotect.LOGGER.warn("[Coreprotect] Индекс сегмента {} повреждён, пересобираем", file.getFileName(), e);
+            }
+        }
+
+        boolean sealed = index != null;
+        FileChannel channel = sealed
+                ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("неизвестный формат сегмента: " + file);
+            }
+            int capacity = header.getInt(12);
+            long createdMillis = header.getLong(24);
+
+            if (sealed) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        HEADER_SIZE + (long) index.count * RECORD_SIZE);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                return new LogSegment(id, file, capacity, createdMillis, channel, map, index, index.count, true);
+            }
+
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            index = new SegmentIndex();
+            int count = 0;
+            while (count < capacity) {
+                int offset = HEADER_SIZE + count * RECORD_SIZE;
+                long time = map.getLong(offset + TIME);
+                if (time == 0) break;
+                int world = map.getChar(offset + WORLD);
+                if (!known.isKnown(map.getInt(offset + PLAYER), world, map.get(offset + ACTION) & 0xFF,
+                        map.getInt(offset + OLD_STATE), map.getInt(offset + NEW_STATE))) {
+                    break;
+                }
+                long pos = map.getLong(offset + POS);
+                index.add(time, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos), world);
+                count++;
+            }
+            int dropped = clearTail(map, count, capacity);
+            if (dropped > 0) {
+                Coreprotect.LOGGER.warn("[Coreprotect] Сегмент {}: отброшено {} недописанных записей после {}",
+                        file.getFileName(), dropped, count);
+            }
+            return new LogSegment(id, file, capacity, createdMillis, channel, map, index, count, false);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Затирает время у записей после восстановленных, чтобы следующее восстановление не приняло их за целые:
+     * страницы отображения уходят на диск в любом порядке. Возвращает, сколько записей затёрто.
+     */
+    private static int clearTail(MappedByteBuffer map, int count, int capacity) {
+        int cleared = 0;
+        int first = -1;
+        int last = -1;
+        for (int i = count; i < capacity; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            if (map.getLong(offset + TIME) == 0) continue;
+            map.putLong(offset + TIME, 0);
+            if (first < 0) first = i;
+            last = i;
+            cleared++;
+        }
+        if (cleared > 0) {
+            map.force(HEADER_SIZE + first * RECORD_SIZE, (last - first + 1) * RECORD_SIZE);
+        }
+        return cleared;
+    }
+
+    private static Path indexFileOf(Path file) {
+        String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.length() - 4) + ".idx");
+    }
+
+    long id() {
+        return id;
+    }
+
+    long createdMillis() {
+        return createdMillis;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    boolean isFull() {
+        return written >= capacity;
+    }
+
+    /**
+     * Сколько ещё записей поместится. Только writer.
+     */
+    int remaining() {
+        return capacity - written;
+    }
+
+    /**
+     * Опубликованные записи; читать можно индексы меньше.
+     */
+    int count() {
+        return count;
+    }
+
+    long sizeBytes() {
+        return HEADER_SIZE + (long) count * RECORD_SIZE;
+    }
+
+    /**
+     * Сводка запечатанного сегмента. У активного — только writer и под замком записи (см. {@link SegmentIndex}).
+     */
+    SegmentIndex index() {
+        return index;
+    }
+
+    /**
+     * Дописывает запись, не публикуя её. Только writer; false — сегмент полон.
+     */
+    boolean append(long pos, long timeMillis, int playerId, int worldId, int actionId, int oldStateId, int newStateId) {
+        if (written >= capacity) return false;
+        int offset = HEADER_SIZE + written * RECORD_SIZE;
+        map.putLong(offset + POS, pos);
+        map.putInt(offset + PLAYER, playerId);
+        map.putInt(offset + OLD_STATE, oldStateId);
+        map.putInt(offset + NEW_STATE, newStateId);
+        map.putChar(offset + WORLD, (char) worldId);
+        map.put(offset + ACTION, (byte) actionId);
+        // время последним: ненулевое время — признак целой записи при восстановлении
+        map.putLong(offset + TIME, timeMillis);
+        index.add(timeMillis, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos), worldId);
+        written++;
+        return true;
+    }
+
+    /**
+     * Делает дописанные записи видимыми читателям.
+     */
+    void publish() {
+        count = written;
+    }
+
+    /**
+     * Сбрасывает на диск записи, дописанные после прошлого вызова. Только writer.
+     */
+    void force() {
+        int upTo = written;
+        if (upTo == forced) return;
+        map.force(HEADER_SIZE + forced * RECORD_SIZE, (upTo - forced) * RECORD_SIZE);
+        forced = upTo;
+    }
+
+    /**
+     * Запечатывает сегмент: записи на диск, сводка в {@code .idx} (через временный файл, чтобы не было
+     * половины индекса). Только writer, после {@link #publish}.
+     */
+    void seal() throws IOException {
+        force();
+        Path indexFile = indexFileOf(file);
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            index.write(out);
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sealed = true;
+    }
+
+    /**
+     * Читает записи {@code [0, limit)} по порядку.
+     */
+    void scan(int limit, EventRing.SlotReader reader) {
+        for (int i = 0; i < limit; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            reader.accept(map.getLong(offset + POS), map.getLong(offset + TIME), map.getInt(offset + PLAYER),
+                    map.getChar(offset + WORLD), map.get(offset + ACTION) & 0xFF,
+                    map.getInt(offset + OLD_STATE), map.getInt(offset + NEW_STATE));
+        }
+    }
+
+    /**
+     * Как {@link #scan}, но только записи одной позиции одного мира; сравнение — прямо по отображению, без вызова.
+     */
+    void scanPosition(int limit, long packedPos, int worldId, EventRing.SlotReader reader) {
+        for (int i = 0; i < limit; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            if (map.getLong(offset + POS) != packedPos || map.getChar(offset + WORLD) != worldId) continue;
+            reader.accept(packedPos, map.getLong(offset + TIME), map.getInt(offset + PLAYER), worldId,
+                    map.get(offset + ACTION) & 0xFF, map.getInt(offset + OLD_STATE), map.getInt(offset + NEW_STATE));
+        }
+    }
+
+    /**
+     * Закрывает файл; отображение освободит сборщик мусора.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Ошибка закрытия сегмента {}", file.getFileName(), e);
+        }
+    }
+
+    /**
+     * Удаляет файлы сегмента. false — не вышло (например, файл ещё отображён в Windows); повторится при старте.
+     */
+    boolean delete() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(indexFileOf(file));
+            return true;
+        } catch (IOException e) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Не удалось удалить сегмент {}", file.getFileName(), e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Долгая операция над БД, которую writer-поток выполняет короткими шагами между батчами событий.
+ * Шаг сам коммитит свою работу; при SQLException writer откатывает транзакцию и снимает задачу.
+ */
+interface MaintenanceTask {
+
+    /**
+     * Выполняет один шаг (десятки миллисекунд). Возвращает true, когда задача завершена.
+     */
+    boolean step(Connection connection) throws SQLException;
+
+    /**
+     * Задача снята из-за ошибки или остановки сервера.
+     */
+    void failed(Exception e);
+}
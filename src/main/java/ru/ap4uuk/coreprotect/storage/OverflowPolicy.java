@@ -0,0 +1,14 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * Что делать с событием, если очередь writer-потока заполнена.
+ * Ни одна из политик не пишет в SQLite из потока, который логирует событие.
+ */
+public enum OverflowPolicy {
+    /** Дописать событие в append-only журнал на диске, writer дочитает его позже. */
+    SPILL,
+    /** Подождать свободного места в очереди не дольше overflowBlockTimeoutMs, затем выбросить. */
+    BLOCK,
+    /** Сразу выбросить событие, только увеличить счётчик. */
+    DROP
+}
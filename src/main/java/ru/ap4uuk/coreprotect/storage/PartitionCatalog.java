@@ -0,0 +1,179 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Список партиций журнала блоков: каждая партиция — отдельная таблица с колонками block_actions,
+ * хранящая события с {@code start_epoch <= time_epoch < end_epoch}. Диапазоны не пересекаются.
+ * <p>
+ * Границы хранятся в таблице {@code partitions}, а не выводятся из имени, поэтому длину партиции в конфиге
+ * можно менять: новые партиции подрезаются по соседним. Таблица {@code block_actions}, если в ней были данные
+ * до партиционирования, регистрируется как обычная партиция со своим диапазоном.
+ * <p>
+ * Создаёт и удаляет партиции только writer-поток; читатели берут неизменяемый снимок через {@link #since}.
+ */
+final class PartitionCatalog {
+
+    record Partition(String table, long startEpoch, long endEpoch) {
+        boolean contains(long epochSeconds) {
+            return epochSeconds >= startEpoch && epochSeconds < endEpoch;
+        }
+    }
+
+    private static final DateTimeFormatter TABLE_SUFFIX =
+            DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    // по возрастанию start_epoch; заменяется целиком
+    private volatile List<Partition> partitions = List.of();
+
+    void load(Connection connection) throws SQLException {
+        List<Partition> loaded = new ArrayList<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT name, start_epoch, end_epoch FROM partitions ORDER BY start_epoch;")) {
+            while (rs.next()) {
+                loaded.add(new Partition(rs.getString(1), rs.getLong(2), rs.getLong(3)));
+            }
+        }
+        partitions = List.copyOf(loaded);
+    }
+
+    /**
+     * Партиция, в которую попадает момент времени, или null.
+     */
+    Partition find(long epochSeconds) {
+        for (Partition p : partitions) {
+            if (p.contains(epochSeconds)) return p;
+        }
+        return null;
+    }
+
+    /**
+     * Партиции, в которых могут быть события не старше {@code sinceEpochSeconds}, по возрастанию времени.
+     */
+    List<Partition> since(long sinceEpochSeconds) {
+        List<Partition> all = partitions;
+        List<Partition> result = new ArrayList<>(all.size());
+        for (Partition p : all) {
+            if (p.endEpoch() > sinceEpochSeconds) result.add(p);
+        }
+        return result;
+    }
+
+    List<Partition> all() {
+        return partitions;
+    }
+
+    /**
+     * Создаёт партицию под момент времени: {@code [floor(t / span) * span, +span)}, подрезанную по соседям.
+     * Таблица, индексы и запись в каталоге коммитятся сразу, отдельной транзакцией. Только writer-поток.
+     */
+    Partition create(Connection connection, long epochSeconds, long spanSeconds) throws SQLException {
+        long start = Math.floorDiv(epochSeconds, spanSeconds) * spanSeconds;
+        long end = start + spanSeconds;
+        for (Partition p : partitions) {
+            if (p.endEpoch() <= epochSeconds) start = Math.max(start, p.endEpoch());
+            if (p.startEpoch() > epochSeconds) end = Math.min(end, p.startEpoch());
+        }
+
+        String table = "block_actions_" + TABLE_SUFFIX.format(Instant.ofEpochSecond(start));
+        for (Partition p : partitions) {
+            if (p.table().equals(table)) {
+                table = table + "_" + start;
+                break;
+            }
+        }
+
+        try (Statement st = connection.createStatement()) {
+            createTable(st, table);
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "INSERT INTO partitions (name, start_epoch, end_epoch) VALUES (?, ?, ?);")) {
+                ps.setString(1, table);
+                ps.setLong(2, start);
+                ps.setLong(3, end);
+                ps.executeUpdate();
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+
+        Partition created = new Partition(table, start, end);
+        List<Partition> updated = new ArrayList<>(partitions);
+        updated.add(created);
+        updated.sort(Comparator.comparingLong(Partition::startEpoch));
+        partitions = List.copyOf(updated);
+        return created;
+    }
+
+    /**
+     * Партиции, целиком лежащие раньше {@code cutoffEpochSeconds}.
+     */
+    List<Partition> olderThan(long cutoffEpochSeconds) {
+        List<Partition> expired = new ArrayList<>();
+        for (Partition p : partitions) {
+            if (p.endEpoch() <= cutoffEpochSeconds) expired.add(p);
+        }
+        return expired;
+    }
+
+    /**
+     * Удаляет партиции целиком. Это DROP TABLE, а не DELETE, поэтому стоит столько же,
+     * сколько удаление пустой таблицы. Коммитит сам. Только writer-поток.
+     */
+    void drop(Connection connection, List<Partition> dropped) throws SQLException {
+        if (dropped.isEmpty()) return;
+
+        try (Statement st = connection.createStatement();
+             PreparedStatement ps = connection.prepareStatement("DELETE FROM partitions WHERE name = ?;")) {
+            for (Partition p : dropped) {
+                st.execute("DROP TABLE IF EXISTS " + p.table() + ";");
+                ps.setString(1, p.table());
+                ps.executeUpdate();
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+
+        List<Partition> remaining = new ArrayList<>(partitions);
+        remaining.removeAll(dropped);
+        partitions = List.copyOf(remaining);
+    }
+
+    /**
+     * Таблица партиции: та же структура и индексы, что у block_actions (v3). Индексы называются
+     * {@code idx_<таблица>_pos / _player_time / _chunk} — запросы ссылаются на них через INDEXED BY.
+     */
+    static void createTable(Statement st, String table) throws SQLException {
+        st.execute("""
+            CREATE TABLE %s (
+                id INTEGER PRIMARY KEY,
+                time_epoch INTEGER NOT NULL,
+                player_id INTEGER NOT NULL,
+                world_id INTEGER NOT NULL,
+                x INTEGER NOT NULL,
+                y INTEGER NOT NULL,
+                z INTEGER NOT NULL,
+                action_id INTEGER NOT NULL,
+                old_block_id INTEGER,
+                new_block_id INTEGER,
+                chunk_key INTEGER NOT NULL DEFAULT 0
+            );
+            """.formatted(table));
+        st.execute("CREATE INDEX idx_%1$s_pos ON %1$s (world_id, x, y, z);".formatted(table));
+        st.execute("CREATE INDEX idx_%1$s_player_time ON %1$s (player_id, time_epoch);".formatted(table));
+        st.execute("CREATE INDEX idx_%1$s_chunk ON %1$s (world_id, chunk_key, time_epoch);".formatted(table));
+    }
+}
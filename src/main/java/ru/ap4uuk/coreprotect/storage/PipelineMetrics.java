@@ -0,0 +1,268 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Метрики записи событий: очередь к writer-у, скорость приёма и записи, размеры батчей и время коммитов,
+ * переполнения с ожиданиями потока сервера и задержки выборок. Всё на атомарных счётчиках — писать можно с любого потока,
+ * читать — из {@code /co status} и через JMX. На потоке сервера метрики не добавляют ни замков, ни аллокаций:
+ * принятые события считает само кольцо, остальное отмечает writer и потоки выборок.
+ */
+public final class PipelineMetrics implements PipelineMetricsMBean {
+
+    private static final String DOMAIN = "ru.ap4uuk.coreprotect";
+
+    private final EventRing ring;
+    private final OverflowPolicy overflowPolicy;
+    private final RateMeter captured = new RateMeter();
+    private final RateMeter written = new RateMeter();
+    private final Histogram batchSizes = new Histogram();
+    // в микросекундах
+    private final Histogram commitMicros = new Histogram();
+    private final AtomicLong eventsWritten = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // сколько поток сервера ждал места в очереди (политика BLOCK), в микросекундах
+    private final Histogram blockWaitMicros = new Histogram();
+    private final Map<QueryStats.Type, QueryStats> queries = new EnumMap<>(QueryStats.Type.class);
+    // сколько принятых событий кольца уже отмечено в captured; только writer-поток
+    private long capturedSampled;
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    PipelineMetrics(EventRing ring, OverflowPolicy overflowPolicy) {
+        this.ring = ring;
+        this.overflowPolicy = overflowPolicy;
+        for (QueryStats.Type type : QueryStats.Type.values()) {
+            queries.put(type, new QueryStats(type));
+        }
+    }
+
+    /**
+     * Переносит в скорость приёма события, принятые кольцом с прошлого раза. Только writer-поток, на каждом круге.
+     */
+    void sampleCaptured() {
+        long offered = ring.offered();
+        captured.mark(offered - capturedSampled);
+        capturedSampled = offered;
+    }
+
+    void onBatchCommitted(int rows, long nanos) {
+        batchSizes.record(rows);
+        commitMicros.record(nanos / 1_000);
+        eventsWritten.addAndGet(rows);
+        written.mark(rows);
+    }
+
+    long onSpilled() {
+        return spilled.incrementAndGet();
+    }
+
+    long onDropped() {
+        return dropped.incrementAndGet();
+    }
+
+    /**
+     * Поток сервера ждал место в очереди {@code nanos} (политика BLOCK) — дождался или событие выброшено.
+     */
+    void onBlockedOffer(long nanos) {
+        blockWaitMicros.record(nanos / 1_000);
+    }
+
+    QueryStats query(QueryStats.Type type) {
+        return queries.get(type);
+    }
+
+    /**
+     * Оборачивает выборку потока: время до первой строки (или до конца, если строк нет) идёт в {@code type}.
+     */
+    <T> ActionStream.Producer<T> timed(QueryStats.Type type, ActionStream.Producer<T> producer) {
+        QueryStats stats = queries.get(type);
+        return sink -> {
+            long started = System.nanoTime();
+            boolean[] first = {true};
+            try {
+                producer.run(row -> {
+                    if (first[0]) {
+                        first[0] = false;
+                        stats.record(System.nanoTime() - started);
+                    }
+                    return sink.accept(row);
+                });
+            } finally {
+                if (first[0]) {
+                    stats.record(System.nanoTime() - started);
+                }
+            }
+        };
+    }
+
+    /**
+     * Задержки выборок по типам, в порядке {@link QueryStats.Type}.
+     */
+    public List<QueryStats> queries() {
+        return List.copyOf(queries.values());
+    }
+
+    /**
+     * Регистрирует MBean-ы в платформенном MBeanServer. Ошибка JMX не мешает работе — только логируется.
+     */
+    synchronized void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=Pipeline"), this);
+            for (QueryStats stats : queries.values()) {
+                register(server, new ObjectName(DOMAIN + ":type=Query,name=" + stats.type().label), stats);
+            }
+        } catch (JMException e) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Не удалось зарегистрировать JMX-метрики", e);
+        }
+    }
+
+    synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                Coreprotect.LOGGER.warn("[Coreprotect] Не удалось снять JMX-метрику {}", name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        // остался от прошлого запуска сервера в той же JVM (интегрированный сервер)
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    @Override
+    public int getQueueSize() {
+        return ring.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return ring.capacity();
+    }
+
+    @Override
+    public long getQueueHighWaterMark() {
+        return ring.highWaterMark();
+    }
+
+    @Override
+    public long getQueueOfferFailures() {
+        return ring.offerFailures();
+    }
+
+    @Override
+    public double getCapturedPerSecond() {
+        return captured.perSecond();
+    }
+
+    @Override
+    public double getWrittenPerSecond() {
+        return written.perSecond();
+    }
+
+    @Override
+    public long getEventsWritten() {
+        return eventsWritten.get();
+    }
+
+    @Override
+    public long getBatchesCommitted() {
+        return batchSizes.count();
+    }
+
+    @Override
+    public long getBatchSizeP50() {
+        return batchSizes.percentile(0.50);
+    }
+
+    @Override
+    public long getBatchSizeP99() {
+        return batchSizes.percentile(0.99);
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSizes.max();
+    }
+
+    @Override
+    public double getCommitP50Millis() {
+        return commitMicros.percentile(0.50) / 1_000.0;
+    }
+
+    @Override
+    public double getCommitP99Millis() {
+        return commitMicros.percentile(0.99) / 1_000.0;
+    }
+
+    @Override
+    public double getCommitMaxMillis() {
+        return commitMicros.max() / 1_000.0;
+    }
+
+    @Override
+    public long getSpilledEvents() {
+        return spilled.get();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return overflowPolicy.name();
+    }
+
+    @Override
+    public long getBlockedOffers() {
+        return blockWaitMicros.count();
+    }
+
+    @Override
+    public double getBlockWaitP99Millis() {
+        return blockWaitMicros.percentile(0.99) / 1_000.0;
+    }
+
+    @Override
+    public double getBlockWaitMaxMillis() {
+        return blockWaitMicros.max() / 1_000.0;
+    }
+
+    @Override
+    public long getWriterWakeups() {
+        return ring.wakeups();
+    }
+
+    /**
+     * Writer не успевает: очередь заполнена больше чем на четверть, или за окно событий принято заметно
+     * больше, чем записано, а очередь не пуста.
+     */
+    public boolean isFallingBehind() {
+        int size = ring.size();
+        if (size > ring.capacity() / 4) return true;
+        double in = captured.perSecond();
+        return size > 0 && in > 0 && written.perSecond() < in * 0.9;
+    }
+}
@@ -0,0 +1,50 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * JMX-вид {@link PipelineMetrics}: {@code ru.ap4uuk.coreprotect:type=Pipeline}. Счётчики — с момента старта,
+ * скорости — за последние секунды, время — в миллисекундах.
+ */
+public interface PipelineMetricsMBean {
+
+    int getQueueSize();
+
+    int getQueueCapacity();
+
+    long getQueueHighWaterMark();
+
+    long getQueueOfferFailures();
+
+    double getCapturedPerSecond();
+
+    double getWrittenPerSecond();
+
+    long getEventsWritten();
+
+    long getBatchesCommitted();
+
+    long getBatchSizeP50();
+
+    long getBatchSizeP99();
+
+    long getBatchSizeMax();
+
+    double getCommitP50Millis();
+
+    double getCommitP99Millis();
+
+    double getCommitMaxMillis();
+
+    String getOverflowPolicy();
+
+    long getSpilledEvents();
+
+    long getDroppedEvents();
+
+    long getBlockedOffers();
+
+    double getBlockWaitP99Millis();
+
+    double getBlockWaitMaxMillis();
+
+    long getWriterWakeups();
+}
@@ -0,0 +1,24 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * Прогресс очистки истории ({@link DatabaseManager#startPurge}). Методы вызываются из writer-потока —
+ * всё, что трогает мир или игроков, нужно перекидывать на серверный поток.
+ */
+public interface PurgeListener {
+
+    /**
+     * @param deletedRows         сколько строк удалено по одной (DELETE)
+     * @param droppedPartitions   сколько партиций удалено целиком
+     * @param partitionsDone      сколько партиций уже обработано
+     * @param partitionsTotal     сколько партиций затрагивает очистка
+     */
+    void onProgress(long deletedRows, int droppedPartitions, int partitionsDone, int partitionsTotal);
+
+    /**
+     * @param freedPages страниц, возвращённых ОС через incremental_vacuum; -1 если vacuum не запрашивался
+     *                   или недоступен (БД создана без auto_vacuum = INCREMENTAL)
+     */
+    void onFinished(long deletedRows, int droppedPartitions, long freedPages, long elapsedMs);
+
+    void onFailed(Exception e);
+}
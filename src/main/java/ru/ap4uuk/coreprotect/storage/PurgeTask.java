@@ -0,0 +1,270 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import org.sqlite.SQLiteConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Очистка истории старше заданного момента, по шагу за раз на writer-потоке.
+ * <p>
+ * Партиции, целиком попавшие под очистку, удаляются через DROP TABLE. Из остальных (граница очистки внутри
+ * партиции или фильтр по миру) строки удаляются кусками по {@link #CHUNK_ROWS}, с курсором по id —
+ * уже просмотренные строки повторно не сканируются. Один шаг длится не дольше {@link #STEP_NANOS}
+ * и коммитится сам, так что writer между шагами успевает записывать события.
+ * <p>
+ * Затем холодные блоки ({@link ColdStore}): целиком старые удаляются, у пересекающих границу старые строки
+ * вырезаются и блок перепаковывается. Блоки ещё не завершённого сжатия чистятся так же — иначе удалённые
+ * из партиции строки вернулись бы вместе с ними.
+ * <p>
+ * В конце по желанию выполняется {@code PRAGMA incremental_vacuum} — тоже порциями.
+ */
+final class PurgeTask implements MaintenanceTask {
+
+    private static final int CHUNK_ROWS = 1000;
+    private static final int COLD_BLOCKS = 64;
+    private static final int VACUUM_PAGES = 512;
+    private static final long STEP_NANOS = 25_000_000L;
+    private static final long PROGRESS_INTERVAL_NANOS = 5_000_000_000L;
+
+    private enum Phase { DELETE, COLD, VACUUM, DONE }
+
+    /** Холодный блок, попавший под очистку; data не читаем, если блок удаляется целиком. */
+    private record ColdBlock(long id, long chunkKey, long maxTime, int rowCount, byte[] data) {}
+
+    private final DatabaseManager db;
+    private final long cutoffEpochSeconds;
+    private final Integer worldId; // null — все миры
+    private final boolean vacuum;
+    private final PurgeListener listener;
+    private final List<PartitionCatalog.Partition> partitions;
+
+    private final long startedNanos = System.nanoTime();
+    private long lastProgressNanos = startedNanos;
+
+    private Phase phase = Phase.DELETE;
+    private int partitionIndex;
+    private long lastId;
+    private long deletedRows;
+    private int droppedPartitions;
+    private long freedPages = -1;
+
+    PurgeTask(DatabaseManager db,
+              PartitionCatalog catalog,
+              long cutoffEpochSeconds,
+              Integer worldId,
+              boolean vacuum,
+              PurgeListener listener) {
+        this.db = db;
+        this.cutoffEpochSeconds = cutoffEpochSeconds;
+        this.worldId = worldId;
+        this.vacuum = vacuum;
+        this.listener = listener;
+
+        List<PartitionCatalog.Partition> affected = new ArrayList<>();
+        for (PartitionCatalog.Partition p : catalog.all()) {
+            if (p.startEpoch() < cutoffEpochSeconds) affected.add(p);
+        }
+        this.partitions = affected;
+    }
+
+    @Override
+    public boolean step(Connection connection) throws SQLException {
+        long deadline = System.nanoTime() + STEP_NANOS;
+        long deletedBefore = deletedRows;
+
+        while (phase != Phase.DONE && System.nanoTime() < deadline) {
+            if (phase == Phase.DELETE) {
+                deleteStep(connection);
+            } else if (phase == Phase.COLD) {
+                coldStep(connection);
+            } else {
+                vacuumStep(connection);
+            }
+        }
+        connection.commit();
+        if (deletedRows != deletedBefore) {
+            db.onHistoryDeleted();
+        }
+
+        if (phase == Phase.DONE) {
+            listener.onFinished(deletedRows, droppedPartitions, freedPages,
+                    (System.nanoTime() - startedNanos) / 1_000_000L);
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+            lastProgressNanos = now;
+            listener.onProgress(deletedRows, droppedPartitions, partitionIndex, partitions.size());
+        }
+        return false;
+    }
+
+    @Override
+    public void failed(Exception e) {
+        listener.onFailed(e);
+    }
+
+    private void deleteStep(Connection connection) throws SQLException {
+        if (partitionIndex >= partitions.size()) {
+            phase = Phase.COLD;
+            lastId = 0;
+            return;
+        }
+
+        PartitionCatalog.Partition partition = partitions.get(partitionIndex);
+        if (worldId == null && partition.endEpoch() <= cutoffEpochSeconds) {
+            // DROP коммитится сам, поэтому сначала фиксируем то, что уже удалено в этом шаге
+            connection.commit();
+            db.dropPartitions(List.of(partition));
+            droppedPartitions++;
+            nextPartition();
+            return;
+        }
+
+        int found;
+        try {
+            found = deleteChunk(connection, partition);
+        } catch (SQLException e) {
+            // партицию тем временем сжали или удалили по сроку хранения; холодные блоки дочистит следующая фаза
+            if (!ReadConnectionPool.isMissingTable(e)) throw e;
+            found = 0;
+        }
+        if (found < CHUNK_ROWS) {
+            nextPartition();
+        }
+    }
+
+    /**
+     * Удаляет следующую порцию подходящих строк партиции. Возвращает, сколько строк просмотрено
+     * (меньше CHUNK_ROWS — партиция дочищена).
+     */
+    private int deleteChunk(Connection connection, PartitionCatalog.Partition partition) throws SQLException {
+        String filter = "time_epoch < ?" + (worldId != null ? " AND world_id = ?" : "");
+
+        int found = 0;
+        long chunkLastId = lastId;
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id FROM " + partition.table() + " WHERE id > ? AND " + filter + " ORDER BY id LIMIT ?;")) {
+            int idx = 1;
+            ps.setLong(idx++, lastId);
+            ps.setLong(idx++, cutoffEpochSeconds);
+            if (worldId != null) ps.setInt(idx++, worldId);
+            ps.setInt(idx, CHUNK_ROWS);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    chunkLastId = rs.getLong(1);
+                    found++;
+                }
+            }
+        }
+        if (found == 0) return 0;
+
+        try (PreparedStatement ps = connection.prepareStatement(
+                "DELETE FROM " + partition.table() + " WHERE id > ? AND id <= ? AND " + filter + ";")) {
+            int idx = 1;
+            ps.setLong(idx++, lastId);
+            ps.setLong(idx++, chunkLastId);
+            ps.setLong(idx++, cutoffEpochSeconds);
+            if (worldId != null) ps.setInt(idx, worldId);
+            deletedRows += ps.executeUpdate();
+        }
+        lastId = chunkLastId;
+        return found;
+    }
+
+    private void nextPartition() {
+        partitionIndex++;
+        lastId = 0;
+    }
+
+    /**
+     * Следующая порция холодных блоков, где есть строки старше границы (курсор по id блока — тот же lastId).
+     */
+    private void coldStep(Connection connection) throws SQLException {
+        String filter = "min_time < ?" + (worldId != null ? " AND world_id = ?" : "");
+        // сначала читаем порцию целиком: менять таблицу под открытым курсором по ней не стоит
+        List<ColdBlock> blocks = new ArrayList<>(COLD_BLOCKS);
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id, chunk_key, max_time, row_count, data FROM cold_blocks WHERE id > ? AND " + filter
+                        + " ORDER BY id LIMIT ?;")) {
+            int idx = 1;
+            ps.setLong(idx++, lastId);
+            ps.setLong(idx++, cutoffEpochSeconds);
+            if (worldId != null) ps.setInt(idx++, worldId);
+            ps.setInt(idx, COLD_BLOCKS);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long maxTime = rs.getLong("max_time");
+                    blocks.add(new ColdBlock(rs.getLong("id"), rs.getLong("chunk_key"), maxTime, rs.getInt("row_count"),
+                            maxTime < cutoffEpochSeconds ? null : rs.getBytes("data")));
+                }
+            }
+        }
+
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM cold_blocks WHERE id = ?;");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE cold_blocks SET min_time = ?, max_time = ?, min_y = ?, max_y = ?, row_count = ?, data = ? WHERE id = ?;")) {
+            for (ColdBlock block : blocks) {
+                lastId = block.id();
+                if (block.maxTime() < cutoffEpochSeconds) {
+                    delete.setLong(1, block.id());
+                    delete.executeUpdate();
+                    deletedRows += block.rowCount();
+                    continue;
+                }
+
+                ColdBlockCodec.Rows rows = ColdStore.decode(block.id(), block.data(), block.chunkKey());
+                ColdBlockCodec.Rows kept = new ColdBlockCodec.Rows(rows.count);
+                for (int i = 0; i < rows.count; i++) {
+                    if (rows.time[i] < cutoffEpochSeconds) continue;
+                    kept.add(rows.time[i], rows.x[i], rows.y[i], rows.z[i], rows.player[i], rows.action[i],
+                            rows.oldState[i], rows.newState[i]);
+                }
+                // max_time не старше границы, так что хотя бы одна строка осталась
+                ColdStore.bindBlock(update, 1, kept);
+                update.setLong(7, block.id());
+                update.executeUpdate();
+                deletedRows += rows.count - kept.count;
+            }
+        }
+        if (blocks.size() < COLD_BLOCKS) {
+            phase = vacuum ? Phase.VACUUM : Phase.DONE;
+        }
+    }
+
+    private void vacuumStep(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            if (freedPages < 0) {
+                // incremental_vacuum работает только в режиме auto_vacuum = INCREMENTAL (2)
+                try (ResultSet rs = st.executeQuery("PRAGMA auto_vacuum;")) {
+                    if (!rs.next() || rs.getInt(1) != 2) {
+                        phase = Phase.DONE;
+                        return;
+                    }
+                }
+                freedPages = 0;
+            }
+
+            long free;
+            try (ResultSet rs = st.executeQuery("PRAGMA freelist_count;")) {
+                free = rs.next() ? rs.getLong(1) : 0;
+            }
+            if (free == 0) {
+                phase = Phase.DONE;
+                return;
+            }
+            long pages = Math.min(free, VACUUM_PAGES);
+            // JDBC-шный execute делает один sqlite3_step, а incremental_vacuum освобождает по странице за шаг —
+            // поэтому через sqlite3_exec, который прогоняет прагму до конца
+            connection.unwrap(SQLiteConnection.class).getDatabase()._exec("PRAGMA incremental_vacuum(" + pages + ");");
+            freedPages += pages;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * Задержки выборок одного типа. Для потоковых выборок (rollback, restore, сессии) меряется время
+ * до первой строки — столько ждёт игрок, пока задача начнёт менять мир; для пустого результата — до конца выборки.
+ */
+public final class QueryStats implements QueryStatsMBean {
+
+    public enum Type {
+        INSPECT("inspect"),
+        ROLLBACK("rollback"),
+        RESTORE("restore"),
+        SESSION("session");
+
+        public final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Type type;
+    // в микросекундах
+    private final Histogram micros = new Histogram();
+
+    QueryStats(Type type) {
+        this.type = type;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    void record(long nanos) {
+        micros.record(nanos / 1_000);
+    }
+
+    @Override
+    public long getCount() {
+        return micros.count();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return micros.mean() / 1_000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return micros.percentile(0.50) / 1_000.0;
+    }
+
+    @Override
+    public double getP95Millis() {
+        return micros.percentile(0.95) / 1_000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return micros.percentile(0.99) / 1_000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return micros.max() / 1_000.0;
+    }
+}
@@ -0,0 +1,19 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * JMX-вид {@link QueryStats}: {@code ru.ap4uuk.coreprotect:type=Query,name=<тип>}. Время — в миллисекундах.
+ */
+public interface QueryStatsMBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+}
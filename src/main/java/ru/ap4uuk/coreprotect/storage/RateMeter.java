@@ -0,0 +1,52 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Скорость событий в секунду за последние {@link #WINDOW_SECONDS} полных секунд. Счёт идёт по корзинам
+ * на секунду; текущая, недозаполненная секунда в среднее не входит, поэтому цифра не «проседает» в её начале.
+ * Отмечать рассчитано из одного потока (writer), читать — из любого.
+ */
+final class RateMeter {
+
+    static final int WINDOW_SECONDS = 10;
+    // корзин больше окна, чтобы отмечаемая секунда не затирала читаемые
+    private static final int SLOTS = 16;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    // к какой секунде относится корзина
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+    RateMeter() {
+        for (int i = 0; i < SLOTS; i++) {
+            seconds.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    void mark(long n) {
+        if (n <= 0) return;
+        long second = currentSecond();
+        int slot = (int) (second & (SLOTS - 1));
+        if (seconds.get(slot) != second) {
+            counts.set(slot, 0);
+            seconds.set(slot, second);
+        }
+        counts.addAndGet(slot, n);
+    }
+
+    double perSecond() {
+        long now = currentSecond();
+        long total = 0;
+        for (long s = now - WINDOW_SECONDS; s < now; s++) {
+            int slot = (int) (s & (SLOTS - 1));
+            if (seconds.get(slot) == s) {
+                total += counts.get(slot);
+            }
+        }
+        return (double) total / WINDOW_SECONDS;
+    }
+
+    private static long currentSecond() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+}
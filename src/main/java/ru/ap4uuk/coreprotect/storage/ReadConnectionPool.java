@@ -0,0 +1,100 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import org.sqlite.SQLiteConfig;
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Небольшой пул read-only соединений для выборок (инспект, rollback/restore, сессии).
+ * <p>
+ * База в режиме WAL, поэтому читатели не ждут writer-поток, а writer не ждёт читателей: каждый запрос
+ * видит снимок на момент своего начала. Соединения в autocommit — снимок живёт ровно один запрос.
+ * Если все соединения заняты, запрос ждёт освободившееся.
+ */
+final class ReadConnectionPool implements AutoCloseable {
+
+    // Сколько читатель ждёт, если writer как раз делает checkpoint
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    private final List<Connection> all = new ArrayList<>();
+    private final BlockingQueue<Connection> idle;
+    private final String url;
+    private final SQLiteConfig config;
+
+    ReadConnectionPool(String url, int size) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.url = url;
+
+        config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setBusyTimeout(BUSY_TIMEOUT_MS);
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection connection = config.createConnection(url);
+                all.add(connection);
+                idle.add(connection);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Выполняет выборку на свободном соединении и возвращает соединение в пул.
+     */
+    <T> T withConnection(SqlWork<T> work) throws SQLException {
+        Connection connection;
+        try {
+            connection = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a read connection", e);
+        }
+        try {
+            return work.run(connection);
+        } finally {
+            idle.add(connection);
+        }
+    }
+
+    /**
+     * Отдельное read-only соединение вне пула — для долгих потоковых выборок (rollback), чтобы они
+     * не занимали соединения инспекта. Закрывает вызывающий.
+     */
+    Connection openDedicated() throws SQLException {
+        return config.createConnection(url);
+    }
+
+    int size() {
+        return all.size();
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : all) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                Coreprotect.LOGGER.warn("[Coreprotect] Ошибка закрытия read-соединения", e);
+            }
+        }
+        all.clear();
+        idle.clear();
+    }
+
+    /**
+     * Таблица партиции исчезла между снимком каталога и запросом (purge/retention) или ещё не видна в снимке
+     * читателя (только что создана). В обоих случаях строк для запроса в ней нет.
+     */
+    static boolean isMissingTable(SQLException e) {
+        String message = e.getMessage();
+        return message != null && message.contains("no such table");
+    }
+}
@@ -0,0 +1,35 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.sql.SQLException;
+
+/**
+ * Источник итоговых состояний области для потокового слияния в {@link DatabaseManager}: по строке на позицию,
+ * по возрастанию {@code chunk_key, y, x, z}. Поля текущей строки читаются после {@link #next}, вернувшего true.
+ */
+interface RegionCursor extends AutoCloseable {
+
+    /**
+     * Переходит к следующей строке; false — источник дочитан.
+     */
+    boolean next() throws SQLException;
+
+    long chunk();
+
+    int y();
+
+    int x();
+
+    int z();
+
+    long time();
+
+    int actionId();
+
+    /**
+     * id состояния из materials; {@link ColdBlockCodec#NULL_STATE} — в колонке NULL.
+     */
+    int stateId();
+
+    @Override
+    void close() throws SQLException;
+}
@@ -0,0 +1,23 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * Запись изменений rollback в его сессию ({@link StorageBackend#openSessionRecorder}).
+ * <p>
+ * Не потокобезопасен: пишет один поток (поток сервера, выполняющий rollback). Реализация не должна ждать диска
+ * ни в {@link #record}, ни в {@link #finish}; после {@link #finish} и {@link StorageBackend#flush} все записи сессии
+ * видны {@link StorageBackend#streamRollbackEntries}.
+ */
+public interface RollbackSessionRecorder {
+
+    void record(BlockPos pos, BlockState before, BlockState after);
+
+    /**
+     * Дописывает остаток и помечает сессию завершённой, не дожидаясь коммита.
+     */
+    void finish();
+
+    int sessionId();
+}
@@ -0,0 +1,410 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.Coreprotect;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Версионирование схемы через {@code PRAGMA user_version}.
+ * <p>
+ * Новая БД сначала получает исходную (v1) схему, а дальше проходит те же шаги миграции, что и старые базы —
+ * на пустых таблицах они отрабатывают мгновенно, зато путь создания схемы один.
+ */
+final class SchemaMigrations {
+
+    static final int CURRENT_VERSION = 7;
+
+    private SchemaMigrations() {}
+
+    static void migrate(Connection connection) throws SQLException {
+        int version = userVersion(connection);
+        if (version == 0) {
+            // на пустом файле режим auto_vacuum ещё можно выбрать без VACUUM; нужен для /co purge #vacuum
+            try (Statement st = connection.createStatement()) {
+                st.execute("PRAGMA auto_vacuum = INCREMENTAL;");
+            }
+            createV1(connection);
+            version = 1;
+        }
+
+        if (version < 2) {
+            migrateV1ToV2(connection);
+            version = 2;
+        }
+
+        if (version < 3) {
+            migrateV2ToV3(connection);
+            version = 3;
+        }
+
+        if (version < 4) {
+            migrateV3ToV4(connection);
+            version = 4;
+        }
+
+        if (version < 5) {
+            migrateV4ToV5(connection);
+            version = 5;
+        }
+
+        if (version < 6) {
+            migrateV5ToV6(connection);
+            version = 6;
+        }
+
+        if (version < 7) {
+            migrateV6ToV7(connection);
+            version = 7;
+        }
+
+        if (version > CURRENT_VERSION) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Версия схемы БД ({}) новее, чем поддерживает мод ({}).",
+                    version, CURRENT_VERSION);
+        }
+    }
+
+    private static int userVersion(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA user_version;")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void setUserVersion(Statement st, int version) throws SQLException {
+        st.execute("PRAGMA user_version = " + version + ";");
+    }
+
+    /**
+     * Исходная схема: все поля строками. Для существующих баз до версионирования это no-op.
+     */
+    private static void createV1(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS block_actions (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    time_epoch INTEGER NOT NULL,
+                    player_uuid TEXT NOT NULL,
+                    player_name TEXT NOT NULL,
+                    dimension TEXT NOT NULL,
+                    x INTEGER NOT NULL,
+                    y INTEGER NOT NULL,
+                    z INTEGER NOT NULL,
+                    action_type TEXT NOT NULL,
+                    old_block TEXT,
+                    new_block TEXT
+                );
+                """);
+
+            st.execute("""
+                CREATE INDEX IF NOT EXISTS idx_block_actions_pos
+                ON block_actions (dimension, x, y, z);
+                """);
+
+            st.execute("""
+                CREATE INDEX IF NOT EXISTS idx_block_actions_player_time
+                ON block_actions (player_uuid, time_epoch);
+                """);
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS rollback_sessions (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    time_epoch INTEGER NOT NULL,
+                    executor TEXT NOT NULL,
+                    params TEXT NOT NULL,
+                    restored INTEGER NOT NULL DEFAULT 0
+                );
+                """);
+
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS rollback_session_entries (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    session_id INTEGER NOT NULL,
+                    dimension TEXT NOT NULL,
+                    x INTEGER NOT NULL,
+                    y INTEGER NOT NULL,
+                    z INTEGER NOT NULL,
+                    before_block TEXT NOT NULL,
+                    after_block TEXT NOT NULL,
+                    FOREIGN KEY (session_id) REFERENCES rollback_sessions(id)
+                );
+                """);
+            setUserVersion(st, 1);
+        }
+        connection.commit();
+    }
+
+    /**
+     * v2: игроки, миры, материалы и типы действий уезжают в справочники,
+     * block_actions хранит только целые id. Старые строки переливаются в новую таблицу одной транзакцией.
+     * Ники, которые были в строках, сохраняются в player_names с первым появлением каждого.
+     */
+    private static void migrateV1ToV2(Connection connection) throws SQLException {
+        long rows;
+        try (Statement st = connection.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM block_actions;")) {
+                rows = rs.next() ? rs.getLong(1) : 0;
+            }
+            if (rows > 0) {
+                Coreprotect.LOGGER.info("[Coreprotect] Миграция схемы v1 -> v2 (справочники), строк: {}. Это может занять время...", rows);
+            }
+
+            st.execute("""
+                CREATE TABLE players (
+                    id INTEGER PRIMARY KEY,
+                    uuid TEXT NOT NULL UNIQUE,
+                    name TEXT NOT NULL
+                );
+                """);
+            // все ники игрока с моментом, когда каждый появился впервые: по ним ищет u:Ник и подписываются старые строки
+            st.execute("""
+                CREATE TABLE player_names (
+                    player_id INTEGER NOT NULL,
+                    name TEXT NOT NULL,
+                    first_seen INTEGER NOT NULL,
+                    PRIMARY KEY (player_id, name, first_seen)
+                );
+                """);
+            st.execute("CREATE TABLE worlds (id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE);");
+            st.execute("CREATE TABLE materials (id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE);");
+            st.execute("CREATE TABLE action_types (id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE);");
+
+            // ник берём из самой свежей строки игрока (bare column при MAX в SQLite)
+            st.execute("""
+                INSERT INTO players (uuid, name)
+                SELECT player_uuid, player_name FROM (
+                    SELECT player_uuid, player_name, MAX(id) FROM block_actions GROUP BY player_uuid
+                );
+                """);
+            st.execute("""
+                INSERT INTO player_names (player_id, name, first_seen)
+                SELECT p.id, b.player_name, MIN(b.time_epoch)
+                FROM block_actions b JOIN players p ON p.uuid = b.player_uuid
+                GROUP BY p.id, b.player_name;
+                """);
+            st.execute("INSERT INTO worlds (name) SELECT DISTINCT dimension FROM block_actions;");
+            st.execute("INSERT INTO action_types (name) SELECT DISTINCT action_type FROM block_actions;");
+            st.execute("""
+                INSERT INTO materials (name)
+                SELECT old_block FROM block_actions WHERE old_block IS NOT NULL
+                UNION
+                SELECT new_block FROM block_actions WHERE new_block IS NOT NULL;
+                """);
+
+            st.execute("DROP INDEX IF EXISTS idx_block_actions_pos;");
+            st.execute("DROP INDEX IF EXISTS idx_block_actions_player_time;");
+            st.execute("ALTER TABLE block_actions RENAME TO block_actions_v1;");
+
+            st.execute("""
+                CREATE TABLE block_actions (
+                    id INTEGER PRIMARY KEY,
+                    time_epoch INTEGER NOT NULL,
+                    player_id INTEGER NOT NULL,
+                    world_id INTEGER NOT NULL,
+                    x INTEGER NOT NULL,
+                    y INTEGER NOT NULL,
+                    z INTEGER NOT NULL,
+                    action_id INTEGER NOT NULL,
+                    old_block_id INTEGER,
+                    new_block_id INTEGER
+                );
+                """);
+            st.execute("""
+                INSERT INTO block_actions (
+                    id, time_epoch, player_id, world_id, x, y, z, action_id, old_block_id, new_block_id
+                )
+                SELECT b.id, b.time_epoch, p.id, w.id, b.x, b.y, b.z, a.id, mo.id, mn.id
+                FROM block_actions_v1 b
+                JOIN players p ON p.uuid = b.player_uuid
+                JOIN worlds w ON w.name = b.dimension
+                JOIN action_types a ON a.name = b.action_type
+                LEFT JOIN materials mo ON mo.name = b.old_block
+                LEFT JOIN materials mn ON mn.name = b.new_block
+                ORDER BY b.id;
+                """);
+            st.execute("DROP TABLE block_actions_v1;");
+
+            // индексы строим после заливки — так быстрее и они получаются плотнее
+            st.execute("""
+                CREATE INDEX idx_block_actions_pos
+                ON block_actions (world_id, x, y, z);
+                """);
+            st.execute("""
+                CREATE INDEX idx_block_actions_player_time
+                ON block_actions (player_id, time_epoch);
+                """);
+
+            setUserVersion(st, 2);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+
+        if (rows > 0) {
+            vacuum(connection);
+            Coreprotect.LOGGER.info("[Coreprotect] Миграция схемы v1 -> v2 завершена.");
+        }
+    }
+
+    /**
+     * v3: упакованный ключ чанка (см. {@link SpatialKey}) и индекс (world_id, chunk_key, time_epoch)
+     * для выборок по области.
+     */
+    private static void migrateV2ToV3(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            Coreprotect.LOGGER.info("[Coreprotect] Миграция схемы v2 -> v3 (ключ чанка)...");
+            st.execute("ALTER TABLE block_actions ADD COLUMN chunk_key INTEGER NOT NULL DEFAULT 0;");
+            st.execute("""
+                UPDATE block_actions
+                SET chunk_key = (((z >> 4) + %d) << %d) | ((x >> 4) + %d);
+                """.formatted(SpatialKey.OFFSET, SpatialKey.COORD_BITS, SpatialKey.OFFSET));
+            st.execute("""
+                CREATE INDEX idx_block_actions_chunk
+                ON block_actions (world_id, chunk_key, time_epoch);
+                """);
+            setUserVersion(st, 3);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+    }
+
+    /**
+     * v4: журнал блоков разбит на партиции по времени (см. {@link PartitionCatalog}).
+     * Существующие данные не переливаются: block_actions остаётся первой партицией с диапазоном по своим данным,
+     * а пустая block_actions просто удаляется — новые события пойдут в партиции.
+     */
+    private static void migrateV3ToV4(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("""
+                CREATE TABLE partitions (
+                    name TEXT PRIMARY KEY,
+                    start_epoch INTEGER NOT NULL,
+                    end_epoch INTEGER NOT NULL
+                );
+                """);
+
+            long minTime = 0;
+            long maxTime = -1;
+            try (ResultSet rs = st.executeQuery("SELECT MIN(time_epoch), MAX(time_epoch) FROM block_actions;")) {
+                if (rs.next() && rs.getObject(1) != null) {
+                    minTime = rs.getLong(1);
+                    maxTime = rs.getLong(2);
+                }
+            }
+
+            if (maxTime >= minTime) {
+                st.execute("INSERT INTO partitions (name, start_epoch, end_epoch) VALUES ('block_actions', %d, %d);"
+                        .formatted(minTime, maxTime + 1));
+            } else {
+                st.execute("DROP TABLE block_actions;");
+            }
+            setUserVersion(st, 4);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+    }
+
+    /**
+     * v5: rollback-сессия помечается завершённой одной транзакцией с последними записями; пока rollback идёт
+     * (или если сервер упал посреди него), finished = 0. Существующие сессии считаются завершёнными.
+     * Плюс индекс по session_id — записи сессии читаются только так.
+     */
+    private static void migrateV4ToV5(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("ALTER TABLE rollback_sessions ADD COLUMN finished INTEGER NOT NULL DEFAULT 1;");
+            st.execute("ALTER TABLE rollback_sessions ADD COLUMN entry_count INTEGER;");
+            st.execute("CREATE INDEX idx_rollback_session_entries_session ON rollback_session_entries (session_id, id);");
+            setUserVersion(st, 5);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+    }
+
+    /**
+     * v6: записи новых rollback-сессий хранятся упакованными, blob на чанк (см. {@link SessionSnapshotCodec}).
+     * Старые сессии остаются в rollback_session_entries и читаются оттуда же.
+     */
+    private static void migrateV5ToV6(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("""
+                CREATE TABLE rollback_session_chunks (
+                    id INTEGER PRIMARY KEY,
+                    session_id INTEGER NOT NULL,
+                    dimension TEXT NOT NULL,
+                    chunk_x INTEGER NOT NULL,
+                    chunk_z INTEGER NOT NULL,
+                    entry_count INTEGER NOT NULL,
+                    data BLOB NOT NULL,
+                    FOREIGN KEY (session_id) REFERENCES rollback_sessions(id)
+                );
+                """);
+            st.execute("CREATE INDEX idx_rollback_session_chunks_session ON rollback_session_chunks (session_id, id);");
+            setUserVersion(st, 6);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+    }
+
+    /**
+     * v7: холодная история — партиции, сжатые в колоночные блоки по чанкам (см. {@link ColdStore}).
+     * cold_blocks — сами блоки и их каталог; блоки видны, только когда сжатие в cold_compactions завершено.
+     */
+    private static void migrateV6ToV7(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("""
+                CREATE TABLE cold_compactions (
+                    id INTEGER PRIMARY KEY,
+                    partition_name TEXT NOT NULL,
+                    start_epoch INTEGER NOT NULL,
+                    end_epoch INTEGER NOT NULL,
+                    started_epoch INTEGER NOT NULL,
+                    row_count INTEGER NOT NULL DEFAULT 0,
+                    done INTEGER NOT NULL DEFAULT 0
+                );
+                """);
+            st.execute("""
+                CREATE TABLE cold_blocks (
+                    id INTEGER PRIMARY KEY,
+                    compaction_id INTEGER NOT NULL,
+                    world_id INTEGER NOT NULL,
+                    chunk_key INTEGER NOT NULL,
+                    min_time INTEGER NOT NULL,
+                    max_time INTEGER NOT NULL,
+                    min_y INTEGER NOT NULL,
+                    max_y INTEGER NOT NULL,
+                    row_count INTEGER NOT NULL,
+                    data BLOB NOT NULL,
+                    FOREIGN KEY (compaction_id) REFERENCES cold_compactions(id)
+                );
+                """);
+            st.execute("CREATE INDEX idx_cold_blocks_chunk ON cold_blocks (world_id, chunk_key, max_time);");
+            setUserVersion(st, 7);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        connection.commit();
+    }
+
+    /**
+     * Возвращает освободившиеся после миграции страницы ОС. VACUUM не работает внутри транзакции.
+     */
+    private static void vacuum(Connection connection) throws SQLException {
+        connection.setAutoCommit(true);
+        try (Statement st = connection.createStatement()) {
+            st.execute("VACUUM;");
+        } finally {
+            connection.setAutoCommit(false);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Сводка по сегменту {@link LogSegment}: сколько записей, диапазон времени, границы по x/y/z, какие миры
+ * и битовая карта чанков. По ней выборки пропускают сегмент целиком, не читая записей.
+ * <p>
+ * Карта чанков — 4096 бит, чанк попадает в бит по хэшу координат: ложные попадания возможны (сегмент будет прочитан
+ * зря), пропусков — нет. Миры — так же, 64 бита по id, плюс id мира, если он в сегменте единственный (для purge).
+ * <p>
+ * У активного сегмента сводку ведёт writer ({@link #add}); читатели берут копию под замком записи.
+ * Запечатанный сегмент хранит сводку рядом, в {@code .idx}.
+ */
+final class SegmentIndex {
+
+    private static final int MAGIC = 0x43504958; // "CPIX"
+    private static final int VERSION = 1;
+    private static final int CHUNK_BITS = 4096;
+    private static final int CHUNK_MASK = CHUNK_BITS - 1;
+    // Области больше этого числа чанков проверяются только по границам, без карты
+    private static final int MAX_CHUNKS_CHECKED = 1024;
+
+    int count;
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+    long worldBits;
+    // id единственного мира сегмента; 0 — записей нет, -1 — миров несколько
+    int singleWorld;
+    final long[] chunks = new long[CHUNK_BITS / 64];
+
+    void add(long timeMillis, int x, int y, int z, int worldId) {
+        count++;
+        if (timeMillis < minTime) minTime = timeMillis;
+        if (timeMillis > maxTime) maxTime = timeMillis;
+        if (x < minX) minX = x;
+        if (x > maxX) maxX = x;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+        if (z < minZ) minZ = z;
+        if (z > maxZ) maxZ = z;
+        worldBits |= 1L << (worldId & 63);
+        if (singleWorld == 0) {
+            singleWorld = worldId;
+        } else if (singleWorld != worldId) {
+            singleWorld = -1;
+        }
+        int bit = chunkBit(x >> 4, z >> 4);
+        chunks[bit >>> 6] |= 1L << bit;
+    }
+
+    boolean mayContainWorld(int worldId) {
+        return count > 0 && (worldBits & (1L << (worldId & 63))) != 0;
+    }
+
+    /**
+     * Может ли в сегменте быть событие позиции не старше {@code sinceMillis}.
+     */
+    boolean mayContain(int worldId, int x, int y, int z, long sinceMillis) {
+        if (!mayContainWorld(worldId) || maxTime < sinceMillis) return false;
+        if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) return false;
+        int bit = chunkBit(x >> 4, z >> 4);
+        return (chunks[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Может ли в сегменте быть событие внутри куба не старше {@code sinceMillis}.
+     */
+    boolean mayContainBox(int worldId, long sinceMillis,
+                          int boxMinX, int boxMinY, int boxMinZ, int boxMaxX, int boxMaxY, int boxMaxZ) {
+        if (!mayContainWorld(worldId) || maxTime < sinceMillis) return false;
+        if (boxMaxX < minX || boxMinX > maxX || boxMaxY < minY || boxMinY > maxY || boxMaxZ < minZ || boxMinZ > maxZ) {
+            return false;
+        }
+        int fromChunkX = Math.max(boxMinX, minX) >> 4, toChunkX = Math.min(boxMaxX, maxX) >> 4;
+        int fromChunkZ = Math.max(boxMinZ, minZ) >> 4, toChunkZ = Math.min(boxMaxZ, maxZ) >> 4;
+        if ((long) (toChunkX - fromChunkX + 1) * (toChunkZ - fromChunkZ + 1) > MAX_CHUNKS_CHECKED) return true;
+        for (int cx = fromChunkX; cx <= toChunkX; cx++) {
+            for (int cz = fromChunkZ; cz <= toChunkZ; cz++) {
+                int bit = chunkBit(cx, cz);
+                if ((chunks[bit >>> 6] & (1L << bit)) != 0) return true;
+            }
+        }
+        return false;
+    }
+
+    SegmentIndex copy() {
+        SegmentIndex c = new SegmentIndex();
+        c.count = count;
+        c.minTime = minTime;
+        c.maxTime = maxTime;
+        c.minX = minX;
+        c.minY = minY;
+        c.minZ = minZ;
+        c.maxX = maxX;
+        c.maxY = maxY;
+        c.maxZ = maxZ;
+        c.worldBits = worldBits;
+        c.singleWorld = singleWorld;
+        System.arraycopy(chunks, 0, c.chunks, 0, chunks.length);
+        return c;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeLong(minTime);
+        out.writeLong(maxTime);
+        out.writeInt(minX);
+        out.writeInt(minY);
+        out.writeInt(minZ);
+        out.writeInt(maxX);
+        out.writeInt(maxY);
+        out.writeInt(maxZ);
+        out.writeLong(worldBits);
+        out.writeInt(singleWorld);
+        for (long word : chunks) {
+            out.writeLong(word);
+        }
+    }
+
+    static SegmentIndex read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("неизвестный формат индекса сегмента");
+        }
+        SegmentIndex index = new SegmentIndex();
+        index.count = in.readInt();
+        index.minTime = in.readLong();
+        index.maxTime = in.readLong();
+        index.minX = in.readInt();
+        index.minY = in.readInt();
+        index.minZ = in.readInt();
+        index.maxX = in.readInt();
+        index.maxY = in.readInt();
+        index.maxZ = in.readInt();
+        index.worldBits = in.readLong();
+        index.singleWorld = in.readInt();
+        for (int i = 0; i < index.chunks.length; i++) {
+            index.chunks[i] = in.readLong();
+        }
+        return index;
+    }
+
+    private static int chunkBit(int chunkX, int chunkZ) {
+        int h = chunkX * 0x9E3779B1 ^ chunkZ * 0x85EBCA77;
+        return (h ^ (h >>> 15)) & CHUNK_MASK;
+    }
+}
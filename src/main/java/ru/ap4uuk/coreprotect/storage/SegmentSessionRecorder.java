@@ -0,0 +1,100 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RollbackSessionRecorder} для {@link SegmentStorage}: как {@link SqliteSessionRecorder}, только порции
+ * чанков дописываются в sessions.log. {@link #finish} отправляет хвост вместе с записью о завершении
+ * одним commit-ом лога, так что завершённая сессия всегда полная.
+ */
+final class SegmentSessionRecorder implements RollbackSessionRecorder {
+
+    // Сколько записей уходит writer-у одной порцией
+    private static final int FLUSH_ENTRIES = 4096;
+
+    private record Entry(int x, int y, int z, BlockState before, BlockState after) {}
+
+    /** Подряд идущие записи одного чанка. */
+    private record ChunkGroup(int chunkX, int chunkZ, List<Entry> entries) {}
+
+    private final SegmentStorage storage;
+    private final int sessionId;
+    private final String dimension;
+    private List<ChunkGroup> buffer = new ArrayList<>();
+    private ChunkGroup current;
+    private int buffered;
+    private int recorded;
+    private boolean finished;
+
+    SegmentSessionRecorder(SegmentStorage storage, int sessionId, String dimension) {
+        this.storage = storage;
+        this.sessionId = sessionId;
+        this.dimension = dimension;
+    }
+
+    @Override
+    public void record(BlockPos pos, BlockState before, BlockState after) {
+        if (finished) {
+            throw new IllegalStateException("сессия " + sessionId + " уже завершена");
+        }
+        int chunkX = pos.getX() >> 4;
+        int chunkZ = pos.getZ() >> 4;
+        if (current == null || current.chunkX() != chunkX || current.chunkZ() != chunkZ) {
+            current = new ChunkGroup(chunkX, chunkZ, new ArrayList<>());
+            buffer.add(current);
+        }
+        current.entries().add(new Entry(pos.getX(), pos.getY(), pos.getZ(), before, after));
+        recorded++;
+        if (++buffered >= FLUSH_ENTRIES) {
+            List<ChunkGroup> batch = buffer;
+            buffer = new ArrayList<>();
+            current = null;
+            buffered = 0;
+            storage.submitWrite("записи rollback-сессии " + sessionId, () -> {
+                storage.appendSessionRecords(encode(batch));
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (finished) return;
+        finished = true;
+
+        List<ChunkGroup> tail = buffer;
+        buffer = List.of();
+        current = null;
+        int total = recorded;
+        storage.submitWrite("завершение rollback-сессии " + sessionId, () -> {
+            List<byte[]> records = encode(tail);
+            records.add(SegmentStorage.sessionFinishRecord(sessionId, total));
+            storage.appendSessionRecords(records);
+            return null;
+        });
+    }
+
+    @Override
+    public int sessionId() {
+        return sessionId;
+    }
+
+    private List<byte[]> encode(List<ChunkGroup> groups) throws IOException {
+        List<byte[]> records = new ArrayList<>(groups.size() + 1);
+        for (ChunkGroup group : groups) {
+            List<SessionSnapshotCodec.Entry> encoded = new ArrayList<>(group.entries().size());
+            for (Entry e : group.entries()) {
+                encoded.add(new SessionSnapshotCodec.Entry(e.x(), e.y(), e.z(),
+                        BlockStatePalette.serialize(e.before()), BlockStatePalette.serialize(e.after())));
+            }
+            records.add(SegmentStorage.sessionChunkRecord(sessionId, dimension,
+                    group.chunkX(), group.chunkZ(), SessionSnapshotCodec.encode(encoded)));
+        }
+        return records;
+    }
+}
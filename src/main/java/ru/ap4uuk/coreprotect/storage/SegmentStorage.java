@@ -0,0 +1,1206 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.Coreprotect;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Хранилище на сегментах, отображённых в память ({@code storageType = SEGMENTS}): журнал блоков — записи
+ * фиксированной длины, которые только дописываются в файлы {@link LogSegment}, без SQL, без индексов на запись
+ * и без перезаписи страниц.
+ * <p>
+ * Writer копирует слоты {@link EventRing} прямо в активный сегмент и публикует их порцией; у каждого сегмента
+ * есть сводка ({@link SegmentIndex}), по которой выборки пропускают сегменты, где нужного мира, времени или чанка
+ * быть не может, а остальные читают подряд из отображения. Справочники, сессии rollback и границы очистки
+ * лежат рядом в {@link AppendLog}-файлах. На диск (fsync) всё сбрасывается раз в секунду, на {@link #flush}
+ * и при запечатывании сегмента — как {@code synchronous = NORMAL} у SQLite.
+ * <p>
+ * Очистка истории не переписывает сегменты: она поднимает «горизонт» мира (или всех миров) — события старше
+ * выборки не видят, — а сегменты, целиком ушедшие за горизонт, удаляются файлами.
+ */
+public final class SegmentStorage implements StorageBackend {
+
+    // Ёмкость кольца событий к writer-потоку
+    private static final int QUEUE_CAPACITY = 8192;
+    // Записей в сегменте: 2^21 по 32 байта — 64 МиБ
+    private static final int SEGMENT_RECORDS = 1 << 21;
+    // Как долго writer ждёт событий, прежде чем заглянуть в spill-журнал и фоновые задачи
+    private static final long IDLE_POLL_MS = 500;
+    // Как часто дописанное сбрасывается на диск
+    private static final long FORCE_INTERVAL_NANOS = 1_000_000_000L;
+    // Как часто writer проверяет срок хранения
+    private static final long RETENTION_CHECK_INTERVAL_NANOS = 3_600_000_000_000L;
+    // Сколько остановка ждёт потоки выборок
+    private static final long QUERY_SHUTDOWN_TIMEOUT_MS = 5000;
+    // Сколько позиций выборка по области сворачивает в памяти за раз
+    private static final int MAX_REGION_POSITIONS = 1 << 18;
+    // Не чаще одного отчёта о ходе очистки за этот интервал
+    private static final long PURGE_PROGRESS_INTERVAL_NANOS = 5_000_000_000L;
+
+    // Записи sessions.log
+    private static final byte SESSION_CREATE = 1;
+    private static final byte SESSION_CHUNK = 2;
+    private static final byte SESSION_FINISH = 3;
+    private static final byte SESSION_RESTORED = 4;
+
+    /** Запись на writer-потоке; результат — в будущее {@link #submitWrite}. */
+    @FunctionalInterface
+    interface IoWork<T> {
+        T run() throws IOException;
+    }
+
+    /** Задача writer-потока: шаг между порциями событий, true — готово. */
+    private interface WriterTask {
+        boolean step() throws IOException;
+
+        void failed(Exception e);
+    }
+
+    /** Что видит выборка: сегменты, число записей в каждом и их сводки — на один момент. */
+    private record Snapshot(LogSegment[] segments, int[] counts, SegmentIndex[] indexes) {}
+
+    /** Событие позиции для истории; {@code order} — порядок записи (для событий с одинаковым временем). */
+    private record Hit(long time, long order, int player, int action, int oldState, int newState) {}
+
+    /** Итоговое событие позиции в выборке по области. */
+    private static final class Best {
+        long time = Long.MIN_VALUE;
+        int action;
+        int state;
+    }
+
+    private record Dropped(int segments, long bytes) {}
+
+    private final Path dir;
+    private final StorageSettings settings;
+    private final EventRing ring = new EventRing(QUEUE_CAPACITY);
+    private final PipelineMetrics metrics;
+    // Инспект — на queryExecutor; потоковые выборки и проход очистки, которые держат поток долго, — на своих потоках
+    private final ExecutorService queryExecutor;
+    private final ExecutorService streamExecutor;
+
+    private final Dictionary players = new Dictionary("players", "uuid", "name");
+    private final Dictionary worlds = Dictionary.simple("worlds");
+    private final Dictionary materials = Dictionary.simple("materials");
+    private final Dictionary actionTypes = Dictionary.simple("action_types");
+    // порядок задаёт номер справочника в dictionaries.log
+    private final Dictionary[] dictionaries = {players, worlds, materials, actionTypes};
+    private final BlockStatePalette palette = new BlockStatePalette(materials);
+    private final EventCodec codec;
+    private final SpillJournal spillJournal;
+    private final EventCapture capture;
+
+    private final AppendLog dictionaryLog;
+    private final AppendLog sessionLog;
+    private final AppendLog horizonLog;
+
+    // Замок видимости: под ним writer переносит кольцо в сегмент и меняет список сегментов,
+    // а выборки берут снимок (и читают кольцо), так что событие всё время видно — в кольце или в сегменте
+    private final Object visibility = new Object();
+    // по возрастанию id, последний — активный; меняется под visibility
+    private volatile List<LogSegment> segments;
+    private LogSegment active;
+
+    // Горизонты очистки: события мира старше горизонта выборкам не видны
+    private volatile long globalHorizon = Long.MIN_VALUE;
+    private final ConcurrentHashMap<Integer, Long> worldHorizons = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextSessionId = new AtomicInteger(1);
+    // сессии, выданные, но ещё не записанные: запрос их состояния ждёт записи
+    private final ConcurrentHashMap<Integer, CompletableFuture<?>> creatingSessions = new ConcurrentHashMap<>();
+    private final AtomicBoolean purging = new AtomicBoolean();
+    private final Queue<WriterTask> tasks = new ConcurrentLinkedQueue<>();
+    private long nextRetentionCheckNanos = System.nanoTime();
+    private long nextForceNanos = System.nanoTime() + FORCE_INTERVAL_NANOS;
+    private Thread writerThread;
+    private volatile boolean running = true;
+    private boolean closed;
+
+    private SegmentStorage(Path dir, StorageSettings settings) throws IOException {
+        this.dir = dir;
+        this.settings = settings;
+        this.metrics = new PipelineMetrics(ring, settings.overflowPolicy);
+        this.dictionaryLog = AppendLog.open(dir.resolve("dictionaries.log"));
+        loadDictionaries();
+        this.horizonLog = AppendLog.open(dir.resolve("purge.log"));
+        loadHorizons();
+        this.sessionLog = AppendLog.open(dir.resolve("sessions.log"));
+        loadSessionIds();
+        // до кодека: он выдаёт id типам действий, а сегменты проверяются только по сохранённым справочникам
+        loadSegments();
+        this.codec = new EventCodec(players, worlds, actionTypes, palette);
+        this.spillJournal = new SpillJournal(dir.resolve("events"), BlockStatePalette::serialize, palette::stateOf);
+        this.capture = new EventCapture(ring, codec, spillJournal, metrics, settings);
+        this.queryExecutor = newQueryExecutor("Coreprotect-Segment-Query-", settings.readConnections);
+        this.streamExecutor = newQueryExecutor("Coreprotect-Segment-Stream-", settings.readConnections);
+        metrics.registerMBeans();
+        startWriterThread();
+    }
+
+    public static SegmentStorage open(Path dir) {
+        return open(dir, StorageSettings.defaults());
+    }
+
+    /**
+     * Открывает (и при необходимости создаёт) каталог сегментов и запускает writer. null — не удалось, причина в логе.
+     */
+    public static SegmentStorage open(Path dir, StorageSettings settings) {
+        try {
+            Files.createDirectories(dir);
+            SegmentStorage storage = new SegmentStorage(dir, settings);
+            Coreprotect.LOGGER.info("[Coreprotect] Сегментное хранилище открыто: {} (сегментов: {})",
+                    dir.toAbsolutePath(), storage.segments.size());
+            return storage;
+        } catch (Exception e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка инициализации сегментного хранилища {}", dir, e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        running = false;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join(5000);
+            } catch (InterruptedException ignored) {}
+        }
+        metrics.unregisterMBeans();
+        shutdownQueryExecutor(streamExecutor);
+        shutdownQueryExecutor(queryExecutor);
+        try {
+            spillJournal.close();
+        } catch (IOException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка закрытия spill-журнала", e);
+        }
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+        for (AppendLog log : new AppendLog[]{dictionaryLog, sessionLog, horizonLog}) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка закрытия {}", log.file().getFileName(), e);
+            }
+        }
+        Coreprotect.LOGGER.info("[Coreprotect] Сегментное хранилище закрыто.");
+    }
+
+    private static ExecutorService newQueryExecutor(String namePrefix, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void shutdownQueryExecutor(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(QUERY_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------- Загрузка ----------
+
+    private void loadDictionaries() throws IOException {
+        dictionaryLog.read((offset, in) -> {
+            int kind = in.readByte();
+            int id = in.readInt();
+            String key = in.readUTF();
+            String label = in.readBoolean() ? in.readUTF() : null;
+            long since = in.readLong();
+            if (kind >= 1 && kind <= dictionaries.length) {
+                dictionaries[kind - 1].restore(id, key, label, since);
+            }
+            return true;
+        });
+    }
+
+    private void loadHorizons() throws IOException {
+        horizonLog.read((offset, in) -> {
+            applyHorizon(in.readInt(), in.readLong());
+            return true;
+        });
+    }
+
+    private void loadSessionIds() throws IOException {
+        sessionLog.read((offset, in) -> {
+            if (in.readByte() == SESSION_CREATE) {
+                int id = in.readInt();
+                nextSessionId.accumulateAndGet(id + 1, Math::max);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Открывает сегменты с прошлого запуска. Незапечатанный сегмент, за которым есть следующие (упали посреди
+     * запечатывания), запечатывается; последний остаётся активным, если в нём есть место.
+     */
+    private void loadSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> LogSegment.idOf(p) >= 0)
+                    .sorted(Comparator.comparingLong(LogSegment::idOf))
+                    .toList();
+        }
+        List<LogSegment> loaded = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            LogSegment segment = LogSegment.open(files.get(i), this::isKnownRecord);
+            boolean last = i == files.size() - 1;
+            if (!segment.isSealed() && (!last || segment.isFull())) {
+                segment.publish();
+                segment.seal();
+            }
+            loaded.add(segment);
+        }
+        if (loaded.isEmpty() || loaded.get(loaded.size() - 1).isSealed()) {
+            long id = loaded.isEmpty() ? 1 : loaded.get(loaded.size() - 1).id() + 1;
+            loaded.add(LogSegment.create(dir, id, SEGMENT_RECORDS));
+        }
+        segments = List.copyOf(loaded);
+        active = loaded.get(loaded.size() - 1);
+        // сегменты, удалить которые в прошлый раз не вышло
+        dropExpiredSegments();
+    }
+
+    /**
+     * Все id записи есть в справочниках (состояние 0 — его нет).
+     */
+    private boolean isKnownRecord(int playerId, int worldId, int actionId, int oldStateId, int newStateId) {
+        return players.nameOf(playerId) != null && worlds.nameOf(worldId) != null && actionTypes.nameOf(actionId) != null
+                && (oldStateId == 0 || materials.nameOf(oldStateId) != null)
+                && (newStateId == 0 || materials.nameOf(newStateId) != null);
+    }
+
+    // ---------- Writer ----------
+
+    private void startWriterThread() {
+        writerThread = new Thread(this::writerLoop, "Coreprotect-Segment-Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void writerLoop() {
+        Coreprotect.LOGGER.info("[Coreprotect] Writer thread запущен.");
+        List<BlockAction> spilled = new ArrayList<>();
+        SpillJournal.Cursor spillCursor = null;
+
+        while (running) {
+            try {
+                if (ring.size() == 0) {
+                    // есть фоновая задача — не простаиваем, а возвращаемся к ней
+                    long idleNanos = tasks.isEmpty() ? IDLE_POLL_MS * 1_000_000L : 0;
+                    ring.await(idleNanos);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                }
+                metrics.sampleCaptured();
+                drainRing();
+                spillJournal.flushBuffered();
+                // журнал дочитываем, только когда очередь разгрузилась хотя бы наполовину
+                if (ring.size() < ring.capacity() / 2) {
+                    spillCursor = drainSpillJournal(spillCursor, spilled);
+                }
+                persistDictionaries();
+                rollIfAged();
+                if (System.nanoTime() - nextForceNanos >= 0) {
+                    forceAll();
+                }
+                applyRetentionIfDue();
+                runTasks();
+            } catch (InterruptedException e) {
+                if (!running) break;
+            } catch (IOException | RuntimeException e) {
+                // RuntimeException тоже ловим: иначе writer-поток умрёт, и события будут копиться до остановки
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка записи сегмента", e);
+                spilled.clear();
+                spillCursor = reopenQuietly(spillCursor);
+            }
+        }
+
+        // финальный дрен очереди и журнала; активный сегмент не запечатывается — его продолжит следующий запуск
+        try {
+            drainRing();
+            do {
+                spillCursor = drainSpillJournal(spillCursor, spilled);
+            } while (spillCursor != null);
+            persistDictionaries();
+            // записи сессий и пометки, поставленные до остановки, дописываем; барьеры и очистка не продолжаются
+            WriterTask task;
+            while ((task = tasks.poll()) != null) {
+                boolean done;
+                try {
+                    done = task.step();
+                } catch (IOException | RuntimeException e) {
+                    task.failed(e);
+                    continue;
+                }
+                if (!done) task.failed(new IllegalStateException("сервер останавливается"));
+            }
+            forceAll();
+        } catch (Exception e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка финальной записи очереди", e);
+        }
+        if (spillCursor != null) {
+            try {
+                spillCursor.close();
+            } catch (IOException ignored) {}
+        }
+
+        Coreprotect.LOGGER.info("[Coreprotect] Очередь событий: максимум {} из {}, отказов при переполнении: {}.",
+                ring.highWaterMark(), ring.capacity(), ring.offerFailures());
+        Coreprotect.LOGGER.info("[Coreprotect] Writer thread остановлен.");
+    }
+
+    /**
+     * Переносит кольцо в активный сегмент порциями до maxBatchSize: слоты копируются как есть,
+     * порция публикуется одной volatile-записью. Заполненный сегмент сразу запечатывается.
+     * <p>
+     * Id справочников производитель выдаёт до того, как займёт слот, поэтому перед порцией сохраняются справочники
+     * и забираются только слоты, занятые до этого: в сегмент не попадает id, которого нет в dictionaries.log.
+     */
+    private void drainRing() throws IOException {
+        while (true) {
+            long started = System.nanoTime();
+            long offered = ring.offered();
+            persistDictionaries();
+            int max = (int) Math.min(Math.min(settings.maxBatchSize, active.remaining()), offered - ring.drained());
+            if (max <= 0) return;
+            int n;
+            synchronized (visibility) {
+                LogSegment segment = active;
+                n = ring.drain(segment::append, max);
+                segment.publish();
+            }
+            if (n > 0) {
+                metrics.onBatchCommitted(n, System.nanoTime() - started);
+            }
+            if (active.isFull()) {
+                roll();
+            }
+            if (n < max) return;
+        }
+    }
+
+    /**
+     * Переносит очередную порцию событий из spill-журнала в сегмент. Позиция журнала сдвигается только после
+     * сброса порции на диск. Возвращает курсор для следующей порции или null, если журнал дочитан.
+     */
+    private SpillJournal.Cursor drainSpillJournal(SpillJournal.Cursor cursor, List<BlockAction> batch) throws IOException {
+        if (cursor == null) {
+            if (!spillJournal.hasPending()) {
+                return null;
+            }
+            cursor = spillJournal.openForDrain();
+            if (cursor == null) {
+                return null;
+            }
+        }
+
+        long started = System.nanoTime();
+        cursor.read(batch, Math.min(settings.maxBatchSize, active.remaining()));
+        // id выдаём и сохраняем справочники до того, как записи попадут в сегмент
+        int n = batch.size();
+        int[] ids = new int[n * 5];
+        for (int i = 0; i < n; i++) {
+            BlockAction a = batch.get(i);
+            ids[i * 5] = codec.playerId(a.playerUuid, a.playerName, a.time.toEpochMilli());
+            ids[i * 5 + 1] = codec.worldId(a.dimension);
+            ids[i * 5 + 2] = codec.actionId(a.type);
+            ids[i * 5 + 3] = codec.stateId(a.oldState);
+            ids[i * 5 + 4] = codec.stateId(a.newState);
+        }
+        persistDictionaries();
+        synchronized (visibility) {
+            for (int i = 0; i < n; i++) {
+                BlockAction a = batch.get(i);
+                active.append(a.pos.asLong(), a.time.toEpochMilli(),
+                        ids[i * 5], ids[i * 5 + 1], ids[i * 5 + 2], ids[i * 5 + 3], ids[i * 5 + 4]);
+            }
+            active.publish();
+        }
+        if (n > 0) {
+            metrics.onBatchCommitted(n, System.nanoTime() - started);
+        }
+        batch.clear();
+        forceAll();
+        cursor.commit();
+        if (active.isFull()) {
+            roll();
+        }
+
+        if (cursor.isExhausted()) {
+            cursor.finish();
+            Coreprotect.LOGGER.info("[Coreprotect] Spill-журнал дочитан.");
+            return null;
+        }
+        return cursor;
+    }
+
+    private static SpillJournal.Cursor reopenQuietly(SpillJournal.Cursor cursor) {
+        if (cursor == null) return null;
+        try {
+            return cursor.reopen();
+        } catch (IOException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Не удалось переоткрыть spill-журнал", e);
+            return null;
+        }
+    }
+
+    /**
+     * Дописывает в dictionaries.log записи справочников, выданные с прошлого раза, и сразу сбрасывает их на диск:
+     * страницы сегмента со ссылками на них ОС может записать в любой момент. Новые записи редки, так что
+     * fsync здесь почти никогда не случается. Зовётся до того, как ссылающиеся записи попадут в сегмент.
+     */
+    private void persistDictionaries() throws IOException {
+        int[] written = new int[dictionaries.length];
+        int total = 0;
+        try {
+            for (int k = 0; k < dictionaries.length; k++) {
+                int kind = k + 1;
+                written[k] = dictionaries[k].writePending((id, key, label, since) -> {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeByte(kind);
+                    out.writeInt(id);
+                    out.writeUTF(key);
+                    out.writeBoolean(label != null);
+                    if (label != null) out.writeUTF(label);
+                    out.writeLong(since);
+                    dictionaryLog.append(bytes.toByteArray());
+                });
+            }
+            for (int count : written) total += count;
+            if (total == 0) return;
+            dictionaryLog.commit();
+        } catch (IOException e) {
+            dictionaryLog.discardPending();
+            throw e;
+        }
+        dictionaryLog.force();
+        for (int k = 0; k < dictionaries.length; k++) {
+            dictionaries[k].markPersisted(written[k]);
+        }
+    }
+
+    /**
+     * fsync: справочники, затем сегмент, затем сессии.
+     */
+    private void forceAll() throws IOException {
+        dictionaryLog.force();
+        active.force();
+        sessionLog.force();
+        nextForceNanos = System.nanoTime() + FORCE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Запечатывает активный сегмент и начинает следующий. Только writer.
+     */
+    private void roll() throws IOException {
+        LogSegment sealed = active;
+        persistDictionaries();
+        dictionaryLog.force();
+        sealed.seal();
+        LogSegment next = LogSegment.create(dir, sealed.id() + 1, SEGMENT_RECORDS);
+        synchronized (visibility) {
+            List<LogSegment> list = new ArrayList<>(segments);
+            list.add(next);
+            segments = List.copyOf(list);
+            active = next;
+        }
+        Coreprotect.LOGGER.info("[Coreprotect] Сегмент {} запечатан ({} событий)", sealed.id(), sealed.count());
+    }
+
+    /**
+     * Сегмент старше partitionDays запечатывается, даже если не заполнен, — чтобы срок хранения и очистка
+     * могли удалять историю целыми сегментами.
+     */
+    private void rollIfAged() throws IOException {
+        if (active.count() == 0) return;
+        if (System.currentTimeMillis() - active.createdMillis() >= settings.partitionDays * 86_400_000L) {
+            roll();
+        }
+    }
+
+    private void applyRetentionIfDue() throws IOException {
+        if (settings.retentionDays <= 0 || System.nanoTime() < nextRetentionCheckNanos) return;
+        nextRetentionCheckNanos = System.nanoTime() + RETENTION_CHECK_INTERVAL_NANOS;
+        raiseHorizon(0, System.currentTimeMillis() - settings.retentionDays * 86_400_000L);
+        dropExpiredSegments();
+    }
+
+    private void runTasks() {
+        for (Iterator<WriterTask> it = tasks.iterator(); it.hasNext(); ) {
+            WriterTask task = it.next();
+            boolean done;
+            try {
+                done = task.step();
+            } catch (IOException | RuntimeException e) {
+                // задачу с ошибкой снимаем, иначе writer повторял бы её каждый проход
+                task.failed(e);
+                done = true;
+            }
+            if (done) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Ставит запись в очередь writer-потока. Будущее завершается после записи (или с ошибкой — она же логируется).
+     * Записи выполняются в порядке постановки.
+     */
+    <T> CompletableFuture<T> submitWrite(String what, IoWork<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("writer остановлен"));
+            return future;
+        }
+        tasks.add(new WriterTask() {
+            @Override
+            public boolean step() throws IOException {
+                future.complete(work.run());
+                return true;
+            }
+
+            @Override
+            public void failed(Exception e) {
+                Coreprotect.LOGGER.error("[Coreprotect] Ошибка записи: {}", what, e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Барьер на writer-потоке: ждёт, пока writer перенесёт в сегмент всё, что было в кольце на момент вызова,
+     * и дочитает spill-журнал, затем сбрасывает всё на диск.
+     */
+    @Override
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("writer остановлен"));
+            return future;
+        }
+        long target = ring.offered();
+        tasks.add(new WriterTask() {
+            @Override
+            public boolean step() throws IOException {
+                if (ring.drained() < target || spillJournal.hasPending()) {
+                    return false;
+                }
+                persistDictionaries();
+                forceAll();
+                future.complete(null);
+                return true;
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // ---------- Запись событий ----------
+
+    @Override
+    public void logBlockChange(BlockAction.Type type,
+                               UUID playerUuid,
+                               String playerName,
+                               ResourceKey<Level> dimension,
+                               BlockPos pos,
+                               BlockState oldState,
+                               BlockState newState) {
+        if (!running) return;
+        capture.capture(type, playerUuid, playerName, dimension, pos, oldState, newState, System.currentTimeMillis());
+    }
+
+    @Override
+    public void logBlockAction(BlockAction action) {
+        if (!running) return;
+        capture.capture(action.type, action.playerUuid, action.playerName, action.dimension, action.pos,
+                action.oldState, action.newState, action.time.toEpochMilli());
+    }
+
+    // ---------- Выборки ----------
+
+    private Snapshot snapshot() {
+        synchronized (visibility) {
+            return snapshotLocked();
+        }
+    }
+
+    // под visibility: сводку активного сегмента writer меняет, поэтому берём копию
+    private Snapshot snapshotLocked() {
+        List<LogSegment> list = segments;
+        int n = list.size();
+        LogSegment[] array = list.toArray(new LogSegment[0]);
+        int[] counts = new int[n];
+        SegmentIndex[] indexes = new SegmentIndex[n];
+        for (int i = 0; i < n; i++) {
+            counts[i] = array[i].count();
+            indexes[i] = array[i].isSealed() ? array[i].index() : array[i].index().copy();
+        }
+        return new Snapshot(array, counts, indexes);
+    }
+
+    /**
+     * Последние {@code limit} событий по позиции, от новых к старым, включая ещё не перенесённые из кольца.
+     * Читаются только сегменты, сводка которых допускает эту позицию; сегменты, где все события старше уже
+     * найденных {@code limit}, пропускаются.
+     */
+    @Override
+    public List<DbBlockAction> getBlockHistory(ResourceKey<Level> dimension, BlockPos pos, int limit) {
+        long started = System.nanoTime();
+        List<DbBlockAction> result = new ArrayList<>();
+        int worldId = worlds.idOf(dimension.location().toString());
+        if (worldId < 0 || limit <= 0) return result;
+
+        long packed = pos.asLong();
+        long since = horizon(worldId);
+        List<Hit> hits = new ArrayList<>();
+        Snapshot snap;
+        synchronized (visibility) {
+            snap = snapshotLocked();
+            // кольцо — после всех сегментов по порядку записи
+            long ringBase = (snap.segments()[snap.segments().length - 1].id() + 1) << 32;
+            ring.scan(worldId, packed, (p, time, player, world, action, oldState, newState) -> {
+                if (time >= since) hits.add(new Hit(time, ringBase + hits.size(), player, action, oldState, newState));
+            });
+        }
+
+        Comparator<Hit> newestFirst = Comparator.comparingLong(Hit::time).thenComparingLong(Hit::order).reversed();
+        long kthTime = Long.MIN_VALUE;
+        for (int i = snap.segments().length - 1; i >= 0; i--) {
+            SegmentIndex index = snap.indexes()[i];
+            if (hits.size() >= limit && index.maxTime < kthTime) continue;
+            if (!index.mayContain(worldId, pos.getX(), pos.getY(), pos.getZ(), since)) continue;
+            long base = snap.segments()[i].id() << 32;
+            int[] seq = new int[1];
+            snap.segments()[i].scanPosition(snap.counts()[i], packed, worldId, (p, time, player, world, action, oldState, newState) -> {
+                if (time >= since) hits.add(new Hit(time, base + seq[0]++, player, action, oldState, newState));
+            });
+            if (hits.size() >= limit) {
+                hits.sort(newestFirst);
+                hits.subList(limit, hits.size()).clear();
+                kthTime = hits.get(limit - 1).time();
+            }
+        }
+        hits.sort(newestFirst);
+
+        for (int i = 0; i < hits.size() && i < limit; i++) {
+            Hit h = hits.get(i);
+            result.add(new DbBlockAction(h.time() / 1000L, players.nameAt(h.player(), h.time() / 1000L), actionTypes.nameOf(h.action()),
+                    materials.nameOf(h.oldState()), materials.nameOf(h.newState())));
+        }
+        metrics.query(QueryStats.Type.INSPECT).record(System.nanoTime() - started);
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<List<DbBlockAction>> getBlockHistoryAsync(ResourceKey<Level> dimension, BlockPos pos, int limit) {
+        return CompletableFuture.supplyAsync(() -> getBlockHistory(dimension, pos, limit), queryExecutor);
+    }
+
+    @Override
+    public ActionStream<DbRollbackAction> streamActionsForRollback(ResourceKey<Level> dimension,
+                                                                   BlockPos center,
+                                                                   int radius,
+                                                                   long sinceEpochSeconds,
+                                                                   String playerNameFilter) {
+        return streamFinalStates(dimension, center, radius, sinceEpochSeconds, playerNameFilter, true,
+                (key, best) -> new DbRollbackAction(best.time / 1000L,
+                        BlockPos.getX(key), BlockPos.getY(key), BlockPos.getZ(key),
+                        actionTypes.nameOf(best.action), materials.nameOf(best.state), stateOf(best.state)));
+    }
+
+    @Override
+    public ActionStream<DbForwardAction> streamActionsForRestore(ResourceKey<Level> dimension,
+                                                                 BlockPos center,
+                                                                 int radius,
+                                                                 long sinceEpochSeconds,
+                                                                 String playerNameFilter) {
+        return streamFinalStates(dimension, center, radius, sinceEpochSeconds, playerNameFilter, false,
+                (key, best) -> new DbForwardAction(best.time / 1000L,
+                        BlockPos.getX(key), BlockPos.getY(key), BlockPos.getZ(key),
+                        actionTypes.nameOf(best.action), materials.nameOf(best.state), stateOf(best.state)));
+    }
+
+    @FunctionalInterface
+    private interface RowMapper<T> {
+        T map(long packedPos, Best best);
+    }
+
+    /**
+     * Итоговые состояния по позициям области: по сегментам, чья сводка допускает область, в порядке записи —
+     * по позиции остаётся самое раннее событие окна (rollback, old-состояние) или самое позднее (restore,
+     * new-состояние). Строки отдаются в порядке {@code chunk_key, y, x, z}, как у SQLite, — rollback идёт по чанкам.
+     * <p>
+     * Записи в сегментах лежат в порядке записи, а не по чанкам, поэтому свёртка идёт в памяти. Чтобы она не росла
+     * с областью, в памяти не больше {@link #MAX_REGION_POSITIONS} позиций: первый проход сворачивает всё сразу
+     * и заодно считает события по чанкам; если позиций оказалось больше, чанки делятся на порции подряд
+     * по chunk_key, и каждая порция сворачивается и отдаётся отдельным проходом по сегментам, где она может быть.
+     */
+    private <T> ActionStream<T> streamFinalStates(ResourceKey<Level> dimension,
+                                                  BlockPos center,
+                                                  int radius,
+                                                  long sinceEpochSeconds,
+                                                  String playerNameFilter,
+                                                  boolean earliest,
+                                                  RowMapper<T> mapper) {
+        QueryStats.Type type = earliest ? QueryStats.Type.ROLLBACK : QueryStats.Type.RESTORE;
+        return new ActionStream<>(settings.rollbackFetchSize, streamExecutor, metrics.timed(type, sink -> {
+            int worldId = worlds.idOf(dimension.location().toString());
+            int[] playerIds = playerNameFilter == null || playerNameFilter.isBlank()
+                    ? null : players.idsByName(playerNameFilter);
+            if (worldId < 0 || (playerIds != null && playerIds.length == 0)) return;
+
+            Region region = new Region(worldId, center.getX() - radius, center.getY() - radius, center.getZ() - radius,
+                    center.getX() + radius, center.getY() + radius, center.getZ() + radius,
+                    Math.max(sinceEpochSeconds * 1000L, horizon(worldId)), playerIds, earliest);
+            Snapshot snap = snapshot();
+
+            // первый проход: свёртка целиком, пока влезает, и число событий по чанкам
+            Long2ObjectOpenHashMap<Best> byPos = new Long2ObjectOpenHashMap<>();
+            Long2IntOpenHashMap perChunk = new Long2IntOpenHashMap();
+            boolean[] overflow = new boolean[1];
+            region.scan(snap, Long.MIN_VALUE, Long.MAX_VALUE, region.minX, region.minZ, region.maxX, region.maxZ, p -> {
+                perChunk.addTo(SpatialKey.chunkKey(BlockPos.getX(p), BlockPos.getZ(p)), 1);
+                if (overflow[0]) return null;
+                if (byPos.size() >= MAX_REGION_POSITIONS && !byPos.containsKey(p)) {
+                    overflow[0] = true;
+                    byPos.clear();
+                    byPos.trim();
+                    return null;
+                }
+                return byPos.computeIfAbsent(p, k -> new Best());
+            });
+            if (!overflow[0]) {
+                emitSorted(byPos, mapper, sink);
+                return;
+            }
+
+            // много позиций: порции подряд идущих чанков, в каждой событий не больше MAX_REGION_POSITIONS
+            long[] chunks = perChunk.keySet().toLongArray();
+            LongArrays.quickSort(chunks);
+            int from = 0;
+            while (from < chunks.length) {
+                int to = from;
+                long events = perChunk.get(chunks[from]);
+                while (to + 1 < chunks.length && events + perChunk.get(chunks[to + 1]) <= MAX_REGION_POSITIONS) {
+                    events += perChunk.get(chunks[++to]);
+                }
+                int minCx = Integer.MAX_VALUE, minCz = Integer.MAX_VALUE, maxCx = Integer.MIN_VALUE, maxCz = Integer.MIN_VALUE;
+                for (int i = from; i <= to; i++) {
+                    minCx = Math.min(minCx, SpatialKey.chunkX(chunks[i]));
+                    maxCx = Math.max(maxCx, SpatialKey.chunkX(chunks[i]));
+                    minCz = Math.min(minCz, SpatialKey.chunkZ(chunks[i]));
+                    maxCz = Math.max(maxCz, SpatialKey.chunkZ(chunks[i]));
+                }
+                byPos.clear();
+                region.scan(snap, chunks[from], chunks[to],
+                        Math.max(region.minX, minCx << 4), Math.max(region.minZ, minCz << 4),
+                        Math.min(region.maxX, (maxCx << 4) + 15), Math.min(region.maxZ, (maxCz << 4) + 15),
+                        p -> byPos.computeIfAbsent(p, k -> new Best()));
+                if (!emitSorted(byPos, mapper, sink)) return;
+                from = to + 1;
+            }
+        }));
+    }
+
+    /**
+     * Условия выборки по области и свёртка событий в итоговые по позициям.
+     */
+    private record Region(int worldId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                          long since, int[] playerIds, boolean earliest) {
+
+        /**
+         * Проход по сегментам снимка, сводка которых допускает прямоугольник {@code [x0..x1] x [z0..z1]}:
+         * события области с chunk_key в {@code [fromChunk, toChunk]} сворачиваются в {@code Best} позиции,
+         * который отдаёт {@code slots} (null — событие пропустить).
+         */
+        void scan(Snapshot snap, long fromChunk, long toChunk, int x0, int z0, int x1, int z1, LongFunction<Best> slots) {
+            for (int i = 0; i < snap.segments().length; i++) {
+                if (!snap.indexes()[i].mayContainBox(worldId, since, x0, minY, z0, x1, maxY, z1)) continue;
+                snap.segments()[i].scan(snap.counts()[i], (p, time, player, world, action, oldState, newState) -> {
+                    if (world != worldId || time < since) return;
+                    int x = BlockPos.getX(p), y = BlockPos.getY(p), z = BlockPos.getZ(p);
+                    if (x < x0 || x > x1 || y < minY || y > maxY || z < z0 || z > z1) return;
+                    if (playerIds != null && !contains(playerIds, player)) return;
+                    long chunk = SpatialKey.chunkKey(x, z);
+                    if (chunk < fromChunk || chunk > toChunk) return;
+                    Best best = slots.apply(p);
+                    if (best == null) return;
+                    if (best.time != Long.MIN_VALUE && (earliest ? time >= best.time : time < best.time)) {
+                        // записи идут в порядке записи: при равном времени rollback берёт первую, restore — последнюю
+                        return;
+                    }
+                    best.time = time;
+                    best.action = action;
+                    best.state = earliest ? oldState : newState;
+                });
+            }
+        }
+    }
+
+    /**
+     * Отдаёт свёрнутые позиции в порядке {@code chunk_key, y, x, z}. false — читатель закрыл поток.
+     */
+    private static <T> boolean emitSorted(Long2ObjectOpenHashMap<Best> byPos, RowMapper<T> mapper,
+                                          ActionStream.Sink<T> sink) {
+        long[] keys = byPos.keySet().toLongArray();
+        LongArrays.quickSort(keys, (a, b) -> {
+            int c = Long.compare(SpatialKey.chunkKey(BlockPos.getX(a), BlockPos.getZ(a)),
+                    SpatialKey.chunkKey(BlockPos.getX(b), BlockPos.getZ(b)));
+            if (c != 0) return c;
+            c = Integer.compare(BlockPos.getY(a), BlockPos.getY(b));
+            if (c != 0) return c;
+            c = Integer.compare(BlockPos.getX(a), BlockPos.getX(b));
+            return c != 0 ? c : Integer.compare(BlockPos.getZ(a), BlockPos.getZ(b));
+        });
+        for (long key : keys) {
+            if (!sink.accept(mapper.map(key, byPos.get(key)))) return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int v : ids) {
+            if (v == id) return true;
+        }
+        return false;
+    }
+
+    private BlockState stateOf(int stateId) {
+        return stateId == 0 ? Blocks.AIR.defaultBlockState() : palette.stateOf(stateId);
+    }
+
+    // ---------- Rollback-сессии ----------
+
+    @Override
+    public int createRollbackSession(String executor, String params) {
+        if (!running) return -1;
+        int id = nextSessionId.getAndIncrement();
+        long now = System.currentTimeMillis() / 1000L;
+        // записи сессии ставятся в ту же очередь позже, так что SESSION_CREATE ляжет раньше них
+        CompletableFuture<Void> created = submitWrite("создание rollback-сессии " + id, () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(SESSION_CREATE);
+            out.writeInt(id);
+            out.writeLong(now);
+            out.writeUTF(executor);
+            out.writeUTF(params);
+            appendSessionRecords(List.of(bytes.toByteArray()));
+            return null;
+        });
+        creatingSessions.put(id, created);
+        created.whenComplete((ignored, e) -> creatingSessions.remove(id));
+        return id;
+    }
+
+    @Override
+    public RollbackSessionRecorder openSessionRecorder(int sessionId, ResourceKey<Level> dimension) {
+        return new SegmentSessionRecorder(this, sessionId, dimension.location().toString());
+    }
+
+    /**
+     * Дописывает записи в sessions.log одной записью на диск. Только writer (из {@link #submitWrite}).
+     */
+    void appendSessionRecords(List<byte[]> records) throws IOException {
+        try {
+            for (byte[] record : records) {
+                sessionLog.append(record);
+            }
+            sessionLog.commit();
+        } catch (IOException e) {
+            sessionLog.discardPending();
+            throw e;
+        }
+    }
+
+    static byte[] sessionChunkRecord(int sessionId, String dimension, int chunkX, int chunkZ, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SESSION_CHUNK);
+        out.writeInt(sessionId);
+        out.writeUTF(dimension);
+        out.writeInt(chunkX);
+        out.writeInt(chunkZ);
+        out.writeInt(data.length);
+        out.write(data);
+        return bytes.toByteArray();
+    }
+
+    static byte[] sessionFinishRecord(int sessionId, int entryCount) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SESSION_FINISH);
+        out.writeInt(sessionId);
+        out.writeInt(entryCount);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Записи сессии потоком: чанки из sessions.log по порядку записи, каждый распаковывается отдельно.
+     */
+    @Override
+    public ActionStream<RollbackSessionEntry> streamRollbackEntries(int sessionId) {
+        return new ActionStream<>(settings.rollbackFetchSize, streamExecutor, metrics.timed(QueryStats.Type.SESSION, sink -> {
+            int[] chunkNo = new int[1];
+            sessionLog.read((offset, in) -> {
+                if (in.readByte() != SESSION_CHUNK || in.readInt() != sessionId) return true;
+                String dimension = in.readUTF();
+                int chunkX = in.readInt();
+                int chunkZ = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                int id = ++chunkNo[0];
+                for (SessionSnapshotCodec.Entry e : SessionSnapshotCodec.decode(data, chunkX, chunkZ)) {
+                    if (!sink.accept(new RollbackSessionEntry(id, sessionId, dimension,
+                            e.x(), e.y(), e.z(), e.before(), e.after()))) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }));
+    }
+
+    /**
+     * Состояние сессии по sessions.log: есть ли SESSION_CREATE и SESSION_FINISH с числом записей.
+     */
+    @Override
+    public CompletableFuture<RollbackSessionStatus> getRollbackSessionStatusAsync(int sessionId) {
+        return sessionCreated(sessionId).thenApplyAsync(ignored -> {
+            boolean[] created = new boolean[1];
+            int[] entryCount = {-1};
+            try {
+                sessionLog.read((offset, in) -> {
+                    byte type = in.readByte();
+                    if ((type != SESSION_CREATE && type != SESSION_FINISH) || in.readInt() != sessionId) return true;
+                    if (type == SESSION_CREATE) {
+                        created[0] = true;
+                        return true;
+                    }
+                    entryCount[0] = in.readInt();
+                    return false;
+                });
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            if (!created[0]) return null;
+            return new RollbackSessionStatus(sessionId, entryCount[0] >= 0, entryCount[0]);
+        }, queryExecutor);
+    }
+
+    /**
+     * Завершается, когда сессия записана (или её запись не удалась); для уже записанной — сразу.
+     */
+    private CompletableFuture<?> sessionCreated(int sessionId) {
+        CompletableFuture<?> created = creatingSessions.get(sessionId);
+        return created == null ? CompletableFuture.completedFuture(null) : created.exceptionally(e -> null);
+    }
+
+    @Override
+    public void markSessionRestored(int sessionId) {
+        submitWrite("пометка сессии " + sessionId + " restored", () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(SESSION_RESTORED);
+            out.writeInt(sessionId);
+            appendSessionRecords(List.of(bytes.toByteArray()));
+            return null;
+        });
+    }
+
+    // ---------- Очистка и срок хранения ----------
+
+    private long horizon(int worldId) {
+        Long own = worldHorizons.get(worldId);
+        return own == null ? globalHorizon : Math.max(globalHorizon, own);
+    }
+
+    private void applyHorizon(int worldId, long cutoffMillis) {
+        if (worldId == 0) {
+            globalHorizon = Math.max(globalHorizon, cutoffMillis);
+        } else {
+            worldHorizons.merge(worldId, cutoffMillis, Math::max);
+        }
+    }
+
+    /**
+     * Поднимает горизонт мира ({@code worldId = 0} — всех миров) и сохраняет его. Только writer.
+     */
+    private void raiseHorizon(int worldId, long cutoffMillis) throws IOException {
+        if (cutoffMillis <= (worldId == 0 ? globalHorizon : horizon(worldId))) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(worldId);
+        out.writeLong(cutoffMillis);
+        try {
+            horizonLog.append(bytes.toByteArray());
+            horizonLog.commit();
+        } catch (IOException e) {
+            horizonLog.discardPending();
+            throw e;
+        }
+        horizonLog.force();
+        applyHorizon(worldId, cutoffMillis);
+    }
+
+    /**
+     * Удаляет запечатанные сегменты, все события которых за горизонтом. Только writer (и загрузка).
+     */
+    private Dropped dropExpiredSegments() {
+        List<LogSegment> expired = new ArrayList<>();
+        for (LogSegment segment : segments) {
+            if (!segment.isSealed()) continue;
+            SegmentIndex index = segment.index();
+            long cutoff = index.singleWorld > 0 ? horizon(index.singleWorld) : globalHorizon;
+            if (index.count == 0 || index.maxTime < cutoff) {
+                expired.add(segment);
+            }
+        }
+        if (expired.isEmpty()) return new Dropped(0, 0);
+
+        synchronized (visibility) {
+            List<LogSegment> list = new ArrayList<>(segments);
+            list.removeAll(expired);
+            segments = List.copyOf(list);
+        }
+        long bytes = 0;
+        for (LogSegment segment : expired) {
+            bytes += segment.sizeBytes();
+            if (segment.delete()) {
+                Coreprotect.LOGGER.info("[Coreprotect] Сегмент {} удалён", segment.id());
+            }
+        }
+        return new Dropped(expired.size(), bytes);
+    }
+
+    /**
+     * Очистка: на потоке выборок считается, сколько событий уйдёт за новый горизонт, затем writer поднимает
+     * горизонт и удаляет сегменты, целиком ушедшие за него. Возвращает false, если очистка уже идёт.
+     *
+     * @throws IllegalArgumentException если мир не встречался в хранилище
+     */
+    @Override
+    public boolean startPurge(long cutoffEpochSeconds, String dimension, boolean vacuum, PurgeListener listener) {
+        int worldId = 0;
+        if (dimension != null) {
+            worldId = worlds.idOf(dimension);
+            if (worldId < 0) {
+                throw new IllegalArgumentException("В хранилище нет мира " + dimension);
+            }
+        }
+        if (!purging.compareAndSet(false, true)) return false;
+
+        int purgeWorld = worldId;
+        long cutoff = cutoffEpochSeconds * 1000L;
+        try {
+            streamExecutor.execute(() -> runPurge(purgeWorld, cutoff, vacuum, listener));
+        } catch (RuntimeException e) {
+            purging.set(false);
+            throw e;
+        }
+        Coreprotect.LOGGER.info("[Coreprotect] Запущена очистка истории старше {} ({})",
+                cutoffEpochSeconds, dimension != null ? dimension : "все миры");
+        return true;
+    }
+
+    private void runPurge(int worldId, long cutoff, boolean vacuum, PurgeListener listener) {
+        long started = System.nanoTime();
+        try {
+            Snapshot snap = snapshot();
+            int total = snap.segments().length;
+            long[] hidden = new long[1];
+            long nextProgress = System.nanoTime() + PURGE_PROGRESS_INTERVAL_NANOS;
+            for (int i = 0; i < total; i++) {
+                SegmentIndex index = snap.indexes()[i];
+                if (index.minTime < cutoff && (worldId == 0 || index.mayContainWorld(worldId))) {
+                    snap.segments()[i].scan(snap.counts()[i], (p, time, player, world, action, oldState, newState) -> {
+                        if (time < cutoff && (worldId == 0 || world == worldId) && time >= horizon(world)) {
+                            hidden[0]++;
+                        }
+                    });
+                }
+                if (System.nanoTime() - nextProgress >= 0) {
+                    listener.onProgress(hidden[0], 0, i + 1, total);
+                    nextProgress = System.nanoTime() + PURGE_PROGRESS_INTERVAL_NANOS;
+                }
+            }
+
+            Dropped dropped = submitWrite("очистка истории", () -> {
+                raiseHorizon(worldId, cutoff);
+                return dropExpiredSegments();
+            }).get();
+            long elapsedMs = (System.nanoTime() - started) / 1_000_000L;
+            Coreprotect.LOGGER.info("[Coreprotect] Очистка завершена: скрыто {} событий, удалено сегментов {} за {} мс",
+                    hidden[0], dropped.segments(), elapsedMs);
+            listener.onFinished(hidden[0], dropped.segments(), vacuum ? dropped.bytes() / 4096 : -1, elapsedMs);
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка очистки истории", cause);
+            listener.onFailed(cause instanceof Exception ex ? ex : e);
+        } finally {
+            purging.set(false);
+        }
+    }
+
+    // ---------- Прочее ----------
+
+    @Override
+    public PipelineMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public BlockState deserializeBlockState(String id) {
+        return palette.stateOf(id);
+    }
+}
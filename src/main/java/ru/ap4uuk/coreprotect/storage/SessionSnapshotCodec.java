@@ -0,0 +1,140 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Упаковка записей rollback-сессии одного чанка в blob для {@code rollback_session_chunks}.
+ * <p>
+ * Формат (после deflate): {@code [byte VERSION][varint count][varint размер палитры][UTF состояния...]},
+ * дальше на каждую запись {@code [zigzag varint дельта ключа позиции][varint before][varint after]},
+ * где before/after — индексы в палитре. Ключ позиции внутри чанка — {@code y << 8 | lz << 4 | lx};
+ * rollback идёт по чанку слоями по y, так что дельты соседних записей почти всегда в один байт.
+ * Порядок записей сохраняется как есть.
+ */
+final class SessionSnapshotCodec {
+
+    private static final int VERSION = 1;
+
+    /** Запись сессии с уже сериализованными состояниями. */
+    record Entry(int x, int y, int z, String before, String after) {}
+
+    private SessionSnapshotCodec() {}
+
+    static byte[] encode(List<Entry> entries) {
+        Map<String, Integer> paletteIndex = new HashMap<>();
+        List<String> palette = new ArrayList<>();
+        int[] before = new int[entries.size()];
+        int[] after = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            before[i] = paletteIndex.computeIfAbsent(e.before(), s -> add(palette, s));
+            after[i] = paletteIndex.computeIfAbsent(e.after(), s -> add(palette, s));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(
+                new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+            out.writeByte(VERSION);
+            writeVarInt(out, entries.size());
+            writeVarInt(out, palette.size());
+            for (String state : palette) {
+                out.writeUTF(state);
+            }
+            long previous = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry e = entries.get(i);
+                long key = localKey(e.x(), e.y(), e.z());
+                writeVarLong(out, zigzag(key - previous));
+                previous = key;
+                writeVarInt(out, before[i]);
+                writeVarInt(out, after[i]);
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream не бросает
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Распаковывает blob чанка {@code chunkX, chunkZ} в исходном порядке записей.
+     */
+    static List<Entry> decode(byte[] data, int chunkX, int chunkZ) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("неизвестная версия снимка сессии: " + version);
+            }
+            int count = readVarInt(in);
+            String[] palette = new String[readVarInt(in)];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = in.readUTF();
+            }
+
+            List<Entry> entries = new ArrayList<>(count);
+            long key = 0;
+            for (int i = 0; i < count; i++) {
+                key += unzigzag(readVarLong(in));
+                int x = (chunkX << 4) | (int) (key & 15);
+                int z = (chunkZ << 4) | (int) ((key >> 4) & 15);
+                int y = (int) (key >> 8);
+                entries.add(new Entry(x, y, z, palette[readVarInt(in)], palette[readVarInt(in)]));
+            }
+            return entries;
+        }
+    }
+
+    private static int add(List<String> palette, String state) {
+        palette.add(state);
+        return palette.size() - 1;
+    }
+
+    private static long localKey(int x, int y, int z) {
+        return ((long) y << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("битый varint в снимке сессии");
+    }
+}
@@ -0,0 +1,59 @@
+package ru.ap4uuk.coreprotect.storage;
+
+/**
+ * Упакованный ключ чанка для колонки {@code chunk_key}.
+ * <p>
+ * {@code key = ((chunkZ + OFFSET) << 22) | (chunkX + OFFSET)}: 22 бита на координату чанка покрывают весь мир
+ * (±30 000 000 блоков = ±1 875 000 чанков). Чанки одной «строки» (одинаковый chunkZ) идут подряд,
+ * поэтому любой прямоугольник раскладывается в один диапазон ключей на каждую строку чанков.
+ * <p>
+ * Та же формула продублирована в SQL миграции v3 — менять только вместе.
+ */
+final class SpatialKey {
+
+    static final int COORD_BITS = 22;
+    static final int OFFSET = 1 << (COORD_BITS - 1);
+
+    // Больше диапазонов не разворачиваем — берём один охватывающий, лишнее отсечётся фильтром по x/z
+    static final int MAX_RANGES = 256;
+
+    private SpatialKey() {}
+
+    static long chunkKey(int blockX, int blockZ) {
+        return ofChunk(blockX >> 4, blockZ >> 4);
+    }
+
+    static long ofChunk(int chunkX, int chunkZ) {
+        return ((long) (chunkZ + OFFSET) << COORD_BITS) | (chunkX + OFFSET);
+    }
+
+    static int chunkX(long key) {
+        return (int) (key & ((1L << COORD_BITS) - 1)) - OFFSET;
+    }
+
+    static int chunkZ(long key) {
+        return (int) (key >>> COORD_BITS) - OFFSET;
+    }
+
+    /**
+     * Диапазоны ключей, покрывающие прямоугольник в блоках: пары {@code [lo0, hi0, lo1, hi1, ...]}, включительно.
+     */
+    static long[] rangesForBox(int minX, int minZ, int maxX, int maxZ) {
+        int minCx = minX >> 4;
+        int maxCx = maxX >> 4;
+        int minCz = minZ >> 4;
+        int maxCz = maxZ >> 4;
+
+        int rows = maxCz - minCz + 1;
+        if (rows > MAX_RANGES) {
+            return new long[] {ofChunk(minCx, minCz), ofChunk(maxCx, maxCz)};
+        }
+
+        long[] ranges = new long[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            ranges[i * 2] = ofChunk(minCx, minCz + i);
+            ranges[i * 2 + 1] = ofChunk(maxCx, minCz + i);
+        }
+        return ranges;
+    }
+}
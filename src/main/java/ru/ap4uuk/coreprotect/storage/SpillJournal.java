@@ -0,0 +1,426 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.Coreprotect;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only журнал событий на диске, куда уходят события при переполнении очереди writer-потока.
+ * <p>
+ * Пишут в активный файл ({@code <db>.spill}) любые потоки, читает только writer: перед чтением активный файл
+ * переименовывается в {@code <db>.spill.draining}, а новые события снова идут в свежий активный файл.
+ * Позиция последней закоммиченной записи хранится в {@code <db>.spill.draining.pos} и пишется после коммита
+ * порции в хранилище: если сервер упал между ними, порция после перезапуска запишется ещё раз (не потеряется,
+ * но может задвоиться).
+ * <p>
+ * Запись буферизована: {@link #append} не сбрасывает буфер на каждое событие, это делает {@link #flushBuffered}
+ * из writer-потока на каждом проходе, сам {@code append}, если с прошлого сброса прошло больше
+ * {@value #FLUSH_INTERVAL_MS} мс, и переполнение буфера. fsync нет нигде: события в файле переживают падение
+ * процесса, но не ОС, а при падении процесса теряется ещё и несброшенный хвост буфера — не больше его размера
+ * и не старше {@value #FLUSH_INTERVAL_MS} мс при живом writer-потоке.
+ * <p>
+ * Формат: заголовок (MAGIC, VERSION), дальше записи {@code [int длина][crc32][payload]} (в версии 1 — без crc32).
+ * Запись, которая оборвана, не сходится по crc или не раскодируется, считается концом журнала: остаток
+ * не читается, а сам файл при окончании откладывается в {@code .bad}, чтобы его можно было разобрать.
+ * <p>
+ * Тот же формат служит трассой событий для нагрузочного прогона (см. {@link #trace}, {@link #openForReplay}):
+ * записанную трассу — или spill-журнал с живого сервера — можно проиграть заново.
+ */
+final class SpillJournal implements Closeable {
+
+    private static final int MAGIC = 0x43505350; // "CPSP"
+    private static final int VERSION = 2;
+    // записи без crc32, файлы с прошлых версий дочитываются как есть
+    private static final int VERSION_NO_CRC = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 200;
+    private static final long FLUSH_INTERVAL_NANOS = FLUSH_INTERVAL_MS * 1_000_000L;
+
+    private final Path activeFile;
+    private final Path drainingFile;
+    private final Path positionFile;
+    private final Function<BlockState, String> stateSerializer;
+    private final Function<String, BlockState> stateDeserializer;
+
+    // guarded by this
+    private DataOutputStream out;
+    // формат записей активного файла: дописываем в том, с каким он создан
+    private int outVersion;
+    private long activeRecords;
+    // есть записи, не сброшенные из буфера в файл, и когда буфер сбрасывался последний раз
+    private boolean unflushed;
+    private long lastFlushNanos;
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    SpillJournal(Path dbFile,
+                 Function<BlockState, String> stateSerializer,
+                 Function<String, BlockState> stateDeserializer) {
+        this(stateSerializer, stateDeserializer, dbFile.toAbsolutePath().resolveSibling(dbFile.getFileName() + ".spill"));
+    }
+
+    private SpillJournal(Function<BlockState, String> stateSerializer,
+                         Function<String, BlockState> stateDeserializer,
+                         Path activeFile) {
+        Path abs = activeFile.toAbsolutePath();
+        this.activeFile = abs;
+        this.drainingFile = abs.resolveSibling(abs.getFileName() + ".draining");
+        this.positionFile = abs.resolveSibling(abs.getFileName() + ".draining.pos");
+        this.stateSerializer = stateSerializer;
+        this.stateDeserializer = stateDeserializer;
+    }
+
+    /**
+     * Журнал, который пишет события ровно в {@code file} (трасса событий). Читается через {@link #openForReplay}.
+     */
+    static SpillJournal trace(Path file,
+                              Function<BlockState, String> stateSerializer,
+                              Function<String, BlockState> stateDeserializer) {
+        return new SpillJournal(stateSerializer, stateDeserializer, file);
+    }
+
+    /**
+     * Дописывает событие в буфер активного файла. Вызывается из потока, логирующего событие: кодирование
+     * вне блокировки, под блокировкой только запись в буфер; сброс в файл — см. описание класса.
+     */
+    void append(BlockAction action) throws IOException {
+        byte[] payload = encode(action);
+        synchronized (this) {
+            write(payload);
+        }
+    }
+
+    // guarded by this
+    private void write(byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("spill journal closed");
+        }
+        if (out == null) {
+            boolean fresh = !Files.exists(activeFile) || Files.size(activeFile) == 0;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(activeFile.toFile(), true), BUFFER_SIZE));
+            lastFlushNanos = System.nanoTime();
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                outVersion = VERSION;
+            } else {
+                // файл остался с прошлого запуска — считаем, что в нём что-то есть
+                activeRecords = Math.max(activeRecords, 1);
+                outVersion = versionOf(activeFile);
+            }
+        }
+
+        out.writeInt(payload.length);
+        if (outVersion != VERSION_NO_CRC) {
+            crc.reset();
+            crc.update(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        out.write(payload);
+        activeRecords++;
+        unflushed = true;
+        if (System.nanoTime() - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flushOut();
+        }
+    }
+
+    /**
+     * Сбрасывает буфер активного файла в файл, если в нём что-то есть. Зовёт writer-поток на каждом проходе;
+     * ошибка только логируется — события остаются в буфере до следующей попытки.
+     */
+    synchronized void flushBuffered() {
+        if (!unflushed || out == null) return;
+        try {
+            flushOut();
+        } catch (IOException e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Не удалось сбросить spill-журнал на диск", e);
+        }
+    }
+
+    // guarded by this
+    private void flushOut() throws IOException {
+        out.flush();
+        unflushed = false;
+        lastFlushNanos = System.nanoTime();
+    }
+
+    /**
+     * Есть ли что дочитывать: незаконченный draining-файл или непустой активный.
+     */
+    synchronized boolean hasPending() {
+        if (activeRecords > 0 || Files.exists(drainingFile)) {
+            return true;
+        }
+        try {
+            return Files.exists(activeFile) && Files.size(activeFile) > HEADER_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Открывает журнал на чтение (только writer-поток). Если draining-файла нет — в него переименовывается активный.
+     * Возвращает null, если читать нечего.
+     */
+    Cursor openForDrain() throws IOException {
+        synchronized (this) {
+            if (!Files.exists(drainingFile)) {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                unflushed = false;
+                activeRecords = 0;
+                if (!Files.exists(activeFile)) {
+                    return null;
+                }
+                Files.move(activeFile, drainingFile, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(positionFile);
+            }
+        }
+
+        long committed = HEADER_SIZE;
+        if (Files.exists(positionFile)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(positionFile))) {
+                committed = Math.max(HEADER_SIZE, in.readLong());
+            } catch (IOException e) {
+                committed = HEADER_SIZE;
+            }
+        }
+        return new Cursor(drainingFile, committed);
+    }
+
+    /**
+     * Читает файл в формате журнала с начала, ничего не переименовывая и не удаляя: трасса событий или чужой
+     * spill-журнал. У такого курсора нельзя вызывать {@link Cursor#commit} и {@link Cursor#finish}.
+     */
+    Cursor openForReplay(Path file) throws IOException {
+        return new Cursor(file, HEADER_SIZE);
+    }
+
+    private static int versionOf(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad spill journal header: " + file);
+            }
+            return in.readInt();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private byte[] encode(BlockAction action) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeLong(action.time.toEpochMilli());
+        data.writeByte(action.type.ordinal());
+        data.writeLong(action.playerUuid.getMostSignificantBits());
+        data.writeLong(action.playerUuid.getLeastSignificantBits());
+        data.writeUTF(action.playerName);
+        data.writeUTF(action.dimension.location().toString());
+        data.writeInt(action.pos.getX());
+        data.writeInt(action.pos.getY());
+        data.writeInt(action.pos.getZ());
+        writeNullableUTF(data, stateSerializer.apply(action.oldState));
+        writeNullableUTF(data, stateSerializer.apply(action.newState));
+        return bytes.toByteArray();
+    }
+
+    private BlockAction decode(byte[] payload) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        Instant time = Instant.ofEpochMilli(data.readLong());
+        BlockAction.Type type = BlockAction.Type.values()[data.readByte()];
+        UUID uuid = new UUID(data.readLong(), data.readLong());
+        String playerName = data.readUTF();
+        var dimension = ResourceKey.create(Registries.DIMENSION, new ResourceLocation(data.readUTF()));
+        BlockPos pos = new BlockPos(data.readInt(), data.readInt(), data.readInt());
+        String oldBlock = readNullableUTF(data);
+        String newBlock = readNullableUTF(data);
+        return new BlockAction(
+                type, uuid, playerName, dimension, pos,
+                oldBlock == null ? null : stateDeserializer.apply(oldBlock),
+                newBlock == null ? null : stateDeserializer.apply(newBlock),
+                time
+        );
+    }
+
+    private static void writeNullableUTF(DataOutputStream data, String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+
+    /**
+     * Курсор чтения draining-файла. Позиция фиксируется на диске только через {@link #commit()},
+     * после того как прочитанные события закоммичены в БД.
+     */
+    final class Cursor implements Closeable {
+
+        private final Path file;
+        private final DataInputStream in;
+        private final boolean checksummed;
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private long committedPosition;
+        private boolean eof;
+        private boolean corrupted;
+
+        private Cursor(Path file, long startPosition) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+            int version;
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("bad spill journal header: " + file);
+                }
+                version = in.readInt();
+                if (version != VERSION && version != VERSION_NO_CRC) {
+                    throw new IOException("unknown spill journal version " + version + ": " + file);
+                }
+                in.skipNBytes(startPosition - HEADER_SIZE);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            this.checksummed = version != VERSION_NO_CRC;
+            this.position = startPosition;
+            this.committedPosition = startPosition;
+        }
+
+        /**
+         * Дочитывает до {@code max} событий в {@code into}. Возвращает, сколько добавлено.
+         */
+        int read(List<BlockAction> into, int max) throws IOException {
+            int read = 0;
+            int frame = checksummed ? 8 : 4;
+            while (read < max && !eof) {
+                int length;
+                int checksum = 0;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        corrupt("длина записи " + length); // мусор в хвосте после аварийного завершения
+                        break;
+                    }
+                    if (checksummed) {
+                        checksum = in.readInt();
+                    }
+                    payload = in.readNBytes(length);
+                } catch (EOFException e) {
+                    eof = true;
+                    break;
+                }
+                if (payload.length < length) {
+                    eof = true; // оборванная запись в хвосте
+                    break;
+                }
+                if (checksummed) {
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        corrupt("не сходится crc32");
+                        break;
+                    }
+                }
+                BlockAction action;
+                try {
+                    action = decode(payload);
+                } catch (IOException | RuntimeException e) {
+                    corrupt("запись не раскодирована: " + e);
+                    break;
+                }
+                into.add(action);
+                position += frame + length;
+                read++;
+            }
+            return read;
+        }
+
+        /**
+         * Битая запись: дальше не читаем, всё до неё отдаётся как обычно.
+         */
+        private void corrupt(String reason) {
+            eof = true;
+            corrupted = true;
+            long size = -1;
+            try {
+                size = Files.size(file);
+            } catch (IOException ignored) {}
+            Coreprotect.LOGGER.error("[Coreprotect] Spill-журнал {}: битая запись на позиции {} ({}), остаток ({} байт) пропущен",
+                    file.getFileName(), position, reason, size >= 0 ? size - position : -1);
+        }
+
+        boolean isExhausted() {
+            return eof;
+        }
+
+        /**
+         * Запоминает позицию после последней прочитанной записи как закоммиченную.
+         */
+        void commit() throws IOException {
+            if (position == committedPosition) return;
+            try (DataOutputStream pos = new DataOutputStream(Files.newOutputStream(positionFile))) {
+                pos.writeLong(position);
+            }
+            committedPosition = position;
+        }
+
+        /**
+         * Откатывает курсор к последней закоммиченной позиции (после ошибки записи в БД).
+         */
+        Cursor reopen() throws IOException {
+            close();
+            return new Cursor(file, committedPosition);
+        }
+
+        /**
+         * Журнал дочитан и всё закоммичено — удаляем draining-файл (битый откладываем в {@code .bad}).
+         */
+        void finish() throws IOException {
+            close();
+            if (corrupted) {
+                Path bad = drainingFile.resolveSibling(drainingFile.getFileName() + ".bad");
+                Files.move(drainingFile, bad, StandardCopyOption.REPLACE_EXISTING);
+                Coreprotect.LOGGER.warn("[Coreprotect] Битый spill-журнал сохранён в {}", bad.getFileName());
+            } else {
+                Files.deleteIfExists(drainingFile);
+            }
+            Files.deleteIfExists(positionFile);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
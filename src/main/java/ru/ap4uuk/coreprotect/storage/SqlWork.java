@@ -0,0 +1,12 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Кусок работы с БД на переданном соединении: выборка на read-соединении или запись на writer-потоке.
+ */
+@FunctionalInterface
+interface SqlWork<T> {
+    T run(Connection connection) throws SQLException;
+}
@@ -0,0 +1,122 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RollbackSessionRecorder} для SQLite ({@link DatabaseManager}).
+ * <p>
+ * Поток сервера только складывает изменения в буфер, сгруппированными по чанкам; полный буфер уходит
+ * writer-потоку одной транзакцией. Writer сериализует состояния и пакует каждую группу в один blob
+ * ({@link SessionSnapshotCodec}) — строка на чанк, а не на блок. {@link #finish} отправляет хвост буфера
+ * вместе с пометкой {@code finished = 1} — одной транзакцией, так что завершённая сессия всегда полная.
+ * Задачи writer-потока выполняются по порядку, поэтому финальная транзакция идёт после всех порций.
+ */
+final class SqliteSessionRecorder implements RollbackSessionRecorder {
+
+    // Сколько записей уходит writer-у одной транзакцией
+    private static final int FLUSH_ENTRIES = 4096;
+
+    private static final String INSERT_SQL = """
+        INSERT INTO rollback_session_chunks (
+            session_id, dimension, chunk_x, chunk_z, entry_count, data
+        ) VALUES (?, ?, ?, ?, ?, ?);
+        """;
+
+    private record Entry(int x, int y, int z, BlockState before, BlockState after) {}
+
+    /** Подряд идущие записи одного чанка. */
+    private record ChunkGroup(int chunkX, int chunkZ, List<Entry> entries) {}
+
+    private final DatabaseManager db;
+    private final int sessionId;
+    private final String dimension;
+    private List<ChunkGroup> buffer = new ArrayList<>();
+    private ChunkGroup current;
+    private int buffered;
+    private int recorded;
+    private boolean finished;
+
+    SqliteSessionRecorder(DatabaseManager db, int sessionId, String dimension) {
+        this.db = db;
+        this.sessionId = sessionId;
+        this.dimension = dimension;
+    }
+
+    @Override
+    public void record(BlockPos pos, BlockState before, BlockState after) {
+        if (finished) {
+            throw new IllegalStateException("сессия " + sessionId + " уже завершена");
+        }
+        int chunkX = pos.getX() >> 4;
+        int chunkZ = pos.getZ() >> 4;
+        if (current == null || current.chunkX() != chunkX || current.chunkZ() != chunkZ) {
+            current = new ChunkGroup(chunkX, chunkZ, new ArrayList<>());
+            buffer.add(current);
+        }
+        current.entries().add(new Entry(pos.getX(), pos.getY(), pos.getZ(), before, after));
+        recorded++;
+        if (++buffered >= FLUSH_ENTRIES) {
+            List<ChunkGroup> batch = buffer;
+            buffer = new ArrayList<>();
+            current = null;
+            buffered = 0;
+            db.submitWrite("записи rollback-сессии " + sessionId, connection -> insert(connection, batch));
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (finished) return;
+        finished = true;
+
+        List<ChunkGroup> tail = buffer;
+        buffer = List.of();
+        current = null;
+        int total = recorded;
+        db.submitWrite("завершение rollback-сессии " + sessionId, connection -> {
+            insert(connection, tail);
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "UPDATE rollback_sessions SET finished = 1, entry_count = ? WHERE id = ?;")) {
+                ps.setInt(1, total);
+                ps.setInt(2, sessionId);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public int sessionId() {
+        return sessionId;
+    }
+
+    private int insert(Connection connection, List<ChunkGroup> groups) throws SQLException {
+        if (groups.isEmpty()) return 0;
+        int rows = 0;
+        try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL)) {
+            for (ChunkGroup group : groups) {
+                List<SessionSnapshotCodec.Entry> encoded = new ArrayList<>(group.entries().size());
+                for (Entry e : group.entries()) {
+                    encoded.add(new SessionSnapshotCodec.Entry(e.x(), e.y(), e.z(),
+                            BlockStatePalette.serialize(e.before()), BlockStatePalette.serialize(e.after())));
+                }
+                ps.setInt(1, sessionId);
+                ps.setString(2, dimension);
+                ps.setInt(3, group.chunkX());
+                ps.setInt(4, group.chunkZ());
+                ps.setInt(5, encoded.size());
+                ps.setBytes(6, SessionSnapshotCodec.encode(encoded));
+                ps.addBatch();
+                rows += encoded.size();
+            }
+            ps.executeBatch();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,233 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import ru.ap4uuk.coreprotect.model.BlockAction;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Хранилище истории блоков: всё, что нужно командам и обработчикам событий, без знания о том, где и как лежат данные.
+ * Открывается через {@link StorageBackends} по {@code storage.storageType}: {@link DatabaseManager} (SQLite)
+ * или {@link SegmentStorage} (сегменты в файлах, отображённых в память). Что именно обязана выполнять реализация, проверяет {@code StorageConformance} ({@code ./gradlew storageConformance}).
+ * <p>
+ * Потоки: запись событий вызывается с потока сервера и не должна ждать диска; выборки уходят на свои потоки
+ * ({@link ActionStream}, {@link CompletableFuture}); синхронны только {@link #getBlockHistory} и
+ * {@link #createRollbackSession}.
+ */
+public interface StorageBackend extends AutoCloseable {
+
+    // ---------- Запись событий ----------
+
+    /**
+     * Логирование одного действия блока, время — сейчас. Не блокирует вызывающий поток на диске;
+     * при переполнении очереди действует по {@link OverflowPolicy}.
+     *
+     * @param oldState состояние до, null — не нужно
+     * @param newState состояние после, null — не нужно
+     */
+    void logBlockChange(BlockAction.Type type,
+                        UUID playerUuid,
+                        String playerName,
+                        ResourceKey<Level> dimension,
+                        BlockPos pos,
+                        BlockState oldState,
+                        BlockState newState);
+
+    /**
+     * То же, что {@link #logBlockChange}, для уже собранного события (время берётся из него).
+     */
+    void logBlockAction(BlockAction action);
+
+    /**
+     * Завершается, когда всё, что принято до вызова (включая очередь и spill-журнал), записано и видно выборкам
+     * по области. Для тестов, нагрузочных прогонов и остановки; на потоке сервера не ждать.
+     */
+    CompletableFuture<Void> flush();
+
+    // ---------- История позиции (инспект) ----------
+
+    /**
+     * Последние {@code limit} событий по позиции, от новых к старым, включая события, ещё не записанные на диск.
+     */
+    List<DbBlockAction> getBlockHistory(ResourceKey<Level> dimension, BlockPos pos, int limit);
+
+    /**
+     * {@link #getBlockHistory} на потоке выборок; результат нужно доставлять туда, где с ним работают.
+     */
+    CompletableFuture<List<DbBlockAction>> getBlockHistoryAsync(ResourceKey<Level> dimension, BlockPos pos, int limit);
+
+    // ---------- Выборки по области (rollback / restore) ----------
+
+    /**
+     * План rollback: по одной строке на позицию куба {@code center ± radius} — самое раннее событие
+     * не старше {@code sinceEpochSeconds}; его old-состояние — то, во что позицию надо вернуть.
+     * {@code playerNameFilter} (null — все) оставляет только события игрока с таким ником.
+     */
+    ActionStream<DbRollbackAction> streamActionsForRollback(ResourceKey<Level> dimension,
+                                                            BlockPos center,
+                                                            int radius,
+                                                            long sinceEpochSeconds,
+                                                            String playerNameFilter);
+
+    /**
+     * План restore: как {@link #streamActionsForRollback}, но самое позднее событие окна с его new-состоянием.
+     */
+    ActionStream<DbForwardAction> streamActionsForRestore(ResourceKey<Level> dimension,
+                                                          BlockPos center,
+                                                          int radius,
+                                                          long sinceEpochSeconds,
+                                                          String playerNameFilter);
+
+    // ---------- Rollback-сессии ----------
+
+    /**
+     * Новая сессия rollback. Id выдаётся сразу в памяти, сама сессия записывается writer-потоком в общей очереди
+     * записей — раньше записей, которые на неё ссылаются; поток сервера не ждёт. -1 — хранилище уже остановлено.
+     */
+    int createRollbackSession(String executor, String params);
+
+    /**
+     * Буфер записей для сессии, созданной {@link #createRollbackSession}.
+     */
+    RollbackSessionRecorder openSessionRecorder(int sessionId, ResourceKey<Level> dimension);
+
+    /**
+     * Записи сессии потоком, по одной на позицию, с состоянием до rollback-а.
+     */
+    ActionStream<RollbackSessionEntry> streamRollbackEntries(int sessionId);
+
+    /**
+     * Состояние сессии на потоке выборок: дописан ли её снимок ({@link RollbackSessionRecorder#finish}) и сколько
+     * в нём позиций. Снимок недописанной сессии (сервер остановился посреди rollback-а) неполный.
+     * Для сессии, которая только что создана и ещё не записана, ответ приходит после её записи.
+     * Результат null — такой сессии нет.
+     */
+    CompletableFuture<RollbackSessionStatus> getRollbackSessionStatusAsync(int sessionId);
+
+    void markSessionRestored(int sessionId);
+
+    // ---------- Обслуживание ----------
+
+    /**
+     * Запускает очистку истории старше {@code cutoffEpochSeconds} (опционально только в одном мире) в фоне.
+     * Возвращает false, если очистка уже идёт.
+     *
+     * @throws IllegalArgumentException если мир неизвестен хранилищу
+     */
+    boolean startPurge(long cutoffEpochSeconds, String dimension, boolean vacuum, PurgeListener listener);
+
+    /** Метрики записи и выборок: для {@code /co status} и JMX. */
+    PipelineMetrics metrics();
+
+    /**
+     * Строка вида {@code minecraft:oak_stairs[facing=east,half=top]} -> BlockState.
+     * Строка без свойств даёт состояние по умолчанию, null и нераспознанное — воздух.
+     */
+    BlockState deserializeBlockState(String id);
+
+    /**
+     * Дописывает принятые события и закрывает хранилище. Повторный вызов ничего не делает.
+     */
+    @Override
+    void close();
+
+    // ---------- Строки выборок ----------
+
+    final class DbBlockAction {
+        public final long timeEpoch;
+        public final String playerName;
+        public final String actionType;
+        public final String oldBlock;
+        public final String newBlock;
+
+        public DbBlockAction(long timeEpoch,
+                             String playerName,
+                             String actionType,
+                             String oldBlock,
+                             String newBlock) {
+            this.timeEpoch = timeEpoch;
+            this.playerName = playerName;
+            this.actionType = actionType;
+            this.oldBlock = oldBlock;
+            this.newBlock = newBlock;
+        }
+    }
+
+    final class DbRollbackAction {
+        public final long timeEpoch;
+        public final int x, y, z;
+        public final String actionType;
+        public final String oldBlock;
+        public final BlockState oldState;
+
+        public DbRollbackAction(long timeEpoch, int x, int y, int z,
+                                String actionType, String oldBlock, BlockState oldState) {
+            this.timeEpoch = timeEpoch;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.actionType = actionType;
+            this.oldBlock = oldBlock;
+            this.oldState = oldState;
+        }
+    }
+
+    final class DbForwardAction {
+        public final long timeEpoch;
+        public final int x, y, z;
+        public final String actionType;
+        public final String newBlock;
+        public final BlockState newState;
+
+        public DbForwardAction(long timeEpoch, int x, int y, int z,
+                               String actionType, String newBlock, BlockState newState) {
+            this.timeEpoch = timeEpoch;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.actionType = actionType;
+            this.newBlock = newBlock;
+            this.newState = newState;
+        }
+    }
+
+    final class RollbackSessionEntry {
+        public final int id;
+        public final int sessionId;
+        public final String dimension;
+        public final int x, y, z;
+        public final String beforeBlock;
+        public final String afterBlock;
+
+        public RollbackSessionEntry(int id, int sessionId, String dimension,
+                                    int x, int y, int z,
+                                    String beforeBlock, String afterBlock) {
+            this.id = id;
+            this.sessionId = sessionId;
+            this.dimension = dimension;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.beforeBlock = beforeBlock;
+            this.afterBlock = afterBlock;
+        }
+    }
+
+    final class RollbackSessionStatus {
+        public final int sessionId;
+        public final boolean finished;
+        // -1 — неизвестно: сессия не дописана или записана до того, как число стали хранить
+        public final int entryCount;
+
+        public RollbackSessionStatus(int sessionId, boolean finished, int entryCount) {
+            this.sessionId = sessionId;
+            this.finished = finished;
+            this.entryCount = entryCount;
+        }
+    }
+}
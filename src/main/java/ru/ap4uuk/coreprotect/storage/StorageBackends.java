@@ -0,0 +1,109 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.Coreprotect;
+import ru.ap4uuk.coreprotect.config.CoreprotectConfig;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Реестр реализаций {@link StorageBackend} по {@code storage.storageType} и текущее открытое хранилище.
+ * Команды и обработчики событий берут хранилище через {@link #get()} и не знают, какое оно.
+ * <p>
+ * Реализация регистрируется с фабрикой и местом хранения по умолчанию из конфига; {@code StorageConformance}
+ * открывает её той же фабрикой во временном каталоге.
+ */
+public final class StorageBackends {
+
+    /**
+     * Открывает хранилище в {@code location} (файл или каталог — решает реализация).
+     * null или исключение — не удалось; причина должна быть в логе.
+     */
+    @FunctionalInterface
+    public interface Factory {
+        StorageBackend open(Path location, StorageSettings settings) throws Exception;
+    }
+
+    private record Registration(Factory factory, Supplier<Path> configuredLocation) {}
+
+    private static final Map<String, Registration> REGISTRY = new LinkedHashMap<>();
+    private static volatile StorageBackend active;
+
+    static {
+        register("SQLITE", DatabaseManager::open, () -> Paths.get(CoreprotectConfig.COMMON.sqlitePath.get()));
+        register("SEGMENTS", SegmentStorage::open, () -> Paths.get(CoreprotectConfig.COMMON.segmentPath.get()));
+    }
+
+    private StorageBackends() {}
+
+    public static synchronized void register(String type, Factory factory, Supplier<Path> configuredLocation) {
+        REGISTRY.put(type.toUpperCase(Locale.ROOT), new Registration(factory, configuredLocation));
+    }
+
+    public static synchronized Set<String> types() {
+        return Set.copyOf(REGISTRY.keySet());
+    }
+
+    /**
+     * Открывает хранилище типа {@code type} там, где оно настроено в конфиге, и делает его текущим.
+     */
+    public static synchronized boolean openConfigured(String type, StorageSettings settings) {
+        if (active != null) {
+            Coreprotect.LOGGER.warn("[Coreprotect] Хранилище уже открыто.");
+            return true;
+        }
+        Registration registration = REGISTRY.get(normalize(type));
+        if (registration == null) {
+            Coreprotect.LOGGER.error("[Coreprotect] Тип хранилища '{}' не поддерживается. Доступны: {}.",
+                    type, String.join(", ", REGISTRY.keySet()));
+            return false;
+        }
+        Path location = registration.configuredLocation().get();
+        StorageBackend backend = open(type, location, settings);
+        if (backend == null) return false;
+        active = backend;
+        Coreprotect.LOGGER.info("[Coreprotect] Хранилище {} открыто: {}", normalize(type), location.toAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Открывает хранилище типа {@code type} в {@code location}, не делая его текущим. null — не удалось.
+     *
+     * @throws IllegalArgumentException если такой тип не зарегистрирован
+     */
+    public static synchronized StorageBackend open(String type, Path location, StorageSettings settings) {
+        Registration registration = REGISTRY.get(normalize(type));
+        if (registration == null) {
+            throw new IllegalArgumentException("Неизвестный тип хранилища: " + type);
+        }
+        try {
+            return registration.factory().open(location, settings);
+        } catch (Exception e) {
+            Coreprotect.LOGGER.error("[Coreprotect] Ошибка открытия хранилища {} ({})", type, location, e);
+            return null;
+        }
+    }
+
+    /**
+     * Текущее хранилище; null — не открыто или уже закрыто.
+     */
+    public static StorageBackend get() {
+        return active;
+    }
+
+    public static synchronized void shutdown() {
+        StorageBackend backend = active;
+        if (backend == null) return;
+        active = null;
+        backend.close();
+    }
+
+    private static String normalize(String type) {
+        return type == null ? "SQLITE" : type.toUpperCase(Locale.ROOT);
+    }
+}
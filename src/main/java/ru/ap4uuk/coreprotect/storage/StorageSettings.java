@@ -0,0 +1,75 @@
+package ru.ap4uuk.coreprotect.storage;
+
+import ru.ap4uuk.coreprotect.config.CoreprotectConfig;
+
+/**
+ * Настройки хранилища, снятые с конфига один раз при старте.
+ * DatabaseManager не лезет в ForgeConfigSpec напрямую, чтобы его можно было поднять и без загруженного конфига.
+ */
+public final class StorageSettings {
+
+    public final int minBatchSize;
+    public final int maxBatchSize;
+    public final long maxBatchLatencyMs;
+    public final long targetCommitMs;
+    public final OverflowPolicy overflowPolicy;
+    public final long overflowBlockTimeoutMs;
+    public final long coalesceWindowMs; // 0 — события не сливаются
+    public final int partitionDays;
+    public final int retentionDays; // 0 — без ограничения
+    public final int coldAfterDays; // 0 — партиции не сжимаются
+    public final int readConnections;
+    public final int inspectCacheEntries; // 0 — без кэша, только ещё не записанные события
+    public final int rollbackFetchSize;
+
+    public StorageSettings(int minBatchSize,
+                           int maxBatchSize,
+                           long maxBatchLatencyMs,
+                           long targetCommitMs,
+                           OverflowPolicy overflowPolicy,
+                           long overflowBlockTimeoutMs,
+                           long coalesceWindowMs,
+                           int partitionDays,
+                           int retentionDays,
+                           int coldAfterDays,
+                           int readConnections,
+                           int inspectCacheEntries,
+                           int rollbackFetchSize) {
+        this.minBatchSize = Math.max(1, Math.min(minBatchSize, maxBatchSize));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchLatencyMs = Math.max(1, maxBatchLatencyMs);
+        this.targetCommitMs = Math.max(1, targetCommitMs);
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.SPILL : overflowPolicy;
+        this.overflowBlockTimeoutMs = Math.max(0, overflowBlockTimeoutMs);
+        this.coalesceWindowMs = Math.max(0, coalesceWindowMs);
+        this.partitionDays = Math.max(1, partitionDays);
+        this.retentionDays = Math.max(0, retentionDays);
+        this.coldAfterDays = Math.max(0, coldAfterDays);
+        this.readConnections = Math.max(1, readConnections);
+        this.inspectCacheEntries = Math.max(0, inspectCacheEntries);
+        this.rollbackFetchSize = Math.max(1, rollbackFetchSize);
+    }
+
+    public static StorageSettings defaults() {
+        return new StorageSettings(64, 4096, 250, 50, OverflowPolicy.SPILL, 5, 0, 7, 0, 0, 2, 4096, 1000);
+    }
+
+    public static StorageSettings fromConfig() {
+        var c = CoreprotectConfig.COMMON;
+        return new StorageSettings(
+                c.writerMinBatchSize.get(),
+                c.writerMaxBatchSize.get(),
+                c.writerMaxBatchLatencyMs.get(),
+                c.writerTargetCommitMs.get(),
+                c.writerOverflowPolicy.get(),
+                c.writerOverflowBlockTimeoutMs.get(),
+                c.writerCoalesceWindowMs.get(),
+                c.partitionDays.get(),
+                c.retentionDays.get(),
+                c.coldAfterDays.get(),
+                c.readConnections.get(),
+                c.inspectCacheEntries.get(),
+                c.rollbackFetchSize.get()
+        );
+    }
+}